@@ -22,13 +22,15 @@ package org.killbill.billing.platform.config;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.Collections;
-import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.annotation.Nullable;
 
@@ -41,8 +43,22 @@ import org.killbill.xmlloader.UriAccessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Readers (config-magic proxies, plugins) access an immutable snapshot of the configuration, without any locking: the
+ * environment variables overrides and the Jasypt decryption are applied once, when the snapshot is built. Changes at
+ * runtime go through {@link #reload()} or {@link #reload(Map)}, which atomically publish a new snapshot and notify the
+ * {@link ConfigChangeListener}s.
+ * <p>
+ * Note that System properties are read when the snapshot is built: changes made afterwards are only visible after a reload.
+ */
 public class DefaultKillbillConfigSource implements KillbillConfigSource, OSGIConfigProperties {
 
+    public interface ConfigChangeListener {
+
+        // New values of the properties which changed (null if the property was removed)
+        void onConfigChange(Map<String, String> changedProperties);
+    }
+
     private static final Object lock = new Object();
 
     private static final String PROP_USER_TIME_ZONE = "user.timezone";
@@ -67,7 +83,18 @@ public class DefaultKillbillConfigSource implements KillbillConfigSource, OSGICo
     private static volatile int GMT_WARNING = NOT_SHOWN;
     private static volatile int ENTROPY_WARNING = NOT_SHOWN;
 
-    private final Properties properties;
+    private final Object snapshotLock = new Object();
+    private final List<ConfigChangeListener> listeners = new CopyOnWriteArrayList<ConfigChangeListener>();
+
+    private final String file;
+    private final Map<String, String> extraDefaultProperties;
+
+    // Raw configuration (file or System properties, and defaults), guarded by snapshotLock
+    private Properties properties;
+    // Changes at runtime (see setProperty and reload), applied on top of the environment variables (null if removed),
+    // guarded by snapshotLock
+    private Map<String, String> runtimeProperties = Collections.emptyMap();
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
 
     public DefaultKillbillConfigSource() throws IOException, URISyntaxException {
         this((String) null);
@@ -82,47 +109,79 @@ public class DefaultKillbillConfigSource implements KillbillConfigSource, OSGICo
     }
 
     public DefaultKillbillConfigSource(@Nullable final String file, final Map<String, String> extraDefaultProperties) throws URISyntaxException, IOException {
-        if (file == null) {
-            this.properties = loadPropertiesFromFileOrSystemProperties();
-        } else {
-            this.properties = new Properties();
-            this.properties.load(UriAccessor.accessUri(Objects.requireNonNull(this.getClass().getResource(file)).toURI()));
-        }
-
-        for (final Entry<String, String> entry : extraDefaultProperties.entrySet()) {
-            if (entry.getValue() != null) {
-                properties.put(entry.getKey(), entry.getValue());
-            }
-        }
-
-        populateDefaultProperties();
+        this.file = file;
+        this.extraDefaultProperties = new HashMap<String, String>(extraDefaultProperties);
 
-        if (Boolean.parseBoolean(getString(LOOKUP_ENVIRONMENT_VARIABLES))) {
-            overrideWithEnvironmentVariables();
-        }
-
-        if (Boolean.parseBoolean(getString(ENABLE_JASYPT_DECRYPTION))) {
-            decryptJasyptProperties();
+        synchronized (snapshotLock) {
+            this.properties = loadProperties();
+            // Builds the first snapshot
+            populateDefaultProperties();
         }
     }
 
     @Override
     public String getString(final String propertyName) {
-        return properties.getProperty(propertyName);
+        return snapshot.values.get(propertyName);
     }
 
     @Override
     public Properties getProperties() {
-        final Properties result = new Properties();
-        // using properties.stringPropertyNames() because `result.putAll(properties)` not working when running inside
-        // tomcat, if we put configuration in tomcat's catalina.properties
-        // See:
-        // - https://github.com/killbill/technical-support/issues/61
-        // - https://github.com/killbill/technical-support/issues/67
-        //
-        // We have TestDefaultKillbillConfigSource#testGetProperties() that cover this, but seems like this is similar
-        // to one of our chicken-egg problem? (see loadPropertiesFromFileOrSystemProperties() below)
-        properties.stringPropertyNames().forEach(key -> result.setProperty(key, properties.getProperty(key)));
+        // Flat copy (no defaults chain), see https://github.com/killbill/technical-support/issues/61
+        return (Properties) snapshot.properties.clone();
+    }
+
+    public void addConfigChangeListener(final ConfigChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeConfigChangeListener(final ConfigChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Re-read the properties file (or the System properties) and the environment variables. Changes made through
+     * {@link #reload(Map)} are kept.
+     */
+    public void reload() throws URISyntaxException, IOException {
+        synchronized (snapshotLock) {
+            final Properties newProperties = loadProperties();
+            addDefaultProperties(newProperties);
+            // Only published if valid (e.g. the decryption succeeded)
+            final Snapshot newSnapshot = buildSnapshot(newProperties, runtimeProperties);
+            properties = newProperties;
+            publish(newSnapshot);
+        }
+    }
+
+    /**
+     * Atomically apply the specified changes (a null value removes the property): either all or none of them are visible.
+     */
+    public void reload(final Map<String, String> propertyChanges) {
+        synchronized (snapshotLock) {
+            final Map<String, String> newRuntimeProperties = new HashMap<String, String>(runtimeProperties);
+            // Removals (null values) are kept too, to shadow the file, System properties and environment variables
+            newRuntimeProperties.putAll(propertyChanges);
+            // Only published if valid (e.g. the decryption succeeded)
+            final Snapshot newSnapshot = buildSnapshot(properties, newRuntimeProperties);
+            runtimeProperties = newRuntimeProperties;
+            publish(newSnapshot);
+        }
+    }
+
+    private Properties loadProperties() throws URISyntaxException, IOException {
+        final Properties result;
+        if (file == null) {
+            result = loadPropertiesFromFileOrSystemProperties();
+        } else {
+            result = new Properties();
+            result.load(UriAccessor.accessUri(Objects.requireNonNull(this.getClass().getResource(file)).toURI()));
+        }
+
+        for (final Entry<String, String> entry : extraDefaultProperties.entrySet()) {
+            if (entry.getValue() != null) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
         return result;
     }
 
@@ -148,14 +207,25 @@ public class DefaultKillbillConfigSource implements KillbillConfigSource, OSGICo
 
     @VisibleForTesting
     protected void populateDefaultProperties() {
+        synchronized (snapshotLock) {
+            addDefaultProperties(properties);
+            populateDefaultSystemProperties();
+            // Default System properties are part of the configuration too
+            publish(buildSnapshot(properties, runtimeProperties));
+        }
+    }
+
+    private void addDefaultProperties(final Properties rawProperties) {
         final Properties defaultProperties = getDefaultProperties();
         for (final String propertyName : defaultProperties.stringPropertyNames()) {
             // Let the user override these properties
-            if (properties.get(propertyName) == null) {
-                properties.put(propertyName, defaultProperties.get(propertyName));
+            if (rawProperties.get(propertyName) == null) {
+                rawProperties.put(propertyName, defaultProperties.get(propertyName));
             }
         }
+    }
 
+    private void populateDefaultSystemProperties() {
         final Properties defaultSystemProperties = getDefaultSystemProperties();
         for (final String propertyName : defaultSystemProperties.stringPropertyNames()) {
 
@@ -205,7 +275,7 @@ public class DefaultKillbillConfigSource implements KillbillConfigSource, OSGICo
 
     @VisibleForTesting
     public void setProperty(final String propertyName, final Object propertyValue) {
-        properties.put(propertyName, propertyValue);
+        reload(Collections.singletonMap(propertyName, String.valueOf(Objects.requireNonNull(propertyValue))));
     }
 
     @VisibleForTesting
@@ -233,9 +303,72 @@ public class DefaultKillbillConfigSource implements KillbillConfigSource, OSGICo
         return properties;
     }
 
-    private void overrideWithEnvironmentVariables() {
+    // Precompute everything readers need: flat view of the raw properties (including the System properties defaults
+    // chain), environment variables, runtime changes and decryption
+    private Snapshot buildSnapshot(final Properties rawProperties, final Map<String, String> runtimeProperties) {
+        final Map<String, String> values = new HashMap<String, String>();
+        // stringPropertyNames() rather than putAll, to see the defaults (see https://github.com/killbill/technical-support/issues/67)
+        for (final String propertyName : rawProperties.stringPropertyNames()) {
+            values.put(propertyName, rawProperties.getProperty(propertyName));
+        }
+
+        if (Boolean.parseBoolean(values.get(LOOKUP_ENVIRONMENT_VARIABLES))) {
+            overrideWithEnvironmentVariables(values);
+        }
+
+        for (final Entry<String, String> entry : runtimeProperties.entrySet()) {
+            if (entry.getValue() == null) {
+                values.remove(entry.getKey());
+            } else {
+                values.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (Boolean.parseBoolean(values.get(ENABLE_JASYPT_DECRYPTION))) {
+            decryptJasyptProperties(values);
+        }
+
+        return new Snapshot(values);
+    }
+
+    private void publish(final Snapshot newSnapshot) {
+        final Snapshot oldSnapshot = snapshot;
+        snapshot = newSnapshot;
+
+        if (listeners.isEmpty()) {
+            return;
+        }
+
+        final Map<String, String> changedProperties = new HashMap<String, String>();
+        for (final Entry<String, String> entry : newSnapshot.values.entrySet()) {
+            if (!entry.getValue().equals(oldSnapshot.values.get(entry.getKey()))) {
+                changedProperties.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (final String propertyName : oldSnapshot.values.keySet()) {
+            if (!newSnapshot.values.containsKey(propertyName)) {
+                changedProperties.put(propertyName, null);
+            }
+        }
+        if (changedProperties.isEmpty()) {
+            return;
+        }
+
+        // Values aren't logged, they may have been decrypted
+        logger.info("Configuration changed: {}", changedProperties.keySet());
+        final Map<String, String> unmodifiableChangedProperties = Collections.unmodifiableMap(changedProperties);
+        for (final ConfigChangeListener listener : listeners) {
+            try {
+                listener.onConfigChange(unmodifiableChangedProperties);
+            } catch (final RuntimeException e) {
+                logger.warn("Configuration listener {} failed", listener, e);
+            }
+        }
+    }
+
+    private void overrideWithEnvironmentVariables(final Map<String, String> values) {
         // Find all Kill Bill properties in the environment variables
-        final Map<String, String> env = System.getenv();
+        final Map<String, String> env = getEnvironmentVariables();
         for (final Entry<String, String> entry : env.entrySet()) {
             if (!entry.getKey().startsWith(ENVIRONMENT_VARIABLE_PREFIX)) {
                 continue;
@@ -243,27 +376,29 @@ public class DefaultKillbillConfigSource implements KillbillConfigSource, OSGICo
 
             final String propertyName = fromEnvVariableName(entry.getKey());
             final String value = entry.getValue();
-            properties.setProperty(propertyName, value);
+            values.put(propertyName, value);
         }
     }
 
+    @VisibleForTesting
+    protected Map<String, String> getEnvironmentVariables() {
+        return System.getenv();
+    }
+
     @VisibleForTesting
     String fromEnvVariableName(final String key) {
         return key.replace(ENVIRONMENT_VARIABLE_PREFIX, "").replaceAll("_", "\\.");
     }
 
-    private void decryptJasyptProperties() {
-        final String password = getEnvironmentVariable(JASYPT_ENCRYPTOR_PASSWORD_KEY, System.getProperty(JASYPT_ENCRYPTOR_PASSWORD_KEY));
-        final String algorithm = getEnvironmentVariable(JASYPT_ENCRYPTOR_ALGORITHM_KEY, System.getProperty(JASYPT_ENCRYPTOR_ALGORITHM_KEY));
+    private void decryptJasyptProperties(final Map<String, String> values) {
+        final String password = getEnvironmentVariable(JASYPT_ENCRYPTOR_PASSWORD_KEY, System.getProperty(JASYPT_ENCRYPTOR_PASSWORD_KEY), values);
+        final String algorithm = getEnvironmentVariable(JASYPT_ENCRYPTOR_ALGORITHM_KEY, System.getProperty(JASYPT_ENCRYPTOR_ALGORITHM_KEY), values);
 
-        final Enumeration<Object> keys = properties.keys();
         final StandardPBEStringEncryptor encryptor = initializeEncryptor(password, algorithm);
         // Iterate over all properties and decrypt ones that match
-        while (keys.hasMoreElements()) {
-            final String key = (String) keys.nextElement();
-            final String value = (String) properties.get(key);
-            final Optional<String> decryptableValue = decryptableValue(value);
-            decryptableValue.ifPresent(s -> properties.setProperty(key, encryptor.decrypt(s)));
+        for (final Entry<String, String> entry : values.entrySet()) {
+            final Optional<String> decryptableValue = decryptableValue(entry.getValue());
+            decryptableValue.ifPresent(s -> entry.setValue(encryptor.decrypt(s)));
         }
     }
 
@@ -281,13 +416,13 @@ public class DefaultKillbillConfigSource implements KillbillConfigSource, OSGICo
         return encryptor;
     }
 
-    private String getEnvironmentVariable(final String name, final String defaultValue) {
-        String value = System.getenv(name);
+    private String getEnvironmentVariable(final String name, final String defaultValue, final Map<String, String> values) {
+        String value = getEnvironmentVariables().get(name);
         if (!Strings.isNullOrEmpty(value)) {
             return value;
         }
 
-        value = getString(name);
+        value = values.get(name);
         return Strings.isNullOrEmpty(value) ? defaultValue : value;
     }
 
@@ -305,4 +440,24 @@ public class DefaultKillbillConfigSource implements KillbillConfigSource, OSGICo
         }
         return Optional.empty();
     }
+
+    private static Properties copyOf(final Map<String, String> values) {
+        final Properties result = new Properties();
+        result.putAll(values);
+        return result;
+    }
+
+    private static final class Snapshot {
+
+        private static final Snapshot EMPTY = new Snapshot(Collections.emptyMap());
+
+        private final Map<String, String> values;
+        // Precomputed for getProperties()
+        private final Properties properties;
+
+        private Snapshot(final Map<String, String> values) {
+            this.values = Map.copyOf(values);
+            this.properties = copyOf(values);
+        }
+    }
 }
@@ -19,10 +19,19 @@
 
 package org.killbill.billing.platform.config;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.jasypt.encryption.pbe.StandardPBEStringEncryptor;
 import org.jasypt.exceptions.EncryptionOperationNotPossibleException;
@@ -42,6 +51,9 @@ public class TestDefaultKillbillConfigSource {
     private static final String JASYPT_ALGORITHM = "PBEWITHMD5ANDDES";
     private static final String ENCRYPTED_PROPERTY_1 = "test.encrypted.property1";
     private static final String ENCRYPTED_PROPERTY_2 = "test.encrypted.property2";
+    private static final String PROPERTIES_FILE_PROPERTY = "org.killbill.server.properties";
+    private static final String LOOKUP_ENVIRONMENT_VARIABLES_PROPERTY = "org.killbill.server.lookupEnvironmentVariables";
+    private static final String PARITY_PROPERTY = "test.parity.property";
 
     @BeforeMethod(groups = "fast")
     public void setup() {
@@ -53,6 +65,8 @@ public class TestDefaultKillbillConfigSource {
         System.clearProperty(JASYPT_ALGORITHM);
         System.clearProperty(ENCRYPTED_PROPERTY_1);
         System.clearProperty(ENCRYPTED_PROPERTY_2);
+        System.clearProperty(PROPERTIES_FILE_PROPERTY);
+        System.clearProperty(PARITY_PROPERTY);
     }
 
     @Test(groups = "fast")
@@ -175,6 +189,168 @@ public class TestDefaultKillbillConfigSource {
         Assert.assertEquals(unencryptedValue2, actualValue2);
     }
 
+    @Test(groups = "fast")
+    public void testFileBackedSource() throws Exception {
+        final File file = File.createTempFile("killbill", ".properties");
+        try {
+            final Properties fileProperties = new Properties();
+            fileProperties.setProperty(PARITY_PROPERTY, "fromFile");
+            fileProperties.setProperty(ENCRYPTED_PROPERTY_1, "plain");
+            try (final OutputStream outputStream = Files.newOutputStream(file.toPath())) {
+                fileProperties.store(outputStream, null);
+            }
+            System.setProperty(PROPERTIES_FILE_PROPERTY, file.toURI().toString());
+            System.setProperty(ENCRYPTED_PROPERTY_2, "ignored");
+
+            final DefaultKillbillConfigSource configSource = new DefaultKillbillConfigSource();
+            Assert.assertEquals(configSource.getString(PARITY_PROPERTY), "fromFile");
+            Assert.assertEquals(configSource.getString(ENCRYPTED_PROPERTY_1), "plain");
+            // System properties are ignored when loading from a file
+            Assert.assertNull(configSource.getString(ENCRYPTED_PROPERTY_2));
+            // Defaults
+            Assert.assertEquals(configSource.getString(LOOKUP_ENVIRONMENT_VARIABLES_PROPERTY), "true");
+            assertParity(configSource);
+
+            // The file is only read again on reload
+            fileProperties.setProperty(PARITY_PROPERTY, "updated");
+            try (final OutputStream outputStream = Files.newOutputStream(file.toPath())) {
+                fileProperties.store(outputStream, null);
+            }
+            Assert.assertEquals(configSource.getString(PARITY_PROPERTY), "fromFile");
+            configSource.reload();
+            Assert.assertEquals(configSource.getString(PARITY_PROPERTY), "updated");
+            assertParity(configSource);
+        } finally {
+            Assert.assertTrue(file.delete());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSystemPropertiesSource() throws Exception {
+        System.setProperty(PARITY_PROPERTY, "fromSystem");
+
+        final DefaultKillbillConfigSource configSource = new DefaultKillbillConfigSource(Map.of(ENCRYPTED_PROPERTY_1, "extra"));
+        Assert.assertEquals(configSource.getString(PARITY_PROPERTY), "fromSystem");
+        Assert.assertEquals(configSource.getString(ENCRYPTED_PROPERTY_1), "extra");
+        // Default System properties
+        Assert.assertEquals(configSource.getString("ANTLR_USE_DIRECT_CLASS_LOADING"), "true");
+        assertParity(configSource);
+
+        final List<Map<String, String>> changes = new ArrayList<Map<String, String>>();
+        configSource.addConfigChangeListener(changes::add);
+
+        // Snapshot: System properties changes are only visible after a reload
+        System.setProperty(PARITY_PROPERTY, "changed");
+        Assert.assertEquals(configSource.getString(PARITY_PROPERTY), "fromSystem");
+        configSource.reload();
+        Assert.assertEquals(configSource.getString(PARITY_PROPERTY), "changed");
+        Assert.assertEquals(changes, List.of(Map.of(PARITY_PROPERTY, "changed")));
+        assertParity(configSource);
+
+        // Nothing changed, nothing to notify
+        configSource.reload();
+        Assert.assertEquals(changes.size(), 1);
+
+        // Runtime removals shadow the System properties
+        configSource.reload(Collections.singletonMap(PARITY_PROPERTY, null));
+        Assert.assertNull(configSource.getString(PARITY_PROPERTY));
+        Assert.assertFalse(configSource.getProperties().containsKey(PARITY_PROPERTY));
+        Assert.assertEquals(changes.get(1), Collections.singletonMap(PARITY_PROPERTY, null));
+        configSource.reload();
+        Assert.assertNull(configSource.getString(PARITY_PROPERTY));
+    }
+
+    @Test(groups = "fast")
+    public void testEnvironmentDrivenSource() throws Exception {
+        final Map<String, String> extraProperties = Map.of(PARITY_PROPERTY, "fromDefaults",
+                                                           ENCRYPTED_PROPERTY_1, "fromDefaults");
+
+        final DefaultKillbillConfigSource configSource = new EnvironmentConfigSource(extraProperties);
+        // Environment variables win over the configuration...
+        Assert.assertEquals(configSource.getString(PARITY_PROPERTY), "fromEnv");
+        Assert.assertEquals(configSource.getString(ENCRYPTED_PROPERTY_1), "fromDefaults");
+        Assert.assertEquals(configSource.getString(ENCRYPTED_PROPERTY_2), "fromEnv");
+        assertParity(configSource);
+        // ...but not over runtime changes
+        configSource.setProperty(PARITY_PROPERTY, "fromRuntime");
+        Assert.assertEquals(configSource.getString(PARITY_PROPERTY), "fromRuntime");
+        configSource.reload();
+        Assert.assertEquals(configSource.getString(PARITY_PROPERTY), "fromRuntime");
+        assertParity(configSource);
+
+        final DefaultKillbillConfigSource noLookupConfigSource = new EnvironmentConfigSource(Map.of(PARITY_PROPERTY, "fromDefaults",
+                                                                                                    LOOKUP_ENVIRONMENT_VARIABLES_PROPERTY, "false"));
+        Assert.assertEquals(noLookupConfigSource.getString(PARITY_PROPERTY), "fromDefaults");
+        Assert.assertNull(noLookupConfigSource.getString(ENCRYPTED_PROPERTY_2));
+        assertParity(noLookupConfigSource);
+    }
+
+    @Test(groups = "fast")
+    public void testReloadWithJasypt() throws IOException, URISyntaxException {
+        final Map<String, String> properties = Map.of(ENABLE_JASYPT_PROPERTY, "true",
+                                                      ENCRYPTED_PROPERTY_1, encString("value1"),
+                                                      JASYPT_ENCRYPTOR_PASSWORD_PROPERTY, JASYPT_PASSWORD,
+                                                      JASYPT_ENCRYPTOR_ALGORITHM_PROPERTY, JASYPT_ALGORITHM);
+        final DefaultKillbillConfigSource configSource = new DefaultKillbillConfigSource(properties);
+        final List<Map<String, String>> changes = new ArrayList<Map<String, String>>();
+        configSource.addConfigChangeListener(changes::add);
+
+        // Runtime changes are decrypted too
+        configSource.reload(Map.of(ENCRYPTED_PROPERTY_1, encString("value2"), ENCRYPTED_PROPERTY_2, encString("value3")));
+        Assert.assertEquals(configSource.getString(ENCRYPTED_PROPERTY_1), "value2");
+        Assert.assertEquals(configSource.getString(ENCRYPTED_PROPERTY_2), "value3");
+        Assert.assertEquals(changes, List.of(Map.of(ENCRYPTED_PROPERTY_1, "value2", ENCRYPTED_PROPERTY_2, "value3")));
+
+        // Invalid changes are not applied at all
+        try {
+            configSource.reload(Map.of(ENCRYPTED_PROPERTY_1, "plain", ENCRYPTED_PROPERTY_2, "ENC(notAValidEncryptedString!)"));
+            Assert.fail();
+        } catch (final EncryptionOperationNotPossibleException e) {
+            Assert.assertEquals(configSource.getString(ENCRYPTED_PROPERTY_1), "value2");
+            Assert.assertEquals(configSource.getString(ENCRYPTED_PROPERTY_2), "value3");
+            Assert.assertEquals(changes.size(), 1);
+        }
+
+        // Still consistent
+        configSource.reload(Map.of(ENCRYPTED_PROPERTY_2, "plain"));
+        Assert.assertEquals(configSource.getString(ENCRYPTED_PROPERTY_1), "value2");
+        Assert.assertEquals(changes.get(1), Map.of(ENCRYPTED_PROPERTY_2, "plain"));
+        assertParity(configSource);
+    }
+
+    @Test(groups = "fast")
+    public void testReloadIsAtomic() throws Exception {
+        final DefaultKillbillConfigSource configSource = new DefaultKillbillConfigSource(Map.of(ENCRYPTED_PROPERTY_1, "0", ENCRYPTED_PROPERTY_2, "0"));
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<String> inconsistency = new AtomicReference<String>();
+        final Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                final Properties properties = configSource.getProperties();
+                final String value1 = properties.getProperty(ENCRYPTED_PROPERTY_1);
+                final String value2 = properties.getProperty(ENCRYPTED_PROPERTY_2);
+                if (!value1.equals(value2)) {
+                    inconsistency.set(value1 + " != " + value2);
+                }
+                // Callers own the returned Properties
+                properties.setProperty(ENCRYPTED_PROPERTY_1, "modified");
+            }
+        });
+        reader.start();
+        try {
+            for (int i = 1; i <= 1000; i++) {
+                configSource.reload(Map.of(ENCRYPTED_PROPERTY_1, String.valueOf(i), ENCRYPTED_PROPERTY_2, String.valueOf(i)));
+            }
+        } finally {
+            done.set(true);
+            reader.join();
+        }
+
+        Assert.assertNull(inconsistency.get());
+        Assert.assertEquals(configSource.getString(ENCRYPTED_PROPERTY_1), "1000");
+        Assert.assertEquals(configSource.getProperties().getProperty(ENCRYPTED_PROPERTY_1), "1000");
+    }
+
     private String encString(final String unencryptedValue) {
         return "ENC(" + encrypt(unencryptedValue, JASYPT_ALGORITHM, JASYPT_PASSWORD) + ")";
     }
@@ -190,4 +366,28 @@ public class TestDefaultKillbillConfigSource {
         encryptor.setAlgorithm(algorithm);
         return encryptor;
     }
+
+    // getString and getProperties must agree
+    private void assertParity(final DefaultKillbillConfigSource configSource) {
+        final Properties properties = configSource.getProperties();
+        Assert.assertEquals(properties.stringPropertyNames().size(), properties.size());
+        for (final String propertyName : properties.stringPropertyNames()) {
+            Assert.assertEquals(configSource.getString(propertyName), properties.getProperty(propertyName), propertyName);
+        }
+    }
+
+    private static final class EnvironmentConfigSource extends DefaultKillbillConfigSource {
+
+        private EnvironmentConfigSource(final Map<String, String> extraDefaultProperties) throws IOException, URISyntaxException {
+            super(extraDefaultProperties);
+        }
+
+        // Called from the parent constructor
+        @Override
+        protected Map<String, String> getEnvironmentVariables() {
+            return Map.of(ENVIRONMENT_VARIABLE_PREFIX + "test_parity_property", "fromEnv",
+                          ENVIRONMENT_VARIABLE_PREFIX + "test_encrypted_property2", "fromEnv",
+                          "test_encrypted_property1", "notKillBill");
+        }
+    }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.util.UUID;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+// Stub external bus event (the real ones live in Kill Bill)
+public class BenchmarkExtBusEvent implements ExtBusEvent {
+
+    private final ExtBusEventType eventType;
+    private final ObjectType objectType;
+    private final UUID objectId;
+    private final String metaData;
+    private final UUID accountId;
+    private final UUID tenantId;
+    private final UUID userToken;
+
+    @JsonCreator
+    public BenchmarkExtBusEvent(@JsonProperty("eventType") final ExtBusEventType eventType,
+                                @JsonProperty("objectType") final ObjectType objectType,
+                                @JsonProperty("objectId") final UUID objectId,
+                                @JsonProperty("metaData") final String metaData,
+                                @JsonProperty("accountId") final UUID accountId,
+                                @JsonProperty("tenantId") final UUID tenantId,
+                                @JsonProperty("userToken") final UUID userToken) {
+        this.eventType = eventType;
+        this.objectType = objectType;
+        this.objectId = objectId;
+        this.metaData = metaData;
+        this.accountId = accountId;
+        this.tenantId = tenantId;
+        this.userToken = userToken;
+    }
+
+    public static BenchmarkExtBusEvent create(final String metaData) {
+        return new BenchmarkExtBusEvent(ExtBusEventType.INVOICE_CREATION, ObjectType.INVOICE, UUID.randomUUID(), metaData,
+                                        UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID());
+    }
+
+    @Override
+    public ExtBusEventType getEventType() {
+        return eventType;
+    }
+
+    @Override
+    public ObjectType getObjectType() {
+        return objectType;
+    }
+
+    @Override
+    public UUID getObjectId() {
+        return objectId;
+    }
+
+    @Override
+    public String getMetaData() {
+        return metaData;
+    }
+
+    @Override
+    public UUID getAccountId() {
+        return accountId;
+    }
+
+    @Override
+    public UUID getTenantId() {
+        return tenantId;
+    }
+
+    @Override
+    public UUID getUserToken() {
+        return userToken;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.metrics.dropwizard.KillBillCodahaleMetricRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Overhead of the proxy wrapping each plugin API call (context class loader switch, optional timer)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextClassLoaderHelperBenchmark {
+
+    @Param({"false", "true"})
+    public boolean withMetrics;
+
+    private StubPluginApi service;
+    private StubPluginApi proxy;
+    private int input;
+
+    @Setup
+    public void setUp() {
+        final MetricRegistry metricRegistry = withMetrics ? new KillBillCodahaleMetricRegistry() : null;
+        service = new StubPluginApiImpl();
+        proxy = ContextClassLoaderHelper.getWrappedServiceWithCorrectContextClassLoader(service, StubPluginApi.class, "stub-plugin", metricRegistry);
+        input = 42;
+    }
+
+    @Benchmark
+    public int direct() {
+        return service.compute(input);
+    }
+
+    @Benchmark
+    public int proxied() {
+        return proxy.compute(input);
+    }
+
+    @Benchmark
+    public String proxiedObjectMethod() {
+        return proxy.toString();
+    }
+
+    public interface StubPluginApi {
+
+        int compute(int value);
+    }
+
+    public static final class StubPluginApiImpl implements StubPluginApi {
+
+        @Override
+        public int compute(final int value) {
+            return value * 31 + 7;
+        }
+
+        @Override
+        public String toString() {
+            return "StubPluginApiImpl";
+        }
+    }
+}
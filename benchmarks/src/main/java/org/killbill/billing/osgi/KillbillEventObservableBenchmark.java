@@ -0,0 +1,103 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.util.queue.QueueRetryException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Fan-out of a bus event to the plugins handlers, as seen by the bus dispatch threads
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KillbillEventObservableBenchmark {
+
+    @Param({"1", "10", "50"})
+    public int nbSubscribers;
+
+    @Param({"false", "true"})
+    public boolean async;
+
+    private final LongAdder nbDelivered = new LongAdder();
+    private final LongAdder nbRejected = new LongAdder();
+
+    private KillbillEventObservable observable;
+    private ExtBusEvent event;
+    private long partitionKey;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        observable = new KillbillEventObservable(async, 100000, 4, null);
+        for (int i = 0; i < nbSubscribers; i++) {
+            observable.addObserver(new CountingObserver(nbDelivered), "stub-plugin-" + i);
+        }
+        event = BenchmarkExtBusEvent.create(null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        observable.deleteObservers();
+    }
+
+    @Benchmark
+    public void dispatchBusEvent(final Blackhole blackhole) {
+        try {
+            // Spread the events over the partitions (accounts)
+            observable.dispatchBusEvent(event, partitionKey++);
+        } catch (final QueueRetryException e) {
+            // Handlers didn't keep up (async mode): the bus would retry later
+            nbRejected.increment();
+            blackhole.consume(e);
+        }
+    }
+
+    private static final class CountingObserver implements Observer {
+
+        private final LongAdder nbDelivered;
+
+        private CountingObserver(final LongAdder nbDelivered) {
+            this.nbDelivered = nbDelivered;
+        }
+
+        @Override
+        public void update(final Observable o, final Object arg) {
+            nbDelivered.increment();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.osgi.KillbillEventRetriableBusHandler.OSGIBusEvent;
+import org.killbill.queue.QueueObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+// Deserialization of the retriable bus events (see KillbillEventRetriableBusHandler.OSGIBusEventDeserializer)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OSGIBusEventDeserializerBenchmark {
+
+    // Size of the event metadata
+    @Param({"0", "1024"})
+    public int metaDataSize;
+
+    private ObjectReader reader;
+    private String json;
+
+    @Setup
+    public void setUp() throws IOException {
+        final ObjectMapper objectMapper = QueueObjectMapper.get();
+        reader = objectMapper.readerFor(OSGIBusEvent.class);
+
+        final String metaData = metaDataSize == 0 ? null : "{\"data\":\"" + "x".repeat(metaDataSize) + "\"}";
+        final BenchmarkExtBusEvent extBusEvent = BenchmarkExtBusEvent.create(metaData);
+        json = objectMapper.writeValueAsString(new OSGIBusEvent(extBusEvent, extBusEvent.getClass()));
+    }
+
+    @Benchmark
+    public OSGIBusEvent deserialize() throws IOException {
+        return reader.readValue(json);
+    }
+}
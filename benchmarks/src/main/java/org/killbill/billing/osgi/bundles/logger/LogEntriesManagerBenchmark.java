@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.logger;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.service.log.LogService;
+
+// Log entries recorded by concurrent loggers, while SSE subscribers are connected (but idle)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class LogEntriesManagerBenchmark {
+
+    @Param({"0", "3", "10"})
+    public int nbSubscribers;
+
+    private LogEntriesManager logEntriesManager;
+    private LogEntryJson logEntry;
+
+    @Setup
+    public void setUp() {
+        logEntriesManager = new LogEntriesManager();
+        for (int i = 0; i < nbSubscribers; i++) {
+            logEntriesManager.subscribe(UUID.randomUUID(), null);
+        }
+        logEntry = new LogEntryJson(null, LogService.LOG_INFO, "Payment processed", null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        logEntriesManager.close();
+    }
+
+    @Benchmark
+    public void recordEvent() {
+        logEntriesManager.recordEvent(logEntry);
+    }
+}
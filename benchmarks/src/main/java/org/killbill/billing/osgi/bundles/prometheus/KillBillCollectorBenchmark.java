@@ -0,0 +1,88 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.prometheus;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.commons.metrics.api.Gauge;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.metrics.dropwizard.KillBillCodahaleMetricRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+// Prometheus scrape of the Kill Bill metrics (counters, timers and gauges in equal parts)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KillBillCollectorBenchmark {
+
+    @Param({"100", "1000"})
+    public int nbMetrics;
+
+    private KillBillCollector collector;
+
+    @Setup
+    public void setUp() {
+        final MetricRegistry registry = new KillBillCodahaleMetricRegistry();
+        for (int i = 0; i < nbMetrics; i++) {
+            final String name = "kb.stub-plugin-" + i;
+            switch (i % 3) {
+                case 0:
+                    registry.counter(name + ".count").inc(i);
+                    break;
+                case 1:
+                    registry.timer(name + ".latency").update(i, TimeUnit.MILLISECONDS);
+                    break;
+                default:
+                    final long value = i;
+                    registry.gauge(name + ".size", (Gauge<Long>) () -> value);
+                    break;
+            }
+        }
+        collector = new KillBillCollector(registry);
+    }
+
+    // Path used by the CollectorRegistry (e.g. filtered scrapes)
+    @Benchmark
+    public List<MetricFamilySamples> collect() {
+        return collector.collect();
+    }
+
+    // Streaming exposition
+    @Benchmark
+    public void write004() throws IOException {
+        collector.write004(Writer.nullWriter());
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.http;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServlet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Servlet resolution for each /plugins request (see OSGIServlet)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DefaultServletRouterBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int nbPlugins;
+
+    private DefaultServletRouter router;
+    private String hitPath;
+    private String nestedHitPath;
+    private String missPath;
+
+    @Setup
+    public void setUp() {
+        router = new DefaultServletRouter();
+        for (int i = 0; i < nbPlugins; i++) {
+            router.registerServiceFromPath("/plugin-" + i, new StubServlet());
+            // Some plugins register nested prefixes as well
+            if (i % 10 == 0) {
+                router.registerServiceFromPath("/plugin-" + i + "/admin", new StubServlet());
+            }
+        }
+
+        hitPath = "/plugin-" + (nbPlugins - 1) + "/accounts/5c4e8f2a-0a7d-4d0e-9f0e-6c1f8a3b2d11/payments";
+        nestedHitPath = "/plugin-0/admin/healthcheck";
+        missPath = "/unknown-plugin/accounts";
+    }
+
+    @Benchmark
+    public DefaultServletRouter.ServletRoute resolveHit() {
+        return router.resolve(hitPath);
+    }
+
+    @Benchmark
+    public DefaultServletRouter.ServletRoute resolveNestedHit() {
+        return router.resolve(nestedHitPath);
+    }
+
+    @Benchmark
+    public DefaultServletRouter.ServletRoute resolveMiss() {
+        return router.resolve(missPath);
+    }
+
+    private static final class StubServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.osgi.MetricRegistryServiceRegistration;
+import org.killbill.billing.osgi.api.OSGIServiceDescriptor;
+import org.killbill.commons.metrics.api.Counter;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.metrics.dropwizard.KillBillCodahaleMetricRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Metrics updates from Kill Bill to the metrics plugin registry
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class KillbillPluginsMetricRegistryBenchmark {
+
+    @Param({"10", "1000"})
+    public int nbMetrics;
+
+    private MetricRegistryServiceRegistration metricRegistryServiceRegistration;
+    private KillbillPluginsMetricRegistry metricRegistry;
+    private String[] names;
+    private Counter handle;
+    private Counter legacyHandle;
+
+    @Setup
+    public void setUp() {
+        metricRegistryServiceRegistration = new MetricRegistryServiceRegistration();
+        metricRegistryServiceRegistration.registerService(new StubServiceDescriptor("killbill-metrics"), new KillBillCodahaleMetricRegistry());
+        metricRegistry = new KillbillPluginsMetricRegistry(metricRegistryServiceRegistration);
+
+        names = new String[nbMetrics];
+        for (int i = 0; i < nbMetrics; i++) {
+            names[i] = "kb.plugin.stub-plugin-" + i + ".PaymentPluginApi.purchasePayment";
+            metricRegistry.counter(names[i]);
+        }
+        handle = metricRegistry.counter(names[0]);
+        legacyHandle = new LegacyCounter(metricRegistryServiceRegistration, names[0]);
+    }
+
+    // Typical usage: lookup by name, then increment
+    @Benchmark
+    public void lookupAndIncrement(final ThreadIndex threadIndex) {
+        metricRegistry.counter(names[threadIndex.next(nbMetrics)]).inc(1);
+    }
+
+    // Handle kept by the caller
+    @Benchmark
+    public void incrementHandle() {
+        handle.inc(1);
+    }
+
+    // Baseline: previous implementation, looking up the plugin registry and the metric on every call
+    @Benchmark
+    public void legacyLookupAndIncrement(final ThreadIndex threadIndex) {
+        new LegacyCounter(metricRegistryServiceRegistration, names[threadIndex.next(nbMetrics)]).inc(1);
+    }
+
+    // Baseline: previous implementation, handle kept by the caller
+    @Benchmark
+    public void legacyIncrementHandle() {
+        legacyHandle.inc(1);
+    }
+
+    private static final class LegacyCounter implements Counter {
+
+        private final MetricRegistryServiceRegistration pluginMetricRegistry;
+        private final String name;
+
+        private LegacyCounter(final MetricRegistryServiceRegistration pluginMetricRegistry, final String name) {
+            this.pluginMetricRegistry = pluginMetricRegistry;
+            this.name = name;
+        }
+
+        @Override
+        public void inc(final long n) {
+            final MetricRegistry service = pluginMetricRegistry.getService();
+            if (service != null) {
+                service.counter(name).inc(n);
+            }
+        }
+
+        @Override
+        public long getCount() {
+            final MetricRegistry service = pluginMetricRegistry.getService();
+            return service != null ? service.counter(name).getCount() : 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadIndex {
+
+        private int index;
+
+        int next(final int bound) {
+            index = index + 1 == bound ? 0 : index + 1;
+            return index;
+        }
+    }
+
+    private static final class StubServiceDescriptor implements OSGIServiceDescriptor {
+
+        private final String name;
+
+        private StubServiceDescriptor(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getPluginSymbolicName() {
+            return name;
+        }
+
+        @Override
+        public String getPluginName() {
+            return name;
+        }
+
+        @Override
+        public String getRegistrationName() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.lifecycle.processor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates META-INF/killbill/services/org.killbill.billing.platform.api.KillbillService, listing the interfaces
+ * extending KillbillService (binary names, one per line), so that the lifecycle ServiceFinder doesn't have to scan
+ * the classpath at startup.
+ * <p>
+ * The processor is registered in META-INF/services: adding this artifact as a provided dependency is enough to enable it.
+ */
+@SupportedAnnotationTypes("*")
+public class KillbillServiceIndexProcessor extends AbstractProcessor {
+
+    public static final String SERVICE_INTERFACE = "org.killbill.billing.platform.api.KillbillService";
+    public static final String INDEX_RESOURCE_PREFIX = "META-INF/killbill/services/";
+
+    // Same filter as the classpath scanning (see ServiceFinder)
+    private static final String PACKAGE_FILTER = "org.killbill.billing.";
+
+    private final Set<String> services = new TreeSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            writeIndex();
+        } else {
+            for (final Element element : roundEnv.getRootElements()) {
+                collectServices(element);
+            }
+        }
+        // Don't claim any annotation
+        return false;
+    }
+
+    private void collectServices(final Element element) {
+        if (!(element instanceof TypeElement)) {
+            return;
+        }
+
+        final TypeElement typeElement = (TypeElement) element;
+        if (typeElement.getKind() == ElementKind.INTERFACE &&
+            typeElement.getQualifiedName().toString().startsWith(PACKAGE_FILTER) &&
+            extendsServiceInterface(typeElement)) {
+            services.add(processingEnv.getElementUtils().getBinaryName(typeElement).toString());
+        }
+
+        // Nested interfaces
+        for (final Element enclosedElement : typeElement.getEnclosedElements()) {
+            collectServices(enclosedElement);
+        }
+    }
+
+    private boolean extendsServiceInterface(final TypeElement typeElement) {
+        for (final TypeMirror superInterface : typeElement.getInterfaces()) {
+            final Element superInterfaceElement = processingEnv.getTypeUtils().asElement(superInterface);
+            if (!(superInterfaceElement instanceof TypeElement)) {
+                continue;
+            }
+            if (SERVICE_INTERFACE.equals(((TypeElement) superInterfaceElement).getQualifiedName().toString()) ||
+                extendsServiceInterface((TypeElement) superInterfaceElement)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeIndex() {
+        final String indexResource = INDEX_RESOURCE_PREFIX + SERVICE_INTERFACE;
+
+        // Incremental compilation: keep the entries from the previous index whose interfaces still exist
+        final Set<String> allServices = new TreeSet<String>(services);
+        try {
+            final FileObject existingIndex = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", indexResource);
+            try (final BufferedReader reader = new BufferedReader(new InputStreamReader(existingIndex.openInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String service = line.trim();
+                    if (!service.isEmpty() && !service.startsWith("#") &&
+                        processingEnv.getElementUtils().getTypeElement(service.replace('$', '.')) != null) {
+                        allServices.add(service);
+                    }
+                }
+            }
+        } catch (final IOException ignored) {
+            // No previous index
+        }
+
+        // Written even if empty: the index tells ServiceFinder that the module doesn't need to be scanned,
+        // and replaces any stale index from a previous build
+        try {
+            final FileObject index = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", indexResource);
+            try (final Writer writer = new OutputStreamWriter(index.openOutputStream(), StandardCharsets.UTF_8)) {
+                writer.write("# Generated by " + KillbillServiceIndexProcessor.class.getName() + "\n");
+                for (final String service : allServices) {
+                    writer.write(service);
+                    writer.write('\n');
+                }
+            }
+        } catch (final IOException e) {
+            processingEnv.getMessager().printMessage(Kind.ERROR, "Unable to write " + indexResource + ": " + e.getMessage());
+        }
+    }
+}
@@ -19,16 +19,22 @@
 
 package org.killbill.billing.lifecycle;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
 import org.slf4j.Logger;
@@ -38,13 +44,23 @@ public class ServiceFinder<T> {
 
     private static final Logger log = LoggerFactory.getLogger(ServiceFinder.class);
 
+    // Generated at build time by killbill-platform-lifecycle-processor (KillbillServiceIndexProcessor)
+    static final String INDEX_RESOURCE_PREFIX = "META-INF/killbill/services/";
+
     private final ClassLoader loader;
     private final String interfaceFilter;
+    private final boolean useIndex;
     private final Set<Class<? extends T>> servicesTypes;
 
     public ServiceFinder(final ClassLoader loader, final String interfaceFilter) {
+        this(loader, interfaceFilter, true);
+    }
+
+    // Visible for testing (index vs scanning)
+    ServiceFinder(final ClassLoader loader, final String interfaceFilter, final boolean useIndex) {
         this.loader = loader;
         this.interfaceFilter = interfaceFilter;
+        this.useIndex = useIndex;
         this.servicesTypes = initialize();
         for (final Class<? extends T> svc : servicesTypes) {
             log.debug("Found service class {}", svc.getName());
@@ -107,6 +123,16 @@ public class ServiceFinder<T> {
             if ("file".equals(protocol) && classPath.isDirectory()) {
                 log.debug("DIR : " + classPath);
 
+                final File index = new File(classPath, INDEX_RESOURCE_PREFIX + interfaceFilter);
+                if (useIndex && index.isFile()) {
+                    try (final InputStream indexStream = new FileInputStream(index)) {
+                        result.addAll(readIndex(classLoader, interfaceFilter, indexStream));
+                        continue;
+                    } catch (final IOException e) {
+                        log.warn("Unable to read index {}, scanning {}", index, classPath, e);
+                    }
+                }
+
                 final List<String> dirListing = new ArrayList<String>();
                 recursivelyListDir(dirListing, classPath, new StringBuffer());
                 files = Collections.enumeration(dirListing);
@@ -130,7 +156,17 @@ public class ServiceFinder<T> {
                                                      "' could not be instantiate from file path. Error: " + io.getMessage());
                 }
                 if (!failed) {
-                    files = module.entries();
+                    final JarEntry index = useIndex ? module.getJarEntry(INDEX_RESOURCE_PREFIX + interfaceFilter) : null;
+                    if (index != null) {
+                        try (final InputStream indexStream = module.getInputStream(index)) {
+                            result.addAll(readIndex(classLoader, interfaceFilter, indexStream));
+                        } catch (final IOException e) {
+                            log.warn("Unable to read index {} in {}, scanning the jar", index, classPath, e);
+                            files = module.entries();
+                        }
+                    } else {
+                        files = module.entries();
+                    }
                 }
             }
 
@@ -187,6 +223,35 @@ public class ServiceFinder<T> {
         return result;
     }
 
+    // The index is trusted for the classpath entry it belongs to, but entries are still checked (stale builds)
+    @SuppressWarnings("unchecked")
+    private Set<Class<? extends T>> readIndex(final ClassLoader classLoader, final String interfaceFilter, final InputStream indexStream) throws IOException {
+        final Set<Class<? extends T>> result = new HashSet<>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(indexStream, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            final String className = line.trim();
+            if (className.isEmpty() || className.startsWith("#")) {
+                continue;
+            }
+
+            final Class<?> theClass;
+            try {
+                theClass = Class.forName(className, false, classLoader);
+            } catch (final ClassNotFoundException | NoClassDefFoundError e) {
+                log.warn("Ignoring service class {} from the index: {}", className, e.toString());
+                continue;
+            }
+            for (final Class<?> classInterface : getAllInterfaces(theClass)) {
+                if (interfaceFilter.equals(classInterface.getName())) {
+                    result.add((Class<? extends T>) theClass);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
     private static Class<?>[] getAllInterfaces(final Class<?> theClass) {
         final Set<Class<?>> superInterfaces = new HashSet<Class<?>>();
         final Class<?>[] classInterfaces = theClass.getInterfaces();
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.lifecycle;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.killbill.billing.lifecycle.TestLifecycle.TestService1Interface;
+import org.killbill.billing.lifecycle.TestLifecycle.TestService2Interface;
+import org.killbill.billing.lifecycle.api.BusService;
+import org.killbill.billing.lifecycle.api.ExternalBusService;
+import org.killbill.billing.platform.api.KillbillService;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestServiceFinder {
+
+    @Test(groups = "fast")
+    public void testIndexAndScanParity() throws Exception {
+        // Indexes generated for both the main and test classes of this module
+        final List<URL> indexes = Collections.list(getClass().getClassLoader().getResources(ServiceFinder.INDEX_RESOURCE_PREFIX + KillbillService.class.getName()));
+        Assert.assertTrue(indexes.size() >= 2, indexes.toString());
+
+        final Set<Class<? extends KillbillService>> indexedServices = new ServiceFinder<KillbillService>(getClass().getClassLoader(), KillbillService.class.getName(), true).getServices();
+        final Set<Class<? extends KillbillService>> scannedServices = new ServiceFinder<KillbillService>(getClass().getClassLoader(), KillbillService.class.getName(), false).getServices();
+        Assert.assertEquals(indexedServices, scannedServices);
+
+        Assert.assertTrue(indexedServices.contains(BusService.class));
+        Assert.assertTrue(indexedServices.contains(ExternalBusService.class));
+        Assert.assertTrue(indexedServices.contains(TestService1Interface.class));
+        Assert.assertTrue(indexedServices.contains(TestService2Interface.class));
+        Assert.assertFalse(indexedServices.contains(KillbillService.class));
+    }
+}
@@ -24,6 +24,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceFactory;
 import org.osgi.framework.ServiceRegistration;
 
 public class OSGIKillbillRegistrar {
@@ -39,6 +40,11 @@ public class OSGIKillbillRegistrar {
         serviceRegistrations.put(svcClass.getName(), svcRegistration);
     }
 
+    public <S> void registerServiceFactory(final BundleContext context, final Class<S> svcClass, final ServiceFactory<S> serviceFactory, final Dictionary<String, ?> props) {
+        final ServiceRegistration svcRegistration = context.registerService(svcClass.getName(), serviceFactory, props);
+        serviceRegistrations.put(svcClass.getName(), svcRegistration);
+    }
+
     public <S> void unregisterService(final Class<S> svcClass) {
         final ServiceRegistration svc = serviceRegistrations.remove(svcClass.getName());
         if (svc != null) {
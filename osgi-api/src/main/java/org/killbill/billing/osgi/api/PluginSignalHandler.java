@@ -0,0 +1,41 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.api;
+
+/**
+ * Registered by a plugin to be told when its tmp/restart.txt or tmp/disabled.txt files may have changed.
+ * <p>
+ * When the {@link #PLATFORM_WATCHER_PROPERTY} framework property is true, a single platform thread watches these files
+ * for all plugins, and calls the handler registered by the plugin (with the {@link #TMP_DIR_PROP} service property) instead
+ * of each plugin polling its own directory. The plugin still decides whether to restart or stop, exactly as it would when polling.
+ */
+public interface PluginSignalHandler {
+
+    String PLATFORM_WATCHER_PROPERTY = "org.killbill.billing.osgi.plugins.signals.watched";
+
+    // Absolute path of the directory containing restart.txt and disabled.txt
+    String TMP_DIR_PROP = "killbill.plugin.tmpDir";
+
+    String RESTART_FILE_NAME = "restart.txt";
+    String DISABLED_FILE_NAME = "disabled.txt";
+
+    /**
+     * Called once the handler is registered, and then each time restart.txt or disabled.txt is touched.
+     */
+    void checkSignals();
+}
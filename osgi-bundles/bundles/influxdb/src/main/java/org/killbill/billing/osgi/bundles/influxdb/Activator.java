@@ -60,6 +60,12 @@ public class Activator extends KillbillActivatorBase {
             influxDbReporterFactory.setOrganization(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.organization"), "killbill"));
             influxDbReporterFactory.setBucket(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.bucket"), "killbill"));
             influxDbReporterFactory.setToken(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.token"), ""));
+            influxDbReporterFactory.setGzip("true".equals(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.gzip"), "true")));
+            influxDbReporterFactory.setBatchSize(Integer.parseInt(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.batchSize"), String.valueOf(CustomInfluxDbHttpSender.DEFAULT_BATCH_SIZE))));
+            influxDbReporterFactory.setBatchMaxBytes(Integer.parseInt(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.batchMaxBytes"), String.valueOf(CustomInfluxDbHttpSender.DEFAULT_BATCH_MAX_BYTES))));
+            influxDbReporterFactory.setMaxRetries(Integer.parseInt(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.maxRetries"), String.valueOf(CustomInfluxDbHttpSender.DEFAULT_MAX_RETRIES))));
+            influxDbReporterFactory.setRetryBackoffMs(Long.parseLong(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.retryBackoff"), String.valueOf(CustomInfluxDbHttpSender.DEFAULT_RETRY_BACKOFF_MS))));
+            influxDbReporterFactory.setMaxWriteTimeMs(Long.parseLong(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.maxWriteTime"), String.valueOf(CustomInfluxDbHttpSender.DEFAULT_MAX_WRITE_TIME_MS))));
 
             final int reportingFrequency = Integer.parseInt(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.interval"), "30"));
             influxDbReporterFactory.setFrequency(Optional.of(Duration.seconds(reportingFrequency)));
@@ -17,8 +17,13 @@
 
 package org.killbill.billing.osgi.bundles.influxdb;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.charset.Charset;
@@ -26,6 +31,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,18 +39,39 @@ import org.slf4j.LoggerFactory;
 import com.izettle.metrics.influxdb.InfluxDbSender;
 import com.izettle.metrics.influxdb.data.InfluxDbPoint;
 import com.izettle.metrics.influxdb.data.InfluxDbWriteObject;
-import com.izettle.metrics.influxdb.utils.InfluxDbWriteObjectSerializer;
 
+/**
+ * Writes the points of each report to the InfluxDB v2 write API.
+ * <p>
+ * Points are serialized directly into (optionally gzipped) request bodies, split into batches of at most
+ * {@code batchSize} points or {@code batchMaxBytes} bytes. Connections are kept alive between requests (responses are
+ * fully read and connections are never explicitly disconnected, so that the JDK can reuse them). Batches rejected with a
+ * 5xx (or 429) status code, or failing because of an I/O error, are retried up to {@code maxRetries} times with an
+ * exponential backoff, as long as the whole write doesn't take more than {@code maxWriteTimeMs}.
+ */
 public class CustomInfluxDbHttpSender implements InfluxDbSender {
 
+    public static final int DEFAULT_BATCH_SIZE = 5000;
+    public static final int DEFAULT_BATCH_MAX_BYTES = 1024 * 1024;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_BACKOFF_MS = 100;
+    public static final long DEFAULT_MAX_WRITE_TIME_MS = 10000;
+
     private static final Logger logger = LoggerFactory.getLogger(CustomInfluxDbHttpSender.class);
+    private static final long MAX_RETRY_BACKOFF_MS = 5000;
     private final URL url;
     private final int connectTimeout;
     private final int readTimeout;
     static final Charset UTF_8 = StandardCharsets.UTF_8;
     private final InfluxDbWriteObject influxDbWriteObject;
-    private final InfluxDbWriteObjectSerializer influxDbWriteObjectSerializer;
+    private final CustomInfluxDbWriteObjectSerializer influxDbWriteObjectSerializer;
     private final String token;
+    private final boolean gzip;
+    private final int batchSize;
+    private final int batchMaxBytes;
+    private final int maxRetries;
+    private final long retryBackoffMs;
+    private final long maxWriteTimeMs;
 
     /**
      * Creates a new http sender given connection details.
@@ -61,6 +88,26 @@ public class CustomInfluxDbHttpSender implements InfluxDbSender {
                                     final TimeUnit timePrecision, final int connectTimeout, final int readTimeout,
                                     final String measurementPrefix, final String organization, final String bucket,
                                     final String token) throws Exception {
+        this(protocol, hostname, port, database, timePrecision, connectTimeout, readTimeout, measurementPrefix, organization, bucket, token,
+             true, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_MAX_BYTES, DEFAULT_MAX_RETRIES, DEFAULT_RETRY_BACKOFF_MS, DEFAULT_MAX_WRITE_TIME_MS);
+    }
+
+    /**
+     * Creates a new http sender given connection details and write options.
+     *
+     * @param gzip            whether request bodies should be gzipped
+     * @param batchSize       the maximum number of points per request
+     * @param batchMaxBytes   the maximum size of a request body (uncompressed), unless a single point is larger
+     * @param maxRetries      the maximum number of retries per request
+     * @param retryBackoffMs  the delay before the first retry (doubled after each retry)
+     * @param maxWriteTimeMs  the time after which failed requests aren't retried anymore
+     * @throws Exception while creating the influxDb sender(MalformedURLException)
+     */
+    public CustomInfluxDbHttpSender(final String protocol, final String hostname, final int port, final String database,
+                                    final TimeUnit timePrecision, final int connectTimeout, final int readTimeout,
+                                    final String measurementPrefix, final String organization, final String bucket,
+                                    final String token, final boolean gzip, final int batchSize, final int batchMaxBytes,
+                                    final int maxRetries, final long retryBackoffMs, final long maxWriteTimeMs) throws Exception {
 
         this.influxDbWriteObject = new InfluxDbWriteObject(database, timePrecision);
         this.influxDbWriteObjectSerializer = new CustomInfluxDbWriteObjectSerializer(measurementPrefix);
@@ -74,6 +121,12 @@ public class CustomInfluxDbHttpSender implements InfluxDbSender {
         this.connectTimeout = connectTimeout;
         this.readTimeout = readTimeout;
         this.token = token;
+        this.gzip = gzip;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchMaxBytes = Math.max(1, batchMaxBytes);
+        this.maxRetries = Math.max(0, maxRetries);
+        this.retryBackoffMs = Math.max(0, retryBackoffMs);
+        this.maxWriteTimeMs = maxWriteTimeMs;
     }
 
     @Override
@@ -102,35 +155,125 @@ public class CustomInfluxDbHttpSender implements InfluxDbSender {
 
     @Override
     public int writeData() throws Exception {
+        final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWriteTimeMs);
+
+        int responseCode = 0;
+        Batch batch = null;
+        // Serialization buffer for a single point, reused
+        final StringBuilder line = new StringBuilder(256);
+        for (final InfluxDbPoint point : influxDbWriteObject.getPoints()) {
+            line.setLength(0);
+            influxDbWriteObjectSerializer.writePoint(point, line);
+
+            if (batch != null && (batch.nbPoints >= batchSize || batch.nbBytes + line.length() > batchMaxBytes)) {
+                responseCode = send(batch.finish(), deadlineNanos);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch();
+            }
+            batch.append(line);
+        }
+        if (batch != null) {
+            responseCode = send(batch.finish(), deadlineNanos);
+        }
+
+        logger.debug("InfluxDB write data response code: " + responseCode);
+
+        return responseCode;
+    }
+
+    private int send(final byte[] body, final long deadlineNanos) throws IOException, InterruptedException {
+        long backoffMs = retryBackoffMs;
+        int attempt = 0;
+        while (true) {
+            IOException failure;
+            try {
+                final int responseCode = post(body);
+                if (responseCode / 100 == 2) {
+                    return responseCode;
+                }
+                failure = new IOException("Server returned HTTP response code: " + responseCode + " for URL: " + url);
+                // Don't retry on non transient errors (bad request, authentication failure, etc.)
+                if (responseCode / 100 != 5 && responseCode != 429) {
+                    attempt = maxRetries;
+                }
+            } catch (final ConnectException e) {
+                // Server down, the next report will tell
+                throw e;
+            } catch (final IOException e) {
+                // E.g. timeout, or connection closed by the server
+                failure = e;
+            }
+
+            if (attempt >= maxRetries || System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMs) - deadlineNanos > 0) {
+                throw failure;
+            }
+            attempt++;
+            logger.debug("InfluxDB write failed, retrying in {} ms (attempt {}/{})", backoffMs, attempt, maxRetries, failure);
+            Thread.sleep(backoffMs);
+            backoffMs = Math.min(MAX_RETRY_BACKOFF_MS, backoffMs * 2);
+        }
+    }
+
+    private int post(final byte[] body) throws IOException {
         final HttpURLConnection con = (HttpURLConnection) url.openConnection();
         con.setRequestMethod("POST");
         con.setRequestProperty("Authorization", "Token " + token);
+        con.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+        if (gzip) {
+            con.setRequestProperty("Content-Encoding", "gzip");
+        }
         con.setDoOutput(true);
+        con.setFixedLengthStreamingMode(body.length);
         con.setConnectTimeout(connectTimeout);
         con.setReadTimeout(readTimeout);
 
-        final String lineProtocolString = influxDbWriteObjectSerializer.getLineProtocolString(influxDbWriteObject);
-        final byte[] line = lineProtocolString.getBytes(UTF_8);
-
-        logger.debug("InfluxDB data points to write: " + new String(line, StandardCharsets.UTF_8));
-
         try (final OutputStream out = con.getOutputStream()) {
-            out.write(line);
-            out.flush();
+            out.write(body);
         }
 
         final int responseCode = con.getResponseCode();
-        con.disconnect();
-        // Check if non 2XX response code.
-        if (responseCode / 100 != 2) {
-            throw new IOException(
-                    "Server returned HTTP response code: " + responseCode + " for URL: " + url + " with content :'"
-                    + con.getResponseMessage() + "'");
+        // Consume the response (don't disconnect), so that the connection goes back to the keep-alive cache
+        final InputStream responseStream = responseCode / 100 == 2 ? con.getInputStream() : con.getErrorStream();
+        if (responseStream != null) {
+            try (final InputStream in = responseStream) {
+                final byte[] response = in.readAllBytes();
+                if (responseCode / 100 != 2) {
+                    logger.warn("InfluxDB write rejected with response code {}: '{}'", responseCode, new String(response, UTF_8));
+                }
+            }
         }
+        return responseCode;
+    }
 
-        logger.debug("InfluxDB write data response code: " + responseCode);
+    // Request body being built
+    private final class Batch {
 
-        return responseCode;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+        private final Writer writer;
+        private int nbPoints = 0;
+        private int nbBytes = 0;
+
+        private Batch() throws IOException {
+            final OutputStream out = gzip ? new GZIPOutputStream(body, 8192) : body;
+            this.writer = new OutputStreamWriter(out, UTF_8);
+        }
+
+        private void append(final CharSequence line) throws IOException {
+            writer.append(line);
+            nbPoints++;
+            // Approximation of the uncompressed size (exact for ASCII)
+            nbBytes += line.length();
+        }
+
+        private byte[] finish() throws IOException {
+            writer.close();
+            if (logger.isDebugEnabled() && !gzip) {
+                logger.debug("InfluxDB data points to write: " + body.toString(UTF_8));
+            }
+            return body.toByteArray();
+        }
     }
 
     @Override
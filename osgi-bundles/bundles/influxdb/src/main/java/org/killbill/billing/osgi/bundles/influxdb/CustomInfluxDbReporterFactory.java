@@ -28,6 +28,12 @@ public class CustomInfluxDbReporterFactory extends InfluxDbReporterFactory {
     private String organization;
     private String bucket;
     private String token;
+    private boolean gzip = true;
+    private int batchSize = CustomInfluxDbHttpSender.DEFAULT_BATCH_SIZE;
+    private int batchMaxBytes = CustomInfluxDbHttpSender.DEFAULT_BATCH_MAX_BYTES;
+    private int maxRetries = CustomInfluxDbHttpSender.DEFAULT_MAX_RETRIES;
+    private long retryBackoffMs = CustomInfluxDbHttpSender.DEFAULT_RETRY_BACKOFF_MS;
+    private long maxWriteTimeMs = CustomInfluxDbHttpSender.DEFAULT_MAX_WRITE_TIME_MS;
 
     public String getOrganization() {
         return organization;
@@ -53,6 +59,54 @@ public class CustomInfluxDbReporterFactory extends InfluxDbReporterFactory {
         this.token = token;
     }
 
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    public void setGzip(final boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchMaxBytes() {
+        return batchMaxBytes;
+    }
+
+    public void setBatchMaxBytes(final int batchMaxBytes) {
+        this.batchMaxBytes = batchMaxBytes;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(final int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getRetryBackoffMs() {
+        return retryBackoffMs;
+    }
+
+    public void setRetryBackoffMs(final long retryBackoffMs) {
+        this.retryBackoffMs = retryBackoffMs;
+    }
+
+    public long getMaxWriteTimeMs() {
+        return maxWriteTimeMs;
+    }
+
+    public void setMaxWriteTimeMs(final long maxWriteTimeMs) {
+        this.maxWriteTimeMs = maxWriteTimeMs;
+    }
+
     @Override
     public ScheduledReporter build(final MetricRegistry registry) {
         try {
@@ -62,7 +116,9 @@ public class CustomInfluxDbReporterFactory extends InfluxDbReporterFactory {
                 return builder.build(new CustomInfluxDbHttpSender(this.getProtocol(), this.getHost(), this.getPort(), this.getDatabase(),
                                                                   this.getPrecision().getUnit(), this.getConnectTimeout(),
                                                                   this.getReadTimeout(), this.getPrefix(), this.organization,
-                                                                  this.bucket, this.token));
+                                                                  this.bucket, this.token, this.gzip, this.batchSize,
+                                                                  this.batchMaxBytes, this.maxRetries, this.retryBackoffMs,
+                                                                  this.maxWriteTimeMs));
             }
 
             throw new UnsupportedOperationException(String.format("The Sender Type [%s] is not supported", this.getSenderType()));
@@ -17,10 +17,12 @@
 
 package org.killbill.billing.osgi.bundles.influxdb;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
 import java.text.NumberFormat;
 import java.util.Locale;
 import java.util.Map;
-import java.util.regex.Pattern;
 
 import com.izettle.metrics.influxdb.data.InfluxDbPoint;
 import com.izettle.metrics.influxdb.data.InfluxDbWriteObject;
@@ -28,10 +30,9 @@ import com.izettle.metrics.influxdb.utils.InfluxDbWriteObjectSerializer;
 
 public class CustomInfluxDbWriteObjectSerializer extends InfluxDbWriteObjectSerializer {
 
-    private static final Pattern DOUBLE_QUOTE = Pattern.compile("\"");
-    private static final Pattern COMMA = Pattern.compile(",");
-    private static final Pattern SPACE = Pattern.compile(" ");
-    private static final Pattern EQUAL = Pattern.compile("=");
+    // Integral doubles below this are exactly representable as longs
+    private static final double MAX_LONG_FORMATTED_DOUBLE = 1e15;
+
     private final String measurementPrefix;
 
     public CustomInfluxDbWriteObjectSerializer(final String measurementPrefix) {
@@ -50,39 +51,39 @@ public class CustomInfluxDbWriteObjectSerializer extends InfluxDbWriteObjectSeri
     public String getLineProtocolString(final InfluxDbWriteObject influxDbWriteObject) {
         final StringBuilder stringBuilder = new StringBuilder();
         for (final InfluxDbPoint point : influxDbWriteObject.getPoints()) {
-            pointLineProtocol(point, stringBuilder);
-            stringBuilder.append(" ");
-            stringBuilder.append("\n");
+            try {
+                writePoint(point, stringBuilder);
+            } catch (final IOException e) {
+                // Not thrown by a StringBuilder
+                throw new UncheckedIOException(e);
+            }
         }
 
         return stringBuilder.toString();
     }
 
-    private void pointLineProtocol(final InfluxDbPoint point, final StringBuilder stringBuilder) {
-        lineProtocol(point.getTags(), point.getFields(), point.getMeasurement(), stringBuilder);
-    }
-
-    private void lineProtocol(final Map<String, String> tags, final Map<String, Object> fields,
-                              final String measurement, final StringBuilder stringBuilder) {
-        stringBuilder.append(escapeMeasurement(measurementPrefix + measurement));
-        concatenatedTags(tags, stringBuilder);
-        concatenateFields(fields, stringBuilder);
+    /**
+     * Write the line protocol of a single point (including the trailing new line), without building intermediate Strings.
+     */
+    public void writePoint(final InfluxDbPoint point, final Appendable out) throws IOException {
+        writeEscaped(measurementPrefix, out, false);
+        writeEscaped(point.getMeasurement(), out, false);
+        writeTags(point.getTags(), out);
+        writeFields(point.getFields(), out);
+        out.append(" \n");
     }
 
-    private void concatenatedTags(final Map<String, String> tags, final StringBuilder stringBuilder) {
+    private void writeTags(final Map<String, String> tags, final Appendable out) throws IOException {
         for (final Map.Entry<String, String> tag : tags.entrySet()) {
-            stringBuilder.append(",");
-            stringBuilder.append(escapeKey(tag.getKey())).append("=").append(escapeKey(tag.getValue()));
+            out.append(',');
+            writeEscaped(tag.getKey(), out, true);
+            out.append('=');
+            writeEscaped(tag.getValue(), out, true);
         }
-        stringBuilder.append(" ");
+        out.append(' ');
     }
 
-    private void concatenateFields(final Map<String, Object> fields, final StringBuilder stringBuilder) {
-        final NumberFormat numberFormat = NumberFormat.getInstance(Locale.ENGLISH);
-        numberFormat.setMaximumFractionDigits(340);
-        numberFormat.setGroupingUsed(false);
-        numberFormat.setMinimumFractionDigits(1);
-
+    private void writeFields(final Map<String, Object> fields, final Appendable out) throws IOException {
         boolean firstField = true;
         for (final Map.Entry<String, Object> field : fields.entrySet()) {
             final Object value = field.getValue();
@@ -99,35 +100,80 @@ public class CustomInfluxDbWriteObjectSerializer extends InfluxDbWriteObjectSeri
             }
 
             if (!firstField) {
-                stringBuilder.append(",");
+                out.append(',');
             }
-            stringBuilder.append(escapeKey(field.getKey())).append("=");
+            writeEscaped(field.getKey(), out, true);
+            out.append('=');
             firstField = false;
             if (value instanceof String) {
-                final String stringValue = (String) value;
-                stringBuilder.append("\"").append(escapeField(stringValue)).append("\"");
+                writeStringField((String) value, out);
+            } else if (value instanceof Double || value instanceof Float) {
+                writeDouble(((Number) value).doubleValue(), out);
+            } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                out.append(Long.toString(((Number) value).longValue())).append(".0");
             } else if (value instanceof Number) {
-                stringBuilder.append(numberFormat.format(value));
+                out.append(newNumberFormat().format(value));
             } else if (value instanceof Boolean) {
-                stringBuilder.append(value);
+                out.append(value.toString());
+            } else {
+                writeStringField(value.toString(), out);
+            }
+        }
+    }
+
+    // Same output as a NumberFormat with at least one (and up to 340) fraction digits and no grouping, which was too
+    // costly to create for each point
+    static void writeDouble(final double value, final Appendable out) throws IOException {
+        if (value == Math.rint(value) && Math.abs(value) < MAX_LONG_FORMATTED_DOUBLE) {
+            if (value == 0 && Double.doubleToRawLongBits(value) != 0) {
+                out.append("-0.0");
             } else {
-                stringBuilder.append("\"").append(escapeField(value.toString())).append("\"");
+                out.append(Long.toString((long) value)).append(".0");
             }
+            return;
+        }
+
+        final String shortest = Double.toString(value);
+        if (shortest.indexOf('E') == -1) {
+            out.append(shortest);
+            return;
+        }
+
+        final BigDecimal decimal = new BigDecimal(shortest).stripTrailingZeros();
+        out.append(decimal.toPlainString());
+        if (decimal.scale() <= 0) {
+            out.append(".0");
         }
     }
 
-    private String escapeField(final String field) {
-        return DOUBLE_QUOTE.matcher(field).replaceAll("\\\"");
+    private static NumberFormat newNumberFormat() {
+        final NumberFormat numberFormat = NumberFormat.getInstance(Locale.ENGLISH);
+        numberFormat.setMaximumFractionDigits(340);
+        numberFormat.setGroupingUsed(false);
+        numberFormat.setMinimumFractionDigits(1);
+        return numberFormat;
     }
 
-    private String escapeMeasurement(final String key) {
-        final String toBeEscaped = SPACE.matcher(key).replaceAll("\\\\ ");
-        return COMMA.matcher(toBeEscaped).replaceAll("\\\\,");
+    private static void writeStringField(final String value, final Appendable out) throws IOException {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+        out.append('"');
     }
 
-    private String escapeKey(final String key) {
-        String toBeEscaped = SPACE.matcher(key).replaceAll("\\\\ ");
-        toBeEscaped = COMMA.matcher(toBeEscaped).replaceAll("\\\\,");
-        return EQUAL.matcher(toBeEscaped).replaceAll("\\\\=");
+    // Measurements: spaces and commas, keys (tag keys, tag values and field keys): equal signs as well
+    private static void writeEscaped(final String value, final Appendable out, final boolean isKey) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == ' ' || c == ',' || (isKey && c == '=')) {
+                out.append('\\');
+            }
+            out.append(c);
+        }
     }
 }
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.influxdb;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.izettle.metrics.influxdb.data.InfluxDbPoint;
+import com.izettle.metrics.influxdb.data.InfluxDbWriteObject;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestCustomInfluxDbHttpSender {
+
+    private HttpServer server;
+    // Requests received by the stub
+    private final ConcurrentLinkedQueue<RecordedRequest> requests = new ConcurrentLinkedQueue<RecordedRequest>();
+    // Response codes to return (then 204)
+    private final ConcurrentLinkedQueue<Integer> injectedResponseCodes = new ConcurrentLinkedQueue<Integer>();
+    private final Set<InetSocketAddress> clientAddresses = Collections.synchronizedSet(new HashSet<InetSocketAddress>());
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws IOException {
+        requests.clear();
+        injectedResponseCodes.clear();
+        clientAddresses.clear();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v2/write", exchange -> {
+            final byte[] body;
+            try (final InputStream in = exchange.getRequestBody()) {
+                body = in.readAllBytes();
+            }
+            requests.add(new RecordedRequest(exchange.getRequestURI().getQuery(),
+                                             exchange.getRequestHeaders().getFirst("Authorization"),
+                                             exchange.getRequestHeaders().getFirst("Content-Encoding"),
+                                             body));
+            clientAddresses.add(exchange.getRemoteAddress());
+
+            final Integer injectedResponseCode = injectedResponseCodes.poll();
+            if (injectedResponseCode == null) {
+                exchange.sendResponseHeaders(204, -1);
+            } else {
+                final byte[] response = "{\"code\":\"injected\"}".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(injectedResponseCode, response.length);
+                exchange.getResponseBody().write(response);
+            }
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test(groups = "fast")
+    public void testSerializer() throws Exception {
+        final InfluxDbWriteObject writeObject = new InfluxDbWriteObject("killbill", TimeUnit.MILLISECONDS);
+        final Map<String, String> tags = new TreeMap<String, String>();
+        tags.put("host name", "kb,1=a");
+        final Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        fields.put("count", 12L);
+        fields.put("nan", Double.NaN);
+        fields.put("p99", 0.00012345);
+        fields.put("max", 1.5e20);
+        fields.put("rate", 2.5f);
+        fields.put("healthy", true);
+        fields.put("message", "said \"hi\" \\o/");
+        writeObject.getPoints().add(new InfluxDbPoint("jvm.memory used,heap", tags, 0L, fields));
+
+        Assert.assertEquals(new CustomInfluxDbWriteObjectSerializer("kb.").getLineProtocolString(writeObject),
+                            "kb.jvm.memory\\ used\\,heap,host\\ name=kb\\,1\\=a count=12.0,p99=0.00012345,max=150000000000000000000.0,rate=2.5," +
+                            "healthy=true,message=\"said \\\"hi\\\" \\\\o/\" \n");
+    }
+
+    @Test(groups = "fast")
+    public void testDoubleFormattingParity() throws Exception {
+        // Same output as the NumberFormat previously used
+        final NumberFormat numberFormat = NumberFormat.getInstance(Locale.ENGLISH);
+        numberFormat.setMaximumFractionDigits(340);
+        numberFormat.setGroupingUsed(false);
+        numberFormat.setMinimumFractionDigits(1);
+
+        final List<Double> values = new ArrayList<Double>(List.of(0.0, -0.0, 1.0, -1.0, 0.1, 0.5, 1e-3, 9.99e-4, 1e-5, 123456789.0, 1e7, 1.5e7,
+                                                                  1e15, 1e16 + 2, 1.7976931348623157e308, Double.MIN_VALUE, -2.5e-12, 4503599627370496.5));
+        final Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            values.add(random.nextDouble() * Math.pow(10, random.nextInt(40) - 20));
+            values.add((double) random.nextInt(100000));
+            values.add(Double.longBitsToDouble(random.nextLong()));
+        }
+
+        for (final Double value : values) {
+            if (value.isNaN() || value.isInfinite()) {
+                continue;
+            }
+            final StringBuilder stringBuilder = new StringBuilder();
+            CustomInfluxDbWriteObjectSerializer.writeDouble(value, stringBuilder);
+            Assert.assertEquals(stringBuilder.toString(), numberFormat.format(value), String.valueOf(value));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testBatchedGzippedWrites() throws Exception {
+        final CustomInfluxDbHttpSender sender = createSender(true, 5, 0, 0);
+        sender.flush();
+        // Same points, in the same order as the ones of the sender
+        final InfluxDbWriteObject writeObject = new InfluxDbWriteObject("killbill", TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 12; i++) {
+            final InfluxDbPoint point = point("metric-" + i, i);
+            sender.appendPoints(point);
+            writeObject.getPoints().add(point);
+        }
+        final String expectedLines = new CustomInfluxDbWriteObjectSerializer("kb.").getLineProtocolString(writeObject);
+
+        Assert.assertEquals(sender.writeData(), 204);
+
+        final List<RecordedRequest> recordedRequests = new ArrayList<RecordedRequest>(requests);
+        Assert.assertEquals(recordedRequests.size(), 3);
+        final StringBuilder receivedLines = new StringBuilder();
+        final int[] expectedNbPoints = {5, 5, 2};
+        for (int i = 0; i < recordedRequests.size(); i++) {
+            final RecordedRequest request = recordedRequests.get(i);
+            Assert.assertEquals(request.query, "org=acme&bucket=metrics");
+            Assert.assertEquals(request.authorization, "Token secret");
+            Assert.assertEquals(request.contentEncoding, "gzip");
+            final String lines = gunzip(request.body);
+            Assert.assertEquals(lines.split("\n").length, expectedNbPoints[i]);
+            receivedLines.append(lines);
+        }
+        Assert.assertEquals(receivedLines.toString(), expectedLines);
+
+        // Second report, on the same connection
+        Assert.assertEquals(sender.writeData(), 204);
+        Assert.assertEquals(requests.size(), 6);
+        Assert.assertEquals(clientAddresses.size(), 1, clientAddresses.toString());
+    }
+
+    @Test(groups = "fast")
+    public void testBatchMaxBytes() throws Exception {
+        final CustomInfluxDbHttpSender sender = new CustomInfluxDbHttpSender("http", "127.0.0.1", server.getAddress().getPort(), "killbill",
+                                                                             TimeUnit.MILLISECONDS, 1000, 1000, "", "acme", "metrics", "secret",
+                                                                             false, 1000, 100, 0, 0, 10000);
+        sender.flush();
+        for (int i = 0; i < 10; i++) {
+            // 28 bytes per line (metric-0,host=kb count=0.0 \n)
+            sender.appendPoints(point("metric-" + i, i));
+        }
+
+        sender.writeData();
+
+        Assert.assertEquals(requests.size(), 4);
+        int nbPoints = 0;
+        for (final RecordedRequest request : requests) {
+            Assert.assertNull(request.contentEncoding);
+            Assert.assertTrue(request.body.length <= 100, new String(request.body, StandardCharsets.UTF_8));
+            nbPoints += new String(request.body, StandardCharsets.UTF_8).split("\n").length;
+        }
+        Assert.assertEquals(nbPoints, 10);
+    }
+
+    @Test(groups = "fast")
+    public void testRetries() throws Exception {
+        final CustomInfluxDbHttpSender sender = createSender(false, 1000, 2, 10);
+        sender.flush();
+        sender.appendPoints(point("metric", 1));
+
+        // Transient failures are retried, with the same body
+        injectedResponseCodes.addAll(List.of(503, 500));
+        Assert.assertEquals(sender.writeData(), 204);
+        final List<RecordedRequest> recordedRequests = new ArrayList<RecordedRequest>(requests);
+        Assert.assertEquals(recordedRequests.size(), 3);
+        Assert.assertEquals(recordedRequests.get(0).body, recordedRequests.get(2).body);
+
+        // Bounded number of retries
+        requests.clear();
+        injectedResponseCodes.addAll(List.of(503, 503, 503, 503));
+        try {
+            sender.writeData();
+            Assert.fail();
+        } catch (final IOException e) {
+            Assert.assertTrue(e.getMessage().contains("503"), e.getMessage());
+        }
+        Assert.assertEquals(requests.size(), 3);
+
+        // Client errors are not retried
+        requests.clear();
+        injectedResponseCodes.clear();
+        injectedResponseCodes.add(400);
+        try {
+            sender.writeData();
+            Assert.fail();
+        } catch (final IOException e) {
+            Assert.assertTrue(e.getMessage().contains("400"), e.getMessage());
+        }
+        Assert.assertEquals(requests.size(), 1);
+
+        // Bounded write time
+        final CustomInfluxDbHttpSender impatientSender = new CustomInfluxDbHttpSender("http", "127.0.0.1", server.getAddress().getPort(), "killbill",
+                                                                                      TimeUnit.MILLISECONDS, 1000, 1000, "", "acme", "metrics", "secret",
+                                                                                      false, 1000, 1024 * 1024, 10, 200, 100);
+        impatientSender.flush();
+        impatientSender.appendPoints(point("metric", 1));
+        requests.clear();
+        injectedResponseCodes.addAll(List.of(503, 503));
+        try {
+            impatientSender.writeData();
+            Assert.fail();
+        } catch (final IOException e) {
+            Assert.assertTrue(e.getMessage().contains("503"), e.getMessage());
+        }
+        Assert.assertEquals(requests.size(), 1);
+    }
+
+    private CustomInfluxDbHttpSender createSender(final boolean gzip, final int batchSize, final int maxRetries, final long retryBackoffMs) throws Exception {
+        return new CustomInfluxDbHttpSender("http", "127.0.0.1", server.getAddress().getPort(), "killbill", TimeUnit.MILLISECONDS, 1000, 1000,
+                                            "kb.", "acme", "metrics", "secret", gzip, batchSize, 1024 * 1024, maxRetries, retryBackoffMs, 10000);
+    }
+
+    private static InfluxDbPoint point(final String measurement, final long count) {
+        final Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        fields.put("count", count);
+        return new InfluxDbPoint(measurement, Map.of("host", "kb"), 0L, fields);
+    }
+
+    private static String gunzip(final byte[] body) throws IOException {
+        try (final InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final class RecordedRequest {
+
+        private final String query;
+        private final String authorization;
+        private final String contentEncoding;
+        private final byte[] body;
+
+        private RecordedRequest(final String query, final String authorization, final String contentEncoding, final byte[] body) {
+            this.query = query;
+            this.authorization = authorization;
+            this.contentEncoding = contentEncoding;
+            this.body = body;
+        }
+    }
+}
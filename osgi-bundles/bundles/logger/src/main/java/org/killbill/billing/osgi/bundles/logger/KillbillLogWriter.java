@@ -52,8 +52,10 @@ public class KillbillLogWriter implements BundleListener, FrameworkListener, Ser
     public void log(final ServiceReference serviceReference, final int level, final String message, final Throwable exception) {
         final Bundle bundle = serviceReference == null ? null : serviceReference.getBundle();
 
-        // Forward the log to HTTP consumers
-        logEntriesManager.recordEvent(new LogEntryJson(bundle, level, message, exception));
+        // Forward the log to HTTP consumers, if any
+        if (logEntriesManager.hasSubscribers()) {
+            logEntriesManager.recordEvent(new LogEntryJson(bundle, level, message, exception));
+        }
 
         if (serviceReference != null && "true".equals(serviceReference.getProperty("KILL_BILL_ROOT_LOGGING"))) {
             // LogEntry comes from Logback already (see OSGIAppender), ignore
@@ -62,117 +64,81 @@ public class KillbillLogWriter implements BundleListener, FrameworkListener, Ser
 
         // Log comes from a pure OSGI LogService, forward it to slf4j
         final Logger delegate = getLogger(bundle, null, null);
-        if (serviceReference != null) {
-            // A single thread (e.g. org.apache.felix.log.LogListenerThread) should be invoking this, but just to be safe...
-            synchronized (this) {
-                try {
-                    final Object originalMdcMap = serviceReference.getProperty(MDC_KEY);
-                    if (originalMdcMap != null) {
-                        //noinspection unchecked
-                        MDC.setContextMap((Map) originalMdcMap);
-                    }
-
-                    if (exception != null) {
-                        logInternal(delegate, serviceReference, level, message, exception);
-                    } else {
-                        logInternal(delegate, serviceReference, level, message);
-                    }
-                } finally {
-                    MDC.clear();
-                }
-            }
-        } else if (exception != null) {
+        if (!isEnabled(delegate, level)) {
+            return;
+        }
+
+        if (serviceReference == null) {
             logInternal(delegate, level, message, exception);
-        } else {
-            logInternal(delegate, level, message);
+            return;
         }
-    }
 
-    private void logInternal(final Logger delegate, final int level, final String message) {
-        switch (level) {
-            case LogService.LOG_DEBUG:
-                delegate.debug(message);
-                break;
-            case LogService.LOG_ERROR:
-                delegate.error(message);
-                break;
-            case LogService.LOG_INFO:
-                delegate.info(message);
-                break;
-            case LogService.LOG_WARNING:
-                delegate.warn(message);
-                break;
-            default:
-                break;
+        final String formattedMessage = createMessage(serviceReference, message);
+        final Object originalMdcMap = serviceReference.getProperty(MDC_KEY);
+        if (originalMdcMap == null) {
+            logInternal(delegate, level, formattedMessage, exception);
+            return;
         }
-    }
 
-    private void logInternal(final Logger delegate, final int level, final String message, final Throwable exception) {
-        switch (level) {
-            case LogService.LOG_DEBUG:
-                delegate.debug(message, exception);
-                break;
-            case LogService.LOG_ERROR:
-                delegate.error(message, exception);
-                break;
-            case LogService.LOG_INFO:
-                delegate.info(message, exception);
-                break;
-            case LogService.LOG_WARNING:
-                delegate.warn(message, exception);
-                break;
-            default:
-                break;
+        // The MDC is thread local: scope it to this call, and give the caller its own context back
+        final Map<String, String> callerMdcMap = MDC.getCopyOfContextMap();
+        try {
+            //noinspection unchecked
+            MDC.setContextMap((Map) originalMdcMap);
+            logInternal(delegate, level, formattedMessage, exception);
+        } finally {
+            if (callerMdcMap == null) {
+                MDC.clear();
+            } else {
+                MDC.setContextMap(callerMdcMap);
+            }
         }
     }
 
-    private void logInternal(final Logger delegate, final ServiceReference sr, final int level, final String message) {
+    private static boolean isEnabled(final Logger delegate, final int level) {
         switch (level) {
             case LogService.LOG_DEBUG:
-                if (delegate.isDebugEnabled()) {
-                    delegate.debug(createMessage(sr, message));
-                }
-                break;
+                return delegate.isDebugEnabled();
             case LogService.LOG_ERROR:
-                if (delegate.isErrorEnabled()) {
-                    delegate.error(createMessage(sr, message));
-                }
-                break;
+                return delegate.isErrorEnabled();
             case LogService.LOG_INFO:
-                if (delegate.isInfoEnabled()) {
-                    delegate.info(createMessage(sr, message));
-                }
-                break;
+                return delegate.isInfoEnabled();
             case LogService.LOG_WARNING:
-                if (delegate.isWarnEnabled()) {
-                    delegate.warn(createMessage(sr, message));
-                }
-                break;
+                return delegate.isWarnEnabled();
             default:
-                break;
+                return false;
         }
     }
 
-    private void logInternal(final Logger delegate, final ServiceReference sr, final int level, final String message, final Throwable exception) {
+    // The message is passed as a format: the exception variants must only be used when there is an exception
+    private static void logInternal(final Logger delegate, final int level, final String message, final Throwable exception) {
         switch (level) {
             case LogService.LOG_DEBUG:
-                if (delegate.isDebugEnabled()) {
-                    delegate.debug(createMessage(sr, message), exception);
+                if (exception != null) {
+                    delegate.debug(message, exception);
+                } else {
+                    delegate.debug(message);
                 }
                 break;
             case LogService.LOG_ERROR:
-                if (delegate.isErrorEnabled()) {
-                    delegate.error(createMessage(sr, message), exception);
+                if (exception != null) {
+                    delegate.error(message, exception);
+                } else {
+                    delegate.error(message);
                 }
                 break;
             case LogService.LOG_INFO:
-                if (delegate.isInfoEnabled()) {
-                    delegate.info(createMessage(sr, message), exception);
+                if (exception != null) {
+                    delegate.info(message, exception);
+                } else {
+                    delegate.info(message);
                 }
                 break;
             case LogService.LOG_WARNING:
-                if (delegate.isWarnEnabled()) {
-                    delegate.warn(createMessage(sr, message), exception);
+                if (exception != null) {
+                    delegate.warn(message, exception);
+                } else {
+                    delegate.warn(message);
                 }
                 break;
             default:
@@ -188,8 +154,6 @@ public class KillbillLogWriter implements BundleListener, FrameworkListener, Ser
      * @return The formatted log message.
      */
     private String createMessage(final ServiceReference sr, final String message) {
-        final StringBuilder output = new StringBuilder();
-
         final String prefix;
         if (sr != null) {
             if ("org.killbill.killbill.osgi.libs.killbill.OSGIKillbillServiceReference".equals(sr.getClass().getName())) {
@@ -208,12 +172,7 @@ public class KillbillLogWriter implements BundleListener, FrameworkListener, Ser
             prefix = UNKNOWN;
         }
 
-        if (prefix != null) {
-            output.append(prefix).append(' ');
-        }
-        output.append(message);
-
-        return output.toString();
+        return prefix == null ? message : prefix + ' ' + message;
     }
 
     private static final String[] BUNDLE_EVENT_MESSAGES =
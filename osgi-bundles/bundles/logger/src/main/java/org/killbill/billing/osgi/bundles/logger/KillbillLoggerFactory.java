@@ -17,9 +17,9 @@
 
 package org.killbill.billing.osgi.bundles.logger;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.killbill.commons.utils.annotation.VisibleForTesting;
 import org.osgi.framework.Bundle;
@@ -34,7 +34,7 @@ public class KillbillLoggerFactory implements LoggerFactory {
 
     public KillbillLoggerFactory(final Bundle bundle) {
         this.bundle = bundle;
-        this.loggers = new HashMap<>();
+        this.loggers = new ConcurrentHashMap<>();
     }
 
     @Override
@@ -64,11 +64,7 @@ public class KillbillLoggerFactory implements LoggerFactory {
         if (logger != null) {
             return (L) logger;
         }
-        synchronized (loggers) {
-            final Logger newLogger = new KillbillLogger(key.getLoggerName());
-            loggers.put(key, newLogger);
-            return (L) newLogger;
-        }
+        return (L) loggers.computeIfAbsent(key, k -> new KillbillLogger(k.getLoggerName()));
     }
 
     public Logger getLogger() {
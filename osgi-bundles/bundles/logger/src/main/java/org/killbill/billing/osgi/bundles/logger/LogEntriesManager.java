@@ -20,96 +20,182 @@
 package org.killbill.billing.osgi.bundles.logger;
 
 import java.io.Closeable;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.annotation.Nullable;
 
-import org.killbill.commons.utils.collect.EvictingQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-@SuppressWarnings("UnstableApiUsage")
+/**
+ * Keeps the latest log entries in a single ring buffer, shared by all SSE subscribers: recording an entry is a single
+ * atomic increment and compare-and-set (no lock, no copy per subscriber), and each subscriber only keeps a cursor in the ring.
+ * A subscriber falling behind by more than the ring capacity gets a marker entry telling how many entries were dropped.
+ */
 public class LogEntriesManager implements Closeable {
 
+    static final int DEFAULT_CAPACITY = 512;
+
     private static final Logger logger = LoggerFactory.getLogger(LogEntriesManager.class);
 
-    private final Map<UUID, EvictingQueue<LogEntryJson>> sseIDsCaches;
-    private final EvictingQueue<LogEntryJson> rootCache;
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<Slot> ring;
+    // Next sequence number to record
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final Map<UUID, Subscription> subscriptions = new ConcurrentHashMap<UUID, Subscription>();
 
     public LogEntriesManager() {
-        sseIDsCaches = new HashMap<>();
-        final UUID rootCacheId = UUID.randomUUID();
-        rootCache = subscribe(rootCacheId, null);
+        this(DEFAULT_CAPACITY);
+    }
+
+    LogEntriesManager(final int minCapacity) {
+        // Power of two, to find the slot with a mask
+        this.capacity = Integer.highestOneBit(Math.max(2, minCapacity) * 2 - 1);
+        this.mask = capacity - 1;
+        this.ring = new AtomicReferenceArray<Slot>(capacity);
     }
 
     public void recordEvent(final LogEntryJson logEntry) {
-        synchronized (sseIDsCaches) {
-            for (final EvictingQueue<LogEntryJson> cache : sseIDsCaches.values()) {
-                cache.add(logEntry);
+        final long sequence = nextSequence.getAndIncrement();
+        final int index = (int) (sequence & mask);
+        final Slot slot = new Slot(sequence, logEntry);
+        // A slow writer must not overwrite a more recent entry, written by a writer which lapped it
+        Slot current = ring.get(index);
+        while (current == null || current.sequence < sequence) {
+            if (ring.compareAndSet(index, current, slot)) {
+                return;
             }
+            current = ring.get(index);
         }
     }
 
-    public EvictingQueue<LogEntryJson> subscribe(final UUID cacheId, @Nullable final UUID lastEventId) {
-        final EvictingQueue<LogEntryJson> cache = new EvictingQueue<>(500);
-        synchronized (sseIDsCaches) {
-            sseIDsCaches.put(cacheId, cache);
-            if (rootCache != null) {
-                if (lastEventId == null) {
-                    // Add all entries
-                    cache.addAll(rootCache);
-                } else {
-                    for (final LogEntryJson logEntryJson : rootCache) {
-                        if (lastEventId.equals(logEntryJson.getId())) {
-                            // Remove everything prior to that id
-                            cache.clear();
-                            continue;
-                        }
-                        cache.add(logEntryJson);
-                    }
+    // Entries are only worth building when somebody is listening
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    public void subscribe(final UUID cacheId, @Nullable final UUID lastEventId) {
+        final long end = nextSequence.get();
+        long start = Math.max(0, end - capacity);
+        if (lastEventId != null) {
+            // Resume after the last entry seen by the client, if still available (send all entries otherwise)
+            for (long sequence = start; sequence < end; sequence++) {
+                final Slot slot = ring.get((int) (sequence & mask));
+                if (slot != null && slot.sequence == sequence && lastEventId.equals(slot.logEntry.getId())) {
+                    start = sequence + 1;
+                    break;
                 }
             }
         }
-        // Logging should be done outside the synchronized block to avoid any deadlock (the log entry will be put in the caches)
-        logger.info("Created new cache {} ({} active)", cacheId, sseIDsCaches.size());
-        return cache;
+        subscriptions.put(cacheId, new Subscription(start));
+
+        logger.info("Created new cache {} ({} active)", cacheId, subscriptions.size());
     }
 
     public void unsubscribe(final UUID cacheId) {
-        final EvictingQueue<LogEntryJson> cache;
-        synchronized (sseIDsCaches) {
-            cache = sseIDsCaches.remove(cacheId);
-        }
-        // Logging should be done outside the synchronized block to avoid any deadlock (the log entry will be put in the caches)
-        logger.info("Removed cache {} ({} active)", cacheId, sseIDsCaches.size());
-        cache.clear();
+        subscriptions.remove(cacheId);
+        logger.info("Removed cache {} ({} active)", cacheId, subscriptions.size());
     }
 
+    /**
+     * Entries recorded since the last drain, read directly from the ring (a marker entry replaces the entries which were
+     * overwritten before being read). Entries recorded after this call are returned by the next drain.
+     */
     public Iterable<LogEntryJson> drain(final UUID cacheId) {
-        final Collection<LogEntryJson> elements = new LinkedList<LogEntryJson>();
-
-        synchronized (sseIDsCaches) {
-            final EvictingQueue<LogEntryJson> logEntries = sseIDsCaches.get(cacheId);
-            LogEntryJson logEntry = logEntries.poll();
-            while (logEntry != null) {
-                elements.add(logEntry);
-                logEntry = logEntries.poll();
+        final Subscription subscription = subscriptions.get(cacheId);
+        if (subscription == null) {
+            return Collections.emptyList();
+        }
+
+        final long start = subscription.cursor;
+        long end = nextSequence.get();
+        // Stop before entries which have been claimed but not published yet (they will be part of the next drain)
+        for (long sequence = Math.max(start, end - capacity); sequence < end; sequence++) {
+            final Slot slot = ring.get((int) (sequence & mask));
+            if (slot == null || slot.sequence < sequence) {
+                end = sequence;
+                break;
             }
-            return elements;
         }
+        subscription.cursor = Math.max(start, end);
+        return new RingView(start, end);
     }
 
     @Override
     public void close() {
-        synchronized (sseIDsCaches) {
-            for (final EvictingQueue<LogEntryJson> cache : sseIDsCaches.values()) {
-                cache.clear();
-            }
-            sseIDsCaches.clear();
+        subscriptions.clear();
+    }
+
+    private static final class Slot {
+
+        private final long sequence;
+        private final LogEntryJson logEntry;
+
+        private Slot(final long sequence, final LogEntryJson logEntry) {
+            this.sequence = sequence;
+            this.logEntry = logEntry;
+        }
+    }
+
+    private static final class Subscription {
+
+        // Next sequence number to read, only updated by the (single) draining thread
+        private volatile long cursor;
+
+        private Subscription(final long cursor) {
+            this.cursor = cursor;
+        }
+    }
+
+    // Entries [start, end) of the ring
+    private final class RingView implements Iterable<LogEntryJson> {
+
+        private final long start;
+        private final long end;
+
+        private RingView(final long start, final long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public Iterator<LogEntryJson> iterator() {
+            return new Iterator<LogEntryJson>() {
+
+                private long sequence = start;
+
+                @Override
+                public boolean hasNext() {
+                    return sequence < end;
+                }
+
+                @Override
+                public LogEntryJson next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+
+                    final Slot slot = ring.get((int) (sequence & mask));
+                    if (slot != null && slot.sequence == sequence) {
+                        sequence++;
+                        return slot.logEntry;
+                    }
+
+                    // Overwritten: skip everything which isn't in the ring anymore
+                    final long firstAvailable = Math.min(end, Math.max(sequence + 1, nextSequence.get() - capacity));
+                    final long nbDropped = firstAvailable - sequence;
+                    sequence = firstAvailable;
+                    return LogEntryJson.droppedEntries(nbDropped);
+                }
+            };
         }
     }
 }
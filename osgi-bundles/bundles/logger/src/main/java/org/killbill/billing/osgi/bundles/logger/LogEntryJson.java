@@ -68,6 +68,19 @@ public class LogEntryJson {
         this.time = System.currentTimeMillis();
     }
 
+    private LogEntryJson(final String level, final String name, final String message) {
+        this.id = UUID.randomUUID();
+        this.level = level;
+        this.name = name;
+        this.message = message;
+        this.time = System.currentTimeMillis();
+    }
+
+    // Sent to SSE subscribers which didn't keep up
+    static LogEntryJson droppedEntries(final long nbDropped) {
+        return new LogEntryJson("WARNING", Activator.PLUGIN_NAME, nbDropped + " log entries dropped");
+    }
+
     public UUID getId() {
         return id;
     }
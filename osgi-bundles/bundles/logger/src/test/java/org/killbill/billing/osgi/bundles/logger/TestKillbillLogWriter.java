@@ -0,0 +1,145 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.commons.concurrent.Executors;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+import org.osgi.service.log.Logger;
+import org.slf4j.MDC;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestKillbillLogWriter {
+
+    private static final int NB_THREADS = 8;
+    private static final int NB_LOGS_PER_THREAD = 2000;
+
+    // Message and MDC seen by the delegate, for each log line
+    private final Queue<String[]> logLines = new ConcurrentLinkedQueue<String[]>();
+
+    private LogEntriesManager logEntriesManager;
+    private KillbillLogWriter logWriter;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        logLines.clear();
+
+        final Logger delegate = Mockito.mock(Logger.class, Mockito.withSettings().stubOnly());
+        Mockito.when(delegate.isInfoEnabled()).thenReturn(true);
+        Mockito.when(delegate.isErrorEnabled()).thenReturn(true);
+        Mockito.when(delegate.isDebugEnabled()).thenReturn(false);
+        Mockito.doAnswer(invocation -> logLines.add(new String[]{invocation.getArgument(0), String.valueOf(MDC.getCopyOfContextMap())}))
+               .when(delegate).info(Mockito.anyString());
+        Mockito.doAnswer(invocation -> logLines.add(new String[]{invocation.getArgument(0), String.valueOf(MDC.getCopyOfContextMap())}))
+               .when(delegate).debug(Mockito.anyString());
+
+        logEntriesManager = new LogEntriesManager();
+        logWriter = new KillbillLogWriter(logEntriesManager, new KillbillLoggerFactory(null) {
+            @Override
+            public <L extends Logger> L getLogger(final Bundle bundle, final String name, final Class<L> loggerType) {
+                //noinspection unchecked
+                return (L) delegate;
+            }
+        });
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentMdc() throws Exception {
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(NB_THREADS, "TestKillbillLogWriter");
+        try {
+            final List<Future<Map<String, String>>> futures = new ArrayList<Future<Map<String, String>>>();
+            for (int t = 0; t < NB_THREADS; t++) {
+                final String threadId = String.valueOf(t);
+                futures.add(executor.submit(() -> {
+                    // Context of the calling thread, which must survive the plugin logs
+                    MDC.clear();
+                    MDC.put("caller", threadId);
+
+                    final AtomicInteger seq = new AtomicInteger();
+                    final ServiceReference serviceReference = Mockito.mock(ServiceReference.class, Mockito.withSettings().stubOnly());
+                    Mockito.when(serviceReference.getProperty("MDC")).thenAnswer(invocation -> Map.of("thread", threadId, "seq", String.valueOf(seq.get())));
+                    Mockito.when(serviceReference.toString()).thenReturn("[sr-" + threadId + "]");
+
+                    startLatch.await();
+                    for (int i = 0; i < NB_LOGS_PER_THREAD; i++) {
+                        seq.set(i);
+                        logWriter.log(serviceReference, LogService.LOG_INFO, threadId + "-" + i);
+                    }
+                    return MDC.getCopyOfContextMap();
+                }));
+            }
+            startLatch.countDown();
+
+            for (int t = 0; t < NB_THREADS; t++) {
+                Assert.assertEquals(futures.get(t).get(30, TimeUnit.SECONDS), Map.of("caller", String.valueOf(t)));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals(logLines.size(), NB_THREADS * NB_LOGS_PER_THREAD);
+        for (final String[] logLine : logLines) {
+            final String[] threadAndSeq = logLine[0].substring(logLine[0].indexOf(' ') + 1).split("-");
+            Assert.assertEquals(logLine[0], "[sr-" + threadAndSeq[0] + "] " + threadAndSeq[0] + "-" + threadAndSeq[1]);
+            Assert.assertEquals(logLine[1], String.valueOf(new HashMap<String, String>(Map.of("thread", threadAndSeq[0], "seq", threadAndSeq[1]))));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDisabledLevelsAndSubscribers() {
+        final ServiceReference serviceReference = Mockito.mock(ServiceReference.class);
+        Mockito.when(serviceReference.getProperty("MDC")).thenReturn(Map.of("key", "value"));
+
+        // Nothing recorded without subscribers
+        logWriter.log(serviceReference, LogService.LOG_INFO, "not recorded");
+        Assert.assertEquals(logLines.size(), 1);
+
+        final UUID subscriber = UUID.randomUUID();
+        logEntriesManager.subscribe(subscriber, null);
+        Assert.assertFalse(logEntriesManager.drain(subscriber).iterator().hasNext());
+
+        // Disabled level: still forwarded to subscribers, but the MDC is never touched
+        Mockito.clearInvocations(serviceReference);
+        logWriter.log(serviceReference, LogService.LOG_DEBUG, "recorded");
+        Assert.assertEquals(logLines.size(), 1);
+        Mockito.verify(serviceReference, Mockito.never()).getProperty("MDC");
+        final List<LogEntryJson> entries = new ArrayList<LogEntryJson>();
+        logEntriesManager.drain(subscriber).forEach(entries::add);
+        Assert.assertEquals(entries.size(), 1);
+        Assert.assertEquals(entries.get(0).getMessage(), "recorded");
+        Assert.assertEquals(entries.get(0).getLevel(), "DEBUG");
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.killbill.commons.concurrent.Executors;
+import org.osgi.service.log.LogService;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestLogEntriesManager {
+
+    @Test(groups = "fast")
+    public void testWraparound() {
+        final LogEntriesManager logEntriesManager = new LogEntriesManager(8);
+        final List<LogEntryJson> recorded = record(logEntriesManager, "log-", 20);
+
+        // Only the last 8 entries are available to new subscribers
+        final UUID subscriber = UUID.randomUUID();
+        logEntriesManager.subscribe(subscriber, null);
+        Assert.assertEquals(toList(logEntriesManager.drain(subscriber)), recorded.subList(12, 20));
+        Assert.assertFalse(logEntriesManager.drain(subscriber).iterator().hasNext());
+
+        // Keeping up across several wraparounds
+        for (int i = 0; i < 5; i++) {
+            final List<LogEntryJson> newEntries = record(logEntriesManager, "log-" + i + "-", 7);
+            Assert.assertEquals(toList(logEntriesManager.drain(subscriber)), newEntries);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testLaggingSubscriber() {
+        final LogEntriesManager logEntriesManager = new LogEntriesManager(8);
+        final UUID subscriber = UUID.randomUUID();
+        final UUID otherSubscriber = UUID.randomUUID();
+        logEntriesManager.subscribe(subscriber, null);
+        logEntriesManager.subscribe(otherSubscriber, null);
+
+        final List<LogEntryJson> firstEntries = record(logEntriesManager, "first-", 5);
+        Assert.assertEquals(toList(logEntriesManager.drain(subscriber)), firstEntries);
+
+        // The other subscriber falls behind: 25 entries since it subscribed, only the last 8 are still there
+        final List<LogEntryJson> secondEntries = record(logEntriesManager, "second-", 20);
+        final List<LogEntryJson> drained = toList(logEntriesManager.drain(otherSubscriber));
+        Assert.assertEquals(drained.size(), 9);
+        Assert.assertEquals(drained.get(0).getMessage(), "17 log entries dropped");
+        Assert.assertEquals(drained.get(0).getLevel(), "WARNING");
+        Assert.assertEquals(drained.subList(1, 9), secondEntries.subList(12, 20));
+
+        // Same for the first one (which didn't read the second batch)
+        final List<LogEntryJson> otherDrained = toList(logEntriesManager.drain(subscriber));
+        Assert.assertEquals(otherDrained.get(0).getMessage(), "12 log entries dropped");
+        Assert.assertEquals(otherDrained.subList(1, 9), secondEntries.subList(12, 20));
+
+        // Entries overwritten after the drain, while the view is being read
+        final List<LogEntryJson> thirdEntries = record(logEntriesManager, "third-", 4);
+        final Iterable<LogEntryJson> view = logEntriesManager.drain(subscriber);
+        final List<LogEntryJson> fourthEntries = record(logEntriesManager, "fourth-", 6);
+        final List<LogEntryJson> viewEntries = toList(view);
+        Assert.assertEquals(viewEntries.get(0).getMessage(), "2 log entries dropped");
+        Assert.assertEquals(viewEntries.subList(1, 3), thirdEntries.subList(2, 4));
+        Assert.assertEquals(toList(logEntriesManager.drain(subscriber)), fourthEntries);
+    }
+
+    @Test(groups = "fast")
+    public void testResumeAndDisconnect() {
+        final LogEntriesManager logEntriesManager = new LogEntriesManager(16);
+        final List<LogEntryJson> recorded = record(logEntriesManager, "log-", 10);
+
+        // Reconnection: resume after the last entry seen
+        final UUID subscriber = UUID.randomUUID();
+        logEntriesManager.subscribe(subscriber, recorded.get(6).getId());
+        Assert.assertEquals(toList(logEntriesManager.drain(subscriber)), recorded.subList(7, 10));
+
+        // Unknown (or too old) last entry: everything available is sent
+        final UUID otherSubscriber = UUID.randomUUID();
+        logEntriesManager.subscribe(otherSubscriber, UUID.randomUUID());
+        Assert.assertEquals(toList(logEntriesManager.drain(otherSubscriber)), recorded);
+
+        // Disconnection
+        logEntriesManager.unsubscribe(subscriber);
+        record(logEntriesManager, "after-", 3);
+        Assert.assertFalse(logEntriesManager.drain(subscriber).iterator().hasNext());
+        Assert.assertEquals(toList(logEntriesManager.drain(otherSubscriber)).size(), 3);
+
+        logEntriesManager.close();
+        Assert.assertFalse(logEntriesManager.drain(otherSubscriber).iterator().hasNext());
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentProducers() throws Exception {
+        final int nbProducers = 4;
+        final int nbEntriesPerProducer = 50000;
+        final LogEntriesManager logEntriesManager = new LogEntriesManager(1024);
+        final UUID subscriber = UUID.randomUUID();
+        logEntriesManager.subscribe(subscriber, null);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(nbProducers + 1, "TestLogEntriesManager");
+        try {
+            final CountDownLatch startLatch = new CountDownLatch(1);
+            final List<Future<?>> producers = new ArrayList<Future<?>>();
+            for (int p = 0; p < nbProducers; p++) {
+                final int producer = p;
+                producers.add(executor.submit(() -> {
+                    startLatch.await();
+                    for (int i = 0; i < nbEntriesPerProducer; i++) {
+                        logEntriesManager.recordEvent(new LogEntryJson(null, LogService.LOG_INFO, producer + ":" + i, null));
+                    }
+                    return null;
+                }));
+            }
+
+            // Concurrent reader: per producer, entries are seen in order, and none is lost without being reported
+            final AtomicBoolean producersDone = new AtomicBoolean(false);
+            final Future<long[]> reader = executor.submit(() -> {
+                final long[] lastSeen = new long[nbProducers];
+                Arrays.fill(lastSeen, -1);
+                long nbSeen = 0;
+                long nbDropped = 0;
+                boolean done = false;
+                while (!done) {
+                    done = producersDone.get();
+                    for (final LogEntryJson logEntry : logEntriesManager.drain(subscriber)) {
+                        if (logEntry.getMessage().endsWith(" log entries dropped")) {
+                            nbDropped += Long.parseLong(logEntry.getMessage().split(" ")[0]);
+                            continue;
+                        }
+                        final String[] parts = logEntry.getMessage().split(":");
+                        final int producer = Integer.parseInt(parts[0]);
+                        final long i = Long.parseLong(parts[1]);
+                        Assert.assertTrue(i > lastSeen[producer], logEntry.getMessage());
+                        lastSeen[producer] = i;
+                        nbSeen++;
+                    }
+                }
+                return new long[]{nbSeen, nbDropped};
+            });
+
+            startLatch.countDown();
+            for (final Future<?> producer : producers) {
+                producer.get(60, TimeUnit.SECONDS);
+            }
+            producersDone.set(true);
+
+            final long[] result = reader.get(60, TimeUnit.SECONDS);
+            Assert.assertEquals(result[0] + result[1], (long) nbProducers * nbEntriesPerProducer, "seen=" + result[0] + ", dropped=" + result[1]);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<LogEntryJson> record(final LogEntriesManager logEntriesManager, final String prefix, final int nb) {
+        final List<LogEntryJson> recorded = new ArrayList<LogEntryJson>();
+        for (int i = 0; i < nb; i++) {
+            final LogEntryJson logEntry = new LogEntryJson(null, LogService.LOG_INFO, prefix + i, null);
+            logEntriesManager.recordEvent(logEntry);
+            recorded.add(logEntry);
+        }
+        return recorded;
+    }
+
+    private static List<LogEntryJson> toList(final Iterable<LogEntryJson> logEntries) {
+        final List<LogEntryJson> result = new ArrayList<LogEntryJson>();
+        for (final LogEntryJson logEntry : logEntries) {
+            result.add(logEntry);
+        }
+        return result;
+    }
+}
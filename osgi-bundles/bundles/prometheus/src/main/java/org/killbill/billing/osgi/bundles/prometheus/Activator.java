@@ -34,13 +34,13 @@ public class Activator extends KillbillActivatorBase {
     public void start(final BundleContext context) throws Exception {
         super.start(context);
 
-        // Feed Kill Bill metrics to a custom Prometheus Collector
+        // Feed Kill Bill metrics to a custom Prometheus Collector (not registered in the default registry, as the servlet
+        // streams it directly)
         final MetricRegistry kbRegistry = this.metricRegistry.getMetricRegistry();
         final KillBillCollector killBillCollector = new KillBillCollector(kbRegistry);
-        killBillCollector.register();
 
         // Register a servlet to expose metrics, to be read by the Prometheus server.
-        registerServlet(context, new KillBillMetricsServlet());
+        registerServlet(context, new KillBillMetricsServlet(killBillCollector));
     }
 
     private void registerServlet(final BundleContext context, final Servlet servlet) {
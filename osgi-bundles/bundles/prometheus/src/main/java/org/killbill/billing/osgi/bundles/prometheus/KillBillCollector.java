@@ -17,13 +17,15 @@
 
 package org.killbill.billing.osgi.bundles.prometheus;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
 import java.util.concurrent.TimeUnit;
 
 import org.killbill.commons.metrics.api.Counter;
@@ -38,111 +40,151 @@ import org.killbill.commons.metrics.api.Timer;
 import io.prometheus.client.Collector;
 
 // Inspired from io.prometheus.client.dropwizard.DropwizardExports (Apache-2.0 License)
+//
+// Sanitized names, help messages and the grouping of the metrics into families are cached: they are only
+// rebuilt when a metric is added, removed or replaced in the registry (or when a gauge starts or stops
+// returning a numeric value), so that a scrape only reads the current values. See write004 to write them
+// without building the intermediate MetricFamilySamples.
 public class KillBillCollector extends Collector {
 
+    private static final List<String> QUANTILE_LABEL_NAMES = List.of("quantile");
+    private static final String[] QUANTILES = {"0.5", "0.75", "0.95", "0.98", "0.99", "0.999"};
+    private static final double NANOS_TO_SECONDS = 1.0D / TimeUnit.SECONDS.toNanos(1L);
+
     private final MetricRegistry registry;
 
+    // Per metric kind (the same name can be used by different kinds of metrics), in the registry iteration order
+    private final Map<String, CachedMetric> cachedGauges = new LinkedHashMap<>();
+    private final Map<String, CachedMetric> cachedCounters = new LinkedHashMap<>();
+    private final Map<String, CachedMetric> cachedHistograms = new LinkedHashMap<>();
+    private final Map<String, CachedMetric> cachedTimers = new LinkedHashMap<>();
+    private final Map<String, CachedMetric> cachedMeters = new LinkedHashMap<>();
+
+    // Which gauges had a numeric value during the last scrape
+    private boolean[] exportedGauges = new boolean[0];
+    private List<Family> families = Collections.emptyList();
+
     public KillBillCollector(final MetricRegistry registry) {
         this.registry = registry;
     }
 
     @Override
     public List<MetricFamilySamples> collect() {
-        final Map<String, MetricFamilySamples> mfSamplesMap = new HashMap<>();
+        final Scrape scrape = scrape();
 
-        for (final SortedMap.Entry<String, Gauge<?>> entry : registry.getGauges().entrySet()) {
-            addToMap(mfSamplesMap, fromGauge(entry.getKey(), entry.getValue()));
-        }
-        for (final SortedMap.Entry<String, Counter> entry : registry.getCounters().entrySet()) {
-            addToMap(mfSamplesMap, fromCounter(entry.getKey(), entry.getValue()));
+        final List<MetricFamilySamples> mfSamples = new ArrayList<>(scrape.families.size());
+        for (final Family family : scrape.families) {
+            final List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+            for (final CachedMetric member : family.members) {
+                member.addSamples(scrape, samples);
+            }
+            // Type and help of the first metric of the family
+            final CachedMetric first = family.members.get(0);
+            mfSamples.add(new MetricFamilySamples(family.members.size() == 1 ? first.sampleName : family.name, first.kind.type, first.help, samples));
         }
-        for (final SortedMap.Entry<String, Histogram> entry : registry.getHistograms().entrySet()) {
-            addToMap(mfSamplesMap, fromHistogram(entry.getKey(), entry.getValue()));
+        return mfSamples;
+    }
+
+    /**
+     * Write the metrics in the Prometheus text format (version 0.0.4): output is the same as
+     * {@link io.prometheus.client.exporter.common.TextFormat#write004(Writer, java.util.Enumeration)} on {@link #collect()}.
+     */
+    public void write004(final Writer writer) throws IOException {
+        final Scrape scrape = scrape();
+        for (final Family family : scrape.families) {
+            family.write004(scrape, writer);
         }
-        for (final SortedMap.Entry<String, Timer> entry : registry.getTimers().entrySet()) {
-            addToMap(mfSamplesMap, fromTimer(entry.getKey(), entry.getValue()));
+    }
+
+    private synchronized Scrape scrape() {
+        boolean changed = refresh(cachedGauges, registry.getGauges(), MetricKind.GAUGE);
+        changed = refresh(cachedCounters, registry.getCounters(), MetricKind.COUNTER) || changed;
+        changed = refresh(cachedHistograms, registry.getHistograms(), MetricKind.HISTOGRAM) || changed;
+        changed = refresh(cachedTimers, registry.getTimers(), MetricKind.TIMER) || changed;
+        changed = refresh(cachedMeters, registry.getMeters(), MetricKind.METER) || changed;
+
+        // Gauges are read first, as gauges without numeric values are not exported (their family may not exist)
+        final Double[] gaugeValues = new Double[cachedGauges.size()];
+        final boolean[] currentExportedGauges = new boolean[gaugeValues.length];
+        int i = 0;
+        for (final CachedMetric cachedGauge : cachedGauges.values()) {
+            // Same as cachedGauge.gaugeIndex
+            gaugeValues[i] = readGaugeValue((Gauge<?>) cachedGauge.metric);
+            currentExportedGauges[i] = gaugeValues[i] != null;
+            i++;
         }
-        for (final SortedMap.Entry<String, Meter> entry : registry.getMeters().entrySet()) {
-            addToMap(mfSamplesMap, fromMeter(entry.getKey(), entry.getValue()));
+        if (changed || !Arrays.equals(currentExportedGauges, exportedGauges)) {
+            exportedGauges = currentExportedGauges;
+            families = buildFamilies();
         }
-        return new ArrayList<>(mfSamplesMap.values());
+        return new Scrape(families, gaugeValues);
     }
 
-    private MetricFamilySamples fromCounter(final String name, final Counter counter) {
-        final MetricFamilySamples.Sample sample = createSample(name, "", new ArrayList<>(), new ArrayList<>(),
-                                                               Long.valueOf(counter.getCount()).doubleValue());
-        return new MetricFamilySamples(sample.name, Type.GAUGE, getHelpMessage(name, counter), List.of(sample));
+    private boolean refresh(final Map<String, CachedMetric> cachedMetrics, final Map<String, ? extends Metric> metrics, final MetricKind kind) {
+        boolean changed = cachedMetrics.size() != metrics.size();
+        if (!changed) {
+            for (final Map.Entry<String, ? extends Metric> entry : metrics.entrySet()) {
+                final CachedMetric cachedMetric = cachedMetrics.get(entry.getKey());
+                if (cachedMetric == null || cachedMetric.metric != entry.getValue()) {
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        if (!changed) {
+            return false;
+        }
+
+        // Cached metrics are immutable (they are shared with the scrapes in progress): they are re-created if their gauge index changed
+        final Map<String, CachedMetric> previousMetrics = new HashMap<>(cachedMetrics);
+        cachedMetrics.clear();
+        int gaugeIndex = 0;
+        for (final Map.Entry<String, ? extends Metric> entry : metrics.entrySet()) {
+            final int index = kind == MetricKind.GAUGE ? gaugeIndex++ : -1;
+            final CachedMetric previousMetric = previousMetrics.get(entry.getKey());
+            if (previousMetric != null && previousMetric.metric == entry.getValue() && previousMetric.gaugeIndex == index) {
+                cachedMetrics.put(entry.getKey(), previousMetric);
+            } else {
+                cachedMetrics.put(entry.getKey(), new CachedMetric(entry.getKey(), entry.getValue(), kind, index));
+            }
+        }
+        return true;
     }
 
-    private String getHelpMessage(final String metricName, final Metric metric) {
-        return String.format("Generated from Kill Bill metric import (metric=%s, type=%s)",
-                             metricName, metric.getClass().getName());
+    private List<Family> buildFamilies() {
+        // Same grouping and ordering as the historical implementation: metrics whose sanitized names clash share
+        // a family, and families are ordered by a HashMap populated with the gauges, counters, histograms, timers then meters
+        final Map<String, Family> familiesMap = new HashMap<>();
+        for (final Map<String, CachedMetric> cachedMetrics : List.of(cachedGauges, cachedCounters, cachedHistograms, cachedTimers, cachedMeters)) {
+            for (final CachedMetric cachedMetric : cachedMetrics.values()) {
+                if (cachedMetric.kind != MetricKind.GAUGE || exportedGauges[cachedMetric.gaugeIndex]) {
+                    // Not computeIfAbsent, which doesn't preserve the order within the HashMap buckets
+                    Family family = familiesMap.get(cachedMetric.familyName);
+                    if (family == null) {
+                        family = new Family(cachedMetric.familyName);
+                        familiesMap.put(cachedMetric.familyName, family);
+                    }
+                    family.members.add(cachedMetric);
+                }
+            }
+        }
+        return List.copyOf(familiesMap.values());
     }
 
-    private MetricFamilySamples fromGauge(final String name, final Gauge<?> gauge) {
+    private static Double readGaugeValue(final Gauge<?> gauge) {
         final Object obj = gauge.getValue();
-        final double value;
         if (obj instanceof Number) {
-            value = ((Number) obj).doubleValue();
+            return ((Number) obj).doubleValue();
         } else if (obj instanceof Boolean) {
-            value = ((Boolean) obj) ? 1 : 0;
+            return ((Boolean) obj) ? 1.0 : 0.0;
         } else {
             return null;
         }
-        final MetricFamilySamples.Sample sample = createSample(name, "",
-                                                               new ArrayList<>(),
-                                                               new ArrayList<>(),
-                                                               value);
-        return new MetricFamilySamples(sample.name, Type.GAUGE, getHelpMessage(name, gauge), List.of(sample));
     }
 
-    private MetricFamilySamples fromSnapshotAndCount(final String name,
-                                                     final Snapshot snapshot,
-                                                     final long count,
-                                                     final double factor,
-                                                     final String helpMessage) {
-        final List<MetricFamilySamples.Sample> samples = Arrays.asList(
-                createSample(name, "", List.of("quantile"), List.of("0.5"), snapshot.getMedian() * factor),
-                createSample(name, "", List.of("quantile"), List.of("0.75"), snapshot.get75thPercentile() * factor),
-                createSample(name, "", List.of("quantile"), List.of("0.95"), snapshot.get95thPercentile() * factor),
-                createSample(name, "", List.of("quantile"), List.of("0.98"), snapshot.get98thPercentile() * factor),
-                createSample(name, "", List.of("quantile"), List.of("0.99"), snapshot.get99thPercentile() * factor),
-                createSample(name, "", List.of("quantile"), List.of("0.999"), snapshot.get999thPercentile() * factor),
-                createSample(name, "_count", new ArrayList<>(), new ArrayList<>(), count)
-                                                                      );
-        return new MetricFamilySamples(samples.get(0).name, Type.SUMMARY, helpMessage, samples);
-    }
-
-    private MetricFamilySamples fromHistogram(final String name, final Histogram histogram) {
-        return fromSnapshotAndCount(name, histogram.getSnapshot(), histogram.getCount(), 1.0,
-                                    getHelpMessage(name, histogram));
-    }
-
-    private MetricFamilySamples fromTimer(final String name, final Timer timer) {
-        return fromSnapshotAndCount(name, timer.getSnapshot(), timer.getCount(),
-                                    1.0D / TimeUnit.SECONDS.toNanos(1L), getHelpMessage(name, timer));
-    }
-
-    private MetricFamilySamples fromMeter(final String name, final Meter meter) {
-        final MetricFamilySamples.Sample sample = createSample(name, "_total",
-                                                               new ArrayList<>(),
-                                                               new ArrayList<>(),
-                                                               meter.getCount());
-        return new MetricFamilySamples(sample.name, Type.COUNTER, getHelpMessage(name, meter),
-                                       List.of(sample));
-    }
-
-    private void addToMap(final Map<String, MetricFamilySamples> mfSamplesMap, final MetricFamilySamples newMfSamples) {
-        if (newMfSamples != null) {
-            final MetricFamilySamples currentMfSamples = mfSamplesMap.get(newMfSamples.name);
-            if (currentMfSamples == null) {
-                mfSamplesMap.put(newMfSamples.name, newMfSamples);
-            } else {
-                final List<MetricFamilySamples.Sample> samples = new ArrayList<>(currentMfSamples.samples);
-                samples.addAll(newMfSamples.samples);
-                mfSamplesMap.put(newMfSamples.name, new MetricFamilySamples(newMfSamples.name, currentMfSamples.type, currentMfSamples.help, samples));
-            }
-        }
+    private String getHelpMessage(final String metricName, final Metric metric) {
+        return String.format("Generated from Kill Bill metric import (metric=%s, type=%s)",
+                             metricName, metric.getClass().getName());
     }
 
     public Collector.MetricFamilySamples.Sample createSample(final String name,
@@ -160,4 +202,179 @@ public class KillBillCollector extends Collector {
                 value
         );
     }
+
+    private static final class Scrape {
+
+        private final List<Family> families;
+        private final Double[] gaugeValues;
+
+        private Scrape(final List<Family> families, final Double[] gaugeValues) {
+            this.families = families;
+            this.gaugeValues = gaugeValues;
+        }
+    }
+
+    private enum MetricKind {
+        GAUGE(Type.GAUGE),
+        COUNTER(Type.GAUGE),
+        HISTOGRAM(Type.SUMMARY),
+        TIMER(Type.SUMMARY),
+        METER(Type.COUNTER);
+
+        private final Type type;
+
+        MetricKind(final Type type) {
+            this.type = type;
+        }
+    }
+
+    // Everything but the values
+    private final class CachedMetric {
+
+        private final Metric metric;
+        private final MetricKind kind;
+        private final String help;
+        // Main sample name (e.g. foo, or foo_total for meters)
+        private final String sampleName;
+        // foo_count, for summaries only
+        private final String countSampleName;
+        // Name of the family, as computed by MetricFamilySamples (e.g. _total is stripped for counters)
+        private final String familyName;
+        // Index in the gauge values of the scrape (i.e. position in cachedGauges), -1 for other kinds
+        private final int gaugeIndex;
+
+        private CachedMetric(final String name, final Metric metric, final MetricKind kind, final int gaugeIndex) {
+            this.metric = metric;
+            this.kind = kind;
+            this.gaugeIndex = gaugeIndex;
+            this.help = getHelpMessage(name, metric);
+            this.sampleName = sanitizeMetricName(kind == MetricKind.METER ? name + "_total" : name);
+            this.countSampleName = kind.type == Type.SUMMARY ? sanitizeMetricName(name + "_count") : null;
+            this.familyName = new MetricFamilySamples(sampleName, kind.type, help, Collections.emptyList()).name;
+        }
+
+        private double getValue(final Scrape scrape) {
+            switch (kind) {
+                case GAUGE:
+                    return scrape.gaugeValues[gaugeIndex];
+                case COUNTER:
+                    return ((Counter) metric).getCount();
+                case METER:
+                    return ((Meter) metric).getCount();
+                default:
+                    throw new IllegalStateException("Unexpected metric kind " + kind);
+            }
+        }
+
+        private void addSamples(final Scrape scrape, final List<MetricFamilySamples.Sample> samples) {
+            if (kind.type != Type.SUMMARY) {
+                samples.add(new MetricFamilySamples.Sample(sampleName, Collections.emptyList(), Collections.emptyList(), getValue(scrape)));
+                return;
+            }
+
+            final double[] quantileValues = getQuantileValues();
+            for (int i = 0; i < QUANTILES.length; i++) {
+                samples.add(new MetricFamilySamples.Sample(sampleName, QUANTILE_LABEL_NAMES, List.of(QUANTILES[i]), quantileValues[i]));
+            }
+            samples.add(new MetricFamilySamples.Sample(countSampleName, Collections.emptyList(), Collections.emptyList(), getCount()));
+        }
+
+        private void writeSamples(final Scrape scrape, final Writer writer) throws IOException {
+            if (kind.type != Type.SUMMARY) {
+                writeSample(writer, sampleName, null, getValue(scrape));
+                return;
+            }
+
+            final double[] quantileValues = getQuantileValues();
+            for (int i = 0; i < QUANTILES.length; i++) {
+                writeSample(writer, sampleName, QUANTILES[i], quantileValues[i]);
+            }
+            writeSample(writer, countSampleName, null, getCount());
+        }
+
+        private double[] getQuantileValues() {
+            final Snapshot snapshot;
+            final double factor;
+            if (kind == MetricKind.TIMER) {
+                snapshot = ((Timer) metric).getSnapshot();
+                factor = NANOS_TO_SECONDS;
+            } else {
+                snapshot = ((Histogram) metric).getSnapshot();
+                factor = 1.0;
+            }
+            return new double[]{snapshot.getMedian() * factor,
+                                snapshot.get75thPercentile() * factor,
+                                snapshot.get95thPercentile() * factor,
+                                snapshot.get98thPercentile() * factor,
+                                snapshot.get99thPercentile() * factor,
+                                snapshot.get999thPercentile() * factor};
+        }
+
+        private long getCount() {
+            return kind == MetricKind.TIMER ? ((Timer) metric).getCount() : ((Histogram) metric).getCount();
+        }
+    }
+
+    private static final class Family {
+
+        private final String name;
+        private final List<CachedMetric> members = new ArrayList<>(1);
+
+        private Family(final String name) {
+            this.name = name;
+        }
+
+        private void write004(final Scrape scrape, final Writer writer) throws IOException {
+            // Type and help of the first metric of the family (see collect())
+            final CachedMetric first = members.get(0);
+            final String headerName = members.size() == 1 ? first.familyName : new MetricFamilySamples(name, first.kind.type, first.help, Collections.emptyList()).name;
+            final String headerSuffix = first.kind.type == Type.COUNTER ? "_total" : "";
+
+            writer.write("# HELP ");
+            writer.write(headerName);
+            writer.write(headerSuffix);
+            writer.write(' ');
+            writeEscapedHelp(writer, first.help);
+            writer.write('\n');
+
+            writer.write("# TYPE ");
+            writer.write(headerName);
+            writer.write(headerSuffix);
+            writer.write(' ');
+            writer.write(first.kind.type == Type.COUNTER ? "counter" : first.kind.type == Type.SUMMARY ? "summary" : "gauge");
+            writer.write('\n');
+
+            for (final CachedMetric member : members) {
+                member.writeSamples(scrape, writer);
+            }
+        }
+    }
+
+    private static void writeSample(final Writer writer, final String name, final String quantile, final double value) throws IOException {
+        writer.write(name);
+        if (quantile != null) {
+            writer.write("{quantile=\"");
+            writer.write(quantile);
+            writer.write("\",}");
+        }
+        writer.write(' ');
+        writer.write(doubleToGoString(value));
+        writer.write('\n');
+    }
+
+    private static void writeEscapedHelp(final Writer writer, final String help) throws IOException {
+        for (int i = 0; i < help.length(); i++) {
+            final char c = help.charAt(i);
+            switch (c) {
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                default:
+                    writer.write(c);
+            }
+        }
+    }
 }
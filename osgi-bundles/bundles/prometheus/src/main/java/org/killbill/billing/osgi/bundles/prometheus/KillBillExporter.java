@@ -22,15 +22,19 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import io.prometheus.client.Collector.MetricFamilySamples;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Predicate;
 import io.prometheus.client.SampleNameFilter;
@@ -41,10 +45,16 @@ import io.prometheus.client.exporter.common.TextFormat;
 public class KillBillExporter {
 
     private final CollectorRegistry registry;
+    private final KillBillCollector killBillCollector;
+    // Only used when the output cannot be streamed (filtered request or OpenMetrics format)
+    private final CollectorRegistry killBillRegistry;
     private final Predicate<String> sampleNameFilter;
 
-    public KillBillExporter(final CollectorRegistry registry, final Predicate<String> sampleNameFilter) {
+    public KillBillExporter(final CollectorRegistry registry, final KillBillCollector killBillCollector, final Predicate<String> sampleNameFilter) {
         this.registry = registry;
+        this.killBillCollector = killBillCollector;
+        this.killBillRegistry = new CollectorRegistry(true);
+        this.killBillRegistry.register(killBillCollector);
         this.sampleNameFilter = sampleNameFilter;
     }
 
@@ -55,16 +65,27 @@ public class KillBillExporter {
 
         try (final Writer writer = new BufferedWriter(new OutputStreamWriter(resp.getOutputStream(), StandardCharsets.UTF_8))) {
             final Predicate<String> filter = SampleNameFilter.restrictToNamesEqualTo(this.sampleNameFilter, parse(req));
-            if (filter == null) {
-                TextFormat.writeFormat(contentType, writer, this.registry.metricFamilySamples());
+            if (filter == null && TextFormat.CONTENT_TYPE_004.equals(contentType)) {
+                // Most common case (Prometheus scrape): stream the Kill Bill metrics directly
+                killBillCollector.write004(writer);
+                TextFormat.write004(writer, this.registry.metricFamilySamples());
             } else {
-                TextFormat.writeFormat(contentType, writer, this.registry.filteredMetricFamilySamples(filter));
+                final List<MetricFamilySamples> mfSamples = new ArrayList<MetricFamilySamples>();
+                addAll(mfSamples, filter == null ? this.killBillRegistry.metricFamilySamples() : this.killBillRegistry.filteredMetricFamilySamples(filter));
+                addAll(mfSamples, filter == null ? this.registry.metricFamilySamples() : this.registry.filteredMetricFamilySamples(filter));
+                TextFormat.writeFormat(contentType, writer, Collections.enumeration(mfSamples));
             }
 
             writer.flush();
         }
     }
 
+    private static void addAll(final List<MetricFamilySamples> mfSamples, final Enumeration<MetricFamilySamples> enumeration) {
+        while (enumeration.hasMoreElements()) {
+            mfSamples.add(enumeration.nextElement());
+        }
+    }
+
     private Set<String> parse(final ServletRequest req) {
         final String[] includedParam = req.getParameterValues("name[]");
         return includedParam == null ? Collections.emptySet() : new HashSet(Arrays.asList(includedParam));
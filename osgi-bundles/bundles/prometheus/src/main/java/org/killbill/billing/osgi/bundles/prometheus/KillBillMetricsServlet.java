@@ -32,8 +32,9 @@ public class KillBillMetricsServlet extends HttpServlet {
 
     private final transient KillBillExporter exporter;
 
-    public KillBillMetricsServlet() {
-        exporter = new KillBillExporter(CollectorRegistry.defaultRegistry, null);
+    public KillBillMetricsServlet(final KillBillCollector killBillCollector) {
+        // Other collectors (if any) are still registered in the default registry
+        exporter = new KillBillExporter(CollectorRegistry.defaultRegistry, killBillCollector, null);
     }
 
     @Override
@@ -0,0 +1,444 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.prometheus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.killbill.commons.metrics.api.Counter;
+import org.killbill.commons.metrics.api.Gauge;
+import org.killbill.commons.metrics.api.Histogram;
+import org.killbill.commons.metrics.api.Meter;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.metrics.api.Snapshot;
+import org.killbill.commons.metrics.api.Timer;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+public class TestKillBillCollector {
+
+    // Generated by the historical implementation (sample values are derived from the test metrics)
+    private static final String GOLDEN_OUTPUT = "# HELP kb_plugin_killbill_stripe_PaymentPluginApi_authorizePayment Generated from Kill Bill metric import (metric=kb.plugin.killbill-stripe.PaymentPluginApi.authorizePayment, type=org.killbill.billing.osgi.bundles.prometheus.TestKillBillCollector$FixedTimer)\n" +
+                                         "# TYPE kb_plugin_killbill_stripe_PaymentPluginApi_authorizePayment summary\n" +
+                                         "kb_plugin_killbill_stripe_PaymentPluginApi_authorizePayment{quantile=\"0.5\",} 0.0\n" +
+                                         "kb_plugin_killbill_stripe_PaymentPluginApi_authorizePayment{quantile=\"0.75\",} 0.0\n" +
+                                         "kb_plugin_killbill_stripe_PaymentPluginApi_authorizePayment{quantile=\"0.95\",} 0.0\n" +
+                                         "kb_plugin_killbill_stripe_PaymentPluginApi_authorizePayment{quantile=\"0.98\",} 0.0\n" +
+                                         "kb_plugin_killbill_stripe_PaymentPluginApi_authorizePayment{quantile=\"0.99\",} 0.0\n" +
+                                         "kb_plugin_killbill_stripe_PaymentPluginApi_authorizePayment{quantile=\"0.999\",} 0.0\n" +
+                                         "kb_plugin_killbill_stripe_PaymentPluginApi_authorizePayment_count 0.0\n" +
+                                         "# HELP kb_plugin_killbill_stripe_PaymentPluginApi_purchasePayment Generated from Kill Bill metric import (metric=kb.plugin.killbill-stripe.PaymentPluginApi.purchasePayment, type=org.killbill.billing.osgi.bundles.prometheus.TestKillBillCollector$FixedTimer)\n" +
+                                         "# TYPE kb_plugin_killbill_stripe_PaymentPluginApi_purchasePayment summary\n" +
+                                         "kb_plugin_killbill_stripe_PaymentPluginApi_purchasePayment{quantile=\"0.5\",} 5.0E-4\n" +
+                                         "kb_plugin_killbill_stripe_PaymentPluginApi_purchasePayment{quantile=\"0.75\",} 7.5E-4\n" +
+                                         "kb_plugin_killbill_stripe_PaymentPluginApi_purchasePayment{quantile=\"0.95\",} 9.500000000000001E-4\n" +
+                                         "kb_plugin_killbill_stripe_PaymentPluginApi_purchasePayment{quantile=\"0.98\",} 9.8E-4\n" +
+                                         "kb_plugin_killbill_stripe_PaymentPluginApi_purchasePayment{quantile=\"0.99\",} 9.9E-4\n" +
+                                         "kb_plugin_killbill_stripe_PaymentPluginApi_purchasePayment{quantile=\"0.999\",} 9.99E-4\n" +
+                                         "kb_plugin_killbill_stripe_PaymentPluginApi_purchasePayment_count 3.0\n" +
+                                         "# HELP jvm_memory_heap_used Generated from Kill Bill metric import (metric=jvm.memory.heap.used, type=org.killbill.billing.osgi.bundles.prometheus.TestKillBillCollector$FixedGauge)\n" +
+                                         "# TYPE jvm_memory_heap_used gauge\n" +
+                                         "jvm_memory_heap_used 1.23456789E8\n" +
+                                         "# HELP jvm_threads_deadlock Generated from Kill Bill metric import (metric=jvm.threads.deadlock, type=org.killbill.billing.osgi.bundles.prometheus.TestKillBillCollector$FixedGauge)\n" +
+                                         "# TYPE jvm_threads_deadlock gauge\n" +
+                                         "jvm_threads_deadlock 0.0\n" +
+                                         "# HELP kb_retries_total_total Generated from Kill Bill metric import (metric=kb.retries_total, type=org.killbill.billing.osgi.bundles.prometheus.TestKillBillCollector$FixedMeter)\n" +
+                                         "# TYPE kb_retries_total_total counter\n" +
+                                         "kb_retries_total_total 1.0\n" +
+                                         "# HELP kb_requests Generated from Kill Bill metric import (metric=kb.requests, type=org.killbill.billing.osgi.bundles.prometheus.TestKillBillCollector$FixedCounter)\n" +
+                                         "# TYPE kb_requests gauge\n" +
+                                         "kb_requests 42.0\n" +
+                                         "kb_requests 7.0\n" +
+                                         "# HELP kb_payments_total Generated from Kill Bill metric import (metric=kb.payments, type=org.killbill.billing.osgi.bundles.prometheus.TestKillBillCollector$FixedMeter)\n" +
+                                         "# TYPE kb_payments_total counter\n" +
+                                         "kb_payments_total 5.0\n" +
+                                         "# HELP _lives Generated from Kill Bill metric import (metric=9lives, type=org.killbill.billing.osgi.bundles.prometheus.TestKillBillCollector$FixedCounter)\n" +
+                                         "# TYPE _lives gauge\n" +
+                                         "_lives 9.0\n" +
+                                         "# HELP kb_invoice_items Generated from Kill Bill metric import (metric=kb.invoice.items, type=org.killbill.billing.osgi.bundles.prometheus.TestKillBillCollector$FixedHistogram)\n" +
+                                         "# TYPE kb_invoice_items summary\n" +
+                                         "kb_invoice_items{quantile=\"0.5\",} 0.5\n" +
+                                         "kb_invoice_items{quantile=\"0.75\",} 0.75\n" +
+                                         "kb_invoice_items{quantile=\"0.95\",} 0.95\n" +
+                                         "kb_invoice_items{quantile=\"0.98\",} 0.98\n" +
+                                         "kb_invoice_items{quantile=\"0.99\",} 0.99\n" +
+                                         "kb_invoice_items{quantile=\"0.999\",} 0.999\n" +
+                                         "kb_invoice_items_count 12.0\n" +
+                                         "# HELP kb_queue_size Generated from Kill Bill metric import (metric=kb.queue-size, type=org.killbill.billing.osgi.bundles.prometheus.TestKillBillCollector$FixedGauge)\n" +
+                                         "# TYPE kb_queue_size gauge\n" +
+                                         "kb_queue_size 0.5\n" +
+                                         "kb_queue_size_total 2.0\n";
+
+    private final Map<String, Gauge<?>> gauges = new TreeMap<String, Gauge<?>>();
+    private final Map<String, Counter> counters = new TreeMap<String, Counter>();
+    private final Map<String, Histogram> histograms = new TreeMap<String, Histogram>();
+    private final Map<String, Timer> timers = new TreeMap<String, Timer>();
+    private final Map<String, Meter> meters = new TreeMap<String, Meter>();
+
+    private MetricRegistry registry;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        gauges.clear();
+        counters.clear();
+        histograms.clear();
+        timers.clear();
+        meters.clear();
+
+        registry = Mockito.mock(MetricRegistry.class);
+        Mockito.when(registry.getGauges()).thenAnswer(invocation -> Collections.unmodifiableMap(gauges));
+        Mockito.when(registry.getCounters()).thenAnswer(invocation -> Collections.unmodifiableMap(counters));
+        Mockito.when(registry.getHistograms()).thenAnswer(invocation -> Collections.unmodifiableMap(histograms));
+        Mockito.when(registry.getTimers()).thenAnswer(invocation -> Collections.unmodifiableMap(timers));
+        Mockito.when(registry.getMeters()).thenAnswer(invocation -> Collections.unmodifiableMap(meters));
+
+        gauges.put("jvm.memory.heap.used", new FixedGauge<Object>(123456789L));
+        gauges.put("jvm.threads.deadlock", new FixedGauge<Object>(Boolean.FALSE));
+        gauges.put("jvm.threads.names", new FixedGauge<Object>("not-a-number"));
+        gauges.put("kb.queue-size", new FixedGauge<Object>(0.5d));
+        counters.put("kb.requests", new FixedCounter(42));
+        counters.put("kb_requests", new FixedCounter(7));
+        counters.put("9lives", new FixedCounter(9));
+        histograms.put("kb.invoice.items", new FixedHistogram(12, new FixedSnapshot(1)));
+        timers.put("kb.plugin.killbill-stripe.PaymentPluginApi.purchasePayment", new FixedTimer(3, new FixedSnapshot(1000000)));
+        timers.put("kb.plugin.killbill-stripe.PaymentPluginApi.authorizePayment", new FixedTimer(0, new FixedSnapshot(0)));
+        meters.put("kb.payments", new FixedMeter(5));
+        meters.put("kb.retries_total", new FixedMeter(1));
+        meters.put("kb.queue-size", new FixedMeter(2));
+    }
+
+    @Test(groups = "fast")
+    public void testGoldenOutput() throws Exception {
+        final KillBillCollector collector = new KillBillCollector(registry);
+        for (int i = 0; i < 2; i++) {
+            final StringWriter collectWriter = new StringWriter();
+            TextFormat.write004(collectWriter, Collections.enumeration(collector.collect()));
+            Assert.assertEquals(collectWriter.toString(), GOLDEN_OUTPUT);
+
+            final StringWriter streamWriter = new StringWriter();
+            collector.write004(streamWriter);
+            Assert.assertEquals(streamWriter.toString(), GOLDEN_OUTPUT);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testExporter() throws Exception {
+        final KillBillExporter exporter = new KillBillExporter(new CollectorRegistry(), new KillBillCollector(registry), null);
+
+        Assert.assertEquals(scrape(exporter, null, null), GOLDEN_OUTPUT);
+
+        final String filteredOutput = scrape(exporter, null, new String[]{"kb_payments_total"});
+        Assert.assertEquals(filteredOutput, "# HELP kb_payments_total Generated from Kill Bill metric import (metric=kb.payments, type=org.killbill.billing.osgi.bundles.prometheus.TestKillBillCollector$FixedMeter)\n" +
+                                            "# TYPE kb_payments_total counter\n" +
+                                            "kb_payments_total 5.0\n");
+
+        final String openMetricsOutput = scrape(exporter, "application/openmetrics-text; version=1.0.0; charset=utf-8", null);
+        Assert.assertTrue(openMetricsOutput.contains("# TYPE kb_payments counter\n"), openMetricsOutput);
+        Assert.assertTrue(openMetricsOutput.contains("\nkb_payments_total 5.0\n"), openMetricsOutput);
+        Assert.assertTrue(openMetricsOutput.endsWith("# EOF\n"), openMetricsOutput);
+    }
+
+    @Test(groups = "fast")
+    public void testRegistryChanges() throws Exception {
+        final KillBillCollector collector = new KillBillCollector(registry);
+        Assert.assertEquals(write004(collector), GOLDEN_OUTPUT);
+
+        // New values are picked up
+        counters.get("9lives").inc(1);
+        Assert.assertTrue(write004(collector).contains("\n_lives 10.0\n"));
+
+        // New, removed and replaced metrics are picked up
+        counters.put("kb.new-counter", new FixedCounter(1));
+        counters.remove("kb_requests");
+        meters.put("kb.payments", new FixedMeter(6));
+        final String output = write004(collector);
+        Assert.assertTrue(output.contains("# TYPE kb_new_counter gauge\nkb_new_counter 1.0\n"), output);
+        Assert.assertTrue(output.contains("# TYPE kb_requests gauge\nkb_requests 42.0\n#"), output);
+        Assert.assertTrue(output.contains("\nkb_payments_total 6.0\n"), output);
+
+        final StringWriter collectWriter = new StringWriter();
+        TextFormat.write004(collectWriter, Collections.enumeration(collector.collect()));
+        Assert.assertEquals(collectWriter.toString(), output);
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentScrapes() throws Exception {
+        final KillBillCollector collector = new KillBillCollector(registry);
+
+        // Another scrape, after a gauge was added (shifting the other gauges), while the first one is being written
+        final StringWriter writer = new StringWriter() {
+            private boolean scraped = false;
+
+            @Override
+            public void write(final String str) {
+                if (!scraped) {
+                    scraped = true;
+                    gauges.put("aaa.gauge", new FixedGauge<Object>(-1));
+                    try {
+                        Assert.assertTrue(write004(collector).contains("\naaa_gauge -1.0\n"));
+                    } catch (final IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                super.write(str);
+            }
+        };
+        collector.write004(writer);
+        Assert.assertEquals(writer.toString(), GOLDEN_OUTPUT);
+    }
+
+    private static String write004(final KillBillCollector collector) throws IOException {
+        final StringWriter writer = new StringWriter();
+        collector.write004(writer);
+        return writer.toString();
+    }
+
+    private static String scrape(final KillBillExporter exporter, final String accept, final String[] names) throws IOException {
+        final HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getHeader("Accept")).thenReturn(accept);
+        Mockito.when(request.getParameterValues("name[]")).thenReturn(names);
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        Mockito.when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(final WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(final int b) {
+                outputStream.write(b);
+            }
+        });
+
+        exporter.doGet(request, response);
+        return outputStream.toString(StandardCharsets.UTF_8);
+    }
+
+    private static final class FixedGauge<T> implements Gauge<T> {
+
+        private final T value;
+
+        private FixedGauge(final T value) {
+            this.value = value;
+        }
+
+        @Override
+        public T getValue() {
+            return value;
+        }
+    }
+
+    private static final class FixedCounter implements Counter {
+
+        private long count;
+
+        private FixedCounter(final long count) {
+            this.count = count;
+        }
+
+        @Override
+        public void inc(final long n) {
+            count += n;
+        }
+
+        @Override
+        public long getCount() {
+            return count;
+        }
+    }
+
+    private static final class FixedMeter implements Meter {
+
+        private final long count;
+
+        private FixedMeter(final long count) {
+            this.count = count;
+        }
+
+        @Override
+        public void mark(final long n) {
+        }
+
+        @Override
+        public double getFifteenMinuteRate() {
+            return 0;
+        }
+
+        @Override
+        public double getFiveMinuteRate() {
+            return 0;
+        }
+
+        @Override
+        public double getMeanRate() {
+            return 0;
+        }
+
+        @Override
+        public double getOneMinuteRate() {
+            return 0;
+        }
+
+        @Override
+        public long getCount() {
+            return count;
+        }
+    }
+
+    private static final class FixedHistogram implements Histogram {
+
+        private final long count;
+        private final Snapshot snapshot;
+
+        private FixedHistogram(final long count, final Snapshot snapshot) {
+            this.count = count;
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public void update(final long value) {
+        }
+
+        @Override
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public Snapshot getSnapshot() {
+            return snapshot;
+        }
+    }
+
+    private static final class FixedTimer implements Timer {
+
+        private final long count;
+        private final Snapshot snapshot;
+
+        private FixedTimer(final long count, final Snapshot snapshot) {
+            this.count = count;
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public void update(final long duration, final TimeUnit unit) {
+        }
+
+        @Override
+        public double getFifteenMinuteRate() {
+            return 0;
+        }
+
+        @Override
+        public double getFiveMinuteRate() {
+            return 0;
+        }
+
+        @Override
+        public double getMeanRate() {
+            return 0;
+        }
+
+        @Override
+        public double getOneMinuteRate() {
+            return 0;
+        }
+
+        @Override
+        public Snapshot getSnapshot() {
+            return snapshot;
+        }
+    }
+
+    // Quantile q is q * scale
+    private static final class FixedSnapshot implements Snapshot {
+
+        private final long scale;
+
+        private FixedSnapshot(final long scale) {
+            this.scale = scale;
+        }
+
+        @Override
+        public double getValue(final double quantile) {
+            return quantile * scale;
+        }
+
+        @Override
+        public long[] getValues() {
+            return new long[0];
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+
+        @Override
+        public long getMax() {
+            return scale;
+        }
+
+        @Override
+        public double getMean() {
+            return scale / 2.0;
+        }
+
+        @Override
+        public long getMin() {
+            return 0;
+        }
+
+        @Override
+        public double getStdDev() {
+            return 0;
+        }
+
+        @Override
+        public void dump(final OutputStream output) {
+        }
+    }
+}
@@ -20,16 +20,20 @@
 package org.killbill.billing.osgi.libs.killbill;
 
 import java.io.File;
+import java.util.Dictionary;
+import java.util.Hashtable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.killbill.billing.osgi.api.OSGIKillbillRegistrar;
+import org.killbill.billing.osgi.api.PluginSignalHandler;
 import org.killbill.billing.osgi.api.config.PluginConfig;
 import org.killbill.billing.osgi.api.config.PluginConfigServiceApi;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,6 +62,7 @@ public abstract class KillbillActivatorBase implements BundleActivator {
     protected File tmpDir = null;
 
     private ScheduledFuture<?> restartFuture = null;
+    private ServiceRegistration<PluginSignalHandler> signalHandlerRegistration = null;
 
     @Override
     public void start(final BundleContext context) throws Exception {
@@ -97,6 +102,15 @@ public abstract class KillbillActivatorBase implements BundleActivator {
             restartMechanismExecutorService.shutdownNow();
         }
 
+        if (signalHandlerRegistration != null) {
+            try {
+                signalHandlerRegistration.unregister();
+            } catch (final IllegalStateException ignore) {
+                // Already unregistered (e.g. the framework is stopping)
+            }
+            signalHandlerRegistration = null;
+        }
+
         stopAllButRestartMechanism(context);
     }
 
@@ -132,6 +146,18 @@ public abstract class KillbillActivatorBase implements BundleActivator {
             dataSource.close();
             dataSource = null;
         }
+        if (clock != null) {
+            clock.close();
+            clock = null;
+        }
+        if (metricRegistry != null) {
+            metricRegistry.close();
+            metricRegistry = null;
+        }
+        if (configProperties != null) {
+            configProperties.close();
+            configProperties = null;
+        }
         if (logService != null) {
             logService.close();
             logService = null;
@@ -147,7 +173,61 @@ public abstract class KillbillActivatorBase implements BundleActivator {
     // The principle is similar to the one in Phusion Passenger:
     // http://www.modrails.com/documentation/Users%20guide%20Apache.html#_redeploying_restarting_the_ruby_on_rails_application
     private void setupRestartMechanism(final PluginConfig pluginConfig, final BundleContext context) {
-        if (tmpDir == null || restartFuture != null) {
+        if (tmpDir == null || restartFuture != null || signalHandlerRegistration != null) {
+            return;
+        }
+
+        // Same checks whether Kill Bill watches the tmp directory or we poll it, so that overriding shouldStopPlugin()
+        // and lastRestartTime() works in both cases
+        final Runnable signalsChecker = new Runnable() {
+            long lastRestartMillis = System.currentTimeMillis();
+
+            @Override
+            public void run() {
+                final boolean shouldStopPlugin = shouldStopPlugin();
+                if (shouldStopPlugin) {
+                    try {
+                        logger.info("Stopping plugin='{}' ", pluginConfig.getPluginName());
+                        stopAllButRestartMechanism(context);
+                    } catch (final Exception e) {
+                        logger.warn("Error stopping plugin='{}'", pluginConfig.getPluginName(), e);
+                    }
+                    return;
+                }
+
+                final Long lastRestartTime = lastRestartTime();
+                if (lastRestartTime != null && lastRestartTime > lastRestartMillis) {
+                    logger.info("Restarting plugin='{}'", pluginConfig.getPluginName());
+
+                    try {
+                        stopAllButRestartMechanism(context);
+                    } catch (final Exception e) {
+                        logger.warn("Error stopping plugin='{}'", pluginConfig.getPluginName(), e);
+                    }
+
+                    try {
+                        start(context);
+                    } catch (final Exception e) {
+                        logger.warn("Error starting plugin='{}'", pluginConfig.getPluginName(), e);
+                    }
+
+                    lastRestartMillis = lastRestartTime;
+                }
+            }
+        };
+
+        if (Boolean.parseBoolean(context.getProperty(PluginSignalHandler.PLATFORM_WATCHER_PROPERTY))) {
+            // Kill Bill watches the tmp directory for us, no need for a dedicated thread
+            final Dictionary<String, Object> props = new Hashtable<String, Object>();
+            props.put(PluginSignalHandler.TMP_DIR_PROP, tmpDir.getAbsolutePath());
+            signalHandlerRegistration = context.registerService(PluginSignalHandler.class,
+                                                                new PluginSignalHandler() {
+                                                                    @Override
+                                                                    public void checkSignals() {
+                                                                        signalsChecker.run();
+                                                                    }
+                                                                },
+                                                                props);
             return;
         }
 
@@ -155,46 +235,10 @@ public abstract class KillbillActivatorBase implements BundleActivator {
         final Integer restartDelaySecs = restartDelaySecProperty == null ? 5 : Integer.parseInt(restartDelaySecProperty);
 
         restartMechanismExecutorService = Executors.newSingleThreadScheduledExecutor();
-        restartFuture = restartMechanismExecutorService
-                                 .scheduleWithFixedDelay(new Runnable() {
-                                                             long lastRestartMillis = System.currentTimeMillis();
-
-                                                             @Override
-                                                             public void run() {
-                                                                 final boolean shouldStopPlugin = shouldStopPlugin();
-                                                                 if (shouldStopPlugin) {
-                                                                     try {
-                                                                         logger.info("Stopping plugin='{}' ", pluginConfig.getPluginName());
-                                                                         stopAllButRestartMechanism(context);
-                                                                     } catch (final Exception e) {
-                                                                         logger.warn("Error stopping plugin='{}'", pluginConfig.getPluginName(), e);
-                                                                     }
-                                                                     return;
-                                                                 }
-
-                                                                 final Long lastRestartTime = lastRestartTime();
-                                                                 if (lastRestartTime != null && lastRestartTime > lastRestartMillis) {
-                                                                     logger.info("Restarting plugin='{}'", pluginConfig.getPluginName());
-
-                                                                     try {
-                                                                         stopAllButRestartMechanism(context);
-                                                                     } catch (final Exception e) {
-                                                                         logger.warn("Error stopping plugin='{}'", pluginConfig.getPluginName(), e);
-                                                                     }
-
-                                                                     try {
-                                                                         start(context);
-                                                                     } catch (final Exception e) {
-                                                                         logger.warn("Error starting plugin='{}'", pluginConfig.getPluginName(), e);
-                                                                     }
-
-                                                                     lastRestartMillis = lastRestartTime;
-                                                                 }
-                                                             }
-                                                         },
-                                                         restartDelaySecs,
-                                                         restartDelaySecs,
-                                                         TimeUnit.SECONDS);
+        restartFuture = restartMechanismExecutorService.scheduleWithFixedDelay(signalsChecker,
+                                                                               restartDelaySecs,
+                                                                               restartDelaySecs,
+                                                                               TimeUnit.SECONDS);
     }
 
     protected boolean shouldStopPlugin() {
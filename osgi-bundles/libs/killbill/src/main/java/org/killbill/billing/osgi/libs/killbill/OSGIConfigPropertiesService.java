@@ -22,41 +22,28 @@ package org.killbill.billing.osgi.libs.killbill;
 import java.util.Properties;
 
 import org.killbill.billing.osgi.api.OSGIConfigProperties;
+import org.killbill.billing.osgi.libs.killbill.ServiceTrackerRegistry.TrackedService;
 import org.osgi.framework.BundleContext;
-import org.osgi.util.tracker.ServiceTracker;
 
 public class OSGIConfigPropertiesService extends OSGIKillbillLibraryBase implements OSGIConfigProperties {
 
-    private final ServiceTracker<OSGIConfigProperties, OSGIConfigProperties> killbillTracker;
+    private final TrackedService<OSGIConfigProperties> configProperties;
 
     public OSGIConfigPropertiesService(final BundleContext context) {
-        killbillTracker = new ServiceTracker<OSGIConfigProperties, OSGIConfigProperties>(context, OSGIConfigProperties.class.getName(), null);
-        killbillTracker.open();
+        configProperties = ServiceTrackerRegistry.acquire(context, OSGIConfigProperties.class.getName());
     }
 
     public void close() {
-        if (killbillTracker != null) {
-            killbillTracker.close();
-        }
+        configProperties.release();
     }
 
     @Override
     public String getString(final String propertyName) {
-        return withServiceTracker(killbillTracker, new APICallback<String, OSGIConfigProperties>(OSGIConfigProperties.class.getName()) {
-            @Override
-            public String executeWithService(final OSGIConfigProperties service) {
-                return service.getString(propertyName);
-            }
-        });
+        return configProperties.getServiceOrFail().getString(propertyName);
     }
 
     @Override
     public Properties getProperties() {
-        return withServiceTracker(killbillTracker, new APICallback<Properties, OSGIConfigProperties>(OSGIConfigProperties.class.getName()) {
-            @Override
-            public Properties executeWithService(final OSGIConfigProperties service) {
-                return service.getProperties();
-            }
-        });
+        return configProperties.getServiceOrFail().getProperties();
     }
 }
@@ -28,6 +28,7 @@ import org.killbill.billing.invoice.api.InvoiceUserApi;
 import org.killbill.billing.osgi.api.OSGIKillbill;
 import org.killbill.billing.osgi.api.PluginsInfoApi;
 import org.killbill.billing.osgi.api.config.PluginConfigServiceApi;
+import org.killbill.billing.osgi.libs.killbill.ServiceTrackerRegistry.TrackedService;
 import org.killbill.billing.overdue.api.OverdueApi;
 import org.killbill.billing.payment.api.AdminPaymentApi;
 import org.killbill.billing.payment.api.InvoicePaymentApi;
@@ -42,232 +43,123 @@ import org.killbill.billing.util.api.RecordIdApi;
 import org.killbill.billing.util.api.TagUserApi;
 import org.killbill.billing.util.nodes.KillbillNodesApi;
 import org.osgi.framework.BundleContext;
-import org.osgi.util.tracker.ServiceTracker;
 
 public class OSGIKillbillAPI extends OSGIKillbillLibraryBase implements OSGIKillbill {
 
     private static final String KILLBILL_SERVICE_NAME = "org.killbill.billing.osgi.api.OSGIKillbill";
 
-    private final ServiceTracker<OSGIKillbill, OSGIKillbill> killbillTracker;
+    private final TrackedService<OSGIKillbill> killbill;
 
     public OSGIKillbillAPI(final BundleContext context) {
-        killbillTracker = new ServiceTracker<OSGIKillbill, OSGIKillbill>(context, KILLBILL_SERVICE_NAME, null);
-        killbillTracker.open();
+        killbill = ServiceTrackerRegistry.acquire(context, KILLBILL_SERVICE_NAME);
     }
 
     public void close() {
-        if (killbillTracker != null) {
-            killbillTracker.close();
-        }
+        killbill.release();
     }
 
     @Override
     public AccountUserApi getAccountUserApi() {
-        return withServiceTracker(killbillTracker, new APICallback<AccountUserApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public AccountUserApi executeWithService(final OSGIKillbill service) {
-                return service.getAccountUserApi();
-            }
-        });
+        return killbill.getServiceOrFail().getAccountUserApi();
     }
 
     @Override
     public CatalogUserApi getCatalogUserApi() {
-        return withServiceTracker(killbillTracker, new APICallback<CatalogUserApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public CatalogUserApi executeWithService(final OSGIKillbill service) {
-                return service.getCatalogUserApi();
-            }
-        });
+        return killbill.getServiceOrFail().getCatalogUserApi();
     }
 
     @Override
     public SubscriptionApi getSubscriptionApi() {
-        return withServiceTracker(killbillTracker, new APICallback<SubscriptionApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public SubscriptionApi executeWithService(final OSGIKillbill service) {
-                return service.getSubscriptionApi();
-            }
-        });
+        return killbill.getServiceOrFail().getSubscriptionApi();
     }
 
     @Override
     public InvoicePaymentApi getInvoicePaymentApi() {
-        return withServiceTracker(killbillTracker, new APICallback<InvoicePaymentApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public InvoicePaymentApi executeWithService(final OSGIKillbill service) {
-                return service.getInvoicePaymentApi();
-            }
-        });
+        return killbill.getServiceOrFail().getInvoicePaymentApi();
     }
 
     @Override
     public InvoiceUserApi getInvoiceUserApi() {
-        return withServiceTracker(killbillTracker, new APICallback<InvoiceUserApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public InvoiceUserApi executeWithService(final OSGIKillbill service) {
-                return service.getInvoiceUserApi();
-            }
-        });
+        return killbill.getServiceOrFail().getInvoiceUserApi();
     }
 
     @Override
     public PaymentApi getPaymentApi() {
-        return withServiceTracker(killbillTracker, new APICallback<PaymentApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public PaymentApi executeWithService(final OSGIKillbill service) {
-                return service.getPaymentApi();
-            }
-        });
+        return killbill.getServiceOrFail().getPaymentApi();
     }
 
     @Override
     public TenantUserApi getTenantUserApi() {
-        return withServiceTracker(killbillTracker, new APICallback<TenantUserApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public TenantUserApi executeWithService(final OSGIKillbill service) {
-                return service.getTenantUserApi();
-            }
-        });
+        return killbill.getServiceOrFail().getTenantUserApi();
     }
 
     @Override
     public UsageUserApi getUsageUserApi() {
-        return withServiceTracker(killbillTracker, new APICallback<UsageUserApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public UsageUserApi executeWithService(final OSGIKillbill service) {
-                return service.getUsageUserApi();
-            }
-        });
+        return killbill.getServiceOrFail().getUsageUserApi();
     }
 
     @Override
     public AuditUserApi getAuditUserApi() {
-        return withServiceTracker(killbillTracker, new APICallback<AuditUserApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public AuditUserApi executeWithService(final OSGIKillbill service) {
-                return service.getAuditUserApi();
-            }
-        });
+        return killbill.getServiceOrFail().getAuditUserApi();
     }
 
     @Override
     public CustomFieldUserApi getCustomFieldUserApi() {
-        return withServiceTracker(killbillTracker, new APICallback<CustomFieldUserApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public CustomFieldUserApi executeWithService(final OSGIKillbill service) {
-                return service.getCustomFieldUserApi();
-            }
-        });
+        return killbill.getServiceOrFail().getCustomFieldUserApi();
     }
 
     @Override
     public ExportUserApi getExportUserApi() {
-        return withServiceTracker(killbillTracker, new APICallback<ExportUserApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public ExportUserApi executeWithService(final OSGIKillbill service) {
-                return service.getExportUserApi();
-            }
-        });
+        return killbill.getServiceOrFail().getExportUserApi();
     }
 
     @Override
     public TagUserApi getTagUserApi() {
-        return withServiceTracker(killbillTracker, new APICallback<TagUserApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public TagUserApi executeWithService(final OSGIKillbill service) {
-                return service.getTagUserApi();
-            }
-        });
+        return killbill.getServiceOrFail().getTagUserApi();
     }
 
     @Override
     public EntitlementApi getEntitlementApi() {
-        return withServiceTracker(killbillTracker, new APICallback<EntitlementApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public EntitlementApi executeWithService(final OSGIKillbill service) {
-                return service.getEntitlementApi();
-            }
-        });
+        return killbill.getServiceOrFail().getEntitlementApi();
     }
 
     @Override
     public RecordIdApi getRecordIdApi() {
-        return withServiceTracker(killbillTracker, new APICallback<RecordIdApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public RecordIdApi executeWithService(final OSGIKillbill service) {
-                return service.getRecordIdApi();
-            }
-        });
+        return killbill.getServiceOrFail().getRecordIdApi();
     }
 
     @Override
     public CurrencyConversionApi getCurrencyConversionApi() {
-        return withServiceTracker(killbillTracker, new APICallback<CurrencyConversionApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public CurrencyConversionApi executeWithService(final OSGIKillbill service) {
-                return service.getCurrencyConversionApi();
-            }
-        });
+        return killbill.getServiceOrFail().getCurrencyConversionApi();
     }
 
     @Override
     public OverdueApi getOverdueApi() {
-        return withServiceTracker(killbillTracker, new APICallback<OverdueApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public OverdueApi executeWithService(final OSGIKillbill service) {
-                return service.getOverdueApi();
-            }
-        });
+        return killbill.getServiceOrFail().getOverdueApi();
     }
 
     @Override
     public PluginConfigServiceApi getPluginConfigServiceApi() {
-        return withServiceTracker(killbillTracker, new APICallback<PluginConfigServiceApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public PluginConfigServiceApi executeWithService(final OSGIKillbill service) {
-                return service.getPluginConfigServiceApi();
-            }
-        });
+        return killbill.getServiceOrFail().getPluginConfigServiceApi();
     }
 
     @Override
     public SecurityApi getSecurityApi() {
-        return withServiceTracker(killbillTracker, new APICallback<SecurityApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public SecurityApi executeWithService(final OSGIKillbill service) {
-                return service.getSecurityApi();
-            }
-        });
+        return killbill.getServiceOrFail().getSecurityApi();
     }
 
     @Override
     public PluginsInfoApi getPluginsInfoApi() {
-        return withServiceTracker(killbillTracker, new APICallback<PluginsInfoApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public PluginsInfoApi executeWithService(final OSGIKillbill service) {
-                return service.getPluginsInfoApi();
-            }
-        });
+        return killbill.getServiceOrFail().getPluginsInfoApi();
     }
 
     @Override
     public KillbillNodesApi getKillbillNodesApi() {
-        return withServiceTracker(killbillTracker, new APICallback<KillbillNodesApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public KillbillNodesApi executeWithService(final OSGIKillbill service) {
-                return service.getKillbillNodesApi();
-            }
-        });
+        return killbill.getServiceOrFail().getKillbillNodesApi();
     }
 
     @Override
     public AdminPaymentApi getAdminPaymentApi() {
-        return withServiceTracker(killbillTracker, new APICallback<AdminPaymentApi, OSGIKillbill>(KILLBILL_SERVICE_NAME) {
-            @Override
-            public AdminPaymentApi executeWithService(final OSGIKillbill service) {
-                return service.getAdminPaymentApi();
-            }
-        });
+        return killbill.getServiceOrFail().getAdminPaymentApi();
     }
 }
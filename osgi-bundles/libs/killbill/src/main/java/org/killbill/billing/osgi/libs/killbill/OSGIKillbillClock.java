@@ -19,33 +19,25 @@
 
 package org.killbill.billing.osgi.libs.killbill;
 
+import org.killbill.billing.osgi.libs.killbill.ServiceTrackerRegistry.TrackedService;
 import org.killbill.clock.Clock;
 import org.osgi.framework.BundleContext;
-import org.osgi.util.tracker.ServiceTracker;
 
 public class OSGIKillbillClock extends OSGIKillbillLibraryBase {
 
     private static final String CLOCK_SERVICE_NAME = "org.killbill.clock.Clock";
 
-    private final ServiceTracker<Clock, Clock> clockTracker;
+    private final TrackedService<Clock> clock;
 
     public OSGIKillbillClock(final BundleContext context) {
-        clockTracker = new ServiceTracker<Clock, Clock>(context, CLOCK_SERVICE_NAME, null);
-        clockTracker.open();
+        clock = ServiceTrackerRegistry.acquire(context, CLOCK_SERVICE_NAME);
     }
 
     public void close() {
-        if (clockTracker != null) {
-            clockTracker.close();
-        }
+        clock.release();
     }
 
     public Clock getClock() {
-        return withServiceTracker(clockTracker, new APICallback<Clock, Clock>(CLOCK_SERVICE_NAME) {
-            @Override
-            public Clock executeWithService(final Clock service) {
-                return clockTracker.getService();
-            }
-        });
+        return clock.getServiceOrFail();
     }
 }
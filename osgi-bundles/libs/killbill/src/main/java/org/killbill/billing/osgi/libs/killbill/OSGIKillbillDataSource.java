@@ -21,32 +21,24 @@ package org.killbill.billing.osgi.libs.killbill;
 
 import javax.sql.DataSource;
 
+import org.killbill.billing.osgi.libs.killbill.ServiceTrackerRegistry.TrackedService;
 import org.osgi.framework.BundleContext;
-import org.osgi.util.tracker.ServiceTracker;
 
 public class OSGIKillbillDataSource extends OSGIKillbillLibraryBase {
 
     private static final String DATASOURCE_SERVICE_NAME = "javax.sql.DataSource";
 
-    private final ServiceTracker<DataSource, DataSource> dataSourceTracker;
+    private final TrackedService<DataSource> dataSource;
 
     public OSGIKillbillDataSource(final BundleContext context) {
-        dataSourceTracker = new ServiceTracker<DataSource, DataSource>(context, DATASOURCE_SERVICE_NAME, null);
-        dataSourceTracker.open();
+        dataSource = ServiceTrackerRegistry.acquire(context, DATASOURCE_SERVICE_NAME);
     }
 
     public void close() {
-        if (dataSourceTracker != null) {
-            dataSourceTracker.close();
-        }
+        dataSource.release();
     }
 
     public DataSource getDataSource() {
-        return withServiceTracker(dataSourceTracker, new APICallback<DataSource, DataSource>(DATASOURCE_SERVICE_NAME) {
-            @Override
-            public DataSource executeWithService(final DataSource service) {
-                return dataSourceTracker.getService();
-            }
-        });
+        return dataSource.getServiceOrFail();
     }
 }
@@ -25,9 +25,9 @@ import java.util.Observable;
 import java.util.Observer;
 
 import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.osgi.libs.killbill.ServiceTrackerRegistry.TrackedService;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.event.Event;
-import org.osgi.util.tracker.ServiceTracker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,7 +37,7 @@ public class OSGIKillbillEventDispatcher extends OSGIKillbillLibraryBase {
 
     private static final String OBSERVABLE_SERVICE_NAME = "java.util.Observable";
 
-    private final ServiceTracker<Observable, Observable> observableTracker;
+    private final TrackedService<Observable> observable;
 
     private final Map<Object, Observer> handlerToObserver;
 
@@ -46,14 +46,11 @@ public class OSGIKillbillEventDispatcher extends OSGIKillbillLibraryBase {
     public OSGIKillbillEventDispatcher(final BundleContext context) {
         symbolicName = context.getBundle().getSymbolicName();
         handlerToObserver = new HashMap<Object, Observer>();
-        observableTracker = new ServiceTracker<Observable, Observable>(context, OBSERVABLE_SERVICE_NAME, null);
-        observableTracker.open();
+        observable = ServiceTrackerRegistry.acquire(context, OBSERVABLE_SERVICE_NAME);
     }
 
     public void close() {
-        if (observableTracker != null) {
-            observableTracker.close();
-        }
+        observable.release();
         handlerToObserver.clear();
     }
 
@@ -123,49 +120,30 @@ public class OSGIKillbillEventDispatcher extends OSGIKillbillLibraryBase {
 
 
     public void registerEventHandler(final OSGIHandlerMarker handler, final Observer observer) {
-        withServiceTracker(observableTracker,
-                           new APICallback<Void, Observable>(OBSERVABLE_SERVICE_NAME) {
-                               @Override
-                               public Void executeWithService(final Observable service) {
-                                   handlerToObserver.put(handler, observer);
-                                   service.addObserver(observer);
-                                   return null;
-                               }
-                           });
+        final Observable service = observable.getServiceOrFail();
+        handlerToObserver.put(handler, observer);
+        service.addObserver(observer);
     }
 
     public void unregisterEventHandler(final OSGIHandlerMarker handler) {
-        withServiceTracker(observableTracker,
-                           new APICallback<Void, Observable>(OBSERVABLE_SERVICE_NAME) {
-                               @Override
-                               public Void executeWithService(final Observable service) {
-                                   final Observer observer = handlerToObserver.get(handler);
-                                   if (observer != null) {
-                                       service.deleteObserver(observer);
-                                       handlerToObserver.remove(handler);
-                                   }
-                                   return null;
-                               }
-                           });
+        final Observable service = observable.getServiceOrFail();
+        final Observer observer = handlerToObserver.get(handler);
+        if (observer != null) {
+            service.deleteObserver(observer);
+            handlerToObserver.remove(handler);
+        }
     }
 
     public void unregisterAllHandlers() {
-        withServiceTracker(observableTracker,
-                           new APICallback<Void, Observable>(OBSERVABLE_SERVICE_NAME) {
-                               @Override
-                               public Void executeWithService(final Observable service) {
-                                   // Go through all known handlers (OSGIFrameworkEventHandler and OSGIKillbillEventHandler)
-                                   // and remove them from the list of Observers
-                                   for (final Object handler : handlerToObserver.keySet()) {
-                                       final Observer observer = handlerToObserver.get(handler);
-                                       if (observer != null) {
-                                           service.deleteObserver(observer);
-                                       }
-                                   }
-                                   handlerToObserver.clear();
-                                   return null;
-                               }
-                           });
+        final Observable service = observable.getServiceOrFail();
+        // Go through all known handlers (OSGIFrameworkEventHandler and OSGIKillbillEventHandler)
+        // and remove them from the list of Observers
+        for (final Observer observer : handlerToObserver.values()) {
+            if (observer != null) {
+                service.deleteObserver(observer);
+            }
+        }
+        handlerToObserver.clear();
     }
 
 
@@ -28,7 +28,7 @@ public abstract class OSGIKillbillLibraryBase {
 
     public abstract void close();
 
-    protected abstract class APICallback<API, T> {
+    protected abstract static class APICallback<API, T> {
 
         private final String serviceName;
 
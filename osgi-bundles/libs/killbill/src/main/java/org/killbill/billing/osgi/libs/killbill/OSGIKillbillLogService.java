@@ -21,13 +21,13 @@ package org.killbill.billing.osgi.libs.killbill;
 
 import javax.annotation.Nullable;
 
+import org.killbill.billing.osgi.libs.killbill.ServiceTrackerRegistry.TrackedService;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillServiceReference;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.log.LogService;
 import org.osgi.service.log.Logger;
-import org.osgi.util.tracker.ServiceTracker;
 import org.slf4j.MDC;
 
 // Plugins should be using slf4j directly
@@ -36,18 +36,15 @@ public class OSGIKillbillLogService extends OSGIKillbillLibraryBase implements L
 
     private static final String LOG_SERVICE_NAME = "org.osgi.service.log.LogService";
 
-    private final ServiceTracker<LogService, LogService> logTracker;
+    private final TrackedService<LogService> logService;
 
     public OSGIKillbillLogService(final BundleContext context) {
         super();
-        logTracker = new ServiceTracker<LogService, LogService>(context, LOG_SERVICE_NAME, null);
-        logTracker.open();
+        logService = ServiceTrackerRegistry.acquire(context, LOG_SERVICE_NAME);
     }
 
     public void close() {
-        if (logTracker != null) {
-            logTracker.close();
-        }
+        logService.release();
     }
 
     @Override
@@ -71,30 +68,25 @@ public class OSGIKillbillLogService extends OSGIKillbillLibraryBase implements L
     }
 
     private void logInternal(@Nullable final ServiceReference sr, final int level, final String message, @Nullable final Throwable t) {
-        withServiceTracker(logTracker, new APICallback<Void, LogService>(LOG_SERVICE_NAME) {
-            @Override
-            public Void executeWithService(final LogService service) {
-                final ServiceReference killbillServiceReference = new OSGIKillbillServiceReference(sr, MDC.getCopyOfContextMap());
-                if (t == null) {
-                    service.log(killbillServiceReference, level, message);
-                } else {
-                    service.log(killbillServiceReference, level, message, t);
-                }
-                return null;
+        final LogService service = logService.getService();
+        if (service == null) {
+            if (level >= 2) {
+                System.out.println(message);
+            } else {
+                System.err.println(message);
             }
-
-            protected Void executeWithNoService() {
-                if (level >= 2) {
-                    System.out.println(message);
-                } else {
-                    System.err.println(message);
-                }
-                if (t != null) {
-                    t.printStackTrace(System.err);
-                }
-                return null;
+            if (t != null) {
+                t.printStackTrace(System.err);
             }
-        });
+            return;
+        }
+
+        final ServiceReference killbillServiceReference = new OSGIKillbillServiceReference(sr, MDC.getCopyOfContextMap());
+        if (t == null) {
+            service.log(killbillServiceReference, level, message);
+        } else {
+            service.log(killbillServiceReference, level, message, t);
+        }
     }
 
     @Override
@@ -19,33 +19,25 @@
 
 package org.killbill.billing.osgi.libs.killbill;
 
+import org.killbill.billing.osgi.libs.killbill.ServiceTrackerRegistry.TrackedService;
 import org.killbill.commons.metrics.api.MetricRegistry;
 import org.osgi.framework.BundleContext;
-import org.osgi.util.tracker.ServiceTracker;
 
 public class OSGIMetricRegistry extends OSGIKillbillLibraryBase {
 
     private static final String METRICS_REGISTRY_SERVICE_NAME = "org.killbill.commons.metrics.api.MetricRegistry";
 
-    private final ServiceTracker<MetricRegistry, MetricRegistry> metricRegistryServiceTracker;
+    private final TrackedService<MetricRegistry> metricRegistry;
 
     public OSGIMetricRegistry(final BundleContext context) {
-        metricRegistryServiceTracker = new ServiceTracker<MetricRegistry, MetricRegistry>(context, METRICS_REGISTRY_SERVICE_NAME, null);
-        metricRegistryServiceTracker.open();
+        metricRegistry = ServiceTrackerRegistry.acquire(context, METRICS_REGISTRY_SERVICE_NAME);
     }
 
     public void close() {
-        if (metricRegistryServiceTracker != null) {
-            metricRegistryServiceTracker.close();
-        }
+        metricRegistry.release();
     }
 
     public MetricRegistry getMetricRegistry() {
-        return withServiceTracker(metricRegistryServiceTracker, new APICallback<MetricRegistry, MetricRegistry>(METRICS_REGISTRY_SERVICE_NAME) {
-            @Override
-            public MetricRegistry executeWithService(final MetricRegistry service) {
-                return metricRegistryServiceTracker.getService();
-            }
-        });
+        return metricRegistry.getServiceOrFail();
     }
 }
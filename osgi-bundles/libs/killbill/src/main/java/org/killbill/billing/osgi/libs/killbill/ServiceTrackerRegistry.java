@@ -0,0 +1,160 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.libs.killbill;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.util.tracker.ServiceTracker;
+
+/**
+ * Reference-counted ServiceTrackers, shared by all the library objects created with the same BundleContext: a tracker
+ * is opened on the first {@link #acquire(BundleContext, String)} for a service, and closed when its last
+ * {@link TrackedService} is released. A plugin therefore has at most one open tracker (and one service listener) per
+ * service, however many library objects it creates: the ones of {@link KillbillActivatorBase}, and the ones the plugin
+ * code creates from the same context.
+ * <p>
+ * This library is embedded in each plugin, so the registry is scoped to the plugin classloader: trackers are shared per
+ * bundle (and therefore per framework), but never across bundles, as they must see the services through the class space
+ * of the bundle which uses them.
+ * <p>
+ * Looking up the service is allocation free: the tracker caches the selected service, and drops it on every service event
+ * for the tracked class (registration, modification of the ranking, unregistration).
+ */
+final class ServiceTrackerRegistry {
+
+    // Guarded by itself
+    private static final Map<TrackerKey, SharedTracker> trackers = new HashMap<TrackerKey, SharedTracker>();
+
+    private ServiceTrackerRegistry() {
+    }
+
+    static <S> TrackedService<S> acquire(final BundleContext context, final String serviceName) {
+        final TrackerKey key = new TrackerKey(context, serviceName);
+        synchronized (trackers) {
+            SharedTracker sharedTracker = trackers.get(key);
+            if (sharedTracker == null) {
+                final ServiceTracker<Object, Object> tracker = new ServiceTracker<Object, Object>(context, serviceName, null);
+                tracker.open();
+                sharedTracker = new SharedTracker(tracker);
+                trackers.put(key, sharedTracker);
+            }
+            sharedTracker.refCount++;
+
+            //noinspection unchecked
+            return new TrackedService<S>(key, (ServiceTracker<S, S>) (ServiceTracker<?, ?>) sharedTracker.tracker);
+        }
+    }
+
+    private static void release(final TrackerKey key) {
+        final ServiceTracker<?, ?> trackerToClose;
+        synchronized (trackers) {
+            final SharedTracker sharedTracker = trackers.get(key);
+            if (sharedTracker == null || --sharedTracker.refCount > 0) {
+                return;
+            }
+            trackers.remove(key);
+            trackerToClose = sharedTracker.tracker;
+        }
+        trackerToClose.close();
+    }
+
+    // For testing
+    static int getNbOpenTrackers() {
+        synchronized (trackers) {
+            return trackers.size();
+        }
+    }
+
+    /**
+     * Handle on a shared tracker, owned by a single library object.
+     */
+    static final class TrackedService<S> {
+
+        private final TrackerKey key;
+        private final ServiceTracker<S, S> tracker;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private TrackedService(final TrackerKey key, final ServiceTracker<S, S> tracker) {
+            this.key = key;
+            this.tracker = tracker;
+        }
+
+        // Null if the service isn't available
+        S getService() {
+            return tracker.getService();
+        }
+
+        S getServiceOrFail() {
+            final S service = tracker.getService();
+            if (service == null) {
+                throw new OSGIServiceNotAvailable(key.serviceName);
+            }
+            return service;
+        }
+
+        // Idempotent
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                ServiceTrackerRegistry.release(key);
+            }
+        }
+    }
+
+    private static final class SharedTracker {
+
+        private final ServiceTracker<Object, Object> tracker;
+        // Guarded by the registry
+        private int refCount;
+
+        private SharedTracker(final ServiceTracker<Object, Object> tracker) {
+            this.tracker = tracker;
+        }
+    }
+
+    private static final class TrackerKey {
+
+        private final BundleContext context;
+        private final String serviceName;
+
+        private TrackerKey(final BundleContext context, final String serviceName) {
+            this.context = context;
+            this.serviceName = serviceName;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final TrackerKey that = (TrackerKey) o;
+            return context == that.context && serviceName.equals(that.serviceName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(context), serviceName);
+        }
+    }
+}
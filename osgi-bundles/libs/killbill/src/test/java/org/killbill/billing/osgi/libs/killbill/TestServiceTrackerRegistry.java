@@ -0,0 +1,207 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.libs.killbill;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.apache.felix.framework.Felix;
+import org.killbill.billing.account.api.AccountUserApi;
+import org.killbill.billing.osgi.api.OSGIKillbill;
+import org.killbill.clock.Clock;
+import org.killbill.clock.DefaultClock;
+import org.mockito.Mockito;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.launch.Framework;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestServiceTrackerRegistry {
+
+    private File storageDir;
+    private Framework framework;
+    private BundleContext context;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        storageDir = Files.createTempDirectory("felix-cache").toFile();
+
+        final Map<String, Object> config = new HashMap<String, Object>();
+        config.put(Constants.FRAMEWORK_STORAGE, storageDir.getAbsolutePath());
+        config.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        framework = new Felix(config);
+        framework.start();
+        context = framework.getBundleContext();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception {
+        framework.stop();
+        framework.waitForStop(10000);
+        try (final Stream<File> files = Files.walk(storageDir.toPath()).sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile)) {
+            files.forEach(File::delete);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSharedTrackers() {
+        final int initialNbTrackers = ServiceTrackerRegistry.getNbOpenTrackers();
+
+        // Both APIs track the same service
+        final OSGIKillbillAPI killbillAPI = new OSGIKillbillAPI(context);
+        final ROOSGIKillbillAPI roKillbillAPI = new ROOSGIKillbillAPI(context);
+        final OSGIKillbillClock clock = new OSGIKillbillClock(context);
+        Assert.assertEquals(ServiceTrackerRegistry.getNbOpenTrackers(), initialNbTrackers + 2);
+
+        final OSGIKillbill osgiKillbill = Mockito.mock(OSGIKillbill.class);
+        final AccountUserApi accountUserApi = Mockito.mock(AccountUserApi.class);
+        Mockito.when(osgiKillbill.getAccountUserApi()).thenReturn(accountUserApi);
+        final ServiceRegistration<?> registration = context.registerService(OSGIKillbill.class.getName(), osgiKillbill, null);
+        Assert.assertSame(killbillAPI.getAccountUserApi(), accountUserApi);
+        Assert.assertNotNull(roKillbillAPI.getAccountUserApi());
+
+        // Closing twice doesn't release the tracker of the other API
+        killbillAPI.close();
+        killbillAPI.close();
+        Assert.assertEquals(ServiceTrackerRegistry.getNbOpenTrackers(), initialNbTrackers + 2);
+        Assert.assertNotNull(roKillbillAPI.getAccountUserApi());
+
+        roKillbillAPI.close();
+        Assert.assertEquals(ServiceTrackerRegistry.getNbOpenTrackers(), initialNbTrackers + 1);
+        clock.close();
+        Assert.assertEquals(ServiceTrackerRegistry.getNbOpenTrackers(), initialNbTrackers);
+
+        // A new tracker sees the existing services
+        final OSGIKillbillAPI otherKillbillAPI = new OSGIKillbillAPI(context);
+        Assert.assertSame(otherKillbillAPI.getAccountUserApi(), accountUserApi);
+        registration.unregister();
+        try {
+            otherKillbillAPI.getAccountUserApi();
+            Assert.fail();
+        } catch (final OSGIServiceNotAvailable e) {
+            Assert.assertEquals(e.getMessage(), "OSGI service org.killbill.billing.osgi.api.OSGIKillbill is not available");
+        }
+        otherKillbillAPI.close();
+        Assert.assertEquals(ServiceTrackerRegistry.getNbOpenTrackers(), initialNbTrackers);
+    }
+
+    @Test(groups = "fast")
+    public void testOneTrackerPerServicePerPlugin() {
+        final int initialNbTrackers = ServiceTrackerRegistry.getNbOpenTrackers();
+
+        // What KillbillActivatorBase creates, plus the same objects created again by the plugin code
+        final List<OSGIKillbillLibraryBase> libraries = new ArrayList<OSGIKillbillLibraryBase>();
+        for (int i = 0; i < 2; i++) {
+            libraries.add(new OSGIKillbillLogService(context));
+            libraries.add(new OSGIKillbillAPI(context));
+            libraries.add(new ROOSGIKillbillAPI(context));
+            libraries.add(new OSGIKillbillDataSource(context));
+            libraries.add(new OSGIKillbillEventDispatcher(context));
+            libraries.add(new OSGIConfigPropertiesService(context));
+            libraries.add(new OSGIKillbillClock(context));
+            libraries.add(new OSGIMetricRegistry(context));
+        }
+        // 16 objects, 7 distinct services
+        Assert.assertEquals(ServiceTrackerRegistry.getNbOpenTrackers(), initialNbTrackers + 7);
+
+        for (final OSGIKillbillLibraryBase library : libraries) {
+            library.close();
+        }
+        Assert.assertEquals(ServiceTrackerRegistry.getNbOpenTrackers(), initialNbTrackers);
+    }
+
+    @Test(groups = "fast")
+    public void testServiceChurn() throws Exception {
+        final OSGIKillbillClock osgiClock = new OSGIKillbillClock(context);
+        final OSGIKillbillClock otherOsgiClock = new OSGIKillbillClock(context);
+
+        // Readers only ever see a registered clock, or no clock at all
+        final List<Clock> registeredClocks = new ArrayList<Clock>();
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicInteger nbReads = new AtomicInteger();
+        final Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                try {
+                    final Clock clock = osgiClock.getClock();
+                    if (!(clock instanceof DefaultClock)) {
+                        errors.add(new IllegalStateException("Unexpected clock " + clock));
+                    }
+                } catch (final OSGIServiceNotAvailable ignored) {
+                    // Expected, in between registrations
+                } catch (final Throwable t) {
+                    errors.add(t);
+                }
+                nbReads.incrementAndGet();
+            }
+        });
+        reader.start();
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                final Clock clock = new DefaultClock();
+                registeredClocks.add(clock);
+                final ServiceRegistration<?> registration = context.registerService(Clock.class.getName(), clock, null);
+                Assert.assertSame(osgiClock.getClock(), clock);
+
+                // Highest ranking wins, the cached service is invalidated both ways
+                final Clock preferredClock = new DefaultClock();
+                final Hashtable<String, Object> properties = new Hashtable<String, Object>();
+                properties.put(Constants.SERVICE_RANKING, 10);
+                final ServiceRegistration<?> preferredRegistration = context.registerService(Clock.class.getName(), preferredClock, properties);
+                Assert.assertSame(osgiClock.getClock(), preferredClock);
+                Assert.assertSame(otherOsgiClock.getClock(), preferredClock);
+
+                preferredRegistration.unregister();
+                Assert.assertSame(osgiClock.getClock(), clock);
+
+                registration.unregister();
+                try {
+                    osgiClock.getClock();
+                    Assert.fail();
+                } catch (final OSGIServiceNotAvailable expected) {
+                    Assert.assertEquals(expected.getMessage(), "OSGI service org.killbill.clock.Clock is not available");
+                }
+            }
+        } finally {
+            done.set(true);
+            reader.join(10000);
+        }
+
+        Assert.assertTrue(errors.isEmpty(), errors.toString());
+        Assert.assertTrue(nbReads.get() > 0);
+        Assert.assertEquals(registeredClocks.size(), 100);
+
+        osgiClock.close();
+        otherOsgiClock.close();
+    }
+}
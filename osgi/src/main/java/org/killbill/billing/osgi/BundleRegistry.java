@@ -19,22 +19,36 @@
 
 package org.killbill.billing.osgi;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 
+import org.killbill.billing.osgi.BundleTaskExecutor.BundleTask;
+import org.killbill.billing.osgi.BundleTaskExecutor.BundleTaskResult;
 import org.killbill.billing.osgi.api.DefaultPluginsInfoApi.DefaultPluginServiceInfo;
 import org.killbill.billing.osgi.api.OSGIServiceDescriptor;
 import org.killbill.billing.osgi.api.PluginServiceInfo;
+import org.killbill.commons.utils.annotation.VisibleForTesting;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.SynchronousBundleListener;
 import org.osgi.framework.launch.Framework;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,6 +59,14 @@ public class BundleRegistry {
 
     private final FileInstall fileInstall;
     private final Map<String, BundleWithMetadata> registry;
+    // Reverse indexes, for the lookups done on each OSGI service event (updated under the registry lock, read without locking)
+    private final Map<Long, BundleWithMetadata> bundlesById;
+    private final Map<String, Set<BundleWithMetadata>> bundlesBySymbolicName;
+    // Registration name -> bundles which registered a service under that name
+    private final Map<String, Set<BundleWithMetadata>> bundlesByServiceName;
+    private final Object registryLock = new Object();
+    // Bumped on every change of the registry, or of the state of its bundles
+    private final AtomicLong stateVersion = new AtomicLong();
 
     private Framework framework;
 
@@ -54,16 +76,34 @@ public class BundleRegistry {
     @Inject
     public BundleRegistry(final FileInstall fileInstall) {
         this.fileInstall = fileInstall;
-        this.registry = new HashMap<String, BundleWithMetadata>();
+        this.registry = new ConcurrentHashMap<String, BundleWithMetadata>();
+        this.bundlesById = new ConcurrentHashMap<Long, BundleWithMetadata>();
+        this.bundlesBySymbolicName = new ConcurrentHashMap<String, Set<BundleWithMetadata>>();
+        this.bundlesByServiceName = new ConcurrentHashMap<String, Set<BundleWithMetadata>>();
     }
 
     public void installBundles(final Framework framework) {
         // Keep a copy of the framework during initialization phase when we first install all bundles
         this.framework = framework;
+        if (framework.getBundleContext() != null) {
+            // Synchronous, so that the state version is bumped before the bundle state change is visible
+            framework.getBundleContext().addBundleListener((SynchronousBundleListener) event -> stateVersion.incrementAndGet());
+        }
         bundleWithConfigs = fileInstall.installBundles(framework);
         for (final BundleWithConfig bundleWithConfig : bundleWithConfigs) {
-            registry.put(getPluginName(bundleWithConfig), new BundleWithMetadata(bundleWithConfig));
+            addToRegistry(getPluginName(bundleWithConfig), new BundleWithMetadata(bundleWithConfig));
         }
+        stateVersion.incrementAndGet();
+    }
+
+    // Changes whenever the registry, or the state of its bundles, may have changed
+    public long getStateVersion() {
+        return stateVersion.get();
+    }
+
+    // Bundles installed at startup
+    List<BundleWithConfig> getInstalledBundles() {
+        return bundleWithConfigs == null ? List.of() : List.copyOf(bundleWithConfigs);
     }
 
     public BundleWithMetadata installAndStartNewBundle(final String pluginName, @Nullable final String pluginVersion) throws BundleException {
@@ -77,7 +117,8 @@ public class BundleRegistry {
         final BundleWithConfig bundleWithConfig = fileInstall.installNewBundle(pluginName, pluginVersion, framework);
         final BundleWithMetadata bundleWithMetadata = new BundleWithMetadata(bundleWithConfig);
         if (fileInstall.startBundle(bundleWithConfig.getBundle())) {
-            registry.put(getPluginName(bundleWithConfig), bundleWithMetadata);
+            addToRegistry(getPluginName(bundleWithConfig), bundleWithMetadata);
+            stateVersion.incrementAndGet();
         }
         return bundleWithMetadata;
     }
@@ -97,27 +138,186 @@ public class BundleRegistry {
         }
         // The spec says that uninstall should always succeed
         bundle.uninstall();
-        registry.remove(pluginName);
+        removeFromRegistry(pluginName);
+        stateVersion.incrementAndGet();
     }
 
     public void startBundles(final Iterable<String> mandatoryPlugins) throws Exception {
         final List<String> pluginsStarted = new LinkedList<>();
-        for (final BundleWithConfig bundleWithConfig : bundleWithConfigs) {
-            final boolean isBundleStarted = fileInstall.startBundle(bundleWithConfig.getBundle());
+        final List<BundleTaskResult<Boolean>> results = new LinkedList<>();
+        final BundleTaskExecutor bundleTaskExecutor = fileInstall.newBundleTaskExecutor("osgi-start");
+        for (final List<BundleWithConfig> wave : computeStartOrder(bundleWithConfigs)) {
+            final List<BundleTask<Boolean>> tasks = new ArrayList<>(wave.size());
+            for (final BundleWithConfig bundleWithConfig : wave) {
+                final String pluginName = getPluginName(bundleWithConfig);
+                tasks.add(new BundleTask<>(pluginName,
+                                           () -> fileInstall.startBundleOrFail(bundleWithConfig.getBundle()),
+                                           () -> stopTimedOutBundle(bundleWithConfig.getBundle(), pluginName)));
+            }
+
+            for (final BundleTaskResult<Boolean> result : bundleTaskExecutor.invokeAll(tasks)) {
+                if (result.isSuccess() && result.getValue()) {
+                    pluginsStarted.add(result.getName());
+                } else if (result.getFailure() instanceof TimeoutException) {
+                    // Still starting (Bundle#start can't be interrupted): kept in the registry until it is stopped
+                    final BundleWithMetadata bundleWithMetadata = registry.get(result.getName());
+                    if (bundleWithMetadata != null) {
+                        bundleWithMetadata.markStartFailed();
+                    }
+                } else {
+                    removeFromRegistry(result.getName());
+                }
+                results.add(result);
+            }
+        }
+        stateVersion.incrementAndGet();
 
-            final String pluginName = getPluginName(bundleWithConfig);
-            if (isBundleStarted) {
-                pluginsStarted.add(pluginName);
+        final Map<String, Throwable> startFailures = new HashMap<>();
+        for (final BundleTaskResult<Boolean> failure : BundleTaskExecutor.logFailures(log, "start", results)) {
+            startFailures.put(failure.getName(), failure.getFailure());
+        }
+        checkIfMandatoryPluginsAreStarted(pluginsStarted, startFailures, mandatoryPlugins);
+    }
+
+    // The start of the bundle returned after the timeout: it may be active by now, while being reported as failed
+    private void stopTimedOutBundle(final Bundle bundle, final String pluginName) {
+        log.warn("Bundle {} completed its start after the timeout, stopping it", pluginName);
+        try {
+            stopAndUninstallBundle(bundle, pluginName);
+        } catch (final BundleException | RuntimeException e) {
+            log.warn("Unable to stop bundle {}", pluginName, e);
+            removeFromRegistry(pluginName);
+            stateVersion.incrementAndGet();
+        }
+    }
+
+    // Platform (pure OSGI) bundles are started first, one at a time and in installation order, as the plugins rely on them.
+    // Plugins are then started concurrently (see computeStartWaves).
+    @VisibleForTesting
+    static List<List<BundleWithConfig>> computeStartOrder(final List<BundleWithConfig> bundles) {
+        final List<List<BundleWithConfig>> waves = new ArrayList<>();
+        final List<BundleWithConfig> pluginBundles = new ArrayList<>();
+        for (final BundleWithConfig bundleWithConfig : bundles) {
+            if (bundleWithConfig.getConfig() == null) {
+                waves.add(List.of(bundleWithConfig));
             } else {
-                registry.remove(pluginName);
+                pluginBundles.add(bundleWithConfig);
             }
+        }
+        waves.addAll(computeStartWaves(pluginBundles));
+        return waves;
+    }
 
+    // Bundles exporting packages (or required by other bundles) are started before the bundles which depend on them,
+    // bundles within the same wave are started concurrently. Bundles part of a dependency cycle are started last.
+    @VisibleForTesting
+    static List<List<BundleWithConfig>> computeStartWaves(final List<BundleWithConfig> bundles) {
+        final Map<String, Integer> packageExporters = new HashMap<>();
+        final Map<String, Integer> symbolicNames = new HashMap<>();
+        for (int i = 0; i < bundles.size(); i++) {
+            final Bundle bundle = bundles.get(i).getBundle();
+            for (final String exportedPackage : parseHeaderNames(getHeader(bundle, Constants.EXPORT_PACKAGE))) {
+                packageExporters.putIfAbsent(exportedPackage, i);
+            }
+            if (bundle.getSymbolicName() != null) {
+                symbolicNames.putIfAbsent(bundle.getSymbolicName(), i);
+            }
         }
 
-        checkIfMandatoryPluginsAreStarted(pluginsStarted, mandatoryPlugins);
+        final List<Set<Integer>> dependencies = new ArrayList<>(bundles.size());
+        for (int i = 0; i < bundles.size(); i++) {
+            final Bundle bundle = bundles.get(i).getBundle();
+            final Set<Integer> bundleDependencies = new HashSet<>();
+            for (final String importedPackage : parseHeaderNames(getHeader(bundle, Constants.IMPORT_PACKAGE))) {
+                bundleDependencies.add(packageExporters.get(importedPackage));
+            }
+            for (final String requiredBundle : parseHeaderNames(getHeader(bundle, Constants.REQUIRE_BUNDLE))) {
+                bundleDependencies.add(symbolicNames.get(requiredBundle));
+            }
+            bundleDependencies.remove(null);
+            bundleDependencies.remove(i);
+            dependencies.add(bundleDependencies);
+        }
+
+        final int[] waveIndexes = new int[bundles.size()];
+        Arrays.fill(waveIndexes, -1);
+        int nbWaves = 0;
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (int i = 0; i < bundles.size(); i++) {
+                if (waveIndexes[i] != -1) {
+                    continue;
+                }
+                int waveIndex = 0;
+                for (final Integer dependency : dependencies.get(i)) {
+                    if (waveIndexes[dependency] == -1) {
+                        waveIndex = -1;
+                        break;
+                    }
+                    waveIndex = Math.max(waveIndex, waveIndexes[dependency] + 1);
+                }
+                if (waveIndex != -1) {
+                    waveIndexes[i] = waveIndex;
+                    nbWaves = Math.max(nbWaves, waveIndex + 1);
+                    progress = true;
+                }
+            }
+        }
+
+        final List<List<BundleWithConfig>> waves = new ArrayList<>();
+        for (int i = 0; i <= nbWaves; i++) {
+            waves.add(new LinkedList<>());
+        }
+        for (int i = 0; i < bundles.size(); i++) {
+            waves.get(waveIndexes[i] == -1 ? nbWaves : waveIndexes[i]).add(bundles.get(i));
+        }
+        waves.removeIf(List::isEmpty);
+        return waves;
+    }
+
+    private static String getHeader(final Bundle bundle, final String headerName) {
+        final Dictionary<String, String> headers = bundle.getHeaders();
+        return headers == null ? null : headers.get(headerName);
+    }
+
+    // Extract the package (or bundle) names from a manifest header, e.g. a.b;c.d;version="[1.0,2.0)",e.f -> [a.b, c.d, e.f]
+    private static Set<String> parseHeaderNames(@Nullable final String header) {
+        final Set<String> names = new HashSet<>();
+        if (header == null) {
+            return names;
+        }
+
+        final List<String> clauses = new LinkedList<>();
+        boolean inQuotes = false;
+        int clauseStart = 0;
+        for (int i = 0; i < header.length(); i++) {
+            final char c = header.charAt(i);
+            if (c == '"') {
+                inQuotes = !inQuotes;
+            } else if (c == ',' && !inQuotes) {
+                clauses.add(header.substring(clauseStart, i));
+                clauseStart = i + 1;
+            }
+        }
+        clauses.add(header.substring(clauseStart));
+
+        for (final String clause : clauses) {
+            for (final String segment : clause.split(";")) {
+                final String name = segment.trim();
+                if (name.contains("=")) {
+                    // Directives and attributes come after the names
+                    break;
+                }
+                if (!name.isEmpty()) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
     }
 
-    private void checkIfMandatoryPluginsAreStarted(final List<String> pluginsStarted, final Iterable<String> mandatoryPlugins) throws Exception {
+    private void checkIfMandatoryPluginsAreStarted(final List<String> pluginsStarted, final Map<String, Throwable> startFailures, final Iterable<String> mandatoryPlugins) throws Exception {
         log.info("List of mandatory plugins: {}", mandatoryPlugins);
 
         if (mandatoryPlugins == null || !mandatoryPlugins.iterator().hasNext()) {
@@ -125,16 +325,32 @@ public class BundleRegistry {
             return;
         }
 
+        final Set<String> mandatoryPluginsNotStarted = new TreeSet<>();
         for (final String pluginName : mandatoryPlugins) {
             if (!pluginsStarted.contains(pluginName)) {
                 log.warn("Mandatory plugin {} not started", pluginName);
-                throw new Exception("Mandatory plugin " + pluginName + " not started");
+                mandatoryPluginsNotStarted.add(pluginName);
             }
         }
+
+        if (!mandatoryPluginsNotStarted.isEmpty()) {
+            final Exception exception;
+            if (mandatoryPluginsNotStarted.size() == 1) {
+                exception = new Exception("Mandatory plugin " + mandatoryPluginsNotStarted.iterator().next() + " not started");
+            } else {
+                exception = new Exception("Mandatory plugins " + mandatoryPluginsNotStarted + " not started");
+            }
+            for (final String pluginName : mandatoryPluginsNotStarted) {
+                final Throwable startFailure = startFailures.get(pluginName);
+                if (startFailure != null) {
+                    exception.addSuppressed(startFailure);
+                }
+            }
+            throw exception;
+        }
         log.info("All mandatory plugins are started");
     }
 
-
     public void stopBundles() {
         for (final BundleWithConfig bundleWithConfig : bundleWithConfigs) {
             try {
@@ -158,41 +374,118 @@ public class BundleRegistry {
     }
 
     public String getPluginName(final Bundle bundle) {
-        for (final BundleWithMetadata cur : registry.values()) {
-            if (bundle.getSymbolicName().equals(cur.getBundle().getSymbolicName())) {
-                return getPluginName(cur);
-            }
+        final BundleWithMetadata indexed = bundlesById.get(bundle.getBundleId());
+        if (indexed != null && Objects.equals(bundle.getSymbolicName(), indexed.getBundle().getSymbolicName())) {
+            return getPluginName(indexed);
         }
-        return bundle.getSymbolicName();
+
+        // Not the installed bundle instance, match on the symbolic name
+        final BundleWithMetadata cur = bundle.getSymbolicName() == null ? null : first(bundlesBySymbolicName.get(bundle.getSymbolicName()));
+        return cur != null ? getPluginName(cur) : bundle.getSymbolicName();
+    }
+
+    @Nullable
+    public BundleWithMetadata getBundleForService(final String registrationName) {
+        return first(bundlesByServiceName.get(registrationName));
     }
 
     public void registerService(final OSGIServiceDescriptor desc, final String serviceName) {
-        for (final BundleWithMetadata cur : registry.values()) {
-            if (desc.getPluginSymbolicName().equals(cur.getBundle().getSymbolicName())) {
+        synchronized (registryLock) {
+            for (final BundleWithMetadata cur : getBundlesBySymbolicName(desc.getPluginSymbolicName())) {
                 cur.register(desc.getRegistrationName(), serviceName);
+                bundlesByServiceName.computeIfAbsent(desc.getRegistrationName(), k -> ConcurrentHashMap.newKeySet()).add(cur);
+                stateVersion.incrementAndGet();
             }
         }
     }
 
     public void unregisterService(final OSGIServiceDescriptor desc, final String serviceName) {
-        for (final BundleWithMetadata cur : registry.values()) {
-            if (desc.getPluginSymbolicName().equals(cur.getBundle().getSymbolicName())) {
+        synchronized (registryLock) {
+            // Only the bundles which registered something under that name are looked at
+            final Set<BundleWithMetadata> registeringBundles = bundlesByServiceName.get(desc.getRegistrationName());
+            if (registeringBundles == null) {
+                return;
+            }
+
+            for (final BundleWithMetadata cur : List.copyOf(registeringBundles)) {
+                if (!Objects.equals(desc.getPluginSymbolicName(), cur.getBundle().getSymbolicName())) {
+                    continue;
+                }
                 cur.unregister(desc.getRegistrationName(), serviceName);
+                if (!cur.hasRegistration(desc.getRegistrationName())) {
+                    removeFromIndex(bundlesByServiceName, desc.getRegistrationName(), cur);
+                }
+                stateVersion.incrementAndGet();
             }
         }
     }
 
+    private Set<BundleWithMetadata> getBundlesBySymbolicName(@Nullable final String symbolicName) {
+        final Set<BundleWithMetadata> bundles = symbolicName == null ? null : bundlesBySymbolicName.get(symbolicName);
+        return bundles == null ? Set.of() : bundles;
+    }
+
+    private void addToRegistry(final String pluginName, final BundleWithMetadata bundleWithMetadata) {
+        synchronized (registryLock) {
+            final BundleWithMetadata previous = registry.put(pluginName, bundleWithMetadata);
+            if (previous != null) {
+                removeFromIndexes(previous);
+            }
+            bundlesById.put(bundleWithMetadata.getBundle().getBundleId(), bundleWithMetadata);
+            if (bundleWithMetadata.getBundle().getSymbolicName() != null) {
+                bundlesBySymbolicName.computeIfAbsent(bundleWithMetadata.getBundle().getSymbolicName(), k -> ConcurrentHashMap.newKeySet()).add(bundleWithMetadata);
+            }
+        }
+    }
+
+    private void removeFromRegistry(final String pluginName) {
+        synchronized (registryLock) {
+            final BundleWithMetadata removed = registry.remove(pluginName);
+            if (removed != null) {
+                removeFromIndexes(removed);
+            }
+        }
+    }
+
+    private void removeFromIndexes(final BundleWithMetadata bundleWithMetadata) {
+        bundlesById.remove(bundleWithMetadata.getBundle().getBundleId(), bundleWithMetadata);
+        if (bundleWithMetadata.getBundle().getSymbolicName() != null) {
+            removeFromIndex(bundlesBySymbolicName, bundleWithMetadata.getBundle().getSymbolicName(), bundleWithMetadata);
+        }
+        for (final PluginServiceInfo serviceInfo : bundleWithMetadata.getServiceNames()) {
+            removeFromIndex(bundlesByServiceName, serviceInfo.getRegistrationName(), bundleWithMetadata);
+        }
+    }
+
+    private static void removeFromIndex(final Map<String, Set<BundleWithMetadata>> index, final String key, final BundleWithMetadata bundleWithMetadata) {
+        index.computeIfPresent(key, (k, bundles) -> {
+            bundles.remove(bundleWithMetadata);
+            return bundles.isEmpty() ? null : bundles;
+        });
+    }
+
+    @Nullable
+    private static BundleWithMetadata first(@Nullable final Set<BundleWithMetadata> bundles) {
+        if (bundles == null) {
+            return null;
+        }
+        final Iterator<BundleWithMetadata> iterator = bundles.iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
     private static String getPluginName(final BundleWithConfig bundleWithConfig) {
         return bundleWithConfig.getConfig() != null && bundleWithConfig.getConfig().getPluginName() != null ? bundleWithConfig.getConfig().getPluginName() : bundleWithConfig.getBundle().getSymbolicName();
     }
 
     public static class BundleWithMetadata extends BundleWithConfig {
 
-        private final Set<PluginServiceInfo> serviceNames;
+        // Immutable, republished on each change: readers (e.g. the plugins info API) don't need to copy it
+        private volatile Set<PluginServiceInfo> serviceNames;
+        private volatile boolean startFailed = false;
 
         public BundleWithMetadata(final BundleWithConfig bundleWithConfig) {
             super(bundleWithConfig.getBundle(), bundleWithConfig.getConfig());
-            serviceNames = new HashSet<>();
+            serviceNames = Set.of();
         }
 
         public String getPluginName() {
@@ -203,16 +496,42 @@ public class BundleRegistry {
             return getConfig() != null ? getConfig().getVersion() : null;
         }
 
-        public void register(final String registrationName, final String serviceTypeName) {
-            serviceNames.add(new DefaultPluginServiceInfo(serviceTypeName, registrationName));
+        // The start timed out: the bundle is stopped once its start returns
+        public boolean isStartFailed() {
+            return startFailed;
+        }
+
+        void markStartFailed() {
+            startFailed = true;
+        }
+
+        // Services are registered by the bundle activators, which can run concurrently
+        public synchronized void register(final String registrationName, final String serviceTypeName) {
+            final Set<PluginServiceInfo> newServiceNames = new HashSet<>(serviceNames);
+            if (newServiceNames.add(new DefaultPluginServiceInfo(serviceTypeName, registrationName))) {
+                serviceNames = Set.copyOf(newServiceNames);
+            }
         }
 
-        public void unregister(final String registrationName, final String serviceTypeName) {
-            serviceNames.remove(new DefaultPluginServiceInfo(serviceTypeName, registrationName));
+        public synchronized void unregister(final String registrationName, final String serviceTypeName) {
+            final Set<PluginServiceInfo> newServiceNames = new HashSet<>(serviceNames);
+            if (newServiceNames.remove(new DefaultPluginServiceInfo(serviceTypeName, registrationName))) {
+                serviceNames = Set.copyOf(newServiceNames);
+            }
+        }
+
+        boolean hasRegistration(final String registrationName) {
+            for (final PluginServiceInfo serviceInfo : serviceNames) {
+                if (registrationName.equals(serviceInfo.getRegistrationName())) {
+                    return true;
+                }
+            }
+            return false;
         }
 
+        // Immutable snapshot
         public Set<PluginServiceInfo> getServiceNames() {
-            return new HashSet<>(serviceNames);
+            return serviceNames;
         }
     }
 
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.killbill.commons.concurrent.Executors;
+import org.slf4j.Logger;
+
+/**
+ * Runs bundle operations (install, start) on a bounded pool, each operation being given its own timeout. Results are
+ * returned in submission order, regardless of the completion order, so that callers behave the same from one boot to the next.
+ * <p>
+ * Bundle operations can't be interrupted: an operation which timed out keeps running, and its task is notified once it
+ * returns (see {@link BundleTask#BundleTask(String, Callable, Runnable)}) so that it can be undone.
+ */
+class BundleTaskExecutor {
+
+    private final String threadName;
+    private final int nbThreads;
+    private final long timeoutNanos;
+
+    BundleTaskExecutor(final String threadName, final int nbThreads, final long timeout, final TimeUnit timeUnit) {
+        this.threadName = threadName;
+        this.nbThreads = Math.max(1, nbThreads);
+        this.timeoutNanos = timeUnit.toNanos(timeout);
+    }
+
+    <T> List<BundleTaskResult<T>> invokeAll(final List<BundleTask<T>> tasks) throws InterruptedException {
+        final List<BundleTaskResult<T>> results = new ArrayList<BundleTaskResult<T>>(tasks.size());
+        if (tasks.isEmpty()) {
+            return results;
+        }
+
+        // Activators expect to run with the same context class loader as the (historical) lifecycle thread
+        final ClassLoader callerClassLoader = Thread.currentThread().getContextClassLoader();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(nbThreads, tasks.size()), threadName);
+        try {
+            final List<TimedCallable<T>> callables = new ArrayList<TimedCallable<T>>(tasks.size());
+            final List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+            for (final BundleTask<T> task : tasks) {
+                final TimedCallable<T> callable = new TimedCallable<T>(task.getCallable(), task.getTimedOutCompletionHandler(), callerClassLoader);
+                callables.add(callable);
+                futures.add(executor.submit(callable));
+            }
+
+            for (int i = 0; i < tasks.size(); i++) {
+                results.add(await(tasks.get(i).getName(), callables.get(i), futures.get(i)));
+            }
+        } finally {
+            // Operations which timed out are left running, operations which didn't even start are skipped
+            executor.shutdown();
+        }
+        return results;
+    }
+
+    private <T> BundleTaskResult<T> await(final String name, final TimedCallable<T> callable, final Future<T> future) throws InterruptedException {
+        // Previous tasks are all completed or timed out at this point: if this one doesn't even start in time, the pool is stuck
+        final long awaitStartNanos = System.nanoTime();
+        while (true) {
+            final long startNanos = callable.hasStarted() ? callable.startNanos : awaitStartNanos;
+            long waitNanos = startNanos + timeoutNanos - System.nanoTime();
+            // The task may have completed in time while we were waiting for the previous ones
+            if (waitNanos <= 0 && !future.isDone()) {
+                if (callable.timeOut()) {
+                    return new BundleTaskResult<T>(name, null, new TimeoutException(String.format("%s didn't complete within %s ms", name, TimeUnit.NANOSECONDS.toMillis(timeoutNanos))));
+                }
+                // Completed in the meantime
+                waitNanos = Long.MAX_VALUE;
+            }
+
+            try {
+                return new BundleTaskResult<T>(name, future.get(Math.max(0, waitNanos), TimeUnit.NANOSECONDS), null);
+            } catch (final ExecutionException e) {
+                return new BundleTaskResult<T>(name, null, e.getCause());
+            } catch (final TimeoutException e) {
+                // Re-evaluate the deadline, the task may have started in the meantime
+            }
+        }
+    }
+
+    // Failures are logged sorted by name, to make it easier to compare logs across nodes and restarts
+    static <T> List<BundleTaskResult<T>> logFailures(final Logger logger, final String operation, final List<BundleTaskResult<T>> results) {
+        final List<BundleTaskResult<T>> failures = new ArrayList<BundleTaskResult<T>>();
+        for (final BundleTaskResult<T> result : results) {
+            if (!result.isSuccess()) {
+                failures.add(result);
+            }
+        }
+        failures.sort(Comparator.comparing(BundleTaskResult::getName));
+
+        if (!failures.isEmpty()) {
+            final List<String> names = new ArrayList<String>(failures.size());
+            for (final BundleTaskResult<T> failure : failures) {
+                names.add(failure.getName());
+                logger.warn("Unable to {} {}", operation, failure.getName(), failure.getFailure());
+            }
+            logger.warn("Unable to {} {} bundle(s): {}", operation, failures.size(), names);
+        }
+        return failures;
+    }
+
+    static final class BundleTask<T> {
+
+        private final String name;
+        private final Callable<T> callable;
+        private final Runnable timedOutCompletionHandler;
+
+        BundleTask(final String name, final Callable<T> callable) {
+            this(name, callable, null);
+        }
+
+        /**
+         * @param timedOutCompletionHandler run once the callable returns (successfully or not), if it timed out
+         */
+        BundleTask(final String name, final Callable<T> callable, @Nullable final Runnable timedOutCompletionHandler) {
+            this.name = name;
+            this.callable = callable;
+            this.timedOutCompletionHandler = timedOutCompletionHandler;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        Callable<T> getCallable() {
+            return callable;
+        }
+
+        Runnable getTimedOutCompletionHandler() {
+            return timedOutCompletionHandler;
+        }
+    }
+
+    static final class BundleTaskResult<T> {
+
+        private final String name;
+        private final T value;
+        private final Throwable failure;
+
+        private BundleTaskResult(final String name, @Nullable final T value, @Nullable final Throwable failure) {
+            this.name = name;
+            this.value = value;
+            this.failure = failure;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        T getValue() {
+            return value;
+        }
+
+        Throwable getFailure() {
+            return failure;
+        }
+
+        boolean isSuccess() {
+            return failure == null;
+        }
+    }
+
+    private static final class TimedCallable<T> implements Callable<T> {
+
+        private static final int NEW = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+        private static final int TIMED_OUT = 3;
+
+        private final Callable<T> delegate;
+        private final Runnable timedOutCompletionHandler;
+        private final ClassLoader contextClassLoader;
+        private final AtomicInteger state = new AtomicInteger(NEW);
+
+        private volatile long startNanos;
+
+        private TimedCallable(final Callable<T> delegate, @Nullable final Runnable timedOutCompletionHandler, final ClassLoader contextClassLoader) {
+            this.delegate = delegate;
+            this.timedOutCompletionHandler = timedOutCompletionHandler;
+            this.contextClassLoader = contextClassLoader;
+        }
+
+        @Override
+        public T call() throws Exception {
+            startNanos = System.nanoTime();
+            if (!state.compareAndSet(NEW, RUNNING)) {
+                // Timed out before it could even start
+                return null;
+            }
+
+            final ClassLoader previousClassLoader = Thread.currentThread().getContextClassLoader();
+            Thread.currentThread().setContextClassLoader(contextClassLoader);
+            try {
+                return delegate.call();
+            } finally {
+                Thread.currentThread().setContextClassLoader(previousClassLoader);
+                if (!state.compareAndSet(RUNNING, DONE) && timedOutCompletionHandler != null) {
+                    timedOutCompletionHandler.run();
+                }
+            }
+        }
+
+        private boolean hasStarted() {
+            return state.get() != NEW;
+        }
+
+        // Returns false if the callable completed in the meantime
+        private boolean timeOut() {
+            return state.compareAndSet(NEW, TIMED_OUT) || state.compareAndSet(RUNNING, TIMED_OUT);
+        }
+    }
+}
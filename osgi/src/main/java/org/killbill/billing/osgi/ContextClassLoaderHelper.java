@@ -19,13 +19,17 @@
 
 package org.killbill.billing.osgi;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
@@ -34,12 +38,9 @@ import org.killbill.commons.metrics.api.Meter;
 import org.killbill.commons.metrics.api.MetricRegistry;
 import org.killbill.commons.metrics.api.Timer;
 import org.killbill.commons.profiling.Profiling;
-import org.killbill.commons.profiling.Profiling.WithProfilingCallback;
+import org.killbill.commons.profiling.ProfilingData;
 import org.killbill.commons.profiling.ProfilingFeature.ProfilingFeatureType;
 import org.killbill.commons.utils.Joiner;
-import org.killbill.commons.utils.cache.Cache;
-import org.killbill.commons.utils.cache.DefaultCache;
-import org.killbill.commons.utils.cache.DefaultSynchronizedCache;
 import org.killbill.commons.utils.reflect.AbstractInvocationHandler;
 
 public class ContextClassLoaderHelper {
@@ -71,7 +72,7 @@ public class ContextClassLoaderHelper {
         final List<Class<?>> allServiceInterfaces = getAllInterfaces(serviceClass);
         final Class<?>[] serviceClassInterfaces = allServiceInterfaces.toArray(new Class[allServiceInterfaces.size()]);
 
-        final InvocationHandler handler = new ClassLoaderInvocationHandler<T>(service, serviceName, serviceType, metricRegistry);
+        final InvocationHandler handler = new ClassLoaderInvocationHandler<T>(service, serviceName, serviceType, serviceClassInterfaces, metricRegistry);
         return (T) Proxy.newProxyInstance(serviceClass.getClassLoader(),
                                           serviceClassInterfaces,
                                           handler);
@@ -104,90 +105,207 @@ public class ContextClassLoaderHelper {
 
     private static class ClassLoaderInvocationHandler<T> extends AbstractInvocationHandler {
 
-        private final String serviceName;
         private final T service;
-        private final Class<?> serviceClass;
+        private final ClassLoader serviceClassLoader;
+        private final String serviceName;
         private final String serviceInterfaceName;
         private final MetricRegistry metricRegistry;
 
-        private Cache<String, Timer> timerMetricCache;
-        private Cache<String, Meter> errorMetricCache;
+        // Per-method metadata, computed once when the proxy is created
+        private final Map<Method, PluginMethod> pluginMethods = new ConcurrentHashMap<>();
 
         public ClassLoaderInvocationHandler(final T service,
                                             final String serviceName,
                                             final Class<T> serviceInterface,
+                                            final Class<?>[] serviceClassInterfaces,
                                             final MetricRegistry metricRegistry) {
             this.service = service;
             this.serviceName = serviceName;
             // Don't instrument the MetricRegistry itself to avoid infinite recursion
             this.metricRegistry = serviceInterface == MetricRegistry.class ? null : metricRegistry;
 
-            this.serviceClass = service.getClass();
+            this.serviceClassLoader = service.getClass().getClassLoader();
             this.serviceInterfaceName = serviceInterface.getSimpleName();
 
-            if (this.metricRegistry != null) {
-                initializeMetricCaches();
+            for (final Class<?> serviceClassInterface : serviceClassInterfaces) {
+                for (final Method method : serviceClassInterface.getMethods()) {
+                    pluginMethods.computeIfAbsent(method, this::createPluginMethod);
+                }
             }
         }
 
         @Override
         protected Object handleInvocation(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final PluginMethod pluginMethod = getPluginMethod(method);
             final ClassLoader initialContextClassLoader = Thread.currentThread().getContextClassLoader();
             final long start = System.nanoTime();
             try {
-                Thread.currentThread().setContextClassLoader(serviceClass.getClassLoader());
-                final String methodName = method.getName();
-
-                final Profiling<Object, Throwable> prof = new Profiling<>();
-                final String profilingId = serviceInterfaceName + "." + methodName;
-                return prof.executeWithProfiling(ProfilingFeatureType.PLUGIN, profilingId, new WithProfilingCallback<>() {
-                    @Override
-                    public Object execute() throws Throwable {
-                        return method.invoke(service, args);
-                    }
-                });
+                Thread.currentThread().setContextClassLoader(serviceClassLoader);
+
+                // Same as Profiling#executeWithProfiling, without the per-call allocations
+                final ProfilingData profilingData = Profiling.getPerThreadProfilingData();
+                if (profilingData == null) {
+                    return pluginMethod.invoke(args);
+                }
+                profilingData.addStart(ProfilingFeatureType.PLUGIN, pluginMethod.profilingId);
+                try {
+                    return pluginMethod.invoke(args);
+                } finally {
+                    profilingData.addEnd(ProfilingFeatureType.PLUGIN, pluginMethod.profilingId);
+                }
             } catch (final InvocationTargetException e) {
-                final Optional<Meter> errors = errorMeter(method);
-                errors.ifPresent(meter -> meter.mark(1));
+                pluginMethod.markError();
                 if (e.getCause() != null) {
                     throw e.getCause();
                 } else {
                     throw new RuntimeException(e);
                 }
             } finally {
-                final Optional<Timer> times = timer(method);
-                times.ifPresent(timer -> timer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+                pluginMethod.updateTimer(System.nanoTime() - start);
                 Thread.currentThread().setContextClassLoader(initialContextClassLoader);
             }
         }
 
-        private Optional<Timer> timer(final Method method) {
-            return timerMetricCache == null ? Optional.empty() : Optional.of(timerMetricCache.get(method.getName()));
+        private PluginMethod getPluginMethod(final Method method) {
+            final PluginMethod pluginMethod = pluginMethods.get(method);
+            // Should only happen for methods not declared by the proxied interfaces
+            return pluginMethod != null ? pluginMethod : pluginMethods.computeIfAbsent(method, this::createPluginMethod);
         }
 
-        private Optional<Meter> errorMeter(final Method method) {
-            return errorMetricCache == null ? Optional.empty() : Optional.of(errorMetricCache.get(method.getName()));
+        private PluginMethod createPluginMethod(final Method method) {
+            final String methodName = method.getName();
+            final String timerMetricName;
+            final String errorMetricName;
+            if (metricRegistry != null) {
+                timerMetricName = DOT_JOINER.join("killbill-service",
+                                                  "kb_plugin_latency",
+                                                  serviceName,
+                                                  serviceInterfaceName,
+                                                  methodName);
+                errorMetricName = DOT_JOINER.join("killbill-service",
+                                                  "kb_plugin_errors",
+                                                  serviceName,
+                                                  serviceInterfaceName,
+                                                  methodName);
+            } else {
+                timerMetricName = null;
+                errorMetricName = null;
+            }
+            return new PluginMethod(service, method, serviceInterfaceName + "." + methodName, metricRegistry, timerMetricName, errorMetricName);
+        }
+    }
+
+    private static final class PluginMethod {
+
+        private static final MethodType GENERIC_INVOKER_TYPE = MethodType.methodType(Object.class, Object[].class);
+
+        private final Object service;
+        private final Method method;
+        // (Object[])Object handle bound to the service, null if the method isn't accessible through the public lookup
+        private final MethodHandle invoker;
+        private final Class<?>[] parameterTypes;
+        // Boxed parameter types, to find out whether the invoker accepts the arguments as is
+        private final Class<?>[] boxedParameterTypes;
+        private final String profilingId;
+
+        private final MetricRegistry metricRegistry;
+        private final String timerMetricName;
+        private final String errorMetricName;
+        // Metrics are registered lazily (on first invocation), as only invoked methods should be reported
+        private volatile Timer timer;
+        private volatile Meter errorMeter;
+
+        private PluginMethod(final Object service,
+                             final Method method,
+                             final String profilingId,
+                             @Nullable final MetricRegistry metricRegistry,
+                             @Nullable final String timerMetricName,
+                             @Nullable final String errorMetricName) {
+            this.service = service;
+            this.method = method;
+            this.invoker = createInvoker(service, method);
+            this.parameterTypes = method.getParameterTypes();
+            this.boxedParameterTypes = new Class<?>[parameterTypes.length];
+            for (int i = 0; i < parameterTypes.length; i++) {
+                boxedParameterTypes[i] = MethodType.methodType(parameterTypes[i]).wrap().returnType();
+            }
+            this.profilingId = profilingId;
+            this.metricRegistry = metricRegistry;
+            this.timerMetricName = timerMetricName;
+            this.errorMetricName = errorMetricName;
         }
 
-        private void initializeMetricCaches() {
-            timerMetricCache = new DefaultSynchronizedCache<>(Integer.MAX_VALUE, DefaultCache.NO_TIMEOUT, methodName -> {
-                final String timerMetricName = DOT_JOINER.join("killbill-service",
-                                                               "kb_plugin_latency",
-                                                               serviceName,
-                                                               serviceInterfaceName,
-                                                               methodName);
-
-                return metricRegistry.timer(timerMetricName);
-            });
-            errorMetricCache = new DefaultSynchronizedCache<>(Integer.MAX_VALUE, DefaultCache.NO_TIMEOUT, methodName -> {
-                final String counterMetricName = DOT_JOINER.join("killbill-service",
-                                                                 "kb_plugin_errors",
-                                                                 serviceName,
-                                                                 serviceInterfaceName,
-                                                                 methodName);
-
-                return metricRegistry.meter(counterMetricName);
-            });
+        // Exceptions thrown by the service are wrapped in an InvocationTargetException, as Method#invoke would
+        private Object invoke(final Object[] args) throws InvocationTargetException, IllegalAccessException {
+            // Anything the invoker doesn't accept as is (invalid arguments, but also widening and unboxing conversions)
+            // goes through Method#invoke, so that the behavior (and the errors reported) stay the same
+            if (invoker == null || !hasExactArguments(args)) {
+                return method.invoke(service, args);
+            }
+
+            try {
+                return (Object) invoker.invokeExact(args);
+            } catch (final Throwable e) {
+                throw new InvocationTargetException(e);
+            }
+        }
+
+        private boolean hasExactArguments(@Nullable final Object[] args) {
+            final int nbArgs = args == null ? 0 : args.length;
+            if (nbArgs != parameterTypes.length) {
+                return false;
+            }
+            for (int i = 0; i < nbArgs; i++) {
+                final Object arg = args[i];
+                if (arg == null ? parameterTypes[i].isPrimitive() : !boxedParameterTypes[i].isInstance(arg)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void updateTimer(final long durationNanos) {
+            if (metricRegistry == null) {
+                return;
+            }
+
+            Timer timer = this.timer;
+            if (timer == null) {
+                timer = metricRegistry.timer(timerMetricName);
+                this.timer = timer;
+            }
+            timer.update(durationNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void markError() {
+            if (metricRegistry == null) {
+                return;
+            }
+
+            Meter errorMeter = this.errorMeter;
+            if (errorMeter == null) {
+                errorMeter = metricRegistry.meter(errorMetricName);
+                this.errorMeter = errorMeter;
+            }
+            errorMeter.mark(1);
+        }
+
+        @Nullable
+        private static MethodHandle createInvoker(final Object service, final Method method) {
+            if (method.getDeclaringClass() == Object.class || !method.getDeclaringClass().isInstance(service)) {
+                return null;
+            }
+
+            try {
+                return MethodHandles.publicLookup()
+                                    .unreflect(method)
+                                    .bindTo(service)
+                                    .asSpreader(Object[].class, method.getParameterCount())
+                                    .asType(GENERIC_INVOKER_TYPE);
+            } catch (final IllegalAccessException e) {
+                // e.g. non-public interface: fall back to reflection
+                return null;
+            }
         }
     }
 }
@@ -32,7 +32,9 @@ import javax.inject.Named;
 
 import org.apache.felix.framework.Felix;
 import org.apache.felix.framework.util.FelixConstants;
+import org.killbill.billing.osgi.api.PluginSignalHandler;
 import org.killbill.billing.osgi.config.OSGIConfig;
+import org.killbill.billing.osgi.pluginconf.PluginFinder;
 import org.killbill.billing.platform.api.LifecycleHandlerType;
 import org.killbill.billing.platform.api.OSGIService;
 import org.killbill.bus.api.PersistentBus;
@@ -53,18 +55,23 @@ public class DefaultOSGIService implements OSGIService {
     private final List<BundleWithConfig> installedBundles;
     private final PersistentBus externalBus;
     private final OSGIListener osgiListener;
+    private final PluginFinder pluginFinder;
+    private final PluginSignalWatcher pluginSignalWatcher;
 
     private Framework framework;
 
     @Inject
     public DefaultOSGIService(final OSGIConfig osgiConfig, final BundleRegistry bundleRegistry,
                               final KillbillActivator killbillActivator, @Named("externalBus") final PersistentBus externalBus,
-                              final OSGIListener osgiListener) {
+                              final OSGIListener osgiListener, final PluginFinder pluginFinder,
+                              final PluginSignalWatcher pluginSignalWatcher) {
         this.osgiConfig = osgiConfig;
         this.killbillActivator = killbillActivator;
         this.bundleRegistry = bundleRegistry;
         this.externalBus = externalBus;
         this.osgiListener = osgiListener;
+        this.pluginFinder = pluginFinder;
+        this.pluginSignalWatcher = pluginSignalWatcher;
         this.installedBundles = new LinkedList<BundleWithConfig>();
         this.framework = null;
     }
@@ -82,15 +89,33 @@ public class DefaultOSGIService implements OSGIService {
     @LifecycleHandlerType(LifecycleHandlerType.LifecycleLevel.INIT_PLUGIN)
     public void initialize() {
         try {
-            // We start by deleting existing osi cache; we might optimize later keeping the cache
-            pruneOSGICache();
+            final OSGIBundleCache bundleCache;
+            if (osgiConfig.isOSGIBundleCachePersistent()) {
+                // Keep the bundles which didn't change since the last boot
+                bundleCache = new OSGIBundleCache(getOSGIBundleCacheDir(), getOSGIBundleCacheManifest());
+                bundleCache.prepare();
+            } else {
+                bundleCache = null;
+                // We start by deleting existing osgi cache
+                pruneOSGICache();
+            }
 
             // Create the system bundle for killbill and start the framework
             this.framework = createAndInitFramework();
+            if (bundleCache != null) {
+                bundleCache.evictChangedBundles(framework);
+            }
             framework.start();
+            // Before the bundles are started, so that their signal handlers are tracked as soon as they are registered
+            pluginSignalWatcher.start(framework.getBundleContext());
             bundleRegistry.installBundles(framework);
+            if (bundleCache != null) {
+                bundleCache.save(framework, bundleRegistry.getInstalledBundles());
+            }
 
             externalBus.register(osgiListener);
+            // Keep the view of the installed plugins up to date (e.g. for the plugins info API)
+            pluginFinder.startWatching();
         } catch (final BundleException e) {
             logger.error("Failed to initialize Killbill OSGIService", e);
         } catch (final EventBusException e) {
@@ -109,6 +134,8 @@ public class DefaultOSGIService implements OSGIService {
 
     @LifecycleHandlerType(LifecycleHandlerType.LifecycleLevel.STOP_PLUGIN)
     public void stop() {
+        pluginFinder.stopWatching();
+        pluginSignalWatcher.stop();
         try {
             externalBus.unregister(osgiListener);
 
@@ -117,8 +144,11 @@ public class DefaultOSGIService implements OSGIService {
 
             installedBundles.clear();
 
-            // This will call the stop() method for the bundles
-            bundleRegistry.stopBundles();
+            // The bundles have been stopped with the framework, uninstalling them would evict them from the cache
+            if (!osgiConfig.isOSGIBundleCachePersistent()) {
+                // This will call the stop() method for the bundles
+                bundleRegistry.stopBundles();
+            }
             // Tell the plugins all bundles have stopped
             killbillActivator.sendEvent("org/killbill/billing/osgi/lifecycle/STOPPED", new HashMap<String, String>());
         } catch (final BundleException e) {
@@ -153,6 +183,8 @@ public class DefaultOSGIService implements OSGIService {
         config.put("org.osgi.framework.storage", osgiConfig.getOSGIBundleCacheName());
         // Use the ext class loader as parent so that bundles can load java.sql.* on JDK 11
         config.put("org.osgi.framework.bundle.parent", "ext");
+        // Tell the plugins whether their restart.txt and disabled.txt files are watched by the platform
+        config.put(PluginSignalHandler.PLATFORM_WATCHER_PROPERTY, String.valueOf(osgiConfig.isPluginSignalsWatchEnabled()));
         return createAndInitFelixFrameworkWithSystemBundle(config);
     }
 
@@ -174,37 +206,17 @@ public class DefaultOSGIService implements OSGIService {
 
     private void pruneOSGICache() {
         final String path = osgiConfig.getOSGIBundleRootDir();
-        deleteUnderDirectory(new File(path));
+        OSGIBundleCache.deleteDirectory(new File(path), false);
     }
 
-    private static void deleteUnderDirectory(final File path) {
-        deleteDirectory(path, false);
+    private File getOSGIBundleCacheDir() {
+        final File cacheDir = new File(osgiConfig.getOSGIBundleCacheName());
+        // Relative storage directories are resolved by Felix against the root directory
+        return cacheDir.isAbsolute() ? cacheDir : new File(osgiConfig.getOSGIBundleRootDir(), osgiConfig.getOSGIBundleCacheName());
     }
 
-    private static void deleteDirectory(final File path, final boolean deleteParent) {
-        if (path == null) {
-            return;
-        }
-
-        if (path.exists()) {
-            final File[] files = path.listFiles();
-            if (files != null) {
-                for (final File f : files) {
-                    if (f.isDirectory()) {
-                        deleteDirectory(f, true);
-                    } else if (!f.delete()) {
-                        logger.warn("Unable to delete {}", f.getAbsolutePath());
-                    }
-                }
-            }
-
-            if (deleteParent) {
-                if (!path.delete()) {
-                    logger.warn("Unable to delete {}", path.getAbsolutePath());
-                } else {
-                    logger.info("Deleted recursively {}", path.getAbsolutePath());
-                }
-            }
-        }
+    private File getOSGIBundleCacheManifest() {
+        final File cacheDir = getOSGIBundleCacheDir();
+        return new File(cacheDir.getParentFile(), cacheDir.getName() + ".manifest");
     }
 }
@@ -20,19 +20,23 @@
 package org.killbill.billing.osgi;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 
+import org.killbill.billing.osgi.BundleTaskExecutor.BundleTask;
+import org.killbill.billing.osgi.BundleTaskExecutor.BundleTaskResult;
 import org.killbill.billing.osgi.api.KillbillNodesApiHolder;
 import org.killbill.billing.osgi.api.config.PluginConfig;
 import org.killbill.billing.osgi.api.config.PluginConfigServiceApi;
 import org.killbill.billing.osgi.api.config.PluginJavaConfig;
 import org.killbill.billing.osgi.api.config.PluginLanguage;
 import org.killbill.billing.osgi.api.config.PluginRubyConfig;
+import org.killbill.billing.osgi.config.OSGIConfig;
 import org.killbill.billing.osgi.pluginconf.DefaultPluginConfigServiceApi;
 import org.killbill.billing.osgi.pluginconf.PluginConfigException;
 import org.killbill.billing.osgi.pluginconf.PluginFinder;
@@ -52,34 +56,57 @@ public class FileInstall {
     private final PureOSGIBundleFinder osgiBundleFinder;
     private final PluginFinder pluginFinder;
     private final PluginConfigServiceApi pluginConfigServiceApi;
+    private final OSGIConfig osgiConfig;
 
     @Inject
-    public FileInstall(final PureOSGIBundleFinder osgiBundleFinder, final PluginFinder pluginFinder, final KillbillNodesApiHolder nodesApiHolder, final PluginConfigServiceApi pluginConfigServiceApi) {
+    public FileInstall(final PureOSGIBundleFinder osgiBundleFinder, final PluginFinder pluginFinder, final KillbillNodesApiHolder nodesApiHolder,
+                       final PluginConfigServiceApi pluginConfigServiceApi, final OSGIConfig osgiConfig) {
         this.osgiBundleFinder = osgiBundleFinder;
         this.pluginFinder = pluginFinder;
         this.pluginConfigServiceApi = pluginConfigServiceApi;
+        this.osgiConfig = osgiConfig;
     }
 
     public List<BundleWithConfig> installBundles(final Framework framework) {
-
-        final List<BundleWithConfig> installedBundles = new LinkedList<BundleWithConfig>();
+        final List<BundleTask<BundleWithConfig>> tasks = new ArrayList<BundleTask<BundleWithConfig>>();
         try {
-
             final BundleContext context = framework.getBundleContext();
 
-            // Install all bundles and create service mapping
-            installAllOSGIBundles(context, installedBundles);
-            installAllJavaPluginBundles(context, installedBundles);
+            // Bundles are installed concurrently, so their ids aren't stable across restarts. The returned list keeps
+            // the pure OSGI bundles first though, as they are started before the plugins (see BundleRegistry#startBundles).
+            for (final String cur : osgiBundleFinder.getLatestBundles()) {
+                tasks.add(new BundleTask<BundleWithConfig>(cur, () -> new BundleWithConfig(installOSGIBundle(context, cur), null)));
+            }
+            for (final PluginJavaConfig cur : pluginFinder.getLatestJavaPlugins()) {
+                tasks.add(new BundleTask<BundleWithConfig>(cur.getPluginName(), () -> new BundleWithConfig(installBundle(cur, context, PluginLanguage.JAVA), cur)));
+            }
         } catch (final PluginConfigException e) {
             logger.error("Error while parsing plugin configurations", e);
-        } catch (final BundleException e) {
-            logger.error("Error while parsing plugin configurations", e);
         } catch (final IOException e) {
             logger.error("Error while parsing plugin configurations", e);
         }
+
+        // Install all bundles and create service mapping (a bundle which cannot be installed is ignored)
+        final List<BundleWithConfig> installedBundles = new LinkedList<BundleWithConfig>();
+        try {
+            final List<BundleTaskResult<BundleWithConfig>> results = newBundleTaskExecutor("osgi-install").invokeAll(tasks);
+            BundleTaskExecutor.logFailures(logger, "install", results);
+            for (final BundleTaskResult<BundleWithConfig> result : results) {
+                if (result.isSuccess()) {
+                    installedBundles.add(result.getValue());
+                }
+            }
+        } catch (final InterruptedException e) {
+            logger.warn("Interrupted while installing bundles");
+            Thread.currentThread().interrupt();
+        }
         return installedBundles;
     }
 
+    BundleTaskExecutor newBundleTaskExecutor(final String threadName) {
+        return new BundleTaskExecutor(threadName, osgiConfig.getBundleStartupNbThreads(), osgiConfig.getBundleStartupTimeout().getMillis(), TimeUnit.MILLISECONDS);
+    }
+
     public BundleWithConfig installNewBundle(final String pluginName, @Nullable final String version, final Framework framework) {
         try {
             // Handle pure OSGI bundle case
@@ -108,18 +135,6 @@ public class FileInstall {
     }
 
 
-    private void installAllOSGIBundles(final BundleContext context, final List<BundleWithConfig> installedBundles) throws PluginConfigException, BundleException {
-        final List<String> bundleJarPaths = osgiBundleFinder.getLatestBundles();
-        for (final String cur : bundleJarPaths) {
-            try {
-                final Bundle bundle = installOSGIBundle(context, cur);
-                installedBundles.add(new BundleWithConfig(bundle, null));
-            } catch (final BundleException e) {
-                logger.error("Error while installing bundle {}, ignoring", cur, e);
-            }
-        }
-    }
-
     private Bundle installOSGIBundle(final BundleContext context, final String path) throws BundleException {
 
         logger.info("Installing Java OSGI bundle from {}", path);
@@ -129,14 +144,6 @@ public class FileInstall {
         return bundle;
     }
 
-    private void installAllJavaPluginBundles(final BundleContext context, final List<BundleWithConfig> installedBundles) throws PluginConfigException, BundleException, IOException {
-        final List<PluginJavaConfig> pluginJavaConfigs = pluginFinder.getLatestJavaPlugins();
-        for (final PluginJavaConfig cur : pluginJavaConfigs) {
-            final Bundle bundle = installBundle(cur, context, PluginLanguage.JAVA);
-            installedBundles.add(new BundleWithConfig(bundle, cur));
-        }
-    }
-
     private Bundle installBundle(final PluginConfig config, final BundleContext context, final PluginLanguage pluginLanguage) throws BundleException {
 
         Bundle bundle;
@@ -148,8 +155,11 @@ public class FileInstall {
                 if (bundle == null) {
                     logger.info("Installing Java bundle for plugin {} from {}", javaConfig.getPluginName(), javaConfig.getBundleJarPath());
                     bundle = context.installBundle(location);
-                    ((DefaultPluginConfigServiceApi) pluginConfigServiceApi).registerBundle(bundle.getBundleId(), javaConfig);
+                } else {
+                    logger.info("Reusing Java bundle for plugin {} from {}", javaConfig.getPluginName(), javaConfig.getBundleJarPath());
                 }
+                // Bundles coming from the OSGI cache need to be registered as well
+                ((DefaultPluginConfigServiceApi) pluginConfigServiceApi).registerBundle(bundle.getBundleId(), javaConfig);
                 break;
             default:
                 throw new IllegalStateException("Unknown pluginLanguage " + pluginLanguage);
@@ -158,6 +168,16 @@ public class FileInstall {
     }
 
     public boolean startBundle(final Bundle bundle) {
+        try {
+            return startBundleOrFail(bundle);
+        } catch (final BundleException e) {
+            logger.warn("Unable to start bundle", e);
+            return false;
+        }
+    }
+
+    // Returns false if the bundle cannot be started (uninstalled or fragment bundle)
+    boolean startBundleOrFail(final Bundle bundle) throws BundleException {
         if (bundle.getState() == Bundle.UNINSTALLED) {
             logger.info("Skipping uninstalled bundle {}", bundle.getLocation());
         } else if (isFragment(bundle)) {
@@ -165,12 +185,8 @@ public class FileInstall {
             logger.info("Skipping fragment bundle {}", bundle.getLocation());
         } else {
             logger.info("Starting bundle {}", bundle.getLocation());
-            try {
-                bundle.start();
-                return true;
-            } catch (final BundleException e) {
-                logger.warn("Unable to start bundle", e);
-            }
+            bundle.start();
+            return true;
         }
         return false;
     }
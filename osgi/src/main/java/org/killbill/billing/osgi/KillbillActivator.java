@@ -19,12 +19,15 @@
 
 package org.killbill.billing.osgi;
 
+import java.util.ArrayList;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Observable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -50,6 +53,7 @@ import org.killbill.billing.osgi.api.OSGIServiceRegistrable;
 import org.killbill.billing.osgi.api.OSGIServiceRegistration;
 import org.killbill.billing.osgi.api.OSGISingleServiceRegistration;
 import org.killbill.billing.osgi.api.ServiceDiscoveryRegistry;
+import org.killbill.billing.osgi.config.OSGIConfig;
 import org.killbill.billing.osgi.glue.DefaultOSGIModule;
 import org.killbill.billing.payment.plugin.api.PaymentPluginApi;
 import org.killbill.billing.platform.jndi.JNDIManager;
@@ -59,12 +63,11 @@ import org.killbill.commons.metrics.api.MetricRegistry;
 import org.osgi.framework.AllServiceListener;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.event.Event;
 import org.osgi.service.http.HttpService;
-import org.osgi.service.log.LogService;
-import org.osgi.util.tracker.ServiceTracker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -76,8 +79,6 @@ public class KillbillActivator implements BundleActivator, AllServiceListener {
     private static final Logger logger = LoggerFactory.getLogger(KillbillActivator.class);
     private static final String KILLBILL_OSGI_JDBC_JNDI_NAME = "killbill/osgi/jdbc";
 
-    private static final String LOG_SERVICE_NAME = "org.osgi.service.log.LogService";
-
     private final OSGIKillbill osgiKillbill;
     private final HttpService defaultHttpService;
     private final DataSource dataSource;
@@ -86,13 +87,20 @@ public class KillbillActivator implements BundleActivator, AllServiceListener {
     private final KillbillEventObservable observable;
     private final OSGIKillbillRegistrar registrar;
     private final OSGIConfigProperties configProperties;
+    private final OSGIConfig osgiConfig;
     private final JNDIManager jndiManager;
     private final MetricRegistry metricsRegistry;
     private final BundleRegistry bundleRegistry;
     private final List<OSGIServiceRegistrable> allRegistrationHandlers;
+    // Service type name (objectClass) -> registration handler
+    private final Map<String, OSGIServiceRegistrable> registrationHandlersByType;
+    // Services handed over to the registration handlers, until they are unregistered
+    private final Map<ServiceReference<?>, ServiceRegistrations> registeredServices;
+    // Services registered under a type we don't know about (e.g. HttpServlet): first handler whose type is assignable,
+    // as computed by the original dispatch loop
+    private final ClassValue<OSGIServiceRegistrable> registrationHandlersByImplementation;
 
     private BundleContext context = null;
-    private ServiceTracker<LogService, LogService> logTracker;
     private OSGIAppender osgiAppender = null;
 
     @Inject
@@ -104,6 +112,7 @@ public class KillbillActivator implements BundleActivator, AllServiceListener {
                              final KillbillEventRetriableBusHandler killbillEventRetriableBusHandler,
                              final KillbillEventObservable observable,
                              final OSGIConfigProperties configProperties,
+                             final OSGIConfig osgiConfig,
                              final MetricRegistry metricsRegistry,
                              final JNDIManager jndiManager) {
         this.osgiKillbill = osgiKillbill;
@@ -114,70 +123,95 @@ public class KillbillActivator implements BundleActivator, AllServiceListener {
         this.killbillEventRetriableBusHandler = killbillEventRetriableBusHandler;
         this.observable = observable;
         this.configProperties = configProperties;
+        this.osgiConfig = osgiConfig;
         this.jndiManager = jndiManager;
         this.metricsRegistry = metricsRegistry;
         this.registrar = new OSGIKillbillRegistrar();
         this.allRegistrationHandlers = new LinkedList<OSGIServiceRegistrable>();
+        this.registrationHandlersByType = new HashMap<String, OSGIServiceRegistrable>();
+        this.registeredServices = new ConcurrentHashMap<ServiceReference<?>, ServiceRegistrations>();
+        this.registrationHandlersByImplementation = new ClassValue<OSGIServiceRegistrable>() {
+            @Override
+            protected OSGIServiceRegistrable computeValue(final Class<?> type) {
+                for (final OSGIServiceRegistrable cur : allRegistrationHandlers) {
+                    if (cur.getServiceType().isAssignableFrom(type)) {
+                        return cur;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    private void addRegistrationHandler(@Nullable final OSGIServiceRegistrable registration) {
+        if (registration == null) {
+            return;
+        }
+        allRegistrationHandlers.add(registration);
+        // First one wins, as with the original dispatch loop
+        if (!registrationHandlersByType.containsKey(registration.getServiceType().getName())) {
+            registrationHandlersByType.put(registration.getServiceType().getName(), registration);
+        }
     }
 
     @Inject
     public void addServletOSGIServiceRegistration(@Nullable final OSGIServiceRegistration<Servlet> servletRouter) {
-        allRegistrationHandlers.add(servletRouter);
+        addRegistrationHandler(servletRouter);
     }
 
     @Inject
     public void addPaymentPluginApiOSGIServiceRegistration(@Nullable final OSGIServiceRegistration<PaymentPluginApi> paymentProviderPluginRegistry) {
-        allRegistrationHandlers.add(paymentProviderPluginRegistry);
+        addRegistrationHandler(paymentProviderPluginRegistry);
     }
 
     @Inject
     public void addInvoicePluginApiOSGIServiceRegistration(@Nullable final OSGIServiceRegistration<InvoicePluginApi> invoiceProviderPluginRegistry) {
-        allRegistrationHandlers.add(invoiceProviderPluginRegistry);
+        addRegistrationHandler(invoiceProviderPluginRegistry);
     }
 
     @Inject
     public void addCurrencyPluginApiOSGIServiceRegistration(@Nullable final OSGIServiceRegistration<CurrencyPluginApi> currencyProviderPluginRegistry) {
-        allRegistrationHandlers.add(currencyProviderPluginRegistry);
+        addRegistrationHandler(currencyProviderPluginRegistry);
     }
 
     @Inject
     public void addInvoiceFormatterFactoryOSGIServiceRegistration(@Nullable final OSGIServiceRegistration<InvoiceFormatterFactory> invoiceFormatterFactoryRegistry) {
-        allRegistrationHandlers.add(invoiceFormatterFactoryRegistry);
+        addRegistrationHandler(invoiceFormatterFactoryRegistry);
     }
 
     @Inject
     public void addPaymentControlPluginApiOSGIServiceRegistration(@Nullable final OSGIServiceRegistration<PaymentControlPluginApi> paymentControlProviderPluginRegistry) {
-        allRegistrationHandlers.add(paymentControlProviderPluginRegistry);
+        addRegistrationHandler(paymentControlProviderPluginRegistry);
     }
 
     @Inject
     public void addCatalogPluginApiOSGIServiceRegistration(@Nullable final OSGIServiceRegistration<CatalogPluginApi> catalogProviderPluginRegistry) {
-        allRegistrationHandlers.add(catalogProviderPluginRegistry);
+        addRegistrationHandler(catalogProviderPluginRegistry);
     }
 
     @Inject
     public void addEntitlementPluginApiOSGIServiceRegistration(@Nullable final OSGIServiceRegistration<EntitlementPluginApi> entitlementProviderPluginRegistry) {
-        allRegistrationHandlers.add(entitlementProviderPluginRegistry);
+        addRegistrationHandler(entitlementProviderPluginRegistry);
     }
 
     @Inject
     public void addUsagePluginApiOSGIServiceRegistration(@Nullable final OSGIServiceRegistration<UsagePluginApi> usageProviderPluginRegistry) {
-        allRegistrationHandlers.add(usageProviderPluginRegistry);
+        addRegistrationHandler(usageProviderPluginRegistry);
     }
 
     @Inject
     public void addHealthcheckOSGIServiceRegistration(@Nullable final OSGIServiceRegistration<Healthcheck> healthcheckRegistry) {
-        allRegistrationHandlers.add(healthcheckRegistry);
+        addRegistrationHandler(healthcheckRegistry);
     }
 
     @Inject
     public void addServiceRegistryOSGIServiceRegistration(@Nullable final OSGIServiceRegistration<ServiceDiscoveryRegistry> serviceRegistry) {
-        allRegistrationHandlers.add(serviceRegistry);
+        addRegistrationHandler(serviceRegistry);
     }
 
     @Inject
     public void addMetricRegistryOSGIServiceRegistration(@Nullable final OSGISingleServiceRegistration<MetricRegistry> metricRegistry) {
-        allRegistrationHandlers.add(metricRegistry);
+        addRegistrationHandler(metricRegistry);
     }
 
     @Override
@@ -189,12 +223,9 @@ public class KillbillActivator implements BundleActivator, AllServiceListener {
         // Forward all core log entries to the OSGI LogService, so that plugins have access to them
         final Object factory = LoggerFactory.getILoggerFactory();
         if ("ch.qos.logback.classic.LoggerContext".equals(factory.getClass().getName())) {
-            logTracker = new ServiceTracker<LogService, LogService>(context, LOG_SERVICE_NAME, null);
-            logTracker.open();
-
             final ch.qos.logback.classic.Logger root = ((ch.qos.logback.classic.LoggerContext) factory).getLogger(Logger.ROOT_LOGGER_NAME);
 
-            osgiAppender = new OSGIAppender(logTracker, context.getBundle());
+            osgiAppender = new OSGIAppender(context, osgiConfig, metricsRegistry);
             osgiAppender.setContext(root.getLoggerContext());
             osgiAppender.start();
             root.addAppender(osgiAppender);
@@ -204,7 +235,7 @@ public class KillbillActivator implements BundleActivator, AllServiceListener {
 
         registrar.registerService(context, OSGIKillbill.class, osgiKillbill, props);
         registrar.registerService(context, HttpService.class, defaultHttpService, props);
-        registrar.registerService(context, Observable.class, observable, props);
+        registrar.registerServiceFactory(context, Observable.class, observable.getServiceFactory(), props);
         registrar.registerService(context, DataSource.class, dataSource, props);
         registrar.registerService(context, OSGIConfigProperties.class, configProperties, props);
         registrar.registerService(context, Clock.class, clock, props);
@@ -221,29 +252,33 @@ public class KillbillActivator implements BundleActivator, AllServiceListener {
 
         this.context = null;
         context.removeServiceListener(this);
+        registeredServices.clear();
         killbillEventRetriableBusHandler.unregister();
         registrar.unregisterAll();
 
         if (osgiAppender != null) {
             osgiAppender.stop();
         }
-        if (logTracker != null) {
-            logTracker.close();
-        }
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void serviceChanged(final ServiceEvent event) {
-        if (context == null || (event.getType() != ServiceEvent.REGISTERED && event.getType() != ServiceEvent.UNREGISTERING)) {
-            // We are not initialized or uninterested
+        final BundleContext context = this.context;
+        if (context == null) {
+            // We are not initialized
             return;
         }
-        final ServiceReference<?> serviceReference = event.getServiceReference();
-        for (final OSGIServiceRegistrable cur : allRegistrationHandlers) {
-            if (listenForServiceType(serviceReference, event.getType(), cur)) {
+
+        switch (event.getType()) {
+            case ServiceEvent.REGISTERED:
+                onServiceRegistered(context, event.getServiceReference());
+                break;
+            case ServiceEvent.UNREGISTERING:
+                onServiceUnregistering(context, event.getServiceReference());
+                break;
+            default:
+                // Uninterested
                 break;
-            }
         }
     }
 
@@ -251,42 +286,75 @@ public class KillbillActivator implements BundleActivator, AllServiceListener {
         observable.setChangedAndNotifyObservers(new Event(topic, properties));
     }
 
-    private <T> boolean listenForServiceType(final ServiceReference<?> serviceReference, final int eventType, final OSGIServiceRegistrable<T> registration) {
-        final Class<T> claz = registration.getServiceType();
-
-        // Make sure we can retrieve the plugin name
+    private void onServiceRegistered(final BundleContext context, final ServiceReference<?> serviceReference) {
+        // Make sure we can retrieve the plugin name (validated once, unregistrations only look at the services we accepted)
         final String serviceName = (String) serviceReference.getProperty(OSGIPluginProperties.PLUGIN_NAME_PROP);
         if (serviceName == null || !checkSanityPluginRegistrationName(serviceName)) {
             // Quite common for non Killbill bundles
-            logger.debug("Ignoring registered OSGI service {} with no {} property", claz.getName(), OSGIPluginProperties.PLUGIN_NAME_PROP);
-            return true;
+            logger.debug("Ignoring registered OSGI service {} with no valid {} property", serviceReference, OSGIPluginProperties.PLUGIN_NAME_PROP);
+            return;
+        }
+
+        final List<OSGIServiceRegistrable> registrations = new ArrayList<OSGIServiceRegistrable>(1);
+        final Object objectClass = serviceReference.getProperty(Constants.OBJECTCLASS);
+        if (objectClass instanceof String[]) {
+            for (final String type : (String[]) objectClass) {
+                final OSGIServiceRegistrable registration = registrationHandlersByType.get(type);
+                if (registration != null && !registrations.contains(registration)) {
+                    registrations.add(registration);
+                }
+            }
         }
 
         final Object theServiceObject = context.getService(serviceReference);
-        // Is that for us? We look for a subclass here for greater flexibility (e.g. HttpServlet for a Servlet service)
-        if (theServiceObject == null || !claz.isAssignableFrom(theServiceObject.getClass())) {
-            return false;
+        if (theServiceObject == null) {
+            return;
+        }
+
+        if (registrations.isEmpty()) {
+            // We look for a subclass here for greater flexibility (e.g. HttpServlet for a Servlet service)
+            final OSGIServiceRegistrable registration = registrationHandlersByImplementation.get(theServiceObject.getClass());
+            if (registration != null) {
+                registrations.add(registration);
+            }
+        }
+        // The object must implement the registered types
+        registrations.removeIf(registration -> !registration.getServiceType().isInstance(theServiceObject));
+        if (registrations.isEmpty()) {
+            // Not for us
+            context.ungetService(serviceReference);
+            return;
         }
-        @SuppressWarnings("unchecked") final T theService = (T) theServiceObject;
 
         final OSGIServiceDescriptor desc = new DefaultOSGIServiceDescriptor(serviceReference.getBundle().getSymbolicName(),
                                                                             bundleRegistry.getPluginName(serviceReference.getBundle()),
                                                                             serviceName);
-        switch (eventType) {
-            case ServiceEvent.REGISTERED:
-                final T wrappedService = ContextClassLoaderHelper.getWrappedServiceWithCorrectContextClassLoader(theService, claz, serviceName, metricsRegistry);
-                registration.registerService(desc, wrappedService);
-                bundleRegistry.registerService(desc, claz.getName());
-                break;
-            case ServiceEvent.UNREGISTERING:
-                registration.unregisterService(desc.getRegistrationName());
-                bundleRegistry.unregisterService(desc, claz.getName());
-                break;
-            default:
-                break;
+        for (final OSGIServiceRegistrable registration : registrations) {
+            registerService(desc, theServiceObject, registration);
         }
+        registeredServices.put(serviceReference, new ServiceRegistrations(desc, registrations));
+    }
 
-        return true;
+    private void onServiceUnregistering(final BundleContext context, final ServiceReference<?> serviceReference) {
+        final ServiceRegistrations serviceRegistrations = registeredServices.remove(serviceReference);
+        if (serviceRegistrations == null) {
+            // Not for us
+            return;
+        }
+
+        for (final OSGIServiceRegistrable registration : serviceRegistrations.registrations) {
+            registration.unregisterService(serviceRegistrations.desc.getRegistrationName());
+            bundleRegistry.unregisterService(serviceRegistrations.desc, registration.getServiceType().getName());
+        }
+        context.ungetService(serviceReference);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void registerService(final OSGIServiceDescriptor desc, final Object theServiceObject, final OSGIServiceRegistrable<T> registration) {
+        final Class<T> claz = registration.getServiceType();
+        final T wrappedService = ContextClassLoaderHelper.getWrappedServiceWithCorrectContextClassLoader((T) theServiceObject, claz, desc.getRegistrationName(), metricsRegistry);
+        registration.registerService(desc, wrappedService);
+        bundleRegistry.registerService(desc, claz.getName());
     }
 
     private boolean checkSanityPluginRegistrationName(final String pluginName) {
@@ -301,4 +369,15 @@ public class KillbillActivator implements BundleActivator, AllServiceListener {
         }
         return true;
     }
+
+    private static final class ServiceRegistrations {
+
+        private final OSGIServiceDescriptor desc;
+        private final List<OSGIServiceRegistrable> registrations;
+
+        private ServiceRegistrations(final OSGIServiceDescriptor desc, final List<OSGIServiceRegistrable> registrations) {
+            this.desc = desc;
+            this.registrations = registrations;
+        }
+    }
 }
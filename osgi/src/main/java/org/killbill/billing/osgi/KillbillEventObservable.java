@@ -19,13 +19,130 @@
 
 package org.killbill.billing.osgi;
 
-import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
-import java.util.Vector;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.locks.ReentrantLock;
 
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+
+import org.killbill.billing.osgi.KillbillEventSubscriber.Partition;
+import org.killbill.billing.osgi.config.OSGIConfig;
+import org.killbill.billing.util.queue.QueueRetryException;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//
+// Exposed to plugins as a java.util.Observable service (see OSGIKillbillEventDispatcher). In asynchronous mode, each registered
+// Observer gets its own bounded queue(s) and worker thread(s): events for a given account are delivered in order, and plugins
+// handle a bus event in parallel. The bus dispatch thread acks the event as soon as it has been queued for all observers, so
+// that a slow plugin doesn't hold up the bus: failures are reported to a DeliveryFailureHandler instead, which retries the
+// event for the failed observer only (see KillbillEventRetriableBusHandler). Queued events are lost on a crash though.
+//
 public class KillbillEventObservable extends Observable {
 
+    private static final Logger logger = LoggerFactory.getLogger(KillbillEventObservable.class);
+
+    private final boolean async;
+    private final int queueCapacity;
+    private final int nbPartitions;
+    private final MetricRegistry metricRegistry;
+
+    private final List<KillbillEventSubscriber> subscribers = new CopyOnWriteArrayList<KillbillEventSubscriber>();
+    // Guards subscribers changes and all-or-nothing enqueuing
+    private final ReentrantLock dispatchLock = new ReentrantLock();
+
+    @Inject
+    public KillbillEventObservable(final OSGIConfig osgiConfig, @Nullable final MetricRegistry metricRegistry) {
+        this(osgiConfig.isAsyncEventDispatchEnabled(), osgiConfig.getEventDispatchQueueCapacity(), osgiConfig.getEventDispatchNbPartitions(), metricRegistry);
+    }
+
+    public KillbillEventObservable(final boolean async, final int queueCapacity, final int nbPartitions, @Nullable final MetricRegistry metricRegistry) {
+        this.async = async;
+        this.queueCapacity = queueCapacity;
+        this.nbPartitions = Math.max(1, nbPartitions);
+        this.metricRegistry = metricRegistry;
+    }
+
+    @Override
+    public void addObserver(final Observer observer) {
+        if (observer == null) {
+            throw new NullPointerException();
+        }
+        addObserver(observer, observer.getClass().getName());
+    }
+
+    public void addObserver(final Observer observer, final String ownerName) {
+        if (observer == null) {
+            throw new NullPointerException();
+        }
+
+        dispatchLock.lock();
+        try {
+            for (final KillbillEventSubscriber subscriber : subscribers) {
+                if (subscriber.getObserver() == observer) {
+                    return;
+                }
+            }
+            subscribers.add(new KillbillEventSubscriber(this, observer, uniqueSubscriberName(ownerName), queueCapacity, async ? nbPartitions : 0, metricRegistry));
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    @Override
+    public void deleteObserver(final Observer observer) {
+        KillbillEventSubscriber removed = null;
+        dispatchLock.lock();
+        try {
+            for (final KillbillEventSubscriber subscriber : subscribers) {
+                if (subscriber.getObserver() == observer) {
+                    removed = subscriber;
+                    subscribers.remove(subscriber);
+                    break;
+                }
+            }
+        } finally {
+            dispatchLock.unlock();
+        }
+
+        // Outside of the lock, as pending events are drained first
+        if (removed != null) {
+            removed.close();
+        }
+    }
+
+    @Override
+    public void deleteObservers() {
+        final List<KillbillEventSubscriber> removed;
+        dispatchLock.lock();
+        try {
+            removed = new ArrayList<KillbillEventSubscriber>(subscribers);
+            subscribers.clear();
+        } finally {
+            dispatchLock.unlock();
+        }
+
+        for (final KillbillEventSubscriber subscriber : removed) {
+            subscriber.close();
+        }
+    }
+
+    @Override
+    public int countObservers() {
+        return subscribers.size();
+    }
+
     //
     // Override notifyObservers from Observable to prevent from having to
     // call setChanged and then notifyObservers, which are not atomic
@@ -33,31 +150,169 @@ public class KillbillEventObservable extends Observable {
     //
     @Override
     public void notifyObservers(final Object arg) {
-        final Vector obsCopy = getDeclaredField("obs");
-        final Object[] arrLocal = obsCopy.toArray();
-        for (int i = arrLocal.length - 1; i >= 0; i--) {
-            ((Observer) arrLocal[i]).update(this, arg);
-        }
+        // Framework events are fire-and-forget
+        dispatch(arg, null, null, true, null);
     }
 
     public void setChangedAndNotifyObservers(final Object event) {
-        setChanged();
         notifyObservers(event);
     }
 
-    //
-    // Ugly hack to access private field 'obs'
-    //
-    @SuppressWarnings("unchecked")
-    private <T> T getDeclaredField(final String fieldName) {
+    /**
+     * Dispatch a Kill Bill bus event to all observers, failures being logged in asynchronous mode.
+     *
+     * @see #dispatchBusEvent(Object, Long, String, DeliveryFailureHandler)
+     */
+    public void dispatchBusEvent(final Object event, @Nullable final Long partitionKey) {
+        dispatchBusEvent(event, partitionKey, null, null);
+    }
+
+    /**
+     * Dispatch a Kill Bill bus event.
+     *
+     * @param event          the event
+     * @param partitionKey   key guaranteeing ordering (typically the account search key), null for global ordering
+     * @param observerName   name of the observer to deliver the event to (retries), null for all observers
+     * @param failureHandler notified when an observer fails to handle the event (asynchronous mode), null to log failures
+     * @throws QueueRetryException if the queue of at least one observer is full (the event isn't delivered to any observer)
+     * @throws RuntimeException    the first failure from an observer (synchronous mode)
+     */
+    public void dispatchBusEvent(final Object event,
+                                 @Nullable final Long partitionKey,
+                                 @Nullable final String observerName,
+                                 @Nullable final DeliveryFailureHandler failureHandler) {
+        dispatch(event, partitionKey, observerName, false, failureHandler);
+    }
+
+    private void dispatch(final Object event,
+                          @Nullable final Long partitionKey,
+                          @Nullable final String observerName,
+                          final boolean ignoreCapacity,
+                          @Nullable final DeliveryFailureHandler failureHandler) {
+        if (!async) {
+            // Legacy behavior: most recently registered observers first, on the caller thread
+            final Object[] arrLocal = subscribers.toArray();
+            for (int i = arrLocal.length - 1; i >= 0; i--) {
+                final KillbillEventSubscriber subscriber = (KillbillEventSubscriber) arrLocal[i];
+                if (observerName == null || observerName.equals(subscriber.getName())) {
+                    subscriber.deliverSynchronously(event);
+                }
+            }
+            return;
+        }
+
+        dispatchLock.lock();
         try {
-            final Field f = Observable.class.getDeclaredField(fieldName);
-            f.setAccessible(true);
-            return (T) f.get(this);
-        } catch (final NoSuchFieldException e) {
-            throw new RuntimeException("Failed to retrieve private field from Observable class " + fieldName, e);
-        } catch (final IllegalAccessException e) {
-            throw new RuntimeException("Failed to retrieve private field from Observable class " + fieldName, e);
+            final Partition[] targetPartitions = new Partition[subscribers.size()];
+            boolean hasTarget = false;
+            int i = 0;
+            for (final KillbillEventSubscriber subscriber : subscribers) {
+                if (observerName == null || observerName.equals(subscriber.getName())) {
+                    final Partition partition = subscriber.getPartition(partitionKey);
+                    if (!ignoreCapacity && !subscriber.hasCapacity(partition)) {
+                        // Fall back on the retry mechanism (see KillbillEventRetriableBusHandler)
+                        throw new QueueRetryException(new IllegalStateException("Event queue full for plugin handler " + subscriber.getName()),
+                                                      QueueRetryException.DEFAULT_RETRY_SCHEDULE);
+                    }
+                    targetPartitions[i] = partition;
+                    hasTarget = true;
+                }
+                i++;
+            }
+
+            if (!hasTarget) {
+                if (observerName != null) {
+                    logger.info("Plugin handler {} isn't registered anymore, dropping event {}", observerName, event);
+                }
+                return;
+            }
+
+            i = 0;
+            for (final KillbillEventSubscriber subscriber : subscribers) {
+                if (targetPartitions[i] != null) {
+                    subscriber.enqueue(targetPartitions[i], event, failureHandler);
+                }
+                i++;
+            }
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    // Must be called with dispatchLock held
+    private String uniqueSubscriberName(@Nullable final String ownerName) {
+        final String baseName = ownerName == null ? "unknown" : ownerName;
+        final Set<String> existingNames = new HashSet<String>();
+        for (final KillbillEventSubscriber subscriber : subscribers) {
+            existingNames.add(subscriber.getName());
+        }
+
+        String name = baseName;
+        int i = 2;
+        while (existingNames.contains(name)) {
+            name = baseName + "-" + i++;
+        }
+        return name;
+    }
+
+    // Asynchronous mode: the bus event has already been acked by the time an observer fails
+    public interface DeliveryFailureHandler {
+
+        void onFailure(String observerName, Throwable failure);
+    }
+
+    // Service factory to give each bundle its own view, so that observers can be named after (and cleaned-up with) their bundle
+    public ServiceFactory<Observable> getServiceFactory() {
+        return new ServiceFactory<Observable>() {
+            @Override
+            public Observable getService(final Bundle bundle, final ServiceRegistration<Observable> registration) {
+                return new BundleObservable(bundle.getSymbolicName());
+            }
+
+            @Override
+            public void ungetService(final Bundle bundle, final ServiceRegistration<Observable> registration, final Observable service) {
+                service.deleteObservers();
+            }
+        };
+    }
+
+    private final class BundleObservable extends Observable {
+
+        private final String bundleSymbolicName;
+        private final Set<Observer> bundleObservers = new CopyOnWriteArraySet<Observer>();
+
+        private BundleObservable(final String bundleSymbolicName) {
+            this.bundleSymbolicName = bundleSymbolicName;
+        }
+
+        @Override
+        public void addObserver(final Observer observer) {
+            KillbillEventObservable.this.addObserver(observer, bundleSymbolicName);
+            bundleObservers.add(observer);
+        }
+
+        @Override
+        public void deleteObserver(final Observer observer) {
+            if (bundleObservers.remove(observer)) {
+                KillbillEventObservable.this.deleteObserver(observer);
+            }
+        }
+
+        @Override
+        public void deleteObservers() {
+            for (final Observer observer : bundleObservers) {
+                deleteObserver(observer);
+            }
+        }
+
+        @Override
+        public int countObservers() {
+            return bundleObservers.size();
+        }
+
+        @Override
+        public void notifyObservers(final Object arg) {
+            KillbillEventObservable.this.notifyObservers(arg);
         }
     }
 }
@@ -20,15 +20,19 @@
 package org.killbill.billing.osgi;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 
 import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.osgi.KillbillEventObservable.DeliveryFailureHandler;
 import org.killbill.billing.osgi.api.KillbillEventRetriableBusHandlerService;
 import org.killbill.billing.platform.api.LifecycleHandlerType;
 import org.killbill.billing.platform.api.LifecycleHandlerType.LifecycleLevel;
+import org.killbill.billing.util.queue.QueueRetryException;
 import org.killbill.bus.api.BusEvent;
 import org.killbill.bus.api.PersistentBus;
 import org.killbill.bus.api.PersistentBus.EventBusException;
@@ -38,22 +42,27 @@ import org.killbill.commons.eventbus.Subscribe;
 import org.killbill.notificationq.api.NotificationQueueService;
 import org.killbill.notificationq.api.NotificationQueueService.NoSuchNotificationQueue;
 import org.killbill.queue.QueueObjectMapper;
+import org.killbill.queue.retry.RetryableInternalException;
 import org.killbill.queue.retry.RetryableService;
 import org.killbill.queue.retry.RetryableSubscriber;
 import org.killbill.queue.retry.RetryableSubscriber.SubscriberAction;
 import org.killbill.queue.retry.RetryableSubscriber.SubscriberQueueHandler;
+import org.killbill.queue.retry.SubscriberNotificationEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
 // Needs to be injected for the lifecycle logic
 public class KillbillEventRetriableBusHandler extends RetryableService implements KillbillEventRetriableBusHandlerService {
@@ -62,6 +71,7 @@ public class KillbillEventRetriableBusHandler extends RetryableService implement
 
     private final PersistentBus externalBus;
     private final KillbillEventObservable killbillEventObservable;
+    private final Clock clock;
     private final RetryableSubscriber retryableSubscriber;
     private final SubscriberQueueHandler subscriberQueueHandler = new SubscriberQueueHandler();
 
@@ -73,13 +83,25 @@ public class KillbillEventRetriableBusHandler extends RetryableService implement
         super(notificationQueueService);
         this.externalBus = externalBus;
         this.killbillEventObservable = killbillEventObservable;
+        this.clock = clock;
         subscriberQueueHandler.subscribe(OSGIBusEvent.class,
                                          new SubscriberAction<OSGIBusEvent>() {
                                              @Override
                                              public void run(final OSGIBusEvent osgiBusEvent) {
                                                  final ExtBusEvent extBusEvent = osgiBusEvent.getExtBusEvent();
-                                                 logger.debug("Received external event " + extBusEvent.toString());
-                                                 killbillEventObservable.setChangedAndNotifyObservers(extBusEvent);
+                                                 if (logger.isDebugEnabled()) {
+                                                     logger.debug("Received external event {}", extBusEvent);
+                                                 }
+                                                 // Ordered per account (throws QueueRetryException if a plugin queue is full)
+                                                 killbillEventObservable.dispatchBusEvent(extBusEvent,
+                                                                                          osgiBusEvent.getSearchKey1() != null ? osgiBusEvent.getSearchKey1() : osgiBusEvent.getSearchKey2(),
+                                                                                          osgiBusEvent.getPluginHandlerName(),
+                                                                                          new DeliveryFailureHandler() {
+                                                                                              @Override
+                                                                                              public void onFailure(final String pluginHandlerName, final Throwable failure) {
+                                                                                                  scheduleRetry(osgiBusEvent, pluginHandlerName, failure);
+                                                                                              }
+                                                                                          });
                                              }
                                          });
         this.retryableSubscriber = new RetryableSubscriber(clock, this, subscriberQueueHandler);
@@ -128,17 +150,57 @@ public class KillbillEventRetriableBusHandler extends RetryableService implement
         retryableSubscriber.handleEvent(event);
     }
 
+    // Asynchronous dispatch: the bus event has already been acked, so only the failed plugin handler gets it again
+    private void scheduleRetry(final OSGIBusEvent osgiBusEvent, final String pluginHandlerName, final Throwable failure) {
+        final QueueRetryException retryException;
+        if (failure instanceof QueueRetryException && ((QueueRetryException) failure).getRetrySchedule() != null) {
+            retryException = (QueueRetryException) failure;
+        } else {
+            // Failures used to be retried by the bus itself
+            retryException = new QueueRetryException(failure instanceof Exception ? (Exception) failure : new RuntimeException(failure), QueueRetryException.DEFAULT_RETRY_SCHEDULE);
+        }
+
+        final OSGIBusEvent retryEvent = new OSGIBusEvent(osgiBusEvent.getExtBusEvent(), osgiBusEvent.getExtBusEventClass(), pluginHandlerName, osgiBusEvent.getRetryNb() + 1);
+        try {
+            scheduleRetry(retryException,
+                          new SubscriberNotificationEvent(retryEvent, retryEvent.getClass()),
+                          clock.getUTCNow(),
+                          retryEvent.getUserToken(),
+                          retryEvent.getSearchKey1(),
+                          retryEvent.getSearchKey2(),
+                          retryEvent.getRetryNb());
+        } catch (final RetryableInternalException e) {
+            // Always thrown, the outcome has been logged already
+            if (logger.isDebugEnabled()) {
+                logger.debug("Plugin handler {} failed to handle event {}, retried={}", pluginHandlerName, osgiBusEvent.getExtBusEvent(), e.isRetried());
+            }
+        }
+    }
+
+    // The class is serialized first, so that the event can be deserialized without buffering it
+    @JsonPropertyOrder({"extBusEventClass", "extBusEvent"})
     @JsonDeserialize(using = OSGIBusEventDeserializer.class)
     protected static class OSGIBusEvent implements BusEvent {
 
         private final ExtBusEvent extBusEvent;
         private final Class extBusEventClass;
+        // Set when the event is retried for a single plugin handler (asynchronous dispatch)
+        private final String pluginHandlerName;
+        private final int retryNb;
+
+        public OSGIBusEvent(final ExtBusEvent extBusEvent, final Class extBusEventClass) {
+            this(extBusEvent, extBusEventClass, null, 0);
+        }
 
         @JsonCreator
         public OSGIBusEvent(@JsonProperty("extBusEvent") final ExtBusEvent extBusEvent,
-                            @JsonProperty("extBusEventClass") final Class extBusEventClass) {
+                            @JsonProperty("extBusEventClass") final Class extBusEventClass,
+                            @JsonProperty("pluginHandlerName") final String pluginHandlerName,
+                            @JsonProperty("retryNb") final int retryNb) {
             this.extBusEvent = extBusEvent;
             this.extBusEventClass = extBusEventClass;
+            this.pluginHandlerName = pluginHandlerName;
+            this.retryNb = retryNb;
         }
 
         public ExtBusEvent getExtBusEvent() {
@@ -149,6 +211,14 @@ public class KillbillEventRetriableBusHandler extends RetryableService implement
             return extBusEventClass;
         }
 
+        public String getPluginHandlerName() {
+            return pluginHandlerName;
+        }
+
+        public int getRetryNb() {
+            return retryNb;
+        }
+
         @Override
         public Long getSearchKey1() {
             final UUID accountId = extBusEvent.getAccountId();
@@ -171,6 +241,8 @@ public class KillbillEventRetriableBusHandler extends RetryableService implement
             final StringBuilder sb = new StringBuilder("OSGIBusEvent{");
             sb.append("extBusEvent=").append(extBusEvent);
             sb.append(", extBusEventClass=").append(extBusEventClass);
+            sb.append(", pluginHandlerName='").append(pluginHandlerName).append('\'');
+            sb.append(", retryNb=").append(retryNb);
             sb.append('}');
             return sb.toString();
         }
@@ -186,6 +258,12 @@ public class KillbillEventRetriableBusHandler extends RetryableService implement
 
             final OSGIBusEvent event = (OSGIBusEvent) o;
 
+            if (retryNb != event.retryNb) {
+                return false;
+            }
+            if (pluginHandlerName != null ? !pluginHandlerName.equals(event.pluginHandlerName) : event.pluginHandlerName != null) {
+                return false;
+            }
             if (extBusEvent != null ? !extBusEvent.equals(event.extBusEvent) : event.extBusEvent != null) {
                 return false;
             }
@@ -196,26 +274,91 @@ public class KillbillEventRetriableBusHandler extends RetryableService implement
         public int hashCode() {
             int result = extBusEvent != null ? extBusEvent.hashCode() : 0;
             result = 31 * result + (extBusEventClass != null ? extBusEventClass.hashCode() : 0);
+            result = 31 * result + (pluginHandlerName != null ? pluginHandlerName.hashCode() : 0);
+            result = 31 * result + retryNb;
             return result;
         }
     }
 
     protected static class OSGIBusEventDeserializer extends JsonDeserializer<OSGIBusEvent> {
 
+        // Plenty for the event classes of a deployment, guards against unbounded growth on garbage input
+        static final int MAX_CACHED_CLASSES = 64;
+
         private static final ObjectMapper objectMapper = QueueObjectMapper.get();
+        private static final Map<String, ObjectReader> readers = new ConcurrentHashMap<String, ObjectReader>();
 
         @Override
         public OSGIBusEvent deserialize(final JsonParser p, final DeserializationContext ctxt) throws IOException, JsonProcessingException {
-            final JsonNode node = p.getCodec().readTree(p);
+            ObjectReader reader = null;
+            ExtBusEvent extBusEvent = null;
+            String pluginHandlerName = null;
+            int retryNb = 0;
+            // Events serialized before the class (older entries)
+            TokenBuffer bufferedExtBusEvent = null;
+
+            JsonToken token = p.currentToken() == JsonToken.START_OBJECT ? p.nextToken() : p.currentToken();
+            for (; token == JsonToken.FIELD_NAME; token = p.nextToken()) {
+                final String fieldName = p.getCurrentName();
+                p.nextToken();
+                if ("extBusEventClass".equals(fieldName)) {
+                    reader = getReader(p.getValueAsString());
+                } else if ("extBusEvent".equals(fieldName)) {
+                    if (reader != null) {
+                        extBusEvent = reader.readValue(p);
+                    } else {
+                        bufferedExtBusEvent = ctxt.bufferAsCopyOfValue(p);
+                    }
+                } else if ("pluginHandlerName".equals(fieldName)) {
+                    pluginHandlerName = p.getValueAsString();
+                } else if ("retryNb".equals(fieldName)) {
+                    retryNb = p.getValueAsInt();
+                } else {
+                    // searchKey1, searchKey2, userToken: derived from the event
+                    p.skipChildren();
+                }
+            }
+
+            if (reader == null) {
+                throw new IOException("Missing extBusEventClass");
+            }
+            if (bufferedExtBusEvent != null) {
+                try (final JsonParser bufferedParser = bufferedExtBusEvent.asParser()) {
+                    bufferedParser.nextToken();
+                    extBusEvent = reader.readValue(bufferedParser);
+                }
+            }
+
+            return new OSGIBusEvent(extBusEvent, reader.getValueType().getRawClass(), pluginHandlerName, retryNb);
+        }
 
-            final Class<ExtBusEvent> extBusEventClass;
+        private static ObjectReader getReader(final String extBusEventClassName) throws IOException {
+            if (extBusEventClassName == null) {
+                throw new IOException("Missing extBusEventClass");
+            }
+
+            final ObjectReader cachedReader = readers.get(extBusEventClassName);
+            if (cachedReader != null) {
+                return cachedReader;
+            }
+
+            final Class<?> extBusEventClass;
             try {
-                extBusEventClass = (Class<ExtBusEvent>) Class.forName(node.get("extBusEventClass").textValue());
+                extBusEventClass = Class.forName(extBusEventClassName);
             } catch (final ClassNotFoundException e) {
                 throw new IOException(e);
             }
 
-            return new OSGIBusEvent(objectMapper.treeToValue(node.get("extBusEvent"), extBusEventClass), extBusEventClass);
+            final ObjectReader reader = objectMapper.readerFor(extBusEventClass);
+            if (readers.size() < MAX_CACHED_CLASSES) {
+                readers.put(extBusEventClassName, reader);
+            }
+            return reader;
+        }
+
+        // Visible for testing
+        static int getNbCachedClasses() {
+            return readers.size();
         }
     }
 }
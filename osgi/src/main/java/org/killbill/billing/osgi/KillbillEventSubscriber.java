@@ -0,0 +1,275 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.osgi.KillbillEventObservable.DeliveryFailureHandler;
+import org.killbill.billing.util.queue.QueueRetryException;
+import org.killbill.commons.concurrent.Executors;
+import org.killbill.commons.metrics.api.Gauge;
+import org.killbill.commons.metrics.api.Meter;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.metrics.api.Timer;
+import org.killbill.commons.utils.Joiner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// One plugin Observer, with its own bounded queue(s) and worker thread(s) so that a slow plugin doesn't hold up the others
+// (no partition in synchronous mode)
+class KillbillEventSubscriber {
+
+    private static final Logger logger = LoggerFactory.getLogger(KillbillEventSubscriber.class);
+
+    private static final Joiner DOT_JOINER = Joiner.on(".");
+    private static final long SHUTDOWN_TIMEOUT_SEC = 5;
+
+    private final Observable observable;
+    private final Observer observer;
+    private final String name;
+    private final int capacity;
+    private final Partition[] partitions;
+
+    private final MetricRegistry metricRegistry;
+    private final String queueDepthMetricName;
+    private final String lagMetricName;
+    private final String errorMetricName;
+    private final String overflowMetricName;
+    private final Timer lagTimer;
+    private final Meter errorMeter;
+    private final Meter overflowMeter;
+
+    KillbillEventSubscriber(final Observable observable,
+                            final Observer observer,
+                            final String name,
+                            final int capacity,
+                            final int nbPartitions,
+                            @Nullable final MetricRegistry metricRegistry) {
+        this.observable = observable;
+        this.observer = observer;
+        this.name = name;
+        this.capacity = capacity;
+        this.partitions = new Partition[nbPartitions];
+        for (int i = 0; i < nbPartitions; i++) {
+            partitions[i] = new Partition("osgi-events-" + name + "-" + i);
+        }
+
+        // Queue metrics are meaningless in synchronous mode
+        this.metricRegistry = nbPartitions > 0 ? metricRegistry : null;
+        this.queueDepthMetricName = metricName("kb_plugin_events_queue_depth");
+        this.lagMetricName = metricName("kb_plugin_events_lag");
+        this.errorMetricName = metricName("kb_plugin_events_errors");
+        this.overflowMetricName = metricName("kb_plugin_events_overflows");
+        if (this.metricRegistry != null) {
+            metricRegistry.gauge(queueDepthMetricName, new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return getQueueDepth();
+                }
+            });
+            this.lagTimer = metricRegistry.timer(lagMetricName);
+            this.errorMeter = metricRegistry.meter(errorMetricName);
+            this.overflowMeter = metricRegistry.meter(overflowMetricName);
+        } else {
+            this.lagTimer = null;
+            this.errorMeter = null;
+            this.overflowMeter = null;
+        }
+    }
+
+    Observer getObserver() {
+        return observer;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getQueueDepth() {
+        int queueDepth = 0;
+        for (final Partition partition : partitions) {
+            queueDepth += partition.pending.get();
+        }
+        return queueDepth;
+    }
+
+    // Events for a given key are always handled by the same partition, in order
+    Partition getPartition(@Nullable final Long partitionKey) {
+        if (partitionKey == null || partitions.length == 1) {
+            return partitions[0];
+        }
+        return partitions[(int) Long.remainderUnsigned(Long.hashCode(partitionKey), partitions.length)];
+    }
+
+    boolean hasCapacity(final Partition partition) {
+        if (partition.pending.get() < capacity) {
+            return true;
+        }
+        if (overflowMeter != null) {
+            overflowMeter.mark(1);
+        }
+        return false;
+    }
+
+    // Capacity is enforced by the caller (see KillbillEventObservable#dispatch), framework events always go through.
+    // Bus events come with a failure handler, as they have already been acked by the time the observer gets them.
+    void enqueue(final Partition partition, final Object event, @Nullable final DeliveryFailureHandler failureHandler) {
+        final DeliveryTask task = new DeliveryTask(partition, event, failureHandler);
+        partition.pending.incrementAndGet();
+        partition.queued.add(task);
+        try {
+            partition.executor.execute(task);
+        } catch (final RejectedExecutionException e) {
+            task.abort(e);
+        }
+    }
+
+    private void deliver(final Object event, @Nullable final DeliveryFailureHandler failureHandler) {
+        try {
+            observer.update(observable, event);
+        } catch (final RuntimeException e) {
+            if (errorMeter != null) {
+                errorMeter.mark(1);
+            }
+            failed(event, failureHandler, e);
+        } catch (final Error e) {
+            failed(event, failureHandler, e);
+            throw e;
+        }
+    }
+
+    private void failed(final Object event, @Nullable final DeliveryFailureHandler failureHandler, final Throwable failure) {
+        if (failureHandler == null) {
+            logger.warn("Plugin handler {} failed to handle event {}", name, event, failure);
+            return;
+        }
+
+        try {
+            failureHandler.onFailure(name, failure);
+        } catch (final RuntimeException e) {
+            logger.warn("Plugin handler {} failed to handle event {}, unable to retry it", name, event, failure);
+        }
+    }
+
+    // Synchronous mode: exceptions are propagated to the caller (and the event retried)
+    void deliverSynchronously(final Object event) {
+        observer.update(observable, event);
+    }
+
+    // Pending events are still delivered, unless they take longer than SHUTDOWN_TIMEOUT_SEC
+    void close() {
+        for (final Partition partition : partitions) {
+            partition.executor.shutdown();
+        }
+        for (final Partition partition : partitions) {
+            if (partition.workerThread == Thread.currentThread()) {
+                // Observer unregistering itself from its own callback
+                continue;
+            }
+            try {
+                if (!partition.executor.awaitTermination(SHUTDOWN_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                    logger.warn("Plugin handler {} didn't handle its {} pending events in time", name, partition.pending.get());
+                    abortPendingEvents(partition);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abortPendingEvents(partition);
+            }
+        }
+
+        if (metricRegistry != null) {
+            metricRegistry.remove(queueDepthMetricName);
+            metricRegistry.remove(lagMetricName);
+            metricRegistry.remove(errorMetricName);
+            metricRegistry.remove(overflowMetricName);
+        }
+    }
+
+    // Dropped bus events are retried
+    private void abortPendingEvents(final Partition partition) {
+        partition.executor.shutdownNow();
+        final IllegalStateException cause = new IllegalStateException("Plugin handler " + name + " was stopped before handling the event");
+        for (final DeliveryTask task : partition.queued) {
+            task.abort(cause);
+        }
+    }
+
+    private String metricName(final String metric) {
+        return DOT_JOINER.join("killbill-service", metric, name);
+    }
+
+    private final class DeliveryTask implements Runnable {
+
+        private final Partition partition;
+        private final Object event;
+        private final DeliveryFailureHandler failureHandler;
+        private final long enqueuedNanos;
+
+        private DeliveryTask(final Partition partition, final Object event, @Nullable final DeliveryFailureHandler failureHandler) {
+            this.partition = partition;
+            this.event = event;
+            this.failureHandler = failureHandler;
+            this.enqueuedNanos = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            if (!partition.queued.remove(this)) {
+                // Already aborted
+                return;
+            }
+            partition.workerThread = Thread.currentThread();
+            partition.pending.decrementAndGet();
+            if (lagTimer != null) {
+                lagTimer.update(System.nanoTime() - enqueuedNanos, TimeUnit.NANOSECONDS);
+            }
+            deliver(event, failureHandler);
+        }
+
+        private void abort(final Exception cause) {
+            if (!partition.queued.remove(this)) {
+                // Already running
+                return;
+            }
+            partition.pending.decrementAndGet();
+            failed(event, failureHandler, new QueueRetryException(cause, QueueRetryException.DEFAULT_RETRY_SCHEDULE));
+        }
+    }
+
+    static final class Partition {
+
+        private final ExecutorService executor;
+        private final AtomicInteger pending = new AtomicInteger(0);
+        // Events not handed over to the observer yet
+        private final Set<DeliveryTask> queued = ConcurrentHashMap.newKeySet();
+        private volatile Thread workerThread;
+
+        private Partition(final String threadName) {
+            this.executor = Executors.newSingleThreadExecutor(threadName);
+        }
+    }
+}
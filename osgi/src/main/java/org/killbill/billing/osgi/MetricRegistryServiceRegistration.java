@@ -18,9 +18,9 @@
 package org.killbill.billing.osgi;
 
 import java.util.AbstractMap.SimpleEntry;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.inject.Singleton;
 
@@ -35,8 +35,9 @@ public class MetricRegistryServiceRegistration implements OSGISingleServiceRegis
 
     private static final Logger logger = LoggerFactory.getLogger(MetricRegistryServiceRegistration.class);
 
-    private Entry<String, MetricRegistry> pluginRegistration;
-    private final List<Runnable> listeners = new LinkedList<>();
+    // Read on the hot path by the metric handles (see KillbillPluginsMetricRegistry)
+    private volatile Entry<String, MetricRegistry> pluginRegistration;
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
 
     @Override
     public void registerService(final OSGIServiceDescriptor desc, final MetricRegistry service) {
@@ -61,10 +62,11 @@ public class MetricRegistryServiceRegistration implements OSGISingleServiceRegis
 
     @Override
     public MetricRegistry getService() {
-        if (pluginRegistration == null) {
+        final Entry<String, MetricRegistry> currentRegistration = pluginRegistration;
+        if (currentRegistration == null) {
             return null;
         }
-        return pluginRegistration.getValue();
+        return currentRegistration.getValue();
     }
 
     @Override
@@ -22,8 +22,23 @@ package org.killbill.billing.osgi;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+import javax.annotation.Nullable;
+
+import org.killbill.billing.osgi.config.OSGIConfig;
+import org.killbill.commons.concurrent.Executors;
+import org.killbill.commons.metrics.api.Gauge;
+import org.killbill.commons.metrics.api.Meter;
+import org.killbill.commons.metrics.api.MetricRegistry;
 import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.log.LogService;
 import org.osgi.util.tracker.ServiceTracker;
@@ -33,19 +48,223 @@ import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.ThrowableProxy;
 import ch.qos.logback.core.UnsynchronizedAppenderBase;
 
+/**
+ * Forwards the core log entries to the OSGI LogService. In asynchronous mode, events are put on a bounded queue and
+ * forwarded by a dedicated thread, so that logging threads never wait for the LogService: when the queue is full,
+ * events are dropped according to the {@link OverflowPolicy}. Pending events are flushed when the appender is stopped.
+ */
 public class OSGIAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
 
-    private final ServiceTracker<LogService, LogService> logTracker;
+    public enum OverflowPolicy {
+        // Evict the oldest pending event
+        DROP_OLDEST,
+        // Drop the new event if its level is below the overflow level, evict the oldest pending event otherwise
+        DROP_BELOW_LEVEL
+    }
+
+    private static final String LOG_SERVICE_NAME = "org.osgi.service.log.LogService";
+    private static final String QUEUE_DEPTH_METRIC_NAME = "killbill-service.kb_osgi_log_queue_depth";
+    private static final String DROPPED_METRIC_NAME = "killbill-service.kb_osgi_log_events_dropped";
+    private static final long DRAIN_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SHUTDOWN_TIMEOUT_SEC = 5;
+
+    private final LogServiceTracker logTracker;
     private final ServiceReference SR;
+    private final boolean async;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final Level overflowLevel;
+    private final MetricRegistry metricRegistry;
+    private final Meter droppedMeter;
+
+    private final Queue<ILoggingEvent> queue = new ConcurrentLinkedQueue<ILoggingEvent>();
+    // ConcurrentLinkedQueue#size isn't constant time
+    private final AtomicInteger queueSize = new AtomicInteger(0);
+    private final AtomicLong nbDroppedEvents = new AtomicLong(0);
+
+    // Refreshed by the tracker callbacks
+    private volatile LogService logService;
+
+    private ExecutorService drainExecutor;
+    private volatile boolean draining;
+    private volatile Thread drainThread;
+    private volatile boolean drainThreadParked;
+
+    public OSGIAppender(final BundleContext context, final OSGIConfig osgiConfig, @Nullable final MetricRegistry metricRegistry) {
+        this(context,
+             osgiConfig.isAsyncLogForwardingEnabled(),
+             osgiConfig.getLogForwardingQueueCapacity(),
+             OverflowPolicy.valueOf(osgiConfig.getLogForwardingOverflowPolicy()),
+             toLevel(osgiConfig.getLogForwardingOverflowLevel()),
+             metricRegistry);
+    }
+
+    public OSGIAppender(final BundleContext context,
+                        final boolean async,
+                        final int capacity,
+                        final OverflowPolicy overflowPolicy,
+                        final Level overflowLevel,
+                        @Nullable final MetricRegistry metricRegistry) {
+        if (async && capacity <= 0) {
+            throw new IllegalArgumentException("Invalid log forwarding queue capacity " + capacity);
+        }
+        this.logTracker = new LogServiceTracker(context);
+        this.SR = new RootBundleLogbackServiceReference(context.getBundle());
+        this.async = async;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.overflowLevel = overflowLevel;
+        this.metricRegistry = metricRegistry;
+        this.droppedMeter = metricRegistry != null ? metricRegistry.meter(DROPPED_METRIC_NAME) : null;
+    }
+
+    @Override
+    public void start() {
+        if (isStarted()) {
+            return;
+        }
 
-    public OSGIAppender(final ServiceTracker<LogService, LogService> logTracker, final Bundle bundle) {
-        this.logTracker = logTracker;
-        this.SR = new RootBundleLogbackServiceReference(bundle);
+        logTracker.open();
+        if (async) {
+            if (metricRegistry != null) {
+                metricRegistry.gauge(QUEUE_DEPTH_METRIC_NAME, new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return getQueueDepth();
+                    }
+                });
+            }
+            draining = true;
+            drainExecutor = Executors.newSingleThreadExecutor("osgi-log-forwarder");
+            drainExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+        super.start();
+    }
+
+    // Pending events are still forwarded, unless it takes longer than SHUTDOWN_TIMEOUT_SEC
+    @Override
+    public void stop() {
+        if (!isStarted()) {
+            return;
+        }
+
+        // No new event from now on
+        super.stop();
+
+        if (drainExecutor != null) {
+            draining = false;
+            wakeUpDrainThread();
+            drainExecutor.shutdown();
+            try {
+                if (!drainExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                    addWarn("Unable to forward " + getQueueDepth() + " pending log events to the LogService in time");
+                    drainExecutor.shutdownNow();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                drainExecutor.shutdownNow();
+            }
+            drainExecutor = null;
+
+            if (metricRegistry != null) {
+                metricRegistry.remove(QUEUE_DEPTH_METRIC_NAME);
+            }
+        }
+
+        logTracker.close();
+    }
+
+    int getQueueDepth() {
+        return queueSize.get();
+    }
+
+    long getNbDroppedEvents() {
+        return nbDroppedEvents.get();
     }
 
     @Override
     protected void append(final ILoggingEvent eventObject) {
-        final LogService logService = logTracker.getService();
+        if (!async) {
+            forward(eventObject);
+            return;
+        }
+
+        // Nobody to forward it to: don't pay for the formatting, nor take room in the queue
+        if (logService == null) {
+            return;
+        }
+
+        // Formatted message, MDC, thread name, etc. must be captured on the logging thread
+        eventObject.prepareForDeferredProcessing();
+
+        if (queueSize.incrementAndGet() > capacity) {
+            if (overflowPolicy == OverflowPolicy.DROP_BELOW_LEVEL && !eventObject.getLevel().isGreaterOrEqual(overflowLevel)) {
+                queueSize.decrementAndGet();
+                markDropped();
+                return;
+            }
+
+            if (queue.poll() != null) {
+                queueSize.decrementAndGet();
+                markDropped();
+            }
+        }
+        queue.offer(eventObject);
+
+        if (drainThreadParked) {
+            wakeUpDrainThread();
+        }
+    }
+
+    private void drain() {
+        drainThread = Thread.currentThread();
+        while (true) {
+            final ILoggingEvent event = queue.poll();
+            if (event != null) {
+                queueSize.decrementAndGet();
+                try {
+                    forward(event);
+                } catch (final RuntimeException e) {
+                    addWarn("Unable to forward log event to the LogService", e);
+                }
+                continue;
+            }
+
+            if (!draining) {
+                // Flushed
+                return;
+            }
+
+            drainThreadParked = true;
+            // Re-check after publishing the flag, so that a concurrent append cannot be missed
+            if (queue.isEmpty() && draining) {
+                LockSupport.parkNanos(this, DRAIN_PARK_NANOS);
+            }
+            drainThreadParked = false;
+        }
+    }
+
+    private void wakeUpDrainThread() {
+        final Thread thread = drainThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void markDropped() {
+        nbDroppedEvents.incrementAndGet();
+        if (droppedMeter != null) {
+            droppedMeter.mark(1);
+        }
+    }
+
+    private void forward(final ILoggingEvent eventObject) {
+        final LogService logService = this.logService;
         if (logService == null) {
             return;
         }
@@ -84,6 +303,44 @@ public class OSGIAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
         logService.log(SR, level, eventObject.getFormattedMessage(), t);
     }
 
+    private static Level toLevel(final String level) {
+        final Level result = Level.toLevel(level, null);
+        if (result == null) {
+            throw new IllegalArgumentException("Invalid log forwarding overflow level " + level);
+        }
+        return result;
+    }
+
+    // Keeps the LogService reference up to date, instead of looking it up for each event
+    private final class LogServiceTracker extends ServiceTracker<LogService, LogService> {
+
+        private LogServiceTracker(final BundleContext context) {
+            super(context, LOG_SERVICE_NAME, null);
+        }
+
+        @Override
+        public LogService addingService(final ServiceReference<LogService> reference) {
+            final LogService service = super.addingService(reference);
+            // The service isn't tracked yet: the first one wins, until it goes away
+            if (logService == null) {
+                logService = service;
+            }
+            return service;
+        }
+
+        @Override
+        public void modifiedService(final ServiceReference<LogService> reference, final LogService service) {
+            super.modifiedService(reference, service);
+            logService = getService();
+        }
+
+        @Override
+        public void removedService(final ServiceReference<LogService> reference, final LogService service) {
+            super.removedService(reference, service);
+            logService = getService();
+        }
+    }
+
     private static final class RootBundleLogbackServiceReference implements ServiceReference {
 
         // MAGIC - do not change (see KillbillLogWriter)
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the Felix storage directory between restarts. The cache is trusted only for the bundles whose jar
+ * (location, size and SHA-256 digest) is unchanged since the manifest was written: the other ones are uninstalled
+ * (and re-installed from the new jar), and the whole cache is wiped when the manifest cannot be trusted.
+ * <p>
+ * Lifecycle: {@link #prepare()} before the framework is initialized, {@link #evictChangedBundles(Framework)} once
+ * initialized (cached bundles are loaded), and {@link #save(Framework, Iterable)} once the bundles are installed.
+ */
+class OSGIBundleCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(OSGIBundleCache.class);
+
+    private static final String MANIFEST_VERSION_KEY = "manifest.version";
+    private static final String MANIFEST_VERSION = "1";
+    private static final String LOCATION_PREFIX = "file:";
+    private static final Pattern ENTRY_PATTERN = Pattern.compile("[0-9]+,[0-9a-f]{64}");
+
+    private final File storageDir;
+    private final File manifestFile;
+
+    private Map<String, String> manifest = new HashMap<String, String>();
+
+    OSGIBundleCache(final File storageDir, final File manifestFile) {
+        this.storageDir = storageDir;
+        this.manifestFile = manifestFile;
+    }
+
+    // Wipe the storage directory if we cannot tell what's in it
+    void prepare() {
+        manifest = loadManifest();
+        if (manifest == null) {
+            logger.warn("OSGI bundle cache manifest {} is missing or corrupt, wiping {}", manifestFile, storageDir);
+            deleteDirectory(storageDir, false);
+            if (manifestFile.exists() && !manifestFile.delete()) {
+                logger.warn("Unable to delete {}", manifestFile);
+            }
+            manifest = new HashMap<String, String>();
+        }
+    }
+
+    // Returns the number of bundles reused from the cache
+    int evictChangedBundles(final Framework framework) {
+        final Map<String, String> verifiedManifest = new HashMap<String, String>();
+        for (final Bundle bundle : framework.getBundleContext().getBundles()) {
+            if (bundle.getBundleId() == Constants.SYSTEM_BUNDLE_ID) {
+                continue;
+            }
+
+            final String location = bundle.getLocation();
+            final String cachedEntry = manifest.get(location);
+            try {
+                if (cachedEntry == null || !cachedEntry.equals(computeEntry(location, cachedEntry))) {
+                    logger.info("Evicting bundle {} from the OSGI cache", location);
+                    bundle.uninstall();
+                } else {
+                    // Clear the persistent autostart setting, bundles are started by the BundleRegistry
+                    bundle.stop();
+                    verifiedManifest.put(location, cachedEntry);
+                }
+            } catch (final BundleException e) {
+                logger.warn("Unable to evict bundle {} from the OSGI cache", location, e);
+            }
+        }
+        logger.info("Reusing {} bundle(s) from the OSGI cache", verifiedManifest.size());
+
+        // Only the verified entries can be trusted from now on
+        manifest = verifiedManifest;
+        return verifiedManifest.size();
+    }
+
+    // Uninstall the cached bundles which are not part of this deployment anymore, and record the current ones
+    void save(final Framework framework, final Iterable<BundleWithConfig> installedBundles) {
+        final Set<Long> installedBundleIds = new HashSet<Long>();
+        for (final BundleWithConfig bundleWithConfig : installedBundles) {
+            installedBundleIds.add(bundleWithConfig.getBundle().getBundleId());
+        }
+
+        final Map<String, String> newManifest = new HashMap<String, String>();
+        for (final Bundle bundle : framework.getBundleContext().getBundles()) {
+            if (bundle.getBundleId() == Constants.SYSTEM_BUNDLE_ID) {
+                continue;
+            }
+
+            if (!installedBundleIds.contains(bundle.getBundleId())) {
+                try {
+                    logger.info("Evicting unused bundle {} from the OSGI cache", bundle.getLocation());
+                    bundle.uninstall();
+                } catch (final BundleException e) {
+                    logger.warn("Unable to evict bundle {} from the OSGI cache", bundle.getLocation(), e);
+                }
+                continue;
+            }
+
+            final String verifiedEntry = manifest.get(bundle.getLocation());
+            final String entry = verifiedEntry != null ? verifiedEntry : computeEntry(bundle.getLocation(), null);
+            if (entry != null) {
+                newManifest.put(bundle.getLocation(), entry);
+            }
+        }
+
+        try {
+            writeManifest(newManifest);
+            manifest = newManifest;
+        } catch (final IOException e) {
+            logger.warn("Unable to write the OSGI bundle cache manifest {}, the cache will be wiped on next restart", manifestFile, e);
+            if (manifestFile.exists() && !manifestFile.delete()) {
+                logger.warn("Unable to delete {}", manifestFile);
+            }
+        }
+    }
+
+    // Returns null if the manifest doesn't exist, or cannot be parsed
+    @Nullable
+    private Map<String, String> loadManifest() {
+        if (!manifestFile.isFile()) {
+            // Nothing to trust, unless there is no cache either (first boot)
+            final String[] cachedFiles = storageDir.list();
+            return cachedFiles == null || cachedFiles.length == 0 ? new HashMap<String, String>() : null;
+        }
+
+        final Properties properties = new Properties();
+        try (final InputStream inputStream = Files.newInputStream(manifestFile.toPath())) {
+            properties.load(inputStream);
+        } catch (final IOException | IllegalArgumentException e) {
+            logger.warn("Unable to read the OSGI bundle cache manifest {}", manifestFile, e);
+            return null;
+        }
+
+        if (!MANIFEST_VERSION.equals(properties.getProperty(MANIFEST_VERSION_KEY))) {
+            return null;
+        }
+
+        final Map<String, String> result = new HashMap<String, String>();
+        for (final String location : properties.stringPropertyNames()) {
+            if (MANIFEST_VERSION_KEY.equals(location)) {
+                continue;
+            }
+            final String entry = properties.getProperty(location);
+            if (!location.startsWith(LOCATION_PREFIX) || !ENTRY_PATTERN.matcher(entry).matches()) {
+                return null;
+            }
+            result.put(location, entry);
+        }
+        return result;
+    }
+
+    private void writeManifest(final Map<String, String> newManifest) throws IOException {
+        final Properties properties = new Properties();
+        properties.putAll(newManifest);
+        properties.setProperty(MANIFEST_VERSION_KEY, MANIFEST_VERSION);
+
+        // Write then rename, so that a crash doesn't leave a truncated manifest behind
+        final File tmpFile = new File(manifestFile.getParentFile(), manifestFile.getName() + ".tmp");
+        try (final OutputStream outputStream = Files.newOutputStream(tmpFile.toPath())) {
+            properties.store(outputStream, "Kill Bill OSGI bundle cache manifest");
+        }
+        Files.move(tmpFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // size,sha256 of the jar, null if the location isn't a (readable) file. The digest isn't computed if the size
+    // doesn't match the cached entry (the returned value is then only good for a comparison).
+    @Nullable
+    private static String computeEntry(final String location, @Nullable final String cachedEntry) {
+        if (location == null || !location.startsWith(LOCATION_PREFIX)) {
+            return null;
+        }
+
+        final File jar = new File(location.substring(LOCATION_PREFIX.length()));
+        if (!jar.isFile()) {
+            return null;
+        }
+
+        final String size = String.valueOf(jar.length());
+        if (cachedEntry != null && !cachedEntry.startsWith(size + ",")) {
+            return size + ",";
+        }
+
+        try {
+            return size + "," + sha256(jar);
+        } catch (final IOException e) {
+            logger.warn("Unable to compute the digest of {}", jar, e);
+            return null;
+        }
+    }
+
+    private static String sha256(final File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        final byte[] buffer = new byte[64 * 1024];
+        try (final InputStream inputStream = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        final StringBuilder hex = new StringBuilder(64);
+        for (final byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    static void deleteDirectory(final File path, final boolean deleteParent) {
+        if (path == null) {
+            return;
+        }
+
+        if (path.exists()) {
+            final File[] files = path.listFiles();
+            if (files != null) {
+                for (final File f : files) {
+                    if (f.isDirectory()) {
+                        deleteDirectory(f, true);
+                    } else if (!f.delete()) {
+                        logger.warn("Unable to delete {}", f.getAbsolutePath());
+                    }
+                }
+            }
+
+            if (deleteParent) {
+                if (!path.delete()) {
+                    logger.warn("Unable to delete {}", path.getAbsolutePath());
+                } else {
+                    logger.info("Deleted recursively {}", path.getAbsolutePath());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.killbill.billing.osgi.api.PluginSignalHandler;
+import org.killbill.billing.osgi.config.OSGIConfig;
+import org.killbill.commons.concurrent.Executors;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the restart.txt and disabled.txt files of all plugins on a single thread, and notifies the
+ * {@link PluginSignalHandler} registered by the affected plugin (see KillbillActivatorBase), instead of each plugin
+ * polling its own tmp directory. File system events are debounced: a burst of touches results in a single notification,
+ * once the files have been quiet for the debounce period.
+ */
+public class PluginSignalWatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(PluginSignalWatcher.class);
+
+    private static final long DEFAULT_POLLING_INTERVAL_MS = 5000;
+    // Upper bound on the watcher sleep, so that signals pending at registration time are checked promptly
+    private static final long MAX_WATCH_WAIT_MS = 1000;
+
+    private final OSGIConfig osgiConfig;
+    private final Object lock = new Object();
+    // Per tmp directory
+    private final Map<Path, SignalState> signalStates = new ConcurrentHashMap<Path, SignalState>();
+    private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<WatchKey, Path>();
+
+    private ServiceTracker<PluginSignalHandler, PluginSignalHandler> handlerTracker;
+    private WatchService watchService;
+    private ExecutorService watcherExecutor;
+
+    @Inject
+    public PluginSignalWatcher(final OSGIConfig osgiConfig) {
+        this.osgiConfig = osgiConfig;
+    }
+
+    public void start(final BundleContext context) {
+        if (!osgiConfig.isPluginSignalsWatchEnabled()) {
+            return;
+        }
+
+        synchronized (lock) {
+            if (handlerTracker != null) {
+                return;
+            }
+
+            final long pollingIntervalMs = osgiConfig.getPluginSignalsPollingInterval().getMillis();
+            if (pollingIntervalMs > 0) {
+                startPolling(pollingIntervalMs);
+            } else {
+                try {
+                    watchService = FileSystems.getDefault().newWatchService();
+                    watcherExecutor = Executors.newSingleThreadExecutor("plugin-signals-watcher");
+                    watcherExecutor.execute(new SignalsWatcher(watchService, TimeUnit.MILLISECONDS.toNanos(osgiConfig.getPluginSignalsDebounce().getMillis())));
+                } catch (final IOException | UnsupportedOperationException e) {
+                    logger.warn("Unable to watch the plugins signal files, falling back to polling", e);
+                    closeWatchService();
+                    startPolling(DEFAULT_POLLING_INTERVAL_MS);
+                }
+            }
+
+            // Opened last: plugins can only be tracked once the watcher is ready
+            handlerTracker = new ServiceTracker<PluginSignalHandler, PluginSignalHandler>(context, PluginSignalHandler.class, new HandlerTracker(context));
+            handlerTracker.open();
+        }
+    }
+
+    public void stop() {
+        final ServiceTracker<PluginSignalHandler, PluginSignalHandler> tracker;
+        final ExecutorService executor;
+        synchronized (lock) {
+            tracker = handlerTracker;
+            handlerTracker = null;
+            executor = watcherExecutor;
+            watcherExecutor = null;
+            closeWatchService();
+        }
+
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    logger.warn("Plugins signals watcher didn't stop in time");
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (tracker != null) {
+            tracker.close();
+        }
+        signalStates.clear();
+        watchedDirs.clear();
+    }
+
+    private void startPolling(final long pollingIntervalMs) {
+        final ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor("plugin-signals-poller");
+        scheduledExecutor.scheduleWithFixedDelay(this::checkAllSignals, pollingIntervalMs, pollingIntervalMs, TimeUnit.MILLISECONDS);
+        watcherExecutor = scheduledExecutor;
+        logger.info("Polling the plugins signal files every {}ms", pollingIntervalMs);
+    }
+
+    private void closeWatchService() {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (final IOException e) {
+            logger.warn("Unable to close the plugins signals watch service", e);
+        }
+        watchService = null;
+    }
+
+    private void checkAllSignals() {
+        for (final SignalState signalState : signalStates.values()) {
+            checkSignals(signalState);
+        }
+    }
+
+    // The plugin decides what to do (see KillbillActivatorBase#shouldStopPlugin and #lastRestartTime), as it would when polling
+    private void checkSignals(final SignalState signalState) {
+        signalState.pendingDeadlineNanos = 0;
+        try {
+            signalState.handler.checkSignals();
+        } catch (final RuntimeException e) {
+            logger.warn("Error checking the signals of plugin {}", signalState.tmpDir, e);
+        }
+    }
+
+    private final class HandlerTracker implements ServiceTrackerCustomizer<PluginSignalHandler, PluginSignalHandler> {
+
+        private final BundleContext context;
+
+        private HandlerTracker(final BundleContext context) {
+            this.context = context;
+        }
+
+        @Override
+        public PluginSignalHandler addingService(final ServiceReference<PluginSignalHandler> reference) {
+            final Object tmpDirProperty = reference.getProperty(PluginSignalHandler.TMP_DIR_PROP);
+            if (!(tmpDirProperty instanceof String)) {
+                logger.warn("Ignoring plugin signal handler from bundle {}: no {} property", reference.getBundle(), PluginSignalHandler.TMP_DIR_PROP);
+                return null;
+            }
+
+            final PluginSignalHandler handler = context.getService(reference);
+            if (handler == null) {
+                return null;
+            }
+
+            final Path tmpDir = Paths.get((String) tmpDirProperty).toAbsolutePath().normalize();
+            final SignalState signalState = new SignalState(tmpDir, handler);
+            // Initial check, e.g. a plugin which is already disabled is stopped right away, as it would have been by its own polling
+            signalState.pendingDeadlineNanos = System.nanoTime();
+            signalStates.put(tmpDir, signalState);
+
+            synchronized (lock) {
+                if (watchService != null) {
+                    try {
+                        watchedDirs.put(tmpDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY), tmpDir);
+                    } catch (final IOException e) {
+                        logger.warn("Unable to watch directory {}, signals for this plugin will be ignored", tmpDir, e);
+                    }
+                }
+            }
+            logger.info("Watching plugin signals in {}", tmpDir);
+            return handler;
+        }
+
+        @Override
+        public void modifiedService(final ServiceReference<PluginSignalHandler> reference, final PluginSignalHandler service) {
+        }
+
+        @Override
+        public void removedService(final ServiceReference<PluginSignalHandler> reference, final PluginSignalHandler service) {
+            signalStates.values().removeIf(signalState -> signalState.handler == service);
+            watchedDirs.entrySet().removeIf(entry -> {
+                if (!signalStates.containsKey(entry.getValue())) {
+                    entry.getKey().cancel();
+                    return true;
+                }
+                return false;
+            });
+            context.ungetService(reference);
+        }
+    }
+
+    private final class SignalsWatcher implements Runnable {
+
+        private final WatchService watchService;
+        private final long debounceNanos;
+
+        private SignalsWatcher(final WatchService watchService, final long debounceNanos) {
+            this.watchService = watchService;
+            this.debounceNanos = debounceNanos;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    WatchKey key = watchService.poll(nextWaitNanos(), TimeUnit.NANOSECONDS);
+                    while (key != null) {
+                        final Path dir = watchedDirs.get(key);
+                        for (final WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                                // Events were lost
+                                for (final SignalState signalState : signalStates.values()) {
+                                    signalState.pendingDeadlineNanos = System.nanoTime() + debounceNanos;
+                                }
+                                continue;
+                            }
+
+                            final String fileName = String.valueOf(event.context());
+                            final SignalState signalState = signalStates.get(dir);
+                            if (signalState != null && (PluginSignalHandler.RESTART_FILE_NAME.equals(fileName) || PluginSignalHandler.DISABLED_FILE_NAME.equals(fileName))) {
+                                // Each touch pushes the notification back
+                                signalState.pendingDeadlineNanos = System.nanoTime() + debounceNanos;
+                            }
+                        }
+                        if (!key.reset()) {
+                            // Directory deleted
+                            watchedDirs.remove(key);
+                        }
+                        key = watchService.poll();
+                    }
+
+                    final long now = System.nanoTime();
+                    for (final SignalState signalState : signalStates.values()) {
+                        final long deadline = signalState.pendingDeadlineNanos;
+                        if (deadline != 0 && deadline - now <= 0) {
+                            checkSignals(signalState);
+                        }
+                    }
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (final ClosedWatchServiceException e) {
+                // Stopped
+            }
+        }
+
+        private long nextWaitNanos() {
+            final long now = System.nanoTime();
+            long waitNanos = TimeUnit.MILLISECONDS.toNanos(MAX_WATCH_WAIT_MS);
+            for (final SignalState signalState : signalStates.values()) {
+                final long deadline = signalState.pendingDeadlineNanos;
+                if (deadline != 0) {
+                    waitNanos = Math.min(waitNanos, Math.max(0, deadline - now));
+                }
+            }
+            return waitNanos;
+        }
+    }
+
+    private static final class SignalState {
+
+        private final Path tmpDir;
+        private final PluginSignalHandler handler;
+
+        // 0 if there is nothing to check
+        private volatile long pendingDeadlineNanos;
+
+        private SignalState(final Path tmpDir, final PluginSignalHandler handler) {
+            this.tmpDir = tmpDir;
+            this.handler = handler;
+        }
+    }
+}
@@ -22,9 +22,9 @@ package org.killbill.billing.osgi;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -48,7 +48,7 @@ public class PureOSGIBundleFinder {
     @Inject
     public PureOSGIBundleFinder(final OSGIConfig osgiConfig) {
         this.osgiConfig = osgiConfig;
-        this.osgiPluginNameMapping = new HashMap<String, String>();
+        this.osgiPluginNameMapping = new ConcurrentHashMap<String, String>();
     }
 
     public List<String> getLatestBundles() throws PluginConfigException {
@@ -23,10 +23,12 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
@@ -47,10 +49,15 @@ public class DefaultPluginsInfoApi implements PluginsInfoApi {
 
     private static final Logger logger = LoggerFactory.getLogger(DefaultPluginsInfoApi.class);
 
+    // Historical ordering, on the plugin name and version concatenated: e.g. foo-bar 1.0 comes before foo 2.0
+    private static final Comparator<PluginInfo> PLUGIN_INFO_ORDERING = Comparator.comparing(DefaultPluginsInfoApi::getSortKey);
+
     private final BundleRegistry bundleRegistry;
     private final PluginFinder pluginFinder;
     private final KillbillNodesApi nodesApi;
 
+    private volatile PluginsInfoView view;
+
     @Inject
     public DefaultPluginsInfoApi(final BundleRegistry bundleRegistry, final PluginFinder pluginFinder, final KillbillNodesApiHolder nodesApiHolder) {
         this.bundleRegistry = bundleRegistry;
@@ -60,15 +67,37 @@ public class DefaultPluginsInfoApi implements PluginsInfoApi {
 
     @Override
     public Iterable<PluginInfo> getPluginsInfo() {
+        return getView().pluginsInfo;
+    }
 
+    // All versions of the plugin, sorted by version (empty if the plugin isn't known)
+    public List<PluginInfo> getPluginInfo(final String pluginName) {
+        final List<PluginInfo> pluginInfo = getView().pluginsInfoByName.get(pluginName);
+        return pluginInfo == null ? Collections.emptyList() : pluginInfo;
+    }
+
+    private PluginsInfoView getView() {
+        final PluginsInfoView currentView = view;
+        // Read before building the view: a concurrent change will be picked up by the next call
+        final long pluginFinderVersion = pluginFinder.getStateVersion();
+        final long bundleRegistryVersion = bundleRegistry.getStateVersion();
+        if (currentView != null && currentView.pluginFinderVersion == pluginFinderVersion && currentView.bundleRegistryVersion == bundleRegistryVersion) {
+            return currentView;
+        }
+
+        final PluginsInfoView newView = new PluginsInfoView(pluginFinderVersion, bundleRegistryVersion, buildPluginsInfo());
+        view = newView;
+        return newView;
+    }
+
+    private List<PluginInfo> buildPluginsInfo() {
         final List<PluginInfo> result = new ArrayList<>();
-        for (final String pluginName : pluginFinder.getAllPlugins().keySet()) {
+        for (final Entry<String, LinkedList<PluginConfig>> entry : pluginFinder.getAllPlugins().entrySet()) {
 
-            final BundleWithMetadata installedBundleOrNull = bundleRegistry.getBundle(pluginName);
+            final BundleWithMetadata installedBundleOrNull = bundleRegistry.getBundle(entry.getKey());
 
-            final LinkedList<PluginConfig> pluginVersions = pluginFinder.getAllPlugins().get(pluginName);
             boolean isSelectedForStart = true; // The first one in the list is the one selected for start
-            for (final PluginConfig curVersion : pluginVersions) {
+            for (final PluginConfig curVersion : entry.getValue()) {
                 final PluginInfo pluginInfo;
                 if (installedBundleOrNull != null && curVersion.getVersion().equals(installedBundleOrNull.getVersion())) {
                     pluginInfo = new DefaultPluginInfo(curVersion.getPluginKey(),
@@ -92,27 +121,23 @@ public class DefaultPluginsInfoApi implements PluginsInfoApi {
             }
         }
 
-        return result.stream().sorted(Comparator.comparing(input -> {
-            if (input == null) {
-                return "";
-            }
-            final StringBuilder tmp = new StringBuilder(input.getPluginName());
-            if (input.getVersion() != null) {
-                tmp.append(input.getVersion());
-            }
-            return tmp.toString();
-        })).collect(Collectors.toList());
+        result.sort(PLUGIN_INFO_ORDERING);
+        return result;
+    }
+
+    private static String getSortKey(final PluginInfo pluginInfo) {
+        return pluginInfo.getVersion() == null ? pluginInfo.getPluginName() : pluginInfo.getPluginName() + pluginInfo.getVersion();
     }
 
     @Override
     public void notifyOfStateChanged(final PluginStateChange newState, final String pluginKey, @Nullable final String pluginName, final String pluginVersion, @Nullable final PluginLanguage pluginLanguage) {
         try {
-            // Refresh our filesystem view so it shows up/disappears in the list of installed plugin
-            pluginFinder.reloadPlugins();
-
+            // Refresh our filesystem view of that plugin so it shows up/disappears in the list of installed plugin
+            pluginFinder.reloadPluginIdentifiers();
             final String resolvedPluginName = pluginName != null ?
                                               pluginName :
                                               (pluginFinder.resolvePluginKey(pluginKey) != null ? pluginFinder.resolvePluginKey(pluginKey).getPluginName() : null);
+            pluginFinder.reloadPlugin(resolvedPluginName);
 
             final String defaultPluginVersion = pluginFinder.getPluginVersionSelectedForStart(resolvedPluginName);
             final boolean isSelectedForStart = defaultPluginVersion != null && defaultPluginVersion.equals(pluginVersion);
@@ -146,7 +171,31 @@ public class DefaultPluginsInfoApi implements PluginsInfoApi {
     }
 
     public static PluginState toPluginState(@Nullable final BundleWithMetadata bundle) {
-        return (bundle != null && bundle.getBundle().getState() == Bundle.ACTIVE) ? PluginState.RUNNING : PluginState.STOPPED;
+        return (bundle != null && !bundle.isStartFailed() && bundle.getBundle().getState() == Bundle.ACTIVE) ? PluginState.RUNNING : PluginState.STOPPED;
+    }
+
+    // Sorted plugins info, for a given state of the PluginFinder and BundleRegistry
+    private static final class PluginsInfoView {
+
+        private final long pluginFinderVersion;
+        private final long bundleRegistryVersion;
+        private final List<PluginInfo> pluginsInfo;
+        private final Map<String, List<PluginInfo>> pluginsInfoByName;
+
+        private PluginsInfoView(final long pluginFinderVersion, final long bundleRegistryVersion, final List<PluginInfo> pluginsInfo) {
+            this.pluginFinderVersion = pluginFinderVersion;
+            this.bundleRegistryVersion = bundleRegistryVersion;
+            this.pluginsInfo = Collections.unmodifiableList(pluginsInfo);
+
+            final Map<String, List<PluginInfo>> byName = new HashMap<>();
+            for (final PluginInfo pluginInfo : pluginsInfo) {
+                byName.computeIfAbsent(pluginInfo.getPluginName(), k -> new ArrayList<>()).add(pluginInfo);
+            }
+            for (final Entry<String, List<PluginInfo>> entry : byName.entrySet()) {
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            }
+            this.pluginsInfoByName = byName;
+        }
     }
 
     public static final class DefaultPluginInfo implements PluginInfo {
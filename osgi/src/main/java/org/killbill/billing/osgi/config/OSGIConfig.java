@@ -26,6 +26,7 @@ import org.skife.config.Config;
 import org.skife.config.Default;
 import org.skife.config.DefaultNull;
 import org.skife.config.Description;
+import org.skife.config.TimeSpan;
 
 public interface OSGIConfig extends KillbillPlatformConfig {
 
@@ -44,6 +45,11 @@ public interface OSGIConfig extends KillbillPlatformConfig {
     @Description("Bundles cache name")
     public String getOSGIBundleCacheName();
 
+    @Config("org.killbill.osgi.bundle.cache.persistent")
+    @Default("false")
+    @Description("Whether to keep the OSGI cache between restarts (bundles whose jar changed are evicted), instead of wiping it on startup")
+    public boolean isOSGIBundleCachePersistent();
+
     @Config("org.killbill.osgi.bundle.install.dir")
     @Default("/var/tmp/bundles")
     @Description("Bundles install directory")
@@ -275,4 +281,84 @@ public interface OSGIConfig extends KillbillPlatformConfig {
     @DefaultNull
     public Set<String> getMandatoryPlugins();
 
+    @Config("org.killbill.billing.osgi.events.async")
+    @Default("true")
+    @Description("Whether to dispatch Kill Bill events to plugins asynchronously, on a dedicated queue per plugin handler (bus events are acked once queued, failures are retried per plugin handler, queued events are lost on a crash)")
+    public boolean isAsyncEventDispatchEnabled();
+
+    @Config("org.killbill.billing.osgi.events.queue.capacity")
+    @Default("1000")
+    @Description("Maximum number of pending events per plugin handler queue (events are retried later when a queue is full)")
+    public int getEventDispatchQueueCapacity();
+
+    @Config("org.killbill.billing.osgi.events.queue.partitions")
+    @Default("1")
+    @Description("Number of queues (and threads) per plugin handler: events for a given account always go to the same queue")
+    public int getEventDispatchNbPartitions();
+
+    @Config("org.killbill.billing.osgi.bundles.startup.threads")
+    @Default("8")
+    @Description("Number of threads used to install and start the bundles at startup (1 to install and start them one by one)")
+    public int getBundleStartupNbThreads();
+
+    @Config("org.killbill.billing.osgi.bundles.startup.timeout")
+    @Default("5m")
+    @Description("Maximum amount of time to install or start a single bundle at startup")
+    public TimeSpan getBundleStartupTimeout();
+
+    @Config("org.killbill.billing.osgi.plugins.watch.enabled")
+    @Default("true")
+    @Description("Whether to watch the plugins installation directory, to keep the view of the installed plugins up to date")
+    public boolean isPluginsWatchEnabled();
+
+    @Config("org.killbill.billing.osgi.plugins.watch.pollingInterval")
+    @Default("30s")
+    @Description("Interval between two scans of the plugins installation directory, when file system events are not available")
+    public TimeSpan getPluginsWatchPollingInterval();
+
+    @Config("org.killbill.billing.osgi.plugins.signals.watch.enabled")
+    @Default("true")
+    @Description("Whether the platform watches the restart.txt and disabled.txt files of the plugins (instead of each plugin polling them)")
+    public boolean isPluginSignalsWatchEnabled();
+
+    @Config("org.killbill.billing.osgi.plugins.signals.watch.pollingInterval")
+    @Default("0s")
+    @Description("Interval between two checks of the restart.txt and disabled.txt files (0 to rely on file system events, with a 5s polling fallback)")
+    public TimeSpan getPluginSignalsPollingInterval();
+
+    @Config("org.killbill.billing.osgi.plugins.signals.watch.debounce")
+    @Default("500ms")
+    @Description("Quiet period after the last change to restart.txt or disabled.txt before the plugin is notified")
+    public TimeSpan getPluginSignalsDebounce();
+
+    @Config("org.killbill.billing.osgi.static.cache.maxSize")
+    @Default("16777216")
+    @Description("Maximum size in bytes of the static resources kept in memory, per plugin (0 to disable the cache)")
+    public long getStaticResourcesCacheMaxSize();
+
+    @Config("org.killbill.billing.osgi.static.cache.maxResourceSize")
+    @Default("2097152")
+    @Description("Static resources larger than this size in bytes are streamed from the plugin instead of being kept in memory")
+    public long getStaticResourcesCacheMaxResourceSize();
+
+    @Config("org.killbill.billing.osgi.log.async")
+    @Default("false")
+    @Description("Whether to forward the core log entries to the OSGI LogService asynchronously, from a dedicated thread")
+    public boolean isAsyncLogForwardingEnabled();
+
+    @Config("org.killbill.billing.osgi.log.queue.capacity")
+    @Default("8192")
+    @Description("Maximum number of log entries waiting to be forwarded to the OSGI LogService (asynchronous mode only)")
+    public int getLogForwardingQueueCapacity();
+
+    @Config("org.killbill.billing.osgi.log.queue.overflowPolicy")
+    @Default("DROP_OLDEST")
+    @Description("What to drop when the log forwarding queue is full: DROP_OLDEST (the oldest pending entry) or DROP_BELOW_LEVEL (the new entry if its level is below the overflow level, the oldest pending entry otherwise)")
+    public String getLogForwardingOverflowPolicy();
+
+    @Config("org.killbill.billing.osgi.log.queue.overflowLevel")
+    @Default("WARN")
+    @Description("Entries below this level are dropped first when the log forwarding queue is full (DROP_BELOW_LEVEL policy)")
+    public String getLogForwardingOverflowLevel();
+
 }
@@ -28,6 +28,7 @@ import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 
 import org.killbill.billing.osgi.ContextClassLoaderHelper;
+import org.killbill.billing.osgi.config.OSGIConfig;
 import org.killbill.commons.metrics.api.MetricRegistry;
 import org.osgi.service.http.HttpContext;
 import org.osgi.service.http.HttpService;
@@ -38,11 +39,13 @@ public class DefaultHttpService implements HttpService {
 
     private final DefaultServletRouter servletRouter;
     private final MetricRegistry metricsRegistry;
+    private final OSGIConfig osgiConfig;
 
     @Inject
-    public DefaultHttpService(final DefaultServletRouter servletRouter, final MetricRegistry metricsRegistry) {
+    public DefaultHttpService(final DefaultServletRouter servletRouter, final MetricRegistry metricsRegistry, final OSGIConfig osgiConfig) {
         this.servletRouter = servletRouter;
         this.metricsRegistry = metricsRegistry;
+        this.osgiConfig = osgiConfig;
     }
 
     @Override
@@ -60,7 +63,9 @@ public class DefaultHttpService implements HttpService {
 
     @Override
     public void registerResources(final String alias, final String name, final HttpContext httpContext) throws NamespaceException {
-        final Servlet staticServlet = new StaticServlet(httpContext);
+        final Servlet staticServlet = new StaticServlet(httpContext,
+                                                        osgiConfig.getStaticResourcesCacheMaxSize(),
+                                                        osgiConfig.getStaticResourcesCacheMaxResourceSize());
         try {
             registerServlet(alias, staticServlet, new Hashtable(), httpContext);
         } catch (final ServletException e) {
@@ -19,12 +19,17 @@
 
 package org.killbill.billing.osgi.http;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.annotation.Nullable;
 import javax.inject.Singleton;
 import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
 
 import org.killbill.billing.osgi.api.OSGIServiceDescriptor;
 import org.killbill.billing.osgi.api.OSGIServiceRegistration;
@@ -38,8 +43,11 @@ public class DefaultServletRouter implements OSGIServiceRegistration<Servlet> {
 
     // Internal Servlet routing table: map of plugin prefixes to servlet instances.
     // A plugin prefix can be /foo, /foo/bar, /foo/bar/baz, ... and is mounted on /plugins/<pluginPrefix>
-    private final Map<String, Servlet> pluginPathServlets = new HashMap<String, Servlet>();
-    private final Map<String, OSGIServiceDescriptor> pluginRegistrations = new HashMap<String, OSGIServiceDescriptor>();
+    // The table is immutable and republished (copy-on-write) on each registration change: readers never lock.
+    private volatile RoutingTable routingTable = RoutingTable.EMPTY;
+    // Lifecycle of the registered servlets, keyed by identity (servlets are usually proxies, see ContextClassLoaderHelper).
+    // Entries are dropped on unregistration, so that the registry doesn't retain the classes of stopped plugins.
+    private final Map<ServletKey, ServletLifecycle> servletLifecycles = new ConcurrentHashMap<ServletKey, ServletLifecycle>();
 
     @Override
     public void registerService(final OSGIServiceDescriptor desc, final Servlet httpServlet) {
@@ -51,29 +59,38 @@ public class DefaultServletRouter implements OSGIServiceRegistration<Servlet> {
         }
 
         logger.info("Registering OSGI servlet at " + pathPrefix);
+        final Servlet previousServlet;
         synchronized (this) {
-            registerServletInternal(pathPrefix, httpServlet);
-            registerServiceInternal(desc);
+            final RoutingTable current = routingTable;
+            final Map<String, Servlet> pluginPathServlets = new HashMap<String, Servlet>(current.pluginPathServlets);
+            previousServlet = pluginPathServlets.put(pathPrefix, httpServlet);
+            final Map<String, OSGIServiceDescriptor> pluginRegistrations = new HashMap<String, OSGIServiceDescriptor>(current.pluginRegistrations);
+            pluginRegistrations.put(desc.getRegistrationName(), desc);
+            servletLifecycles.computeIfAbsent(new ServletKey(httpServlet), key -> new ServletLifecycle(httpServlet));
+            routingTable = new RoutingTable(pluginPathServlets, pluginRegistrations);
         }
+        destroyIfUnused(previousServlet);
     }
 
     public void registerServiceFromPath(final String path, final Servlet httpServlet) {
         final String pathPrefix = sanitizePathPrefix(path);
-        registerServletInternal(pathPrefix, httpServlet);
-    }
-
-    private void registerServletInternal(final String pathPrefix, final Servlet httpServlet) {
-        pluginPathServlets.put(pathPrefix, httpServlet);
-    }
-
-    private void registerServiceInternal(final OSGIServiceDescriptor desc) {
-        pluginRegistrations.put(desc.getRegistrationName(), desc);
+        final Servlet previousServlet;
+        synchronized (this) {
+            final RoutingTable current = routingTable;
+            final Map<String, Servlet> pluginPathServlets = new HashMap<String, Servlet>(current.pluginPathServlets);
+            previousServlet = pluginPathServlets.put(pathPrefix, httpServlet);
+            servletLifecycles.computeIfAbsent(new ServletKey(httpServlet), key -> new ServletLifecycle(httpServlet));
+            routingTable = new RoutingTable(pluginPathServlets, current.pluginRegistrations);
+        }
+        destroyIfUnused(previousServlet);
     }
 
     @Override
     public void unregisterService(final String serviceName) {
+        final Servlet removedServlet;
         synchronized (this) {
-            final OSGIServiceDescriptor desc = pluginRegistrations.get(serviceName);
+            final RoutingTable current = routingTable;
+            final OSGIServiceDescriptor desc = current.pluginRegistrations.get(serviceName);
             if (desc != null) {
                 final String pathPrefix = getPathPrefixFromDescriptor(desc);
                 if (pathPrefix == null) {
@@ -82,48 +99,122 @@ public class DefaultServletRouter implements OSGIServiceRegistration<Servlet> {
                 }
 
                 logger.info("Unregistering OSGI servlet " + desc.getRegistrationName() + " at path " + pathPrefix);
-                synchronized (this) {
-                    unRegisterServletInternal(pathPrefix);
-                    unRegisterServiceInternal(desc);
-                }
+                final Map<String, Servlet> pluginPathServlets = new HashMap<String, Servlet>(current.pluginPathServlets);
+                removedServlet = pluginPathServlets.remove(pathPrefix);
+                final Map<String, OSGIServiceDescriptor> pluginRegistrations = new HashMap<String, OSGIServiceDescriptor>(current.pluginRegistrations);
+                pluginRegistrations.remove(desc.getRegistrationName());
+                routingTable = new RoutingTable(pluginPathServlets, pluginRegistrations);
+            } else {
+                removedServlet = null;
             }
         }
+        destroyIfUnused(removedServlet);
     }
 
     public void unregisterServiceFromPath(final String path) {
         final String pathPrefix = sanitizePathPrefix(path);
-        unRegisterServletInternal(pathPrefix);
+        final Servlet removedServlet;
+        synchronized (this) {
+            final RoutingTable current = routingTable;
+            if (!current.pluginPathServlets.containsKey(pathPrefix)) {
+                return;
+            }
+            final Map<String, Servlet> pluginPathServlets = new HashMap<String, Servlet>(current.pluginPathServlets);
+            removedServlet = pluginPathServlets.remove(pathPrefix);
+            routingTable = new RoutingTable(pluginPathServlets, current.pluginRegistrations);
+        }
+        destroyIfUnused(removedServlet);
     }
 
-    private Servlet unRegisterServletInternal(final String pathPrefix) {
-        return pluginPathServlets.remove(pathPrefix);
+    /**
+     * Initialize a registered servlet, exactly once (concurrent callers wait for the first initialization to complete).
+     *
+     * @param servlet       registered servlet
+     * @param servletConfig config of the web container servlet
+     * @throws ServletException if the servlet failed to initialize (it will be retried on the next call)
+     */
+    public void initializeServletIfNeeded(final Servlet servlet, final ServletConfig servletConfig) throws ServletException {
+        final ServletLifecycle servletLifecycle = servletLifecycles.get(new ServletKey(servlet));
+        // Null if unregistered in the meantime
+        if (servletLifecycle != null && !servletLifecycle.initialized) {
+            servletLifecycle.initialize(servletConfig);
+        }
     }
 
-    private OSGIServiceDescriptor unRegisterServiceInternal(final OSGIServiceDescriptor desc) {
-        return pluginRegistrations.remove(desc.getRegistrationName());
+    int getNbInitializedServlets() {
+        int nbInitializedServlets = 0;
+        for (final ServletLifecycle servletLifecycle : servletLifecycles.values()) {
+            if (servletLifecycle.initialized) {
+                nbInitializedServlets++;
+            }
+        }
+        return nbInitializedServlets;
+    }
+
+    int getNbTrackedServlets() {
+        return servletLifecycles.size();
+    }
+
+    // Called outside of the lock: destroy() is plugin code
+    private void destroyIfUnused(@Nullable final Servlet servlet) {
+        if (servlet == null) {
+            return;
+        }
+
+        final ServletLifecycle servletLifecycle;
+        synchronized (this) {
+            // Same instance mounted on several paths
+            for (final Servlet registeredServlet : routingTable.pluginPathServlets.values()) {
+                if (registeredServlet == servlet) {
+                    return;
+                }
+            }
+            servletLifecycle = servletLifecycles.remove(new ServletKey(servlet));
+        }
+
+        if (servletLifecycle != null) {
+            try {
+                servletLifecycle.destroy();
+            } catch (final RuntimeException e) {
+                logger.warn("Error destroying OSGI servlet {}", servlet, e);
+            }
+        }
     }
 
     @Override
     public Servlet getServiceForName(final String serviceName) {
-        final OSGIServiceDescriptor desc = pluginRegistrations.get(serviceName);
+        final RoutingTable current = routingTable;
+        final OSGIServiceDescriptor desc = current.pluginRegistrations.get(serviceName);
         if (desc == null) {
             return null;
         }
         final String registeredPath = getPathPrefixFromDescriptor(desc);
-        return pluginPathServlets.get(registeredPath);
+        return current.pluginPathServlets.get(registeredPath);
     }
 
     private String getPathPrefixFromDescriptor(final OSGIServiceDescriptor desc) {
         return sanitizePathPrefix(desc.getRegistrationName());
     }
 
+    /**
+     * Resolve the servlet and its plugin prefix for a given request path, in a single lookup.
+     *
+     * @param path request path (full path minus the /plugins prefix)
+     * @return the route for the longest registered prefix of path, null if none matches
+     */
+    @Nullable
+    public ServletRoute resolve(final String path) {
+        return routingTable.routingTree.resolve(path);
+    }
+
     public Servlet getServiceForPath(final String path) {
-        return getServletForPathPrefix(path);
+        final ServletRoute route = resolve(path);
+        return route == null ? null : route.getServlet();
     }
 
     @Override
     public Set<String> getAllServices() {
-        return pluginRegistrations.keySet();
+        return routingTable.pluginRegistrations.keySet();
     }
 
     @Override
@@ -131,20 +222,9 @@ public class DefaultServletRouter implements OSGIServiceRegistration<Servlet> {
         return Servlet.class;
     }
 
-    // TODO PIERRE Naive implementation - we should rather switch to e.g. heap tree
     public String getPluginPrefixForPath(final String pathPrefix) {
-        String bestMatch = null;
-        for (final String potentialMatch : pluginPathServlets.keySet()) {
-            if (pathPrefix.startsWith(potentialMatch) && (bestMatch == null || bestMatch.length() < potentialMatch.length())) {
-                bestMatch = potentialMatch;
-            }
-        }
-        return bestMatch;
-    }
-
-    private Servlet getServletForPathPrefix(final String pathPrefix) {
-        final String bestMatch = getPluginPrefixForPath(pathPrefix);
-        return bestMatch == null ? null : pluginPathServlets.get(bestMatch);
+        final ServletRoute route = resolve(pathPrefix);
+        return route == null ? null : route.getPluginPrefix();
     }
 
     private static String sanitizePathPrefix(final String inputPath) {
@@ -160,4 +240,85 @@ public class DefaultServletRouter implements OSGIServiceRegistration<Servlet> {
         }
         return pathPrefix;
     }
+
+    public static final class ServletRoute {
+
+        private final String pluginPrefix;
+        private final Servlet servlet;
+
+        ServletRoute(final String pluginPrefix, final Servlet servlet) {
+            this.pluginPrefix = pluginPrefix;
+            this.servlet = servlet;
+        }
+
+        public String getPluginPrefix() {
+            return pluginPrefix;
+        }
+
+        public Servlet getServlet() {
+            return servlet;
+        }
+    }
+
+    private static final class RoutingTable {
+
+        private static final RoutingTable EMPTY = new RoutingTable(Collections.emptyMap(), Collections.emptyMap());
+
+        private final Map<String, Servlet> pluginPathServlets;
+        private final Map<String, OSGIServiceDescriptor> pluginRegistrations;
+        private final ServletRoutingTree routingTree;
+
+        private RoutingTable(final Map<String, Servlet> pluginPathServlets, final Map<String, OSGIServiceDescriptor> pluginRegistrations) {
+            this.pluginPathServlets = Collections.unmodifiableMap(pluginPathServlets);
+            this.pluginRegistrations = Collections.unmodifiableMap(pluginRegistrations);
+            this.routingTree = pluginPathServlets.isEmpty() ? ServletRoutingTree.EMPTY : new ServletRoutingTree(pluginPathServlets);
+        }
+    }
+
+    private static final class ServletKey {
+
+        private final Servlet servlet;
+
+        private ServletKey(final Servlet servlet) {
+            this.servlet = servlet;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof ServletKey && ((ServletKey) o).servlet == servlet;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(servlet);
+        }
+    }
+
+    private static final class ServletLifecycle {
+
+        private final Servlet servlet;
+
+        private volatile boolean initialized = false;
+        private boolean destroyed = false;
+
+        private ServletLifecycle(final Servlet servlet) {
+            this.servlet = servlet;
+        }
+
+        private synchronized void initialize(final ServletConfig servletConfig) throws ServletException {
+            if (initialized || destroyed) {
+                return;
+            }
+            servlet.init(servletConfig);
+            initialized = true;
+        }
+
+        private synchronized void destroy() {
+            destroyed = true;
+            if (initialized) {
+                initialized = false;
+                servlet.destroy();
+            }
+        }
+    }
 }
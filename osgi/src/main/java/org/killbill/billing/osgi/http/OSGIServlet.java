@@ -20,7 +20,6 @@
 package org.killbill.billing.osgi.http;
 
 import java.io.IOException;
-import java.util.Vector;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -32,6 +31,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 
+import org.killbill.billing.osgi.http.DefaultServletRouter.ServletRoute;
 import org.killbill.commons.utils.annotation.VisibleForTesting;
 
 @Singleton
@@ -39,10 +39,6 @@ public class OSGIServlet extends HttpServlet {
 
     private static final long serialVersionUID = 1L;
 
-    @VisibleForTesting
-    final Vector<Servlet> initializedServlets = new Vector<>();
-    private final Object servletsMonitor = new Object();
-
     @Inject
     @VisibleForTesting
     transient DefaultServletRouter servletRouter;
@@ -81,59 +77,51 @@ public class OSGIServlet extends HttpServlet {
         // requestPath is the full path minus the JAX-RS prefix (/plugins)
         final String requestPath = req.getServletPath() + req.getPathInfo();
 
-        final Servlet pluginServlet = getPluginServlet(requestPath);
+        final ServletRoute route = servletRouter.resolve(requestPath);
 
-        if (pluginServlet != null) {
-            initializeServletIfNeeded(req, pluginServlet);
-            final OSGIServletRequestWrapper requestWrapper = new OSGIServletRequestWrapper(req, servletRouter.getPluginPrefixForPath(requestPath));
+        if (route != null) {
+            final Servlet pluginServlet = route.getServlet();
+            final ServletConfig servletConfig = (ServletConfig) req.getAttribute("killbill.osgi.servletConfig");
+            // Hack to bridge the gap between the web container and the OSGI servlets (destroyed on unregistration)
+            if (servletConfig != null) {
+                servletRouter.initializeServletIfNeeded(pluginServlet, servletConfig);
+            }
+            final OSGIServletRequestWrapper requestWrapper = new OSGIServletRequestWrapper(req, route.getPluginPrefix());
             pluginServlet.service(requestWrapper, resp);
         } else {
             resp.sendError(404);
         }
     }
 
-    // Request wrapper to hide the plugin prefix to OSGI servlets (the plugin prefix serves as a servlet path)
+    // Request wrapper to hide the plugin prefix to OSGI servlets (the plugin prefix serves as a servlet path).
+    // Paths are computed once: frameworks call these methods many times per request.
     private static final class OSGIServletRequestWrapper extends HttpServletRequestWrapper {
 
-        private final String pluginPrefix;
+        private final String pathInfo;
+        private final String contextPath;
+        private final String servletPath;
 
         public OSGIServletRequestWrapper(final HttpServletRequest request, final String pluginPrefix) {
             super(request);
-            this.pluginPrefix = pluginPrefix;
+            final String originalPathInfo = request.getPathInfo();
+            this.pathInfo = originalPathInfo == null ? null : originalPathInfo.replace(pluginPrefix, "");
+            this.contextPath = request.getContextPath() + pluginPrefix;
+            this.servletPath = request.getServletPath();
         }
 
         @Override
         public String getPathInfo() {
-            return super.getPathInfo().replace(pluginPrefix, "");
+            return pathInfo;
         }
 
         @Override
         public String getContextPath() {
-            return super.getContextPath() + pluginPrefix;
-        }
-    }
-
-    // Hack to bridge the gap between the web container and the OSGI servlets
-    private void initializeServletIfNeeded(final HttpServletRequest req, final Servlet pluginServlet) throws ServletException {
-        if (!initializedServlets.contains(pluginServlet)) {
-            synchronized (servletsMonitor) {
-                if (!initializedServlets.contains(pluginServlet)) {
-                    final ServletConfig servletConfig = (ServletConfig) req.getAttribute("killbill.osgi.servletConfig");
-                    if (servletConfig != null) {
-                        // TODO PIERRE The servlet will never be destroyed!
-                        pluginServlet.init(servletConfig);
-                        initializedServlets.add(pluginServlet);
-                    }
-                }
-            }
+            return contextPath;
         }
-    }
 
-    private Servlet getPluginServlet(final String requestPath) {
-        if (requestPath != null) {
-            return servletRouter.getServiceForPath(requestPath);
-        } else {
-            return null;
+        @Override
+        public String getServletPath() {
+            return servletPath;
         }
     }
 }
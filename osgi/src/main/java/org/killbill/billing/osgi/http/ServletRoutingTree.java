@@ -0,0 +1,136 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.http;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.servlet.Servlet;
+
+import org.killbill.billing.osgi.http.DefaultServletRouter.ServletRoute;
+
+/**
+ * Immutable radix tree of plugin prefixes. Matching is done on raw characters (i.e. /foo matches /foobar),
+ * the longest registered prefix wins. Instances are never modified once built: the router publishes a new tree on
+ * each (un)registration.
+ */
+final class ServletRoutingTree {
+
+    static final ServletRoutingTree EMPTY = new ServletRoutingTree(Collections.emptyMap());
+
+    private final Node root;
+
+    ServletRoutingTree(final Map<String, Servlet> servletsByPrefix) {
+        final BuilderNode builderRoot = new BuilderNode("");
+        for (final Entry<String, Servlet> entry : servletsByPrefix.entrySet()) {
+            insert(builderRoot, entry.getKey(), 0, new ServletRoute(entry.getKey(), entry.getValue()));
+        }
+        this.root = builderRoot.freeze();
+    }
+
+    // O(path length), no allocation
+    ServletRoute resolve(final String path) {
+        Node node = root;
+        ServletRoute bestMatch = node.route;
+        int pos = 0;
+        while (pos < path.length()) {
+            final Node child = node.children.get(path.charAt(pos));
+            if (child == null || !path.startsWith(child.label, pos)) {
+                break;
+            }
+            pos += child.label.length();
+            node = child;
+            if (node.route != null) {
+                bestMatch = node.route;
+            }
+        }
+        return bestMatch;
+    }
+
+    private static void insert(final BuilderNode node, final String key, final int pos, final ServletRoute route) {
+        if (pos == key.length()) {
+            node.route = route;
+            return;
+        }
+
+        final char c = key.charAt(pos);
+        final BuilderNode child = node.children.get(c);
+        if (child == null) {
+            final BuilderNode leaf = new BuilderNode(key.substring(pos));
+            leaf.route = route;
+            node.children.put(c, leaf);
+            return;
+        }
+
+        final int common = commonPrefixLength(child.label, key, pos);
+        if (common == child.label.length()) {
+            insert(child, key, pos + common, route);
+            return;
+        }
+
+        // Split the edge: node -> middle -> child
+        final BuilderNode middle = new BuilderNode(child.label.substring(0, common));
+        child.label = child.label.substring(common);
+        middle.children.put(child.label.charAt(0), child);
+        node.children.put(c, middle);
+        insert(middle, key, pos + common, route);
+    }
+
+    private static int commonPrefixLength(final String label, final String key, final int pos) {
+        final int max = Math.min(label.length(), key.length() - pos);
+        int i = 0;
+        while (i < max && label.charAt(i) == key.charAt(pos + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static final class BuilderNode {
+
+        private final Map<Character, BuilderNode> children = new HashMap<>();
+        private String label;
+        private ServletRoute route;
+
+        private BuilderNode(final String label) {
+            this.label = label;
+        }
+
+        private Node freeze() {
+            final Map<Character, Node> frozenChildren = new HashMap<>(children.size());
+            for (final Entry<Character, BuilderNode> entry : children.entrySet()) {
+                frozenChildren.put(entry.getKey(), entry.getValue().freeze());
+            }
+            return new Node(label, route, frozenChildren);
+        }
+    }
+
+    private static final class Node {
+
+        private final String label;
+        private final ServletRoute route;
+        private final Map<Character, Node> children;
+
+        private Node(final String label, final ServletRoute route, final Map<Character, Node> children) {
+            this.label = label;
+            this.route = route;
+            this.children = children.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(children);
+        }
+    }
+}
@@ -21,8 +21,17 @@ package org.killbill.billing.osgi.http;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import javax.annotation.Nullable;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -30,25 +39,61 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 
+import org.killbill.commons.utils.annotation.VisibleForTesting;
+import org.killbill.commons.utils.cache.Cache;
+import org.killbill.commons.utils.cache.DefaultSynchronizedCache;
 import org.osgi.service.http.HttpContext;
 
-// Simple servlet to serve OSGI resources
+// Simple servlet to serve OSGI resources. One instance per registration (i.e. per plugin), so the caches
+// are dropped when the plugin is restarted.
 public class StaticServlet extends HttpServlet {
 
-    private final HttpContext httpContext;
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAX_RESOLUTIONS = 1024;
+    // Resolved request URI without matching resource
+    private static final String NOT_FOUND = "";
+    // Weight of an entry whose content isn't cached
+    private static final long METADATA_SIZE = 256;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final long[] UNSATISFIABLE_RANGE = new long[0];
+
+    private final transient HttpContext httpContext;
+    // Request URI -> resource name
+    private final transient Cache<String, String> resolutions = new DefaultSynchronizedCache<String, String>(MAX_RESOLUTIONS);
+    private final transient ResourceCache resources;
+    private final long maxCachedResourceSize;
+    // Bundle resources don't change during the lifetime of the registration
+    private final long defaultLastModified = System.currentTimeMillis() / 1000 * 1000;
 
     public StaticServlet(final HttpContext httpContext) {
+        this(httpContext, 0, 0);
+    }
+
+    public StaticServlet(final HttpContext httpContext, final long maxCacheSize, final long maxCachedResourceSize) {
         this.httpContext = httpContext;
+        this.resources = new ResourceCache(maxCacheSize);
+        // Cached content is kept in a byte array
+        this.maxCachedResourceSize = maxCacheSize > 0 ? Math.max(0, Math.min(Integer.MAX_VALUE - 1, Math.min(maxCacheSize, maxCachedResourceSize))) : 0;
     }
 
     @Override
     protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
-        final URL url = findResourceURL(req);
-        if (url != null) {
-            try (final InputStream is = url.openStream()) {
-                is.transferTo(resp.getOutputStream());
-                resp.setStatus(200);
-                return;
+        final String resourceName = findResourceName(req);
+        if (resourceName != null) {
+            if (resources.isEnabled()) {
+                final CachedResource resource = findResource(resourceName);
+                if (resource != null) {
+                    serveResource(req, resp, resource);
+                    return;
+                }
+            } else {
+                // Nowhere to keep the entity tags: stream the resource as is, instead of reading it twice
+                final URL url = findResourceURL(resourceName);
+                if (url != null) {
+                    streamResource(resp, resourceName, url);
+                    return;
+                }
             }
         }
 
@@ -60,23 +105,200 @@ public class StaticServlet extends HttpServlet {
         rd.forward(wrapped, resp);
     }
 
-    // TODO PIERRE HUGE HACK
+    private void serveResource(final HttpServletRequest req, final HttpServletResponse resp, final CachedResource resource) throws IOException {
+        resp.setHeader("ETag", resource.etag);
+        resp.setDateHeader("Last-Modified", resource.lastModified);
+        resp.setHeader("Accept-Ranges", "bytes");
+        if (resource.contentType != null) {
+            resp.setContentType(resource.contentType);
+        }
+
+        if (isNotModified(req, resource)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long start = 0;
+        long end = resource.length - 1;
+        final String range = req.getHeader("Range");
+        if (range != null && isRangeApplicable(req, resource)) {
+            final long[] byteRange = parseRange(range, resource.length);
+            if (byteRange == UNSATISFIABLE_RANGE) {
+                resp.setHeader("Content-Range", "bytes */" + resource.length);
+                resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            } else if (byteRange != null) {
+                start = byteRange[0];
+                end = byteRange[1];
+                resp.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + resource.length);
+                resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            } else {
+                resp.setStatus(HttpServletResponse.SC_OK);
+            }
+        } else {
+            resp.setStatus(HttpServletResponse.SC_OK);
+        }
+
+        final long length = end - start + 1;
+        resp.setContentLengthLong(length);
+        if (length == 0) {
+            return;
+        }
+
+        final OutputStream outputStream = resp.getOutputStream();
+        if (resource.content != null) {
+            outputStream.write(resource.content, (int) start, (int) length);
+        } else {
+            // Too large to be kept in memory
+            try (final InputStream is = resource.url.openStream()) {
+                skip(is, start);
+                copy(is, outputStream, length);
+            }
+        }
+    }
+
+    private void streamResource(final HttpServletResponse resp, final String resourceName, final URL url) throws IOException {
+        final String contentType = getMimeType(resourceName);
+        if (contentType != null) {
+            resp.setContentType(contentType);
+        }
+        try (final InputStream is = url.openStream()) {
+            resp.setStatus(HttpServletResponse.SC_OK);
+            copy(is, resp.getOutputStream(), Long.MAX_VALUE);
+        }
+    }
+
+    // If-None-Match takes precedence over If-Modified-Since (RFC 7232)
+    private static boolean isNotModified(final HttpServletRequest req, final CachedResource resource) {
+        final String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matchesETag(ifNoneMatch, resource.etag);
+        }
+
+        final long ifModifiedSince = getDateHeader(req, "If-Modified-Since");
+        return ifModifiedSince != -1 && resource.lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    // A stale If-Range validator means the whole (new) representation must be sent
+    private static boolean isRangeApplicable(final HttpServletRequest req, final CachedResource resource) {
+        final String ifRange = req.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        } else if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.trim().equals(resource.etag);
+        } else {
+            final long ifRangeDate = getDateHeader(req, "If-Range");
+            return ifRangeDate != -1 && resource.lastModified / 1000 == ifRangeDate / 1000;
+        }
+    }
+
+    private static boolean matchesETag(final String header, final String etag) {
+        for (final String candidate : header.split(",")) {
+            final String value = candidate.trim();
+            // Weak comparison
+            if ("*".equals(value) || etag.equals(value.startsWith("W/") ? value.substring(2) : value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getDateHeader(final HttpServletRequest req, final String name) {
+        try {
+            return req.getDateHeader(name);
+        } catch (final IllegalArgumentException e) {
+            // Invalid date: ignore the header
+            return -1;
+        }
+    }
+
+    // Single byte range only: returns null to serve the whole resource (unsupported or invalid range)
+    @VisibleForTesting
+    static long[] parseRange(final String range, final long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') != -1) {
+            return null;
+        }
+
+        final String spec = range.substring("bytes=".length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+
+        try {
+            final long start;
+            final long end;
+            if (dash == 0) {
+                // Suffix range: last N bytes
+                final long suffixLength = Long.parseLong(spec.substring(1));
+                if (suffixLength < 0) {
+                    return null;
+                } else if (suffixLength == 0) {
+                    return UNSATISFIABLE_RANGE;
+                }
+                start = Math.max(0, length - suffixLength);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                if (dash == spec.length() - 1) {
+                    end = length - 1;
+                } else {
+                    final long lastBytePos = Long.parseLong(spec.substring(dash + 1));
+                    if (lastBytePos < start) {
+                        return null;
+                    }
+                    end = Math.min(lastBytePos, length - 1);
+                }
+            }
+            return start >= length ? UNSATISFIABLE_RANGE : new long[]{start, end};
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private String findResourceName(final HttpServletRequest request) {
+        final String requestURI = request.getRequestURI();
+        String resourceName = resolutions.get(requestURI);
+        if (resourceName == null) {
+            // Note: getOrLoad doesn't store the loaded value
+            resourceName = resolveResourceName(requestURI);
+            resolutions.put(requestURI, resourceName);
+        }
+        return NOT_FOUND.equals(resourceName) ? null : resourceName;
+    }
+
+    @Nullable
+    private CachedResource findResource(final String resourceName) throws IOException {
+        final CachedResource cachedResource = resources.get(resourceName);
+        if (cachedResource != null) {
+            return cachedResource;
+        }
+
+        final URL url = findResourceURL(resourceName);
+        if (url == null) {
+            return null;
+        }
+        final CachedResource resource = loadResource(resourceName, url);
+        resources.put(resourceName, resource);
+        return resource;
+    }
+
     // We don't really know at this point the resource path to look for
     // e.g. if the request is for /plugins/foo/bar/baz/qux.css, should
-    // we look for /qux.css? /baz/qux.css? /bar/baz/qux.css? /foo/bar/baz/qux.css?
-    private URL findResourceURL(final HttpServletRequest request) {
-        final String url = request.getRequestURI();
-        for (int i = 0; i < url.lastIndexOf('/'); i++) {
-            final int idx = url.indexOf('/', i);
-            if (idx > -1) {
-                final String resourceName = url.substring(idx);
-                final URL match = findResourceURL(resourceName);
-                if (match != null) {
-                    return match;
-                }
+    // we look for /foo/bar/baz/qux.css? /bar/baz/qux.css? /baz/qux.css? /qux.css?
+    // The first match is remembered, so this is only done once per request URI.
+    private String resolveResourceName(final String url) {
+        final int lastSlash = url.lastIndexOf('/');
+        int idx = url.indexOf('/');
+        while (idx > -1 && idx < lastSlash) {
+            final String resourceName = url.substring(idx);
+            if (findResourceURL(resourceName) != null) {
+                return resourceName;
             }
+            idx = url.indexOf('/', idx + 1);
         }
-        return null;
+        return NOT_FOUND;
     }
 
     private URL findResourceURL(final String resourceName) {
@@ -87,4 +309,169 @@ public class StaticServlet extends HttpServlet {
         }
         return url;
     }
+
+    private CachedResource loadResource(final String resourceName, final URL url) throws IOException {
+        final URLConnection connection = url.openConnection();
+        final long lastModified = connection.getLastModified() > 0 ? connection.getLastModified() / 1000 * 1000 : defaultLastModified;
+
+        final MessageDigest digest = newDigest();
+        final byte[] content;
+        final long length;
+        try (final InputStream is = connection.getInputStream()) {
+            final long expectedLength = connection.getContentLengthLong();
+            if (expectedLength > maxCachedResourceSize) {
+                // Hash it once, the content will be streamed from the bundle
+                length = copy(is, new DigestOutputStream(digest), Long.MAX_VALUE);
+                content = null;
+            } else {
+                // The length may be unknown (-1): read one more byte than we can keep, to find out whether it fits
+                final byte[] head = is.readNBytes((int) maxCachedResourceSize + 1);
+                digest.update(head);
+                if (head.length <= maxCachedResourceSize) {
+                    content = head;
+                    length = head.length;
+                } else {
+                    length = head.length + copy(is, new DigestOutputStream(digest), Long.MAX_VALUE);
+                    content = null;
+                }
+            }
+        }
+
+        return new CachedResource(url, content, length, "\"" + toHex(Arrays.copyOf(digest.digest(), 16)) + "\"", lastModified, getMimeType(resourceName));
+    }
+
+    @Nullable
+    private String getMimeType(final String resourceName) {
+        final String mimeType = httpContext.getMimeType(resourceName);
+        if (mimeType != null || getServletConfig() == null) {
+            return mimeType;
+        }
+        return getServletContext().getMimeType(resourceName);
+    }
+
+    private static long copy(final InputStream is, final OutputStream os, final long maxLength) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long copied = 0;
+        int read;
+        while (copied < maxLength && (read = is.read(buffer, 0, (int) Math.min(buffer.length, maxLength - copied))) != -1) {
+            os.write(buffer, 0, read);
+            copied += read;
+        }
+        return copied;
+    }
+
+    private static void skip(final InputStream is, final long n) throws IOException {
+        long remaining = n;
+        while (remaining > 0) {
+            final long skipped = is.skip(remaining);
+            if (skipped <= 0) {
+                // skip() may give up before the end of the stream
+                if (is.read() == -1) {
+                    throw new IOException("Unexpected end of stream");
+                }
+                remaining--;
+            } else {
+                remaining -= skipped;
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static final class DigestOutputStream extends OutputStream {
+
+        private final MessageDigest digest;
+
+        private DigestOutputStream(final MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(final int b) {
+            digest.update((byte) b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            digest.update(b, off, len);
+        }
+    }
+
+    private static final class CachedResource {
+
+        private final URL url;
+        // Null if too large to be kept in memory
+        private final byte[] content;
+        private final long length;
+        private final String etag;
+        private final long lastModified;
+        private final String contentType;
+
+        private CachedResource(final URL url, @Nullable final byte[] content, final long length, final String etag, final long lastModified, @Nullable final String contentType) {
+            this.url = url;
+            this.content = content;
+            this.length = length;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+        }
+
+        private long weight() {
+            return content != null ? content.length + METADATA_SIZE : METADATA_SIZE;
+        }
+    }
+
+    // LRU, bounded by the total size of the cached content
+    private static final class ResourceCache {
+
+        private final long maxSize;
+        private final LinkedHashMap<String, CachedResource> entries = new LinkedHashMap<String, CachedResource>(16, 0.75f, true);
+
+        private long size = 0;
+
+        private ResourceCache(final long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        private boolean isEnabled() {
+            return maxSize > 0;
+        }
+
+        private synchronized CachedResource get(final String resourceName) {
+            return entries.get(resourceName);
+        }
+
+        private synchronized void put(final String resourceName, final CachedResource resource) {
+            if (resource.weight() > maxSize) {
+                return;
+            }
+
+            final CachedResource previous = entries.put(resourceName, resource);
+            if (previous != null) {
+                size -= previous.weight();
+            }
+            size += resource.weight();
+
+            final Iterator<Map.Entry<String, CachedResource>> iterator = entries.entrySet().iterator();
+            while (size > maxSize && iterator.hasNext()) {
+                final CachedResource eldest = iterator.next().getValue();
+                iterator.remove();
+                size -= eldest.weight();
+            }
+        }
+    }
 }
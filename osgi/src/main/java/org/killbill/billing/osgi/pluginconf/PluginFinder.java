@@ -19,21 +19,36 @@
 
 package org.killbill.billing.osgi.pluginconf;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
@@ -42,12 +57,20 @@ import org.killbill.billing.osgi.api.config.PluginConfig;
 import org.killbill.billing.osgi.api.config.PluginJavaConfig;
 import org.killbill.billing.osgi.api.config.PluginLanguage;
 import org.killbill.billing.osgi.config.OSGIConfig;
+import org.killbill.commons.concurrent.Executors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+/**
+ * View of the plugins installed under {@code <root>/plugins/java/<name>/<version>/}.
+ * <p>
+ * The view is an immutable snapshot, read without locking. It is loaded on first access and then updated one plugin at a time,
+ * either explicitly ({@link #reloadPlugin(String)}) or, once {@link #startWatching()} has been called, whenever the plugin
+ * directory changes (new version, SET_DEFAULT symlink, tmp/disabled.txt, ...).
+ */
 public class PluginFinder {
 
     static final String SELECTED_VERSION_LINK_NAME = "SET_DEFAULT";
@@ -55,19 +78,31 @@ public class PluginFinder {
     static final String DISABLED_FILE_NAME = "disabled.txt"; // See similar definition in KillbillActivatorBase
     static final String IDENTIFIERS_FILE_NAME = "plugin_identifiers.json";
 
+    // Events are coalesced for that long before the affected plugins are reloaded
+    private static final long WATCH_COALESCING_DELAY_MS = 100;
+    // plugins/java/<name>/<version>/tmp
+    private static final int WATCH_MAX_DEPTH = 4;
+
     private final Logger logger = LoggerFactory.getLogger(PluginFinder.class);
 
     private final OSGIConfig osgiConfig;
-    private final Map<String, LinkedList<PluginConfig>> allPlugins;
-    private final Map<String, PluginIdentifier> identifiers;
     private final ObjectMapper mapper;
+    // Serializes the writers, readers only look at the published snapshot
+    private final Object lock = new Object();
+
+    private volatile Snapshot snapshot;
+    // Bumped every time a new snapshot is published
+    private final AtomicLong stateVersion = new AtomicLong();
+    // Guarded by lock
+    private long identifiersFileLastModified = -1;
+    private long identifiersFileSize = -1;
+    private ExecutorService watcherExecutor;
+    private WatchService watchService;
 
     @Inject
     public PluginFinder(final OSGIConfig osgiConfig) {
         this.osgiConfig = osgiConfig;
         this.mapper = new ObjectMapper();
-        this.allPlugins = new HashMap<String, LinkedList<PluginConfig>>();
-        this.identifiers = new HashMap<String, PluginIdentifier>();
     }
 
     public List<PluginJavaConfig> getLatestJavaPlugins() throws PluginConfigException, IOException {
@@ -75,15 +110,12 @@ public class PluginFinder {
     }
 
     public List<PluginConfig> getVersionsForPlugin(final String lookupName, @Nullable final String version) throws PluginConfigException, IOException {
-        loadPluginsIfRequired(false);
-
         final List<PluginConfig> result = new LinkedList<PluginConfig>();
-        for (final Entry<String, LinkedList<PluginConfig>> entry : allPlugins.entrySet()) {
-            if (entry.getKey().equals(lookupName)) {
-                for (final PluginConfig cur : entry.getValue()) {
-                    if (version == null || cur.getVersion().equals(version)) {
-                        result.add(cur);
-                    }
+        final List<PluginConfig> versionsForPlugin = getOrLoadSnapshot().plugins.get(lookupName);
+        if (versionsForPlugin != null) {
+            for (final PluginConfig cur : versionsForPlugin) {
+                if (version == null || cur.getVersion().equals(version)) {
+                    result.add(cur);
                 }
             }
         }
@@ -91,162 +123,333 @@ public class PluginFinder {
     }
 
     public String getPluginVersionSelectedForStart(final String pluginName) {
-        final LinkedList<PluginConfig> pluginConfigs = allPlugins.get(pluginName);
+        final Snapshot current = snapshot;
+        if (current == null) {
+            return null;
+        }
+        final LinkedList<PluginConfig> pluginConfigs = current.plugins.get(pluginName);
         return pluginConfigs != null && !pluginConfigs.isEmpty() ? pluginConfigs.get(0).getVersion() : null;
     }
 
     public Map<String, LinkedList<PluginConfig>> getAllPlugins() {
-        return Map.copyOf(allPlugins);
+        final Snapshot current = snapshot;
+        return current == null ? Collections.emptyMap() : Map.copyOf(current.plugins);
     }
 
-    public void reloadPlugins() throws PluginConfigException, IOException {
-        loadPluginsIfRequired(true);
+    // Changes whenever the view of the installed plugins may have changed
+    public long getStateVersion() {
+        return stateVersion.get();
     }
 
     public PluginIdentifier resolvePluginKey(final String pluginKey) {
-        return identifiers.get(pluginKey);
+        final Snapshot current = snapshot;
+        return current == null ? null : current.identifiers.get(pluginKey);
     }
 
-    private <T extends PluginConfig> List<T> getLatestPluginForLanguage(final PluginLanguage pluginLanguage) throws PluginConfigException, IOException {
-        loadPluginsIfRequired(false);
-
-        final List<T> result = new LinkedList<T>();
-        for (final LinkedList<PluginConfig> plugins : allPlugins.values()) {
-            @SuppressWarnings("unchecked") final T plugin = (T) plugins.get(0);
-            if (pluginLanguage != plugin.getPluginLanguage()) {
-                continue;
-            }
-            result.add(plugin);
+    // Full rescan
+    public void reloadPlugins() throws PluginConfigException, IOException {
+        synchronized (lock) {
+            publish(loadAllPlugins());
         }
-
-        return result;
     }
 
-    private <T extends PluginConfig> void loadPluginsIfRequired(final boolean reloadPlugins) throws PluginConfigException, IOException {
-        synchronized (allPlugins) {
+    // Rescan of a single plugin directory (full rescan if the plugin isn't known)
+    public void reloadPlugin(@Nullable final String pluginName) throws PluginConfigException, IOException {
+        if (pluginName == null) {
+            reloadPlugins();
+            return;
+        }
+        if (pluginName.isEmpty() || pluginName.indexOf('/') != -1 || pluginName.indexOf(File.separatorChar) != -1 || ".".equals(pluginName) || "..".equals(pluginName)) {
+            logger.warn("Ignoring reload of invalid plugin name {}", pluginName);
+            return;
+        }
 
-            if (!reloadPlugins && !allPlugins.isEmpty()) {
+        synchronized (lock) {
+            final Snapshot current = snapshot;
+            if (current == null) {
+                publish(loadAllPlugins());
                 return;
             }
+            publish(current.withPlugin(pluginName, loadPlugin(PluginLanguage.JAVA, pluginName, current.identifiers)));
+        }
+    }
 
-            allPlugins.clear();
-
-            readPluginIdentifiers();
+    // Re-read plugin_identifiers.json if it changed, and reload the plugins whose key changed
+    public void reloadPluginIdentifiers() throws PluginConfigException, IOException {
+        synchronized (lock) {
+            final Snapshot current = snapshot;
+            if (current == null) {
+                publish(loadAllPlugins());
+                return;
+            }
 
-            loadPluginsForLanguage(PluginLanguage.JAVA);
+            final Map<String, PluginIdentifier> identifiers = readPluginIdentifiersIfModified(current.identifiers);
+            if (identifiers == current.identifiers) {
+                return;
+            }
 
-            // Order for each plugin  based on DefaultPluginConfig sort method:
-            // (order first based on SELECTED_VERSION_LINK_NAME and then decreasing version number)
-            //
-            for (final Entry<String, LinkedList<PluginConfig>> entry : allPlugins.entrySet()) {
-                final String pluginName = entry.getKey();
-                final LinkedList<PluginConfig> versionsForPlugin = entry.getValue();
-                // If all entries were disabled or the SELECTED_VERSION_LINK_NAME was disabled we end up with nothing, it is as if the plugin did not exist
-                if (versionsForPlugin.isEmpty()) {
-                    allPlugins.remove(pluginName);
-                    continue;
+            Snapshot updated = current.withIdentifiers(identifiers);
+            for (final Entry<String, LinkedList<PluginConfig>> entry : current.plugins.entrySet()) {
+                final String pluginKey = findPluginKey(identifiers, entry.getKey(), PluginLanguage.JAVA);
+                if (pluginKey == null ? entry.getValue().get(0).getPluginKey() != null : !pluginKey.equals(entry.getValue().get(0).getPluginKey())) {
+                    updated = updated.withPlugin(entry.getKey(), loadPlugin(PluginLanguage.JAVA, entry.getKey(), identifiers));
                 }
-                Collections.sort(versionsForPlugin);
-                // Make sure first entry is set with isSelectedForStart = true
-                final PluginConfig firstValue = versionsForPlugin.removeFirst();
-                if (firstValue.getPluginLanguage() != PluginLanguage.JAVA) {
-                    throw new UnsupportedOperationException("Non-Java plugins aren't supported anymore");
-                }
-                final PluginConfig newFirstValue = new DefaultPluginJavaConfig((DefaultPluginJavaConfig) firstValue, true);
-                versionsForPlugin.addFirst(newFirstValue);
             }
+            publish(updated);
         }
     }
 
-    private void readPluginIdentifiers() {
-
-        final String identifierFileName = osgiConfig.getRootInstallationDir() + "/plugins/" + IDENTIFIERS_FILE_NAME;
-        final File identifierFile = new File(identifierFileName);
-        if (!identifierFile.exists() || !identifierFile.isFile()) {
-            logger.warn("File non existent: Skipping parsing of " + IDENTIFIERS_FILE_NAME);
+    /**
+     * Keep the view up to date with the plugins directory: a {@link WatchService} is used when available, the directory
+     * is polled otherwise.
+     */
+    public void startWatching() {
+        if (!osgiConfig.isPluginsWatchEnabled()) {
             return;
         }
 
-        try {
-            identifiers.clear();
-            final Map<String, PluginIdentifier> map = mapper.readValue(identifierFile, new TypeReference<Map<String, PluginIdentifier>>() {});
-            identifiers.putAll(map);
-        } catch (final IOException e) {
-            logger.warn("Exception when parsing " + IDENTIFIERS_FILE_NAME + ":", e);
-            return;
+        synchronized (lock) {
+            if (watcherExecutor != null) {
+                return;
+            }
+
+            final Path pluginsDir = getPluginsDir();
+            try {
+                watchService = FileSystems.getDefault().newWatchService();
+                final PluginsWatcher watcher = new PluginsWatcher(watchService, pluginsDir);
+                watcher.registerTree(pluginsDir);
+                watcherExecutor = Executors.newSingleThreadExecutor("plugins-watcher");
+                watcherExecutor.execute(watcher);
+                logger.info("Watching plugins directory {}", pluginsDir);
+            } catch (final IOException | UnsupportedOperationException e) {
+                logger.warn("Unable to watch plugins directory {}, falling back to polling", pluginsDir, e);
+                closeWatchService();
+                startPolling(osgiConfig.getPluginsWatchPollingInterval().getMillis());
+            }
         }
     }
 
-    private String resolveVersionToStartLink(final File pluginVersionsRoot) throws IOException {
-        final File selectedVersionLink = new File(pluginVersionsRoot + "/" + SELECTED_VERSION_LINK_NAME);
-        if (selectedVersionLink.exists() && selectedVersionLink.isDirectory()) {
-            return selectedVersionLink.getCanonicalFile().getName();
+    // Visible for testing
+    void startPolling(final long pollingIntervalMs) {
+        synchronized (lock) {
+            if (watcherExecutor != null) {
+                return;
+            }
+
+            final PluginsPoller poller = new PluginsPoller();
+            final ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor("plugins-poller");
+            scheduledExecutor.scheduleWithFixedDelay(poller, pollingIntervalMs, pollingIntervalMs, TimeUnit.MILLISECONDS);
+            watcherExecutor = scheduledExecutor;
+            logger.info("Polling plugins directory {} every {}ms", getPluginsDir(), pollingIntervalMs);
         }
-        return null;
     }
 
-    private void loadPluginsForLanguage(final PluginLanguage pluginLanguage) throws PluginConfigException, IOException {
-        final String rootDirPath = osgiConfig.getRootInstallationDir() + "/plugins/" + pluginLanguage.toString().toLowerCase();
-        final File rootDir = new File(rootDirPath);
-        if (!rootDir.exists() || !rootDir.isDirectory()) {
-            logger.warn("Configuration root dir {} is not a valid directory", rootDirPath);
-            return;
+    public void stopWatching() {
+        final ExecutorService executor;
+        synchronized (lock) {
+            executor = watcherExecutor;
+            watcherExecutor = null;
+            closeWatchService();
         }
 
-        final File[] files = rootDir.listFiles();
-        if (files == null) {
-            return;
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    logger.warn("Plugins watcher didn't stop in time");
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
-        for (final File curPlugin : files) {
-            // Skip any non directory entry
-            if (!curPlugin.isDirectory()) {
-                logger.warn("Skipping entry {} in directory {}", curPlugin.getName(), rootDir.getAbsolutePath());
-                continue;
+    }
+
+    private void closeWatchService() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (final IOException e) {
+                logger.warn("Unable to close the plugins watch service", e);
             }
-            final String pluginName = curPlugin.getName();
+            watchService = null;
+        }
+    }
 
-            final File[] filesInDir = curPlugin.listFiles();
-            if (filesInDir == null) {
+    private <T extends PluginConfig> List<T> getLatestPluginForLanguage(final PluginLanguage pluginLanguage) throws PluginConfigException, IOException {
+        final List<T> result = new LinkedList<T>();
+        for (final LinkedList<PluginConfig> plugins : getOrLoadSnapshot().plugins.values()) {
+            @SuppressWarnings("unchecked") final T plugin = (T) plugins.get(0);
+            if (pluginLanguage != plugin.getPluginLanguage()) {
                 continue;
             }
+            result.add(plugin);
+        }
+
+        return result;
+    }
 
-            final String versionToStart = resolveVersionToStartLink(curPlugin);
+    private Snapshot getOrLoadSnapshot() throws PluginConfigException, IOException {
+        final Snapshot current = snapshot;
+        if (current != null) {
+            return current;
+        }
 
-            LinkedList<PluginConfig> curPluginVersionlist = allPlugins.get(pluginName);
-            if (curPluginVersionlist == null) {
-                curPluginVersionlist = new LinkedList<PluginConfig>();
-                allPlugins.put(pluginName, curPluginVersionlist);
+        synchronized (lock) {
+            if (snapshot == null) {
+                publish(loadAllPlugins());
             }
-            for (final File curVersion : filesInDir) {
+            return snapshot;
+        }
+    }
+
+    // Must be called with the lock held
+    private void publish(final Snapshot newSnapshot) {
+        snapshot = newSnapshot;
+        stateVersion.incrementAndGet();
+    }
+
+    private Path getPluginsDir() {
+        return new File(osgiConfig.getRootInstallationDir(), "plugins").toPath();
+    }
+
+    private File getPluginsRootDir(final PluginLanguage pluginLanguage) {
+        return new File(osgiConfig.getRootInstallationDir() + "/plugins/" + pluginLanguage.toString().toLowerCase());
+    }
+
+    // Must be called with the lock held
+    private Snapshot loadAllPlugins() throws PluginConfigException, IOException {
+        final Snapshot current = snapshot;
+        final Map<String, PluginIdentifier> identifiers = readPluginIdentifiers(current == null ? Collections.emptyMap() : current.identifiers);
+        final Map<String, LinkedList<PluginConfig>> plugins = new HashMap<String, LinkedList<PluginConfig>>();
+
+        final File rootDir = getPluginsRootDir(PluginLanguage.JAVA);
+        if (!rootDir.exists() || !rootDir.isDirectory()) {
+            logger.warn("Configuration root dir {} is not a valid directory", rootDir);
+            return new Snapshot(plugins, identifiers);
+        }
+
+        final File[] files = rootDir.listFiles();
+        if (files != null) {
+            for (final File curPlugin : files) {
                 // Skip any non directory entry
-                if (!curVersion.isDirectory()) {
+                if (!curPlugin.isDirectory()) {
                     logger.warn("Skipping entry {} in directory {}", curPlugin.getName(), rootDir.getAbsolutePath());
                     continue;
                 }
-                final String version = curVersion.getName();
-                // Skip the symlink 'SELECTED_VERSION_LINK_NAME' if exists
-                if (SELECTED_VERSION_LINK_NAME.equals(version)) {
-                    continue;
-                }
-                final boolean isVersionToStartLink = versionToStart != null && versionToStart.equals(version);
 
-                final PluginConfig plugin;
-                try {
-                    plugin = extractPluginConfig(pluginLanguage, pluginName, version, curVersion, isVersionToStartLink);
-                } catch (final PluginConfigException e) {
-                    logger.warn("Skipping plugin {}: {}", pluginName, e.getMessage());
-                    continue;
-                }
-                // Add the entry if this is not marked as 'disabled'
-                if (!plugin.isDisabled()) {
-                    curPluginVersionlist.add(plugin);
-                    logger.info("Adding plugin {} ", plugin.getPluginVersionnedName());
+                final LinkedList<PluginConfig> versionsForPlugin = loadPlugin(PluginLanguage.JAVA, curPlugin.getName(), identifiers);
+                if (versionsForPlugin != null) {
+                    plugins.put(curPlugin.getName(), versionsForPlugin);
                 }
             }
         }
+        return new Snapshot(plugins, identifiers);
+    }
+
+    // Sorted versions of the plugin (based on DefaultPluginConfig sort method: SELECTED_VERSION_LINK_NAME first, and then decreasing
+    // version number), the first one being selected for start. Returns null if all versions are disabled (or if the plugin doesn't
+    // exist): it is as if the plugin did not exist.
+    @Nullable
+    private LinkedList<PluginConfig> loadPlugin(final PluginLanguage pluginLanguage, final String pluginName, final Map<String, PluginIdentifier> identifiers) throws PluginConfigException, IOException {
+        final File curPlugin = new File(getPluginsRootDir(pluginLanguage), pluginName);
+        final File[] filesInDir = curPlugin.isDirectory() ? curPlugin.listFiles() : null;
+        if (filesInDir == null) {
+            return null;
+        }
+
+        final String versionToStart = resolveVersionToStartLink(curPlugin);
+        final String pluginKey = findPluginKey(identifiers, pluginName, pluginLanguage);
+
+        final LinkedList<PluginConfig> versionsForPlugin = new LinkedList<PluginConfig>();
+        for (final File curVersion : filesInDir) {
+            // Skip any non directory entry
+            if (!curVersion.isDirectory()) {
+                logger.warn("Skipping entry {} in directory {}", curVersion.getName(), curPlugin.getAbsolutePath());
+                continue;
+            }
+            final String version = curVersion.getName();
+            // Skip the symlink 'SELECTED_VERSION_LINK_NAME' if exists
+            if (SELECTED_VERSION_LINK_NAME.equals(version)) {
+                continue;
+            }
+            final boolean isVersionToStartLink = versionToStart != null && versionToStart.equals(version);
+
+            final PluginConfig plugin;
+            try {
+                plugin = extractPluginConfig(pluginLanguage, pluginKey, pluginName, version, curVersion, isVersionToStartLink);
+            } catch (final PluginConfigException e) {
+                logger.warn("Skipping plugin {}: {}", pluginName, e.getMessage());
+                continue;
+            }
+            // Add the entry if this is not marked as 'disabled'
+            if (!plugin.isDisabled()) {
+                versionsForPlugin.add(plugin);
+                logger.info("Adding plugin {} ", plugin.getPluginVersionnedName());
+            }
+        }
+
+        if (versionsForPlugin.isEmpty()) {
+            return null;
+        }
+
+        Collections.sort(versionsForPlugin);
+        // Make sure first entry is set with isSelectedForStart = true
+        final PluginConfig firstValue = versionsForPlugin.removeFirst();
+        if (firstValue.getPluginLanguage() != PluginLanguage.JAVA) {
+            throw new UnsupportedOperationException("Non-Java plugins aren't supported anymore");
+        }
+        final PluginConfig newFirstValue = new DefaultPluginJavaConfig((DefaultPluginJavaConfig) firstValue, true);
+        versionsForPlugin.addFirst(newFirstValue);
+        return versionsForPlugin;
+    }
+
+    // Must be called with the lock held
+    private Map<String, PluginIdentifier> readPluginIdentifiers(final Map<String, PluginIdentifier> previousIdentifiers) {
+        identifiersFileLastModified = -1;
+        identifiersFileSize = -1;
+        final Map<String, PluginIdentifier> identifiers = readPluginIdentifiersIfModified(previousIdentifiers);
+        if (identifiers == previousIdentifiers && !getIdentifiersFile().isFile()) {
+            logger.warn("File non existent: Skipping parsing of " + IDENTIFIERS_FILE_NAME);
+        }
+        return identifiers;
+    }
+
+    // Returns the previous identifiers if the file didn't change (or doesn't exist). Must be called with the lock held.
+    private Map<String, PluginIdentifier> readPluginIdentifiersIfModified(final Map<String, PluginIdentifier> previousIdentifiers) {
+        final File identifierFile = getIdentifiersFile();
+        if (!identifierFile.isFile()) {
+            return previousIdentifiers;
+        }
+
+        final long lastModified = identifierFile.lastModified();
+        final long size = identifierFile.length();
+        if (lastModified == identifiersFileLastModified && size == identifiersFileSize) {
+            return previousIdentifiers;
+        }
+        identifiersFileLastModified = lastModified;
+        identifiersFileSize = size;
+
+        try {
+            return Collections.unmodifiableMap(mapper.readValue(identifierFile, new TypeReference<Map<String, PluginIdentifier>>() {}));
+        } catch (final IOException e) {
+            logger.warn("Exception when parsing " + IDENTIFIERS_FILE_NAME + ":", e);
+            return Collections.emptyMap();
+        }
+    }
+
+    private File getIdentifiersFile() {
+        return new File(osgiConfig.getRootInstallationDir() + "/plugins/" + IDENTIFIERS_FILE_NAME);
+    }
+
+    private String resolveVersionToStartLink(final File pluginVersionsRoot) throws IOException {
+        final File selectedVersionLink = new File(pluginVersionsRoot, SELECTED_VERSION_LINK_NAME);
+        if (selectedVersionLink.exists() && selectedVersionLink.isDirectory()) {
+            return selectedVersionLink.getCanonicalFile().getName();
+        }
+        return null;
     }
 
-    private String findPluginKey(final String pluginName, final PluginLanguage pluginLanguage) {
+    private static String findPluginKey(final Map<String, PluginIdentifier> identifiers, final String pluginName, final PluginLanguage pluginLanguage) {
         for (final Entry<String, PluginIdentifier> entry : identifiers.entrySet()) {
             if (entry.getValue().getPluginName().equals(pluginName) && entry.getValue().getLanguage().equalsIgnoreCase(pluginLanguage.name())) {
                 return entry.getKey();
@@ -255,33 +458,23 @@ public class PluginFinder {
         return null;
     }
 
-    private PluginConfig extractPluginConfig(final PluginLanguage pluginLanguage, final String pluginName, final String pluginVersion, final File pluginVersionDir, final boolean isVersionToStartLink) throws PluginConfigException {
+    private PluginConfig extractPluginConfig(final PluginLanguage pluginLanguage, final String pluginKey, final String pluginName, final String pluginVersion, final File pluginVersionDir, final boolean isVersionToStartLink) throws PluginConfigException {
         final PluginConfig result;
-        Properties props = null;
+        final Properties props;
         try {
-            final File[] files = pluginVersionDir.listFiles();
-            if (files == null) {
-                throw new PluginConfigException("Unable to list files in " + pluginVersionDir.getAbsolutePath());
-            }
-
-            for (final File cur : files) {
-                if (cur.isFile() && cur.getName().equals(osgiConfig.getOSGIKillbillPropertyName())) {
-                    props = readPluginConfigurationFile(cur);
-                }
-                if (props != null) {
-                    break;
-                }
-            }
+            final File propertiesFile = new File(pluginVersionDir, osgiConfig.getOSGIKillbillPropertyName());
+            props = propertiesFile.isFile() ? readPluginConfigurationFile(propertiesFile) : null;
 
             if (pluginLanguage == PluginLanguage.RUBY && props == null) {
                 throw new PluginConfigException("Invalid plugin configuration file for " + pluginName + "-" + pluginVersion);
             }
-
         } catch (final IOException e) {
             throw new PluginConfigException("Failed to read property file for " + pluginName + "-" + pluginVersion, e);
+        } catch (final IllegalArgumentException e) {
+            // Malformed unicode escape
+            throw new PluginConfigException("Failed to read property file for " + pluginName + "-" + pluginVersion + ": " + e.getMessage());
         }
 
-        final String pluginKey = findPluginKey(pluginName, pluginLanguage);
         switch (pluginLanguage) {
             case JAVA:
                 result = new DefaultPluginJavaConfig(pluginKey, pluginName, pluginVersion, pluginVersionDir, (props == null) ? new Properties() : props, isVersionToStartLink, isPluginDisabled(pluginVersionDir));
@@ -299,17 +492,201 @@ public class PluginFinder {
 
     private Properties readPluginConfigurationFile(final File config) throws IOException {
         final Properties props = new Properties();
-        try (final InputStream in = new FileInputStream(config);
-             final Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
-             final BufferedReader br = new BufferedReader(reader)) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                final String[] parts = line.split("\\s*=\\s*");
-                final String key = parts[0];
-                final String value = parts[1];
-                props.put(key, value);
-            }
+        try (final InputStream in = Files.newInputStream(config.toPath());
+             final Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            props.load(reader);
             return props;
         }
     }
+
+    private void reloadQuietly(final boolean identifiersChanged, final boolean reloadAll, final Set<String> pluginNames) {
+        try {
+            if (reloadAll) {
+                reloadPlugins();
+                return;
+            }
+            if (identifiersChanged) {
+                reloadPluginIdentifiers();
+            }
+            for (final String pluginName : pluginNames) {
+                reloadPlugin(pluginName);
+            }
+        } catch (final PluginConfigException | IOException | RuntimeException e) {
+            logger.warn("Unable to reload plugins {}", pluginNames, e);
+        }
+    }
+
+    private static final class Snapshot {
+
+        private final Map<String, LinkedList<PluginConfig>> plugins;
+        private final Map<String, PluginIdentifier> identifiers;
+
+        private Snapshot(final Map<String, LinkedList<PluginConfig>> plugins, final Map<String, PluginIdentifier> identifiers) {
+            this.plugins = Collections.unmodifiableMap(plugins);
+            this.identifiers = identifiers;
+        }
+
+        private Snapshot withPlugin(final String pluginName, @Nullable final LinkedList<PluginConfig> versionsForPlugin) {
+            final Map<String, LinkedList<PluginConfig>> updatedPlugins = new HashMap<String, LinkedList<PluginConfig>>(plugins);
+            if (versionsForPlugin == null) {
+                updatedPlugins.remove(pluginName);
+            } else {
+                updatedPlugins.put(pluginName, versionsForPlugin);
+            }
+            return new Snapshot(updatedPlugins, identifiers);
+        }
+
+        private Snapshot withIdentifiers(final Map<String, PluginIdentifier> updatedIdentifiers) {
+            return new Snapshot(new HashMap<String, LinkedList<PluginConfig>>(plugins), updatedIdentifiers);
+        }
+    }
+
+    // Maps file system events under plugins/ to the plugins to reload
+    private final class PluginsWatcher implements Runnable {
+
+        private final WatchService watchService;
+        private final Path pluginsDir;
+        private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<WatchKey, Path>();
+
+        private PluginsWatcher(final WatchService watchService, final Path pluginsDir) {
+            this.watchService = watchService;
+            this.pluginsDir = pluginsDir;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    boolean identifiersChanged = false;
+                    boolean reloadAll = false;
+                    final Set<String> pluginNames = new HashSet<String>();
+
+                    WatchKey key = watchService.take();
+                    while (key != null) {
+                        final Path dir = watchedDirs.get(key);
+                        for (final WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                                // Events were lost
+                                reloadAll = true;
+                                continue;
+                            }
+
+                            final Path path = dir.resolve((Path) event.context());
+                            final Path relativePath = pluginsDir.relativize(path);
+                            if (relativePath.getNameCount() == 1 && IDENTIFIERS_FILE_NAME.equals(relativePath.toString())) {
+                                identifiersChanged = true;
+                            } else if (relativePath.getNameCount() == 1 && PluginLanguage.JAVA.toString().toLowerCase().equals(relativePath.toString())) {
+                                reloadAll = true;
+                            } else if (relativePath.getNameCount() >= 2 && PluginLanguage.JAVA.toString().toLowerCase().equals(relativePath.getName(0).toString())) {
+                                pluginNames.add(relativePath.getName(1).toString());
+                            }
+
+                            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                                registerTree(path);
+                            }
+                        }
+                        if (!key.reset()) {
+                            // Directory deleted
+                            watchedDirs.remove(key);
+                        }
+                        key = watchService.poll(WATCH_COALESCING_DELAY_MS, TimeUnit.MILLISECONDS);
+                    }
+
+                    if (reloadAll) {
+                        registerTree(pluginsDir);
+                    }
+                    reloadQuietly(identifiersChanged, reloadAll, pluginNames);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (final ClosedWatchServiceException e) {
+                // Stopped
+            }
+        }
+
+        // Register the directory and its sub-directories (symlinks such as SET_DEFAULT are not followed)
+        private void registerTree(final Path dir) {
+            final Path relativePath = pluginsDir.relativize(dir);
+            final int depth = pluginsDir.equals(dir) ? 0 : relativePath.getNameCount();
+            if (depth > WATCH_MAX_DEPTH ||
+                (depth > 0 && !PluginLanguage.JAVA.toString().toLowerCase().equals(relativePath.getName(0).toString())) ||
+                !Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+                return;
+            }
+
+            try {
+                watchedDirs.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+            } catch (final IOException e) {
+                logger.warn("Unable to watch directory {}", dir, e);
+                return;
+            }
+
+            final File[] children = dir.toFile().listFiles();
+            if (children != null) {
+                for (final File child : children) {
+                    registerTree(child.toPath());
+                }
+            }
+        }
+    }
+
+    // Fallback when file system events aren't available: cheap scan of the directories modification times
+    private final class PluginsPoller implements Runnable {
+
+        private Map<String, String> fingerprints = fingerprints();
+
+        @Override
+        public void run() {
+            final Map<String, String> newFingerprints = fingerprints();
+
+            final Set<String> pluginNames = new HashSet<String>();
+            for (final Entry<String, String> entry : newFingerprints.entrySet()) {
+                if (!entry.getValue().equals(fingerprints.get(entry.getKey()))) {
+                    pluginNames.add(entry.getKey());
+                }
+            }
+            for (final String pluginName : fingerprints.keySet()) {
+                if (!newFingerprints.containsKey(pluginName)) {
+                    pluginNames.add(pluginName);
+                }
+            }
+            fingerprints = newFingerprints;
+
+            reloadQuietly(true, false, pluginNames);
+        }
+
+        private Map<String, String> fingerprints() {
+            final Map<String, String> fingerprints = new HashMap<String, String>();
+            final File[] pluginDirs = getPluginsRootDir(PluginLanguage.JAVA).listFiles();
+            if (pluginDirs != null) {
+                for (final File pluginDir : pluginDirs) {
+                    if (pluginDir.isDirectory()) {
+                        fingerprints.put(pluginDir.getName(), fingerprint(pluginDir));
+                    }
+                }
+            }
+            return fingerprints;
+        }
+
+        private String fingerprint(final File pluginDir) {
+            final StringBuilder fingerprint = new StringBuilder().append(pluginDir.lastModified());
+            final File selectedVersionLink = new File(pluginDir, SELECTED_VERSION_LINK_NAME);
+            try {
+                fingerprint.append(',').append(selectedVersionLink.exists() ? selectedVersionLink.getCanonicalFile().getName() : null);
+            } catch (final IOException e) {
+                fingerprint.append(",?");
+            }
+
+            final File[] versionDirs = pluginDir.listFiles();
+            if (versionDirs != null) {
+                Arrays.sort(versionDirs);
+                for (final File versionDir : versionDirs) {
+                    fingerprint.append(',').append(versionDir.getName()).append(':').append(versionDir.lastModified())
+                               .append(':').append(new File(versionDir, TMP_DIR_NAME).lastModified())
+                               .append(':').append(isPluginDisabled(versionDir));
+                }
+            }
+            return fingerprint.toString();
+        }
+    }
 }
@@ -0,0 +1,524 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.osgi.BundleRegistry.BundleWithMetadata;
+import org.killbill.billing.osgi.api.DefaultPluginsInfoApi.DefaultPluginServiceInfo;
+import org.killbill.billing.osgi.api.PluginServiceInfo;
+import org.killbill.billing.osgi.api.config.PluginConfig;
+import org.killbill.billing.osgi.api.config.PluginConfigServiceApi;
+import org.killbill.billing.osgi.config.OSGIConfig;
+import org.killbill.billing.osgi.pluginconf.PluginFinder;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.skife.config.TimeSpan;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.awaitility.Awaitility.await;
+
+public class TestBundleRegistry {
+
+    private static final long TIMEOUT_SEC = 5;
+
+    // Activator start and end, per symbolic name, in order
+    private final List<String> startEvents = Collections.synchronizedList(new ArrayList<String>());
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        startEvents.clear();
+    }
+
+    @Test(groups = "fast")
+    public void testParallelStart() throws Exception {
+        // Each activator waits for all the others to be running: this only completes if they are started concurrently
+        final CountDownLatch allStarting = new CountDownLatch(8);
+        final List<BundleWithConfig> bundles = new ArrayList<BundleWithConfig>();
+        for (int i = 0; i < 8; i++) {
+            bundles.add(pluginBundle(stubBundle("plugin-" + i, () -> {
+                allStarting.countDown();
+                if (!allStarting.await(TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                    throw new BundleException("Not started concurrently");
+                }
+            }, null, null)));
+        }
+
+        final BundleRegistry parallelRegistry = createBundleRegistry(bundles, 8, TimeUnit.SECONDS.toMillis(2 * TIMEOUT_SEC));
+        parallelRegistry.startBundles(Set.of("plugin-0", "plugin-7"));
+        for (int i = 0; i < 8; i++) {
+            Assert.assertNotNull(parallelRegistry.getBundle("plugin-" + i));
+        }
+
+        // With a single thread, activators never overlap
+        startEvents.clear();
+        final List<BundleWithConfig> otherBundles = new ArrayList<BundleWithConfig>();
+        for (int i = 0; i < 4; i++) {
+            otherBundles.add(pluginBundle(stubBundle("other-plugin-" + i, null, null, null)));
+        }
+        createBundleRegistry(otherBundles, 1, TimeUnit.SECONDS.toMillis(TIMEOUT_SEC)).startBundles(Set.of("other-plugin-0", "other-plugin-3"));
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(startEvents.get(2 * i), "start:other-plugin-" + i);
+            Assert.assertEquals(startEvents.get(2 * i + 1), "end:other-plugin-" + i);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testPlatformBundlesAreStartedFirst() throws Exception {
+        // Plugins are blocked until both of them are running, i.e. they are started concurrently
+        final CountDownLatch pluginsStarting = new CountDownLatch(2);
+        final Activator pluginActivator = () -> {
+            pluginsStarting.countDown();
+            if (!pluginsStarting.await(TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                throw new BundleException("Not started concurrently");
+            }
+        };
+        final BundleWithConfig plugin = pluginBundle(stubBundle("plugin", pluginActivator, null, null));
+        final BundleWithConfig otherPlugin = pluginBundle(stubBundle("other-plugin", pluginActivator, null, null));
+        final BundleWithConfig platform = new BundleWithConfig(stubBundle("platform", null, null, null), null);
+        final BundleWithConfig otherPlatform = new BundleWithConfig(stubBundle("other-platform", null, null, null), null);
+        final List<BundleWithConfig> bundles = List.of(platform, otherPlatform, plugin, otherPlugin);
+
+        Assert.assertEquals(BundleRegistry.computeStartOrder(bundles), List.of(List.of(platform), List.of(otherPlatform), List.of(plugin, otherPlugin)));
+
+        createBundleRegistry(bundles, 8, TimeUnit.SECONDS.toMillis(2 * TIMEOUT_SEC)).startBundles(Set.of("plugin", "other-plugin"));
+        Assert.assertEquals(startEvents.subList(0, 4), List.of("start:platform", "end:platform", "start:other-platform", "end:other-platform"));
+        Assert.assertEquals(new HashSet<String>(startEvents.subList(4, 8)), Set.of("start:plugin", "end:plugin", "start:other-plugin", "end:other-plugin"));
+    }
+
+    @Test(groups = "fast")
+    public void testFailuresAndMandatoryPlugins() throws Exception {
+        final CountDownLatch slowPluginLatch = new CountDownLatch(1);
+        final Activator failingActivator = () -> {
+            throw new BundleException("Activator failure");
+        };
+        final List<BundleWithConfig> bundles = List.of(pluginBundle(stubBundle("plugin-ok", null, null, null)),
+                                                       pluginBundle(stubBundle("plugin-slow", slowPluginLatch::await, null, null)),
+                                                       pluginBundle(stubBundle("plugin-failing", failingActivator, null, null)),
+                                                       pluginBundle(stubBundle("plugin-also-failing", failingActivator, null, null)));
+        final BundleRegistry bundleRegistry = createBundleRegistry(bundles, 4, 1000);
+
+        try {
+            // The slow bundle doesn't hold the startup
+            bundleRegistry.startBundles(List.of("plugin-slow", "plugin-ok", "plugin-failing", "plugin-unknown"));
+            Assert.fail();
+        } catch (final Exception e) {
+            // Reported in the same order, regardless of which bundle failed first
+            Assert.assertEquals(e.getMessage(), "Mandatory plugins [plugin-failing, plugin-slow, plugin-unknown] not started");
+            Assert.assertEquals(e.getSuppressed().length, 2);
+            Assert.assertEquals(e.getSuppressed()[0].getMessage(), "Activator failure");
+            Assert.assertTrue(e.getSuppressed()[1] instanceof TimeoutException);
+        } finally {
+            slowPluginLatch.countDown();
+        }
+
+        Assert.assertNotNull(bundleRegistry.getBundle("plugin-ok"));
+        // Removed once its start returns (see testStartOutlivingTimeout)
+        await().atMost(TIMEOUT_SEC, TimeUnit.SECONDS).until(() -> bundleRegistry.getBundle("plugin-slow") == null);
+        Assert.assertNull(bundleRegistry.getBundle("plugin-failing"));
+        Assert.assertNull(bundleRegistry.getBundle("plugin-also-failing"));
+
+        // A single missing plugin keeps the historical message
+        final BundleRegistry otherBundleRegistry = createBundleRegistry(List.of(pluginBundle(stubBundle("plugin-failing", failingActivator, null, null))), 4, 1000);
+        try {
+            otherBundleRegistry.startBundles(List.of("plugin-failing"));
+            Assert.fail();
+        } catch (final Exception e) {
+            Assert.assertEquals(e.getMessage(), "Mandatory plugin plugin-failing not started");
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testStartOutlivingTimeout() throws Exception {
+        final CountDownLatch slowPluginLatch = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean(false);
+        final Bundle slowBundle = stubBundle("plugin-slow", () -> {
+            // Like Felix, the start isn't interruptible
+            while (true) {
+                try {
+                    slowPluginLatch.await();
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted.set(true);
+                }
+            }
+        }, null, null);
+        final AtomicInteger slowBundleState = new AtomicInteger(Bundle.INSTALLED);
+        Mockito.when(slowBundle.getState()).thenAnswer(invocation -> slowBundleState.get());
+        Mockito.doAnswer(invocation -> {
+            slowBundleState.set(Bundle.RESOLVED);
+            return null;
+        }).when(slowBundle).stop();
+        final BundleWithConfig slowPlugin = pluginBundle(slowBundle);
+        final BundleRegistry bundleRegistry = createBundleRegistry(List.of(pluginBundle(stubBundle("plugin-ok", null, null, null)), slowPlugin), 4, 500);
+
+        final long stateVersion = bundleRegistry.getStateVersion();
+        try {
+            bundleRegistry.startBundles(List.of("plugin-slow"));
+            Assert.fail();
+        } catch (final Exception e) {
+            Assert.assertEquals(e.getMessage(), "Mandatory plugin plugin-slow not started");
+        }
+        Assert.assertTrue(bundleRegistry.getStateVersion() > stateVersion);
+
+        // Still starting: kept in the registry, as failed
+        final BundleWithMetadata slowBundleWithMetadata = bundleRegistry.getBundle("plugin-slow");
+        Assert.assertNotNull(slowBundleWithMetadata);
+        Assert.assertTrue(slowBundleWithMetadata.isStartFailed());
+        Assert.assertFalse(bundleRegistry.getBundle("plugin-ok").isStartFailed());
+        try {
+            bundleRegistry.installAndStartNewBundle("plugin-slow", null);
+            Assert.fail();
+        } catch (final IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Plugin plugin-slow"));
+        }
+
+        // The start eventually completes: the bundle is stopped and uninstalled, instead of silently running
+        slowBundleState.set(Bundle.ACTIVE);
+        slowPluginLatch.countDown();
+        await().atMost(TIMEOUT_SEC, TimeUnit.SECONDS).until(() -> bundleRegistry.getBundle("plugin-slow") == null);
+        Mockito.verify(slowBundle).stop();
+        Mockito.verify(slowBundle).uninstall();
+        Assert.assertFalse(interrupted.get());
+        Assert.assertNotNull(bundleRegistry.getBundle("plugin-ok"));
+    }
+
+    @Test(groups = "fast")
+    public void testDependenciesAreStartedFirst() throws Exception {
+        final BundleWithConfig plugin = pluginBundle(stubBundle("plugin", null, null, "org.acme.lib;version=\"[1.0,2.0)\",org.osgi.framework"));
+        final BundleWithConfig otherPlugin = pluginBundle(stubBundle("other-plugin", null, null, null));
+        final BundleWithConfig library = pluginBundle(stubBundle("library", null, "org.acme.lib;org.acme.lib.api;version=1.2", "org.acme.util"));
+        final BundleWithConfig util = pluginBundle(stubBundle("util", null, "org.acme.util", null));
+        final List<BundleWithConfig> bundles = List.of(plugin, otherPlugin, library, util);
+
+        Assert.assertEquals(BundleRegistry.computeStartWaves(bundles), List.of(List.of(otherPlugin, util), List.of(library), List.of(plugin)));
+
+        createBundleRegistry(bundles, 8, TimeUnit.SECONDS.toMillis(TIMEOUT_SEC)).startBundles(Collections.emptyList());
+        Assert.assertTrue(startEvents.indexOf("end:util") < startEvents.indexOf("start:library"));
+        Assert.assertTrue(startEvents.indexOf("end:library") < startEvents.indexOf("start:plugin"));
+    }
+
+    @Test(groups = "fast")
+    public void testDependencyCycle() throws Exception {
+        final BundleWithConfig first = pluginBundle(stubBundle("first", null, "org.acme.first", "org.acme.second"));
+        final BundleWithConfig second = pluginBundle(stubBundle("second", null, "org.acme.second", "org.acme.first"));
+        final BundleWithConfig standalone = pluginBundle(stubBundle("standalone", null, null, "org.acme.self"));
+
+        Assert.assertEquals(BundleRegistry.computeStartWaves(List.of(first, second, standalone)), List.of(List.of(standalone), List.of(first, second)));
+    }
+
+    @Test(groups = "fast")
+    public void testParallelInstall() throws Exception {
+        final List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 8; i++) {
+            paths.add("/var/tmp/bundles/platform/bundle-" + i + ".jar");
+        }
+        final PureOSGIBundleFinder osgiBundleFinder = Mockito.mock(PureOSGIBundleFinder.class);
+        Mockito.when(osgiBundleFinder.getLatestBundles()).thenReturn(paths);
+        final PluginFinder pluginFinder = Mockito.mock(PluginFinder.class);
+        Mockito.when(pluginFinder.getLatestJavaPlugins()).thenReturn(Collections.emptyList());
+
+        // Each installation waits for all the others to be running: this only completes if they are installed concurrently
+        final CountDownLatch allInstalling = new CountDownLatch(paths.size());
+        final BundleContext context = Mockito.mock(BundleContext.class);
+        Mockito.when(context.installBundle(Mockito.anyString())).thenAnswer(invocation -> {
+            final String location = invocation.getArgument(0);
+            allInstalling.countDown();
+            if (!allInstalling.await(TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                throw new BundleException("Not installed concurrently");
+            }
+            if (location.endsWith("bundle-3.jar")) {
+                throw new BundleException("Corrupted jar");
+            }
+            return stubBundle(location, null, null, null);
+        });
+        final Framework framework = Mockito.mock(Framework.class);
+        Mockito.when(framework.getBundleContext()).thenReturn(context);
+
+        final FileInstall fileInstall = new FileInstall(osgiBundleFinder, pluginFinder, null, Mockito.mock(PluginConfigServiceApi.class), createOSGIConfig(8, TimeUnit.SECONDS.toMillis(2 * TIMEOUT_SEC)));
+        final List<BundleWithConfig> installedBundles = fileInstall.installBundles(framework);
+
+        // Installation order is preserved, the broken bundle is skipped
+        Assert.assertEquals(installedBundles.size(), 7);
+        int i = 0;
+        for (final BundleWithConfig installedBundle : installedBundles) {
+            if (i == 3) {
+                i++;
+            }
+            Assert.assertEquals(installedBundle.getBundle().getSymbolicName(), "file:" + paths.get(i));
+            i++;
+        }
+    }
+
+    // Random operations, checked against the original (linear scan) semantics of the registry
+    @Test(groups = "fast")
+    public void testAgainstReferenceModel() throws Exception {
+        // Fixed by default, so that failures can be reproduced: override it to explore other sequences
+        final long seed = Long.getLong("killbill.test.bundleRegistry.seed", 42L);
+        final Random random = new Random(seed);
+
+        final AtomicLong bundleIds = new AtomicLong(1);
+        final AtomicBoolean nextStartSucceeds = new AtomicBoolean(true);
+        final Map<String, String> nextSymbolicName = new HashMap<String, String>();
+        final FileInstall fileInstall = Mockito.mock(FileInstall.class);
+        Mockito.when(fileInstall.installBundles(Mockito.any())).thenReturn(List.of());
+        Mockito.when(fileInstall.installNewBundle(Mockito.anyString(), Mockito.any(), Mockito.any())).thenAnswer(invocation -> {
+            final String pluginName = invocation.getArgument(0);
+            final String version = invocation.getArgument(1);
+            final PluginConfig pluginConfig = Mockito.mock(PluginConfig.class);
+            Mockito.when(pluginConfig.getPluginName()).thenReturn(pluginName);
+            Mockito.when(pluginConfig.getVersion()).thenReturn(version);
+            return new BundleWithConfig(modelBundle(bundleIds.getAndIncrement(), nextSymbolicName.get("next")), pluginConfig);
+        });
+        Mockito.when(fileInstall.startBundle(Mockito.any())).thenAnswer(invocation -> nextStartSucceeds.get());
+
+        final BundleRegistry bundleRegistry = new BundleRegistry(fileInstall);
+        bundleRegistry.installBundles(Mockito.mock(Framework.class));
+        final ReferenceBundleRegistry model = new ReferenceBundleRegistry();
+        final List<Bundle> allBundles = new ArrayList<Bundle>();
+
+        for (int i = 0; i < 3000; i++) {
+            final String pluginName = "plugin-" + random.nextInt(6);
+            final String version = random.nextBoolean() ? "1.0" : "2.0";
+            final String symbolicName = "org.acme.bundle-" + random.nextInt(4);
+            final String registrationName = "service-" + random.nextInt(5);
+            final String serviceType = random.nextBoolean() ? "PaymentPluginApi" : "Servlet";
+            final String context = "seed=" + seed + ", step=" + i;
+
+            switch (random.nextInt(5)) {
+                case 0:
+                    nextSymbolicName.put("next", symbolicName);
+                    nextStartSucceeds.set(random.nextInt(10) != 0);
+                    final boolean alreadyInstalled = model.plugins.containsKey(pluginName);
+                    try {
+                        final BundleWithMetadata installed = bundleRegistry.installAndStartNewBundle(pluginName, version);
+                        Assert.assertFalse(alreadyInstalled, context);
+                        allBundles.add(installed.getBundle());
+                        if (nextStartSucceeds.get()) {
+                            model.plugins.put(pluginName, new ModelEntry(installed.getBundle(), version));
+                        }
+                    } catch (final IllegalStateException e) {
+                        Assert.assertTrue(alreadyInstalled, context);
+                    }
+                    break;
+                case 1:
+                    final String stoppedVersion = random.nextBoolean() ? null : version;
+                    bundleRegistry.stopAndUninstallNewBundle(pluginName, stoppedVersion);
+                    model.stop(pluginName, stoppedVersion);
+                    break;
+                case 2:
+                case 3:
+                    bundleRegistry.registerService(new DefaultOSGIServiceDescriptor(symbolicName, pluginName, registrationName), serviceType);
+                    model.register(symbolicName, registrationName, serviceType);
+                    break;
+                default:
+                    bundleRegistry.unregisterService(new DefaultOSGIServiceDescriptor(symbolicName, pluginName, registrationName), serviceType);
+                    model.unregister(symbolicName, registrationName, serviceType);
+                    break;
+            }
+
+            // Installed bundles, stale bundles (uninstalled) and unknown bundles
+            final List<Bundle> lookedUpBundles = new ArrayList<Bundle>(allBundles.subList(Math.max(0, allBundles.size() - 10), allBundles.size()));
+            lookedUpBundles.add(modelBundle(0, symbolicName));
+            for (final Bundle bundle : lookedUpBundles) {
+                final Set<String> expectedPluginNames = model.getPluginNames(bundle);
+                Assert.assertTrue(expectedPluginNames.contains(bundleRegistry.getPluginName(bundle)), context);
+            }
+
+            for (int j = 0; j < 6; j++) {
+                final String name = "plugin-" + j;
+                final ModelEntry expected = model.plugins.get(name);
+                final BundleWithMetadata actual = bundleRegistry.getBundle(name);
+                if (expected == null) {
+                    Assert.assertNull(actual, context);
+                } else {
+                    Assert.assertSame(actual.getBundle(), expected.bundle, context);
+                    Assert.assertEquals(actual.getServiceNames(), expected.services, context);
+                }
+            }
+
+            final BundleWithMetadata serviceBundle = bundleRegistry.getBundleForService(registrationName);
+            final Set<Bundle> expectedServiceBundles = model.getBundlesForService(registrationName);
+            if (expectedServiceBundles.isEmpty()) {
+                Assert.assertNull(serviceBundle, context);
+            } else {
+                Assert.assertTrue(expectedServiceBundles.contains(serviceBundle.getBundle()), context);
+            }
+        }
+    }
+
+    @Test(groups = "fast", expectedExceptions = UnsupportedOperationException.class)
+    public void testServiceNamesAreImmutable() throws Exception {
+        final BundleWithMetadata bundle = new BundleWithMetadata(new BundleWithConfig(modelBundle(1, "org.acme.foo"), null));
+        bundle.register("foo", "Servlet");
+        final Set<PluginServiceInfo> serviceNames = bundle.getServiceNames();
+        bundle.register("bar", "Servlet");
+        // Snapshot
+        Assert.assertEquals(serviceNames, Set.of(new DefaultPluginServiceInfo("Servlet", "foo")));
+        serviceNames.clear();
+    }
+
+    private static Bundle modelBundle(final long bundleId, final String symbolicName) {
+        final Bundle bundle = Mockito.mock(Bundle.class);
+        Mockito.when(bundle.getBundleId()).thenReturn(bundleId);
+        Mockito.when(bundle.getSymbolicName()).thenReturn(symbolicName);
+        Mockito.when(bundle.getState()).thenReturn(Bundle.ACTIVE);
+        return bundle;
+    }
+
+    private static final class ModelEntry {
+
+        private final Bundle bundle;
+        private final String version;
+        private final Set<PluginServiceInfo> services = new HashSet<PluginServiceInfo>();
+
+        private ModelEntry(final Bundle bundle, final String version) {
+            this.bundle = bundle;
+            this.version = version;
+        }
+    }
+
+    // Semantics of the registry before the reverse indexes were introduced
+    private static final class ReferenceBundleRegistry {
+
+        private final Map<String, ModelEntry> plugins = new HashMap<String, ModelEntry>();
+
+        private void stop(final String pluginName, final String version) {
+            final ModelEntry entry = plugins.get(pluginName);
+            if (entry != null && (version == null || entry.version.equals(version))) {
+                plugins.remove(pluginName);
+            }
+        }
+
+        private void register(final String symbolicName, final String registrationName, final String serviceType) {
+            for (final ModelEntry entry : plugins.values()) {
+                if (symbolicName.equals(entry.bundle.getSymbolicName())) {
+                    entry.services.add(new DefaultPluginServiceInfo(serviceType, registrationName));
+                }
+            }
+        }
+
+        private void unregister(final String symbolicName, final String registrationName, final String serviceType) {
+            for (final ModelEntry entry : plugins.values()) {
+                if (symbolicName.equals(entry.bundle.getSymbolicName())) {
+                    entry.services.remove(new DefaultPluginServiceInfo(serviceType, registrationName));
+                }
+            }
+        }
+
+        // The first match was returned: any of them is acceptable when several plugins share a symbolic name
+        private Set<String> getPluginNames(final Bundle bundle) {
+            final Set<String> pluginNames = new HashSet<String>();
+            for (final Map.Entry<String, ModelEntry> entry : plugins.entrySet()) {
+                if (bundle.getSymbolicName().equals(entry.getValue().bundle.getSymbolicName())) {
+                    pluginNames.add(entry.getKey());
+                }
+            }
+            return pluginNames.isEmpty() ? Set.of(bundle.getSymbolicName()) : pluginNames;
+        }
+
+        private Set<Bundle> getBundlesForService(final String registrationName) {
+            final Set<Bundle> bundles = new HashSet<Bundle>();
+            for (final ModelEntry entry : plugins.values()) {
+                for (final PluginServiceInfo serviceInfo : entry.services) {
+                    if (registrationName.equals(serviceInfo.getRegistrationName())) {
+                        bundles.add(entry.bundle);
+                    }
+                }
+            }
+            return bundles;
+        }
+    }
+
+    private BundleRegistry createBundleRegistry(final List<BundleWithConfig> bundles, final int nbThreads, final long timeoutMs) throws BundleException {
+        final FileInstall fileInstall = Mockito.mock(FileInstall.class);
+        Mockito.when(fileInstall.installBundles(Mockito.any())).thenReturn(bundles);
+        Mockito.when(fileInstall.newBundleTaskExecutor(Mockito.anyString())).thenAnswer(invocation -> new BundleTaskExecutor(invocation.getArgument(0), nbThreads, timeoutMs, TimeUnit.MILLISECONDS));
+        Mockito.when(fileInstall.startBundleOrFail(Mockito.any())).thenCallRealMethod();
+
+        final BundleRegistry bundleRegistry = new BundleRegistry(fileInstall);
+        bundleRegistry.installBundles(Mockito.mock(Framework.class));
+        return bundleRegistry;
+    }
+
+    private static BundleWithConfig pluginBundle(final Bundle bundle) {
+        final String pluginName = bundle.getSymbolicName();
+        final PluginConfig pluginConfig = Mockito.mock(PluginConfig.class);
+        Mockito.when(pluginConfig.getPluginName()).thenReturn(pluginName);
+        return new BundleWithConfig(bundle, pluginConfig);
+    }
+
+    private Bundle stubBundle(final String symbolicName, final Activator activator, final String exportPackage, final String importPackage) throws BundleException {
+        final Bundle bundle = Mockito.mock(Bundle.class);
+        Mockito.when(bundle.getSymbolicName()).thenReturn(symbolicName);
+        Mockito.when(bundle.getLocation()).thenReturn("file:/var/tmp/bundles/" + symbolicName + ".jar");
+        Mockito.when(bundle.getState()).thenReturn(Bundle.INSTALLED);
+        final Hashtable<String, String> headers = new Hashtable<String, String>();
+        if (exportPackage != null) {
+            headers.put(Constants.EXPORT_PACKAGE, exportPackage);
+        }
+        if (importPackage != null) {
+            headers.put(Constants.IMPORT_PACKAGE, importPackage);
+        }
+        Mockito.when(bundle.getHeaders()).thenReturn(headers);
+        Mockito.doAnswer(invocation -> {
+            startEvents.add("start:" + symbolicName);
+            try {
+                if (activator != null) {
+                    activator.start();
+                }
+            } finally {
+                startEvents.add("end:" + symbolicName);
+            }
+            return null;
+        }).when(bundle).start();
+        return bundle;
+    }
+
+    private interface Activator {
+
+        void start() throws Exception;
+    }
+
+    private static OSGIConfig createOSGIConfig(final int nbThreads, final long timeoutMs) {
+        final OSGIConfig osgiConfig = Mockito.mock(OSGIConfig.class);
+        Mockito.when(osgiConfig.getBundleStartupNbThreads()).thenReturn(nbThreads);
+        Mockito.when(osgiConfig.getBundleStartupTimeout()).thenReturn(new TimeSpan(timeoutMs, TimeUnit.MILLISECONDS));
+        return osgiConfig;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.commons.metrics.api.Meter;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.metrics.api.Timer;
+import org.killbill.commons.profiling.Profiling;
+import org.killbill.commons.profiling.ProfilingData;
+import org.killbill.commons.profiling.ProfilingData.ProfilingDataItem;
+import org.killbill.commons.profiling.ProfilingFeature.ProfilingFeatureType;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestContextClassLoaderHelper {
+
+    private MetricRegistry metricRegistry;
+    private Timer timer;
+    private Meter errorMeter;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        metricRegistry = Mockito.mock(MetricRegistry.class);
+        timer = Mockito.mock(Timer.class);
+        errorMeter = Mockito.mock(Meter.class);
+        Mockito.when(metricRegistry.timer(Mockito.anyString())).thenReturn(timer);
+        Mockito.when(metricRegistry.meter(Mockito.anyString())).thenReturn(errorMeter);
+    }
+
+    @Test(groups = "fast")
+    public void testInvocationAndMetrics() throws Exception {
+        final TestPluginApi proxy = wrap(new TestPluginApiImpl());
+
+        Assert.assertEquals(proxy.echo("foo", 2), "foofoo");
+        Assert.assertEquals(proxy.echo("bar", 1), "bar");
+        Assert.assertEquals(proxy.sum(1, 2L), 3L);
+        proxy.doNothing();
+
+        // Metrics are only registered for invoked methods, and retrieved only once per method
+        Mockito.verify(metricRegistry, Mockito.times(1)).timer("killbill-service.kb_plugin_latency.test-plugin.TestPluginApi.echo");
+        Mockito.verify(metricRegistry, Mockito.times(1)).timer("killbill-service.kb_plugin_latency.test-plugin.TestPluginApi.sum");
+        Mockito.verify(metricRegistry, Mockito.times(1)).timer("killbill-service.kb_plugin_latency.test-plugin.TestPluginApi.doNothing");
+        Mockito.verify(metricRegistry, Mockito.never()).timer("killbill-service.kb_plugin_latency.test-plugin.TestPluginApi.fail");
+        Mockito.verify(metricRegistry, Mockito.never()).meter(Mockito.anyString());
+        Mockito.verify(timer, Mockito.times(4)).update(Mockito.anyLong(), Mockito.eq(TimeUnit.NANOSECONDS));
+    }
+
+    @Test(groups = "fast")
+    public void testExceptions() throws Exception {
+        final TestPluginApi proxy = wrap(new TestPluginApiImpl());
+
+        try {
+            proxy.fail(new IOException("checked"));
+            Assert.fail();
+        } catch (final IOException e) {
+            Assert.assertEquals(e.getMessage(), "checked");
+        }
+
+        try {
+            proxy.fail(new IllegalStateException("unchecked"));
+            Assert.fail();
+        } catch (final IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "unchecked");
+        }
+
+        try {
+            proxy.fail(new AssertionError("error"));
+            Assert.fail();
+        } catch (final AssertionError e) {
+            Assert.assertEquals(e.getMessage(), "error");
+        }
+
+        Mockito.verify(metricRegistry, Mockito.times(1)).meter("killbill-service.kb_plugin_errors.test-plugin.TestPluginApi.fail");
+        Mockito.verify(errorMeter, Mockito.times(3)).mark(1);
+        // Failed calls are timed too
+        Mockito.verify(timer, Mockito.times(3)).update(Mockito.anyLong(), Mockito.eq(TimeUnit.NANOSECONDS));
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidArguments() throws Throwable {
+        final TestPluginApiImpl service = new TestPluginApiImpl();
+        final TestPluginApi proxy = wrap(service);
+        final InvocationHandler handler = Proxy.getInvocationHandler(proxy);
+        final Method sum = TestPluginApi.class.getMethod("sum", int.class, long.class);
+
+        for (final Object[] args : new Object[][]{null, {1}, {1, 2L, 3}, {"1", 2L}, {1, "2"}, {null, 2L}}) {
+            try {
+                handler.invoke(proxy, sum, args);
+                Assert.fail();
+            } catch (final IllegalArgumentException e) {
+                Assert.assertEquals(service.nbCalls, 0);
+            }
+        }
+        Assert.assertEquals(handler.invoke(proxy, sum, new Object[]{1, 2L}), 3L);
+        // Widening conversion, accepted by Method#invoke
+        Assert.assertEquals(handler.invoke(proxy, sum, new Object[]{1, 2}), 3L);
+
+        // Not a plugin error
+        Mockito.verify(metricRegistry, Mockito.never()).meter(Mockito.anyString());
+    }
+
+    @Test(groups = "fast")
+    public void testDefaultMethods() throws Exception {
+        final TestPluginApi proxy = wrap(new TestPluginApiImpl());
+        Assert.assertEquals(proxy.defaultMethod(), "default-TestPluginApiImpl");
+        Assert.assertEquals(proxy.overriddenDefaultMethod(), "overridden");
+        Mockito.verify(metricRegistry, Mockito.times(1)).timer("killbill-service.kb_plugin_latency.test-plugin.TestPluginApi.defaultMethod");
+        Mockito.verify(metricRegistry, Mockito.times(1)).timer("killbill-service.kb_plugin_latency.test-plugin.TestPluginApi.overriddenDefaultMethod");
+    }
+
+    @Test(groups = "fast")
+    public void testObjectMethods() throws Exception {
+        final TestPluginApiImpl service = new TestPluginApiImpl();
+        final TestPluginApi proxy = wrap(service);
+        final TestPluginApi otherProxy = wrap(service);
+
+        // Object methods are answered by the invocation handler, not the service
+        Assert.assertEquals(proxy, proxy);
+        Assert.assertNotEquals(proxy, otherProxy);
+        Assert.assertNotEquals(proxy, service);
+        Assert.assertFalse(proxy.equals(null));
+        Assert.assertEquals(proxy.hashCode(), Proxy.getInvocationHandler(proxy).hashCode());
+        Assert.assertEquals(proxy.toString(), Proxy.getInvocationHandler(proxy).toString());
+        Assert.assertEquals(service.nbCalls, 0);
+
+        Mockito.verifyNoInteractions(metricRegistry);
+    }
+
+    @Test(groups = "fast")
+    public void testContextClassLoader() throws Exception {
+        final ClassLoader initialClassLoader = Thread.currentThread().getContextClassLoader();
+        final ClassLoader callerClassLoader = new URLClassLoader(new URL[0], null);
+        Thread.currentThread().setContextClassLoader(callerClassLoader);
+        try {
+            final TestPluginApiImpl service = new TestPluginApiImpl();
+            final TestPluginApi proxy = wrap(service);
+
+            Assert.assertSame(proxy.getContextClassLoader(), TestPluginApiImpl.class.getClassLoader());
+            Assert.assertSame(Thread.currentThread().getContextClassLoader(), callerClassLoader);
+
+            // Restored on failure as well
+            try {
+                proxy.fail(new IOException());
+                Assert.fail();
+            } catch (final IOException ignored) {
+            }
+            Assert.assertSame(Thread.currentThread().getContextClassLoader(), callerClassLoader);
+        } finally {
+            Thread.currentThread().setContextClassLoader(initialClassLoader);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testProfiling() throws Exception {
+        final TestPluginApi proxy = wrap(new TestPluginApiImpl());
+
+        Profiling.setPerThreadProfilingData("PLUGIN");
+        try {
+            proxy.echo("foo", 1);
+            try {
+                proxy.fail(new IOException());
+                Assert.fail();
+            } catch (final IOException ignored) {
+            }
+
+            // Start and end markers for each call
+            final ProfilingData profilingData = Profiling.getPerThreadProfilingData();
+            Assert.assertEquals(profilingData.getRawData().size(), 4);
+            for (int i = 0; i < 4; i++) {
+                final ProfilingDataItem item = profilingData.getRawData().get(i);
+                Assert.assertEquals(item.getProfileType(), ProfilingFeatureType.PLUGIN);
+                Assert.assertTrue(item.getKey().endsWith(i < 2 ? "TestPluginApi.echo" : "TestPluginApi.fail"), item.getKey());
+            }
+        } finally {
+            Profiling.resetPerThreadProfilingData();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testWithoutMetricRegistry() throws Exception {
+        final TestPluginApi proxy = ContextClassLoaderHelper.getWrappedServiceWithCorrectContextClassLoader(new TestPluginApiImpl(), TestPluginApi.class, "test-plugin", null);
+        Assert.assertEquals(proxy.echo("foo", 1), "foo");
+        try {
+            proxy.fail(new IllegalStateException());
+            Assert.fail();
+        } catch (final IllegalStateException ignored) {
+        }
+    }
+
+    private TestPluginApi wrap(final TestPluginApi service) {
+        return ContextClassLoaderHelper.getWrappedServiceWithCorrectContextClassLoader(service, TestPluginApi.class, "test-plugin", metricRegistry);
+    }
+
+    public interface TestPluginApi {
+
+        String echo(String value, int times);
+
+        long sum(int a, long b);
+
+        void doNothing();
+
+        void fail(Throwable throwable) throws IOException;
+
+        ClassLoader getContextClassLoader();
+
+        default String defaultMethod() {
+            return "default-" + getClass().getSimpleName();
+        }
+
+        default String overriddenDefaultMethod() {
+            return "not-overridden";
+        }
+    }
+
+    private static final class TestPluginApiImpl implements TestPluginApi {
+
+        private int nbCalls = 0;
+
+        @Override
+        public String echo(final String value, final int times) {
+            nbCalls++;
+            return value.repeat(times);
+        }
+
+        @Override
+        public long sum(final int a, final long b) {
+            nbCalls++;
+            return a + b;
+        }
+
+        @Override
+        public void doNothing() {
+            nbCalls++;
+        }
+
+        @Override
+        public void fail(final Throwable throwable) throws IOException {
+            nbCalls++;
+            if (throwable instanceof IOException) {
+                throw (IOException) throwable;
+            } else if (throwable instanceof RuntimeException) {
+                throw (RuntimeException) throwable;
+            } else {
+                throw (Error) throwable;
+            }
+        }
+
+        @Override
+        public ClassLoader getContextClassLoader() {
+            return Thread.currentThread().getContextClassLoader();
+        }
+
+        @Override
+        public String overriddenDefaultMethod() {
+            return "overridden";
+        }
+    }
+}
@@ -19,13 +19,211 @@
 
 package org.killbill.billing.osgi;
 
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServlet;
+import javax.sql.DataSource;
+
+import org.killbill.billing.invoice.plugin.api.InvoicePluginApi;
+import org.killbill.billing.osgi.api.Healthcheck;
+import org.killbill.billing.osgi.api.OSGIConfigProperties;
+import org.killbill.billing.osgi.api.OSGIKillbill;
+import org.killbill.billing.osgi.api.OSGIPluginProperties;
+import org.killbill.billing.osgi.api.OSGIServiceDescriptor;
+import org.killbill.billing.osgi.api.OSGIServiceRegistration;
+import org.killbill.billing.osgi.config.OSGIConfig;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApi;
+import org.killbill.billing.platform.jndi.JNDIManager;
+import org.killbill.clock.Clock;
+import org.killbill.commons.metrics.impl.NoOpMetricRegistry;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.http.HttpService;
 import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 public class TestKillbillActivator {
 
+    private BundleContext context;
+    private KillbillActivator killbillActivator;
+    private OSGIServiceRegistration<PaymentPluginApi> paymentRegistration;
+    private OSGIServiceRegistration<InvoicePluginApi> invoiceRegistration;
+    private OSGIServiceRegistration<Healthcheck> healthcheckRegistration;
+    private OSGIServiceRegistration<Servlet> servletRegistration;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        context = Mockito.mock(BundleContext.class);
+        Mockito.doReturn(Mockito.mock(ServiceRegistration.class)).when(context).registerService(Mockito.anyString(), Mockito.any(), Mockito.<Dictionary<String, ?>>any());
+
+        final OSGIConfig osgiConfig = Mockito.mock(OSGIConfig.class);
+        Mockito.when(osgiConfig.isAsyncLogForwardingEnabled()).thenReturn(false);
+        Mockito.when(osgiConfig.getLogForwardingQueueCapacity()).thenReturn(8192);
+        Mockito.when(osgiConfig.getLogForwardingOverflowPolicy()).thenReturn("DROP_OLDEST");
+        Mockito.when(osgiConfig.getLogForwardingOverflowLevel()).thenReturn("WARN");
+
+        killbillActivator = new KillbillActivator(Mockito.mock(DataSource.class),
+                                                  Mockito.mock(OSGIKillbill.class),
+                                                  Mockito.mock(Clock.class),
+                                                  new BundleRegistry(Mockito.mock(FileInstall.class)),
+                                                  Mockito.mock(HttpService.class),
+                                                  Mockito.mock(KillbillEventRetriableBusHandler.class),
+                                                  Mockito.mock(KillbillEventObservable.class),
+                                                  Mockito.mock(OSGIConfigProperties.class),
+                                                  osgiConfig,
+                                                  new NoOpMetricRegistry(),
+                                                  Mockito.mock(JNDIManager.class));
+        // Same order as the injection
+        servletRegistration = mockRegistration(Servlet.class);
+        killbillActivator.addServletOSGIServiceRegistration(servletRegistration);
+        paymentRegistration = mockRegistration(PaymentPluginApi.class);
+        killbillActivator.addPaymentPluginApiOSGIServiceRegistration(paymentRegistration);
+        invoiceRegistration = mockRegistration(InvoicePluginApi.class);
+        killbillActivator.addInvoicePluginApiOSGIServiceRegistration(invoiceRegistration);
+        healthcheckRegistration = mockRegistration(Healthcheck.class);
+        killbillActivator.addHealthcheckOSGIServiceRegistration(healthcheckRegistration);
+
+        killbillActivator.start(context);
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception {
+        killbillActivator.stop(context);
+    }
+
+    @Test(groups = "fast")
+    public void testServiceRegisteredUnderSeveralInterfaces() {
+        final Object service = Mockito.mock(PaymentPluginApi.class, Mockito.withSettings().extraInterfaces(Healthcheck.class));
+        final ServiceReference<?> reference = mockServiceReference(service, "acme-payment", PaymentPluginApi.class.getName(), Healthcheck.class.getName());
+
+        killbillActivator.serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, reference));
+        Mockito.verify(paymentRegistration).registerService(Mockito.<OSGIServiceDescriptor>any(), Mockito.any());
+        Mockito.verify(healthcheckRegistration).registerService(Mockito.<OSGIServiceDescriptor>any(), Mockito.any());
+        Mockito.verify(invoiceRegistration, Mockito.never()).registerService(Mockito.<OSGIServiceDescriptor>any(), Mockito.any());
+        Mockito.verify(servletRegistration, Mockito.never()).registerService(Mockito.<OSGIServiceDescriptor>any(), Mockito.any());
+        Mockito.verify(context, Mockito.times(1)).getService(reference);
+
+        // Other events are ignored
+        killbillActivator.serviceChanged(new ServiceEvent(ServiceEvent.MODIFIED, reference));
+        Mockito.verify(context, Mockito.times(1)).getService(reference);
+
+        killbillActivator.serviceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, reference));
+        Mockito.verify(paymentRegistration).unregisterService("acme-payment");
+        Mockito.verify(healthcheckRegistration).unregisterService("acme-payment");
+        Mockito.verify(invoiceRegistration, Mockito.never()).unregisterService(Mockito.anyString());
+        Mockito.verify(context, Mockito.times(1)).getService(reference);
+        Mockito.verify(context, Mockito.times(1)).ungetService(reference);
+    }
+
+    @Test(groups = "fast")
+    public void testServiceRegisteredUnderImplementationType() {
+        // Registered as an HttpServlet, dispatched to the Servlet registration
+        final HttpServlet servlet = new HttpServlet() {};
+        final ServiceReference<?> reference = mockServiceReference(servlet, "acme-servlet", HttpServlet.class.getName());
+
+        killbillActivator.serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, reference));
+        Mockito.verify(servletRegistration).registerService(Mockito.<OSGIServiceDescriptor>any(), Mockito.any());
+        killbillActivator.serviceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, reference));
+        Mockito.verify(servletRegistration).unregisterService("acme-servlet");
+        Mockito.verify(context, Mockito.times(1)).getService(reference);
+        Mockito.verify(context, Mockito.times(1)).ungetService(reference);
+    }
+
+    @Test(groups = "fast")
+    public void testIgnoredServices() {
+        // Not a Kill Bill service
+        final ServiceReference<?> unknown = mockServiceReference(new Object(), "acme-other", Runnable.class.getName());
+        killbillActivator.serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, unknown));
+        killbillActivator.serviceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, unknown));
+        Mockito.verify(context, Mockito.times(1)).getService(unknown);
+        Mockito.verify(context, Mockito.times(1)).ungetService(unknown);
+
+        // Invalid (or missing) plugin name: the service isn't even retrieved
+        final ServiceReference<?> invalid = mockServiceReference(Mockito.mock(PaymentPluginApi.class), "Invalid#Name", PaymentPluginApi.class.getName());
+        final ServiceReference<?> unnamed = mockServiceReference(Mockito.mock(PaymentPluginApi.class), null, PaymentPluginApi.class.getName());
+        for (final ServiceReference<?> reference : List.of(invalid, unnamed)) {
+            killbillActivator.serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, reference));
+            killbillActivator.serviceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, reference));
+            Mockito.verify(context, Mockito.never()).getService(reference);
+            Mockito.verify(context, Mockito.never()).ungetService(reference);
+        }
+        // The name is only validated on registration
+        Mockito.verify(invalid, Mockito.times(1)).getProperty(OSGIPluginProperties.PLUGIN_NAME_PROP);
+
+        Mockito.verify(paymentRegistration, Mockito.never()).registerService(Mockito.<OSGIServiceDescriptor>any(), Mockito.any());
+        Mockito.verify(paymentRegistration, Mockito.never()).unregisterService(Mockito.anyString());
+    }
+
+    @Test(groups = "fast")
+    public void testRegistrationStorm() throws Exception {
+        final int nbPlugins = 200;
+        final List<ServiceReference<?>> references = new ArrayList<ServiceReference<?>>();
+        for (int i = 0; i < nbPlugins; i++) {
+            final Object service;
+            final String[] objectClass;
+            switch (i % 3) {
+                case 0:
+                    service = Mockito.mock(PaymentPluginApi.class);
+                    objectClass = new String[]{PaymentPluginApi.class.getName()};
+                    break;
+                case 1:
+                    service = Mockito.mock(InvoicePluginApi.class);
+                    objectClass = new String[]{InvoicePluginApi.class.getName()};
+                    break;
+                default:
+                    service = Mockito.mock(InvoicePluginApi.class, Mockito.withSettings().extraInterfaces(Healthcheck.class));
+                    objectClass = new String[]{InvoicePluginApi.class.getName(), Healthcheck.class.getName()};
+                    break;
+            }
+            references.add(mockServiceReference(service, "plugin-" + i, objectClass));
+        }
+
+        // Mass restart: all plugins register, then unregister, concurrently
+        for (final int eventType : new int[]{ServiceEvent.REGISTERED, ServiceEvent.UNREGISTERING}) {
+            final ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                final List<Future<?>> futures = new ArrayList<Future<?>>();
+                for (final ServiceReference<?> reference : references) {
+                    futures.add(executor.submit(() -> killbillActivator.serviceChanged(new ServiceEvent(eventType, reference))));
+                }
+                for (final Future<?> future : futures) {
+                    future.get(30, TimeUnit.SECONDS);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        final int nbPayment = (nbPlugins + 2) / 3;
+        final int nbInvoice = nbPlugins - nbPayment;
+        final int nbHealthcheck = nbPlugins / 3;
+        Mockito.verify(paymentRegistration, Mockito.times(nbPayment)).registerService(Mockito.<OSGIServiceDescriptor>any(), Mockito.any());
+        Mockito.verify(invoiceRegistration, Mockito.times(nbInvoice)).registerService(Mockito.<OSGIServiceDescriptor>any(), Mockito.any());
+        Mockito.verify(healthcheckRegistration, Mockito.times(nbHealthcheck)).registerService(Mockito.<OSGIServiceDescriptor>any(), Mockito.any());
+        Mockito.verify(paymentRegistration, Mockito.times(nbPayment)).unregisterService(Mockito.anyString());
+        Mockito.verify(invoiceRegistration, Mockito.times(nbInvoice)).unregisterService(Mockito.anyString());
+        Mockito.verify(healthcheckRegistration, Mockito.times(nbHealthcheck)).unregisterService(Mockito.anyString());
+        for (final ServiceReference<?> reference : references) {
+            Mockito.verify(context, Mockito.times(1)).getService(reference);
+            Mockito.verify(context, Mockito.times(1)).ungetService(reference);
+        }
+    }
+
     @Test(groups = "fast")
     public void testPluginNamePatternGood() {
         Matcher m = KillbillActivator.PLUGIN_NAME_PATTERN.matcher("a");
@@ -70,4 +268,24 @@ public class TestKillbillActivator {
         final String pluginNameBAd = "foofoofooSuperFoosupersuperLongreallyLong";
         Assert.assertFalse(pluginNameBAd.length() < KillbillActivator.PLUGIN_NAME_MAX_LENGTH);
     }
+
+    @SuppressWarnings("unchecked")
+    private static <T> OSGIServiceRegistration<T> mockRegistration(final Class<T> serviceType) {
+        final OSGIServiceRegistration<T> registration = Mockito.mock(OSGIServiceRegistration.class);
+        Mockito.when(registration.getServiceType()).thenReturn(serviceType);
+        return registration;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ServiceReference<?> mockServiceReference(final Object service, final String pluginName, final String... objectClass) {
+        final Bundle bundle = Mockito.mock(Bundle.class);
+        Mockito.when(bundle.getSymbolicName()).thenReturn("org.acme." + pluginName);
+
+        final ServiceReference<Object> reference = Mockito.mock(ServiceReference.class);
+        Mockito.when(reference.getProperty(OSGIPluginProperties.PLUGIN_NAME_PROP)).thenReturn(pluginName);
+        Mockito.when(reference.getProperty(Constants.OBJECTCLASS)).thenReturn(objectClass);
+        Mockito.when(reference.getBundle()).thenReturn(bundle);
+        Mockito.when(context.getService(reference)).thenReturn(service);
+        return reference;
+    }
 }
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.util.queue.QueueRetryException;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.metrics.impl.NoOpMetricRegistry;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import static org.awaitility.Awaitility.await;
+
+public class TestKillbillEventObservable {
+
+    @Test(groups = "fast")
+    public void testOrderingPerAccount() throws Exception {
+        final KillbillEventObservable observable = new KillbillEventObservable(true, 1000, 4, new NoOpMetricRegistry());
+        try {
+            final Map<Long, List<Integer>> receivedPerAccount = new ConcurrentHashMap<Long, List<Integer>>();
+            observable.addObserver(new Observer() {
+                @Override
+                public void update(final Observable o, final Object arg) {
+                    final TestEvent event = (TestEvent) arg;
+                    receivedPerAccount.computeIfAbsent(event.accountKey, k -> Collections.synchronizedList(new ArrayList<Integer>())).add(event.sequence);
+                }
+            });
+
+            final int nbAccounts = 10;
+            final int nbEventsPerAccount = 100;
+            for (int seq = 0; seq < nbEventsPerAccount; seq++) {
+                for (long account = 0; account < nbAccounts; account++) {
+                    observable.dispatchBusEvent(new TestEvent(account, seq), account);
+                }
+            }
+
+            await().atMost(10, TimeUnit.SECONDS).until(() -> receivedPerAccount.size() == nbAccounts &&
+                                                             receivedPerAccount.values().stream().allMatch(l -> l.size() == nbEventsPerAccount));
+            for (final List<Integer> received : receivedPerAccount.values()) {
+                for (int seq = 0; seq < nbEventsPerAccount; seq++) {
+                    Assert.assertEquals((int) received.get(seq), seq);
+                }
+            }
+        } finally {
+            observable.deleteObservers();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSlowObserverIsolation() throws Exception {
+        final KillbillEventObservable observable = new KillbillEventObservable(true, 1000, 1, new NoOpMetricRegistry());
+        final CountDownLatch slowObserverLatch = new CountDownLatch(1);
+        try {
+            final List<Object> slowReceived = Collections.synchronizedList(new ArrayList<Object>());
+            observable.addObserver(new Observer() {
+                @Override
+                public void update(final Observable o, final Object arg) {
+                    try {
+                        slowObserverLatch.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    slowReceived.add(arg);
+                }
+            }, "slow");
+            final List<Object> fastReceived = Collections.synchronizedList(new ArrayList<Object>());
+            observable.addObserver(new Observer() {
+                @Override
+                public void update(final Observable o, final Object arg) {
+                    fastReceived.add(arg);
+                }
+            }, "fast");
+            observable.addObserver(new Observer() {
+                @Override
+                public void update(final Observable o, final Object arg) {
+                    throw new IllegalStateException("Plugin failure");
+                }
+            }, "failing");
+
+            // The event is acked as soon as it is queued, neither the slow nor the failing observers hold up the others
+            final Map<String, Throwable> failures = new ConcurrentHashMap<String, Throwable>();
+            final TestEvent event = new TestEvent(1L, 0);
+            observable.dispatchBusEvent(event, 1L, null, failures::put);
+            await().atMost(5, TimeUnit.SECONDS).until(() -> fastReceived.size() == 1 && failures.size() == 1);
+            Assert.assertEquals(slowReceived.size(), 0);
+
+            // Failures are reported per observer (so that the event is retried for the failed observer only)
+            Assert.assertEquals(failures.keySet(), Set.of("failing"));
+            Assert.assertTrue(failures.get("failing") instanceof IllegalStateException);
+            Assert.assertEquals(failures.get("failing").getMessage(), "Plugin failure");
+
+            slowObserverLatch.countDown();
+            await().atMost(5, TimeUnit.SECONDS).until(() -> slowReceived.size() == 1);
+            Assert.assertEquals(slowReceived, List.of(event));
+            Assert.assertEquals(fastReceived, List.of(event));
+            Assert.assertEquals(failures.size(), 1);
+        } finally {
+            slowObserverLatch.countDown();
+            observable.deleteObservers();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRetryForSingleObserver() throws Exception {
+        final KillbillEventObservable observable = new KillbillEventObservable(true, 1000, 1, new NoOpMetricRegistry());
+        try {
+            final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+            observable.addObserver(new Observer() {
+                @Override
+                public void update(final Observable o, final Object arg) {
+                    received.add(arg);
+                }
+            }, "healthy");
+            final QueueRetryException retryException = new QueueRetryException(new IllegalStateException("Try again later"));
+            final List<Object> retriedReceived = Collections.synchronizedList(new ArrayList<Object>());
+            observable.addObserver(new Observer() {
+                @Override
+                public void update(final Observable o, final Object arg) {
+                    retriedReceived.add(arg);
+                    if (retriedReceived.size() == 1) {
+                        throw retryException;
+                    }
+                }
+            }, "retrying");
+
+            // The QueueRetryException from the plugin is passed as-is, to respect its retry schedule
+            final Map<String, Throwable> failures = new ConcurrentHashMap<String, Throwable>();
+            observable.dispatchBusEvent("event", 1L, null, failures::put);
+            await().atMost(5, TimeUnit.SECONDS).until(() -> failures.size() == 1);
+            Assert.assertSame(failures.get("retrying"), retryException);
+
+            // The retry only goes to the failed observer
+            observable.dispatchBusEvent("event", 1L, "retrying", failures::put);
+            await().atMost(5, TimeUnit.SECONDS).until(() -> retriedReceived.size() == 2);
+            Assert.assertEquals(received, List.of("event"));
+
+            // The plugin is gone: nothing to retry anymore
+            observable.dispatchBusEvent("event", 1L, "uninstalled", failures::put);
+            Assert.assertEquals(failures.size(), 1);
+        } finally {
+            observable.deleteObservers();
+        }
+        Assert.assertEquals(observable.countObservers(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testBackpressure() throws Exception {
+        final KillbillEventObservable observable = new KillbillEventObservable(true, 5, 1, new NoOpMetricRegistry());
+        final CountDownLatch blockedObserverLatch = new CountDownLatch(1);
+        final CountDownLatch blockedObserverStarted = new CountDownLatch(1);
+        try {
+            final List<Object> blockedReceived = Collections.synchronizedList(new ArrayList<Object>());
+            observable.addObserver(new Observer() {
+                @Override
+                public void update(final Observable o, final Object arg) {
+                    blockedObserverStarted.countDown();
+                    try {
+                        blockedObserverLatch.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    blockedReceived.add(arg);
+                }
+            });
+            final List<Object> otherReceived = Collections.synchronizedList(new ArrayList<Object>());
+            observable.addObserver(new Observer() {
+                @Override
+                public void update(final Observable o, final Object arg) {
+                    otherReceived.add(arg);
+                }
+            });
+
+            // First event is being handled (not pending anymore), then fill-up the queue
+            observable.dispatchBusEvent(new TestEvent(1L, 0), 1L);
+            Assert.assertTrue(blockedObserverStarted.await(5, TimeUnit.SECONDS));
+            await().atMost(5, TimeUnit.SECONDS).until(() -> otherReceived.size() == 1);
+            for (int i = 1; i <= 5; i++) {
+                observable.dispatchBusEvent(new TestEvent(1L, i), 1L);
+            }
+            await().atMost(5, TimeUnit.SECONDS).until(() -> otherReceived.size() == 6);
+
+            // Queue full: the event is rejected for everybody, so that it can be retried later without duplicates
+            try {
+                observable.dispatchBusEvent(new TestEvent(1L, 6), 1L);
+                Assert.fail();
+            } catch (final QueueRetryException e) {
+                Assert.assertTrue(e.getCause().getMessage().startsWith("Event queue full for plugin handler"));
+                Assert.assertEquals(e.getRetrySchedule(), QueueRetryException.DEFAULT_RETRY_SCHEDULE);
+            }
+            Assert.assertEquals(otherReceived.size(), 6);
+
+            // Framework events aren't subject to the capacity
+            observable.setChangedAndNotifyObservers("org/killbill/billing/osgi/lifecycle/STARTED");
+
+            blockedObserverLatch.countDown();
+            await().atMost(5, TimeUnit.SECONDS).until(() -> blockedReceived.size() == 7 && otherReceived.size() == 7);
+            Assert.assertEquals(blockedReceived.get(6), "org/killbill/billing/osgi/lifecycle/STARTED");
+
+            // Capacity available again
+            observable.dispatchBusEvent(new TestEvent(1L, 6), 1L);
+            await().atMost(5, TimeUnit.SECONDS).until(() -> blockedReceived.size() == 8 && otherReceived.size() == 8);
+        } finally {
+            blockedObserverLatch.countDown();
+            observable.deleteObservers();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testPendingEventsRetriedOnClose() throws Exception {
+        final KillbillEventObservable observable = new KillbillEventObservable(true, 5, 1, new NoOpMetricRegistry());
+        final CountDownLatch blockedObserverLatch = new CountDownLatch(1);
+        final CountDownLatch blockedObserverStarted = new CountDownLatch(1);
+        final ExecutorService closer = Executors.newSingleThreadExecutor();
+        try {
+            final Observer observer = new Observer() {
+                @Override
+                public void update(final Observable o, final Object arg) {
+                    blockedObserverStarted.countDown();
+                    try {
+                        blockedObserverLatch.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            observable.addObserver(observer, "blocked");
+
+            final Map<String, Throwable> failures = new ConcurrentHashMap<String, Throwable>();
+            observable.dispatchBusEvent("first", 1L, null, failures::put);
+            Assert.assertTrue(blockedObserverStarted.await(5, TimeUnit.SECONDS));
+            observable.dispatchBusEvent("second", 1L, null, failures::put);
+
+            // The handler doesn't get to the second event in time: it is retried rather than lost
+            final Future<?> closed = closer.submit(() -> observable.deleteObserver(observer));
+            closed.get(30, TimeUnit.SECONDS);
+            Assert.assertTrue(failures.get("blocked") instanceof QueueRetryException);
+        } finally {
+            blockedObserverLatch.countDown();
+            closer.shutdownNow();
+            observable.deleteObservers();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testMetricsRemovedOnClose() throws Exception {
+        final MetricRegistry metricRegistry = Mockito.mock(MetricRegistry.class);
+        final KillbillEventObservable observable = new KillbillEventObservable(true, 5, 1, metricRegistry);
+        observable.addObserver(new Observer() {
+            @Override
+            public void update(final Observable o, final Object arg) {
+            }
+        }, "org.killbill.billing.plugin.test");
+
+        observable.deleteObservers();
+        for (final String metric : List.of("kb_plugin_events_queue_depth", "kb_plugin_events_lag", "kb_plugin_events_errors", "kb_plugin_events_overflows")) {
+            Mockito.verify(metricRegistry).remove("killbill-service." + metric + ".org.killbill.billing.plugin.test");
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testNoMetricsInSynchronousMode() throws Exception {
+        final MetricRegistry metricRegistry = Mockito.mock(MetricRegistry.class);
+        final KillbillEventObservable observable = new KillbillEventObservable(false, 5, 1, metricRegistry);
+        observable.addObserver(new Observer() {
+            @Override
+            public void update(final Observable o, final Object arg) {
+            }
+        }, "org.killbill.billing.plugin.test");
+
+        observable.dispatchBusEvent("event", 1L);
+        observable.deleteObservers();
+        Mockito.verifyNoInteractions(metricRegistry);
+    }
+
+    @Test(groups = "fast")
+    public void testSynchronousMode() throws Exception {
+        final KillbillEventObservable observable = new KillbillEventObservable(false, 5, 1, new NoOpMetricRegistry());
+        final List<String> received = new ArrayList<String>();
+        observable.addObserver(new Observer() {
+            @Override
+            public void update(final Observable o, final Object arg) {
+                received.add("first-" + arg);
+            }
+        });
+        observable.addObserver(new Observer() {
+            @Override
+            public void update(final Observable o, final Object arg) {
+                received.add("second-" + arg);
+                if ("fail".equals(arg)) {
+                    throw new IllegalStateException("Plugin failure");
+                }
+            }
+        });
+        Assert.assertEquals(observable.countObservers(), 2);
+
+        // Delivered on the caller thread, most recent observers first
+        observable.dispatchBusEvent("event", 1L);
+        Assert.assertEquals(received, List.of("second-event", "first-event"));
+
+        // Exceptions are propagated (so that the event is retried)
+        try {
+            observable.dispatchBusEvent("fail", 1L);
+            Assert.fail();
+        } catch (final IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "Plugin failure");
+        }
+
+        observable.deleteObservers();
+        Assert.assertEquals(observable.countObservers(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testBundleViews() throws Exception {
+        final KillbillEventObservable observable = new KillbillEventObservable(true, 1000, 1, new NoOpMetricRegistry());
+        final ServiceFactory<Observable> serviceFactory = observable.getServiceFactory();
+
+        final Bundle bundle = Mockito.mock(Bundle.class);
+        Mockito.when(bundle.getSymbolicName()).thenReturn("org.killbill.billing.plugin.test");
+        final Observable bundleView = serviceFactory.getService(bundle, null);
+
+        final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+        final Observer observer = new Observer() {
+            @Override
+            public void update(final Observable o, final Object arg) {
+                received.add(arg);
+            }
+        };
+        bundleView.addObserver(observer);
+        bundleView.addObserver(new Observer() {
+            @Override
+            public void update(final Observable o, final Object arg) {
+            }
+        });
+        Assert.assertEquals(bundleView.countObservers(), 2);
+        Assert.assertEquals(observable.countObservers(), 2);
+
+        observable.dispatchBusEvent("event", null);
+        await().atMost(5, TimeUnit.SECONDS).until(() -> received.size() == 1);
+
+        bundleView.deleteObserver(observer);
+        Assert.assertEquals(bundleView.countObservers(), 1);
+        Assert.assertEquals(observable.countObservers(), 1);
+
+        // Observers are cleaned-up when the bundle releases the service
+        serviceFactory.ungetService(bundle, null, bundleView);
+        Assert.assertEquals(observable.countObservers(), 0);
+    }
+
+    private static final class TestEvent {
+
+        private final Long accountKey;
+        private final int sequence;
+
+        private TestEvent(final Long accountKey, final int sequence) {
+            this.accountKey = accountKey;
+            this.sequence = sequence;
+        }
+    }
+}
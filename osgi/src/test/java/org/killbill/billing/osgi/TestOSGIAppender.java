@@ -0,0 +1,264 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.framework.Felix;
+import org.killbill.billing.osgi.OSGIAppender.OverflowPolicy;
+import org.mockito.Mockito;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.launch.Framework;
+import org.osgi.service.log.LogService;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+
+public class TestOSGIAppender {
+
+    private File rootDir;
+    private Framework framework;
+    private Logger logger;
+    private OSGIAppender appender;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        rootDir = org.killbill.commons.utils.io.Files.createTempDirectory();
+
+        final Map<String, Object> config = new HashMap<String, Object>();
+        config.put("felix.cache.rootdir", rootDir.getAbsolutePath());
+        config.put(Constants.FRAMEWORK_STORAGE, "osgi-cache");
+        framework = new Felix(config);
+        framework.init();
+        framework.start();
+
+        final LoggerContext loggerContext = new LoggerContext();
+        loggerContext.setMDCAdapter(new LogbackMDCAdapter());
+        logger = loggerContext.getLogger("TestOSGIAppender");
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception {
+        if (appender != null) {
+            appender.stop();
+        }
+        framework.stop();
+        framework.waitForStop(0);
+        OSGIBundleCache.deleteDirectory(rootDir, true);
+    }
+
+    @Test(groups = "fast")
+    public void testOverflowDropOldest() throws Exception {
+        final RecordingLogService logService = registerLogService();
+        startAppender(true, 10, OverflowPolicy.DROP_OLDEST);
+
+        // The forwarder thread is stuck on the first event
+        logService.block();
+        log(Level.INFO, "event-0");
+        Assert.assertTrue(logService.blocked.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 15; i++) {
+            log(Level.INFO, "event-" + i);
+        }
+        Assert.assertEquals(appender.getQueueDepth(), 10);
+        Assert.assertEquals(appender.getNbDroppedEvents(), 5);
+
+        logService.unblock();
+        appender.stop();
+
+        final List<String> expected = new ArrayList<String>();
+        expected.add("event-0");
+        for (int i = 6; i <= 15; i++) {
+            expected.add("event-" + i);
+        }
+        Assert.assertEquals(logService.getMessages(), expected);
+    }
+
+    @Test(groups = "fast")
+    public void testOverflowDropBelowLevel() throws Exception {
+        final RecordingLogService logService = registerLogService();
+        startAppender(true, 10, OverflowPolicy.DROP_BELOW_LEVEL);
+
+        logService.block();
+        log(Level.INFO, "info-0");
+        Assert.assertTrue(logService.blocked.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 15; i++) {
+            log(Level.INFO, "info-" + i);
+        }
+        // INFO events don't make it once the queue is full...
+        Assert.assertEquals(appender.getNbDroppedEvents(), 5);
+        // ...but WARN and ERROR events evict the oldest ones
+        log(Level.WARN, "warn");
+        log(Level.ERROR, "error");
+        Assert.assertEquals(appender.getQueueDepth(), 10);
+        Assert.assertEquals(appender.getNbDroppedEvents(), 7);
+
+        logService.unblock();
+        appender.stop();
+
+        final List<String> expected = new ArrayList<String>();
+        expected.add("info-0");
+        for (int i = 3; i <= 10; i++) {
+            expected.add("info-" + i);
+        }
+        expected.add("warn");
+        expected.add("error");
+        Assert.assertEquals(logService.getMessages(), expected);
+    }
+
+    @Test(groups = "fast")
+    public void testShutdownFlushesPendingEvents() throws Exception {
+        final RecordingLogService logService = registerLogService();
+        logService.delayMillis = 1;
+        startAppender(true, 1000, OverflowPolicy.DROP_OLDEST);
+
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            log(Level.INFO, "event-" + i);
+            expected.add("event-" + i);
+        }
+        appender.stop();
+
+        Assert.assertEquals(logService.getMessages(), expected);
+        Assert.assertEquals(appender.getQueueDepth(), 0);
+        Assert.assertEquals(appender.getNbDroppedEvents(), 0);
+
+        // Stopped appenders don't accept events anymore
+        log(Level.INFO, "ignored");
+        Assert.assertEquals(appender.getQueueDepth(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testMissingLogService() throws Exception {
+        startAppender(true, 1000, OverflowPolicy.DROP_OLDEST);
+
+        // Events are discarded right away, without being prepared nor queued
+        for (int i = 0; i < 100; i++) {
+            final LoggingEvent event = Mockito.spy(new LoggingEvent(Logger.FQCN, logger, Level.INFO, "lost-" + i, null, null));
+            appender.doAppend(event);
+            Mockito.verify(event, Mockito.never()).prepareForDeferredProcessing();
+            Assert.assertEquals(appender.getQueueDepth(), 0);
+        }
+
+        // The LogService reference is refreshed as the service comes and goes
+        final RecordingLogService logService = new RecordingLogService();
+        final ServiceRegistration<LogService> registration = framework.getBundleContext().registerService(LogService.class, logService.mock, null);
+        log(Level.INFO, "found");
+        awaitEmptyQueue();
+        registration.unregister();
+        log(Level.INFO, "lost-again");
+        appender.stop();
+
+        Assert.assertEquals(logService.getMessages(), List.of("found"));
+        Assert.assertEquals(appender.getNbDroppedEvents(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testSynchronousMode() throws Exception {
+        final RecordingLogService logService = registerLogService();
+        startAppender(false, 0, OverflowPolicy.DROP_OLDEST);
+
+        log(Level.WARN, "warn");
+        log(Level.DEBUG, "debug");
+        Assert.assertEquals(logService.getMessages(), List.of("warn", "debug"));
+        Mockito.verify(logService.mock).log(Mockito.<ServiceReference>any(), Mockito.eq(LogService.LOG_WARNING), Mockito.eq("warn"), Mockito.<Throwable>any());
+        Mockito.verify(logService.mock).log(Mockito.<ServiceReference>any(), Mockito.eq(LogService.LOG_DEBUG), Mockito.eq("debug"), Mockito.<Throwable>any());
+    }
+
+    private void startAppender(final boolean async, final int capacity, final OverflowPolicy overflowPolicy) {
+        appender = new OSGIAppender(framework.getBundleContext(), async, capacity, overflowPolicy, Level.WARN, null);
+        appender.setContext(logger.getLoggerContext());
+        appender.start();
+    }
+
+    private RecordingLogService registerLogService() {
+        final RecordingLogService logService = new RecordingLogService();
+        framework.getBundleContext().registerService(LogService.class, logService.mock, null);
+        return logService;
+    }
+
+    private void log(final Level level, final String message) {
+        appender.doAppend(new LoggingEvent(Logger.FQCN, logger, level, message, null, null));
+    }
+
+    private void awaitEmptyQueue() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (appender.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(appender.getQueueDepth(), 0);
+        // The last event may still be in flight
+        Thread.sleep(100);
+    }
+
+    private static final class RecordingLogService {
+
+        private final LogService mock = Mockito.mock(LogService.class);
+        private final List<String> messages = new ArrayList<String>();
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private volatile CountDownLatch gate;
+        private volatile long delayMillis;
+
+        private RecordingLogService() {
+            Mockito.doAnswer(invocation -> {
+                synchronized (messages) {
+                    messages.add(invocation.getArgument(2));
+                }
+                final CountDownLatch currentGate = gate;
+                if (currentGate != null) {
+                    blocked.countDown();
+                    Assert.assertTrue(currentGate.await(10, TimeUnit.SECONDS));
+                }
+                if (delayMillis > 0) {
+                    Thread.sleep(delayMillis);
+                }
+                return null;
+            }).when(mock).log(Mockito.<ServiceReference>any(), Mockito.anyInt(), Mockito.anyString(), Mockito.<Throwable>any());
+        }
+
+        private void block() {
+            gate = new CountDownLatch(1);
+        }
+
+        private void unblock() {
+            final CountDownLatch currentGate = gate;
+            gate = null;
+            currentGate.countDown();
+        }
+
+        private List<String> getMessages() {
+            synchronized (messages) {
+                return new ArrayList<String>(messages);
+            }
+        }
+    }
+}
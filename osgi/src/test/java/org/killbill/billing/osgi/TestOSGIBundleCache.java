@@ -0,0 +1,174 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.apache.felix.framework.Felix;
+import org.killbill.commons.utils.io.Files;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestOSGIBundleCache {
+
+    private File rootDir;
+    private File storageDir;
+    private File manifestFile;
+    private File jarsDir;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        rootDir = Files.createTempDirectory();
+        storageDir = new File(rootDir, "osgi-cache");
+        manifestFile = new File(rootDir, "osgi-cache.manifest");
+        jarsDir = Files.createTempDirectory();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() {
+        OSGIBundleCache.deleteDirectory(rootDir, true);
+        OSGIBundleCache.deleteDirectory(jarsDir, true);
+    }
+
+    @Test(groups = "fast")
+    public void testWarmRestart() throws Exception {
+        final File foo = createBundleJar("foo", "1.0.0");
+        final File bar = createBundleJar("bar", "1.0.0");
+
+        final Map<String, Bundle> coldBoot = boot(foo, bar);
+        final long fooLastModified = coldBoot.get("foo").getLastModified();
+        final long barLastModified = coldBoot.get("bar").getLastModified();
+
+        // Jars didn't change: bundles are not re-installed
+        final Map<String, Bundle> warmBoot = boot(foo, bar);
+        Assert.assertEquals(warmBoot.get("foo").getBundleId(), coldBoot.get("foo").getBundleId());
+        Assert.assertEquals(warmBoot.get("foo").getLastModified(), fooLastModified);
+        Assert.assertEquals(warmBoot.get("bar").getBundleId(), coldBoot.get("bar").getBundleId());
+        Assert.assertEquals(warmBoot.get("bar").getLastModified(), barLastModified);
+    }
+
+    @Test(groups = "fast")
+    public void testChangedAndRemovedJars() throws Exception {
+        final File foo = createBundleJar("foo", "1.0.0");
+        final File bar = createBundleJar("bar", "1.0.0");
+        final File baz = createBundleJar("baz", "1.0.0");
+        final Map<String, Bundle> coldBoot = boot(foo, bar, baz);
+
+        // Same size (most likely), different content
+        createBundleJar("foo", "2.0.0");
+        final Map<String, Bundle> warmBoot = boot(foo, bar);
+
+        // The changed plugin is re-installed from the new jar
+        Assert.assertNotEquals(warmBoot.get("foo").getLastModified(), coldBoot.get("foo").getLastModified());
+        Assert.assertEquals(warmBoot.get("foo").getVersion().toString(), "2.0.0");
+        // The unchanged one comes from the cache
+        Assert.assertEquals(warmBoot.get("bar").getBundleId(), coldBoot.get("bar").getBundleId());
+        Assert.assertEquals(warmBoot.get("bar").getLastModified(), coldBoot.get("bar").getLastModified());
+
+        // The removed one was evicted
+        final Map<String, Bundle> nextBoot = boot(foo, bar, baz);
+        Assert.assertNotEquals(nextBoot.get("baz").getLastModified(), coldBoot.get("baz").getLastModified());
+        Assert.assertEquals(nextBoot.get("foo").getLastModified(), warmBoot.get("foo").getLastModified());
+    }
+
+    @Test(groups = "fast")
+    public void testCorruptManifest() throws Exception {
+        final File foo = createBundleJar("foo", "1.0.0");
+        final Map<String, Bundle> coldBoot = boot(foo);
+
+        java.nio.file.Files.write(manifestFile.toPath(), "manifest.version=1\nfile\\:/foo.jar=garbage\n".getBytes(StandardCharsets.UTF_8));
+        final Map<String, Bundle> warmBoot = boot(foo);
+
+        // Everything was wiped
+        Assert.assertNotEquals(warmBoot.get("foo").getLastModified(), coldBoot.get("foo").getLastModified());
+
+        // Missing manifest with an existing cache
+        Assert.assertTrue(manifestFile.delete());
+        final Map<String, Bundle> otherBoot = boot(foo);
+        Assert.assertNotEquals(otherBoot.get("foo").getLastModified(), warmBoot.get("foo").getLastModified());
+    }
+
+    // Same sequence as DefaultOSGIService (initialize, then stop)
+    private Map<String, Bundle> boot(final File... jars) throws BundleException, InterruptedException {
+        // Make sure re-installed bundles get a different installation timestamp
+        Thread.sleep(10);
+
+        final OSGIBundleCache bundleCache = new OSGIBundleCache(storageDir, manifestFile);
+        bundleCache.prepare();
+
+        final Map<String, Object> config = new HashMap<String, Object>();
+        config.put("felix.cache.rootdir", rootDir.getAbsolutePath());
+        config.put(Constants.FRAMEWORK_STORAGE, "osgi-cache");
+        final Framework framework = new Felix(config);
+        framework.init();
+        bundleCache.evictChangedBundles(framework);
+        framework.start();
+
+        final Map<String, Bundle> bundles = new HashMap<String, Bundle>();
+        final List<BundleWithConfig> installedBundles = new ArrayList<BundleWithConfig>();
+        for (final File jar : jars) {
+            final Bundle bundle = framework.getBundleContext().installBundle("file:" + jar.getAbsolutePath());
+            bundles.put(bundle.getSymbolicName(), bundle);
+            installedBundles.add(new BundleWithConfig(bundle, null));
+        }
+        bundleCache.save(framework, installedBundles);
+
+        for (final Bundle bundle : bundles.values()) {
+            bundle.start();
+        }
+
+        framework.stop();
+        framework.waitForStop(0);
+        // Bundles are not uninstalled (this would evict them from the cache)
+        return bundles;
+    }
+
+    private File createBundleJar(final String symbolicName, final String version) throws IOException {
+        final Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+        manifest.getMainAttributes().putValue(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+        manifest.getMainAttributes().putValue(Constants.BUNDLE_VERSION, version);
+
+        final File jar = new File(jarsDir, symbolicName + ".jar");
+        try (final OutputStream outputStream = java.nio.file.Files.newOutputStream(jar.toPath());
+             final JarOutputStream jarOutputStream = new JarOutputStream(outputStream, manifest)) {
+            jarOutputStream.putNextEntry(new JarEntry("README.txt"));
+            jarOutputStream.write(("Bundle " + symbolicName).getBytes(StandardCharsets.UTF_8));
+            jarOutputStream.closeEntry();
+        }
+        return jar;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.UUID;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.osgi.KillbillEventRetriableBusHandler.OSGIBusEvent;
+import org.killbill.queue.QueueObjectMapper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestOSGIBusEventDeserializer {
+
+    private final ObjectMapper objectMapper = QueueObjectMapper.get();
+
+    @Test(groups = "fast")
+    public void testRoundTripForAllEventTypes() throws Exception {
+        for (final ExtBusEventType eventType : ExtBusEventType.values()) {
+            for (final String metaData : new String[]{null, "{\"pluginName\":\"foo\",\"status\":\"\\\"ok\\\"\"}"}) {
+                final TestExtBusEvent extBusEvent = new TestExtBusEvent(eventType, ObjectType.ACCOUNT, UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), metaData, UUID.randomUUID());
+                final OSGIBusEvent event = new OSGIBusEvent(extBusEvent, extBusEvent.getClass());
+                final String json = objectMapper.writeValueAsString(event);
+                // Streamed without buffering
+                Assert.assertTrue(json.startsWith("{\"extBusEventClass\":"), json);
+
+                final OSGIBusEvent deserialized = objectMapper.readValue(json, OSGIBusEvent.class);
+                Assert.assertEquals(deserialized, event, json);
+                Assert.assertEquals(deserialized.getExtBusEventClass(), TestExtBusEvent.class);
+                // Same output as the previous tree-based implementation
+                Assert.assertEquals(deserialized, legacyDeserialize(json), json);
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRetryForPluginHandler() throws Exception {
+        final TestExtBusEvent extBusEvent = new TestExtBusEvent(ExtBusEventType.PAYMENT_SUCCESS, ObjectType.PAYMENT, UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), null, UUID.randomUUID());
+        final OSGIBusEvent event = new OSGIBusEvent(extBusEvent, extBusEvent.getClass(), "org.killbill.billing.plugin.test", 2);
+        final String json = objectMapper.writeValueAsString(event);
+
+        final OSGIBusEvent deserialized = objectMapper.readValue(json, OSGIBusEvent.class);
+        Assert.assertEquals(deserialized, event, json);
+        Assert.assertEquals(deserialized.getPluginHandlerName(), "org.killbill.billing.plugin.test");
+        Assert.assertEquals(deserialized.getRetryNb(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testEventSerializedBeforeClass() throws Exception {
+        final TestExtBusEvent extBusEvent = new TestExtBusEvent(ExtBusEventType.INVOICE_CREATION, ObjectType.INVOICE, UUID.randomUUID(), UUID.randomUUID(), null, null, null);
+        final OSGIBusEvent event = new OSGIBusEvent(extBusEvent, extBusEvent.getClass());
+
+        // Field order of the entries serialized by previous versions
+        final ObjectNode node = objectMapper.createObjectNode();
+        node.set("extBusEvent", objectMapper.valueToTree(extBusEvent));
+        node.put("extBusEventClass", TestExtBusEvent.class.getName());
+        node.put("searchKey1", event.getSearchKey1());
+        node.putNull("searchKey2");
+        final String json = objectMapper.writeValueAsString(node);
+
+        final OSGIBusEvent deserialized = objectMapper.readValue(json, OSGIBusEvent.class);
+        Assert.assertEquals(deserialized, event);
+        Assert.assertEquals(legacyDeserialize(json), event);
+        // Retried for all plugin handlers
+        Assert.assertNull(deserialized.getPluginHandlerName());
+        Assert.assertEquals(deserialized.getRetryNb(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testNullEventAndInvalidClasses() throws Exception {
+        final OSGIBusEvent deserialized = objectMapper.readValue("{\"extBusEventClass\":\"" + TestExtBusEvent.class.getName() + "\",\"extBusEvent\":null}", OSGIBusEvent.class);
+        Assert.assertNull(deserialized.getExtBusEvent());
+        Assert.assertEquals(deserialized.getExtBusEventClass(), TestExtBusEvent.class);
+
+        Assert.assertThrows(IOException.class, () -> objectMapper.readValue("{\"extBusEvent\":{}}", OSGIBusEvent.class));
+
+        // Unknown classes are not cached
+        final int nbCachedClasses = KillbillEventRetriableBusHandler.OSGIBusEventDeserializer.getNbCachedClasses();
+        for (int i = 0; i < 2 * KillbillEventRetriableBusHandler.OSGIBusEventDeserializer.MAX_CACHED_CLASSES; i++) {
+            Assert.assertThrows(IOException.class, () -> objectMapper.readValue("{\"extBusEventClass\":\"org.killbill.Unknown" + UUID.randomUUID() + "\",\"extBusEvent\":{}}", OSGIBusEvent.class));
+        }
+        Assert.assertEquals(KillbillEventRetriableBusHandler.OSGIBusEventDeserializer.getNbCachedClasses(), nbCachedClasses);
+    }
+
+    // Previous implementation of OSGIBusEventDeserializer
+    private OSGIBusEvent legacyDeserialize(final String json) throws Exception {
+        final JsonNode node = objectMapper.readTree(json);
+        final Class<ExtBusEvent> extBusEventClass = (Class<ExtBusEvent>) Class.forName(node.get("extBusEventClass").textValue());
+        return new OSGIBusEvent(objectMapper.treeToValue(node.get("extBusEvent"), extBusEventClass), extBusEventClass);
+    }
+
+    public static final class TestExtBusEvent implements ExtBusEvent {
+
+        private final ExtBusEventType eventType;
+        private final ObjectType objectType;
+        private final UUID objectId;
+        private final UUID accountId;
+        private final UUID tenantId;
+        private final String metaData;
+        private final UUID userToken;
+
+        @JsonCreator
+        public TestExtBusEvent(@JsonProperty("eventType") final ExtBusEventType eventType,
+                               @JsonProperty("objectType") final ObjectType objectType,
+                               @JsonProperty("objectId") final UUID objectId,
+                               @JsonProperty("accountId") final UUID accountId,
+                               @JsonProperty("tenantId") final UUID tenantId,
+                               @JsonProperty("metaData") final String metaData,
+                               @JsonProperty("userToken") final UUID userToken) {
+            this.eventType = eventType;
+            this.objectType = objectType;
+            this.objectId = objectId;
+            this.accountId = accountId;
+            this.tenantId = tenantId;
+            this.metaData = metaData;
+            this.userToken = userToken;
+        }
+
+        @Override
+        public ExtBusEventType getEventType() {
+            return eventType;
+        }
+
+        @Override
+        public ObjectType getObjectType() {
+            return objectType;
+        }
+
+        @Override
+        public UUID getObjectId() {
+            return objectId;
+        }
+
+        @Override
+        public UUID getAccountId() {
+            return accountId;
+        }
+
+        @Override
+        public UUID getTenantId() {
+            return tenantId;
+        }
+
+        @Override
+        public String getMetaData() {
+            return metaData;
+        }
+
+        @Override
+        public UUID getUserToken() {
+            return userToken;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final TestExtBusEvent that = (TestExtBusEvent) o;
+            return eventType == that.eventType &&
+                   objectType == that.objectType &&
+                   Objects.equals(objectId, that.objectId) &&
+                   Objects.equals(accountId, that.accountId) &&
+                   Objects.equals(tenantId, that.tenantId) &&
+                   Objects.equals(metaData, that.metaData) &&
+                   Objects.equals(userToken, that.userToken);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(eventType, objectType, objectId, accountId, tenantId, metaData, userToken);
+        }
+    }
+}
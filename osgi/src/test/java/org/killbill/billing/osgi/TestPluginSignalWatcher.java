@@ -0,0 +1,220 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.felix.framework.Felix;
+import org.killbill.billing.osgi.api.PluginSignalHandler;
+import org.killbill.billing.osgi.config.OSGIConfig;
+import org.mockito.Mockito;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.launch.Framework;
+import org.skife.config.TimeSpan;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.awaitility.Awaitility.await;
+
+public class TestPluginSignalWatcher {
+
+    private File rootDir;
+    private Framework framework;
+    private PluginSignalWatcher watcher;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        rootDir = org.killbill.commons.utils.io.Files.createTempDirectory();
+
+        final Map<String, Object> config = new HashMap<String, Object>();
+        config.put("felix.cache.rootdir", rootDir.getAbsolutePath());
+        config.put(Constants.FRAMEWORK_STORAGE, "osgi-cache");
+        framework = new Felix(config);
+        framework.init();
+        framework.start();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception {
+        if (watcher != null) {
+            watcher.stop();
+        }
+        framework.stop();
+        framework.waitForStop(0);
+        OSGIBundleCache.deleteDirectory(rootDir, true);
+    }
+
+    @Test(groups = "fast")
+    public void testInitialCheck() throws Exception {
+        startWatcher("0s");
+        final CountingHandler handler = registerHandler("foo");
+
+        // E.g. to stop a plugin which is already disabled
+        awaitChecks(handler, 1);
+    }
+
+    @Test(groups = "fast")
+    public void testSignalFilesAreWatched() throws Exception {
+        startWatcher("0s");
+        final CountingHandler handler = registerHandler("foo");
+        awaitChecks(handler, 1);
+
+        touch(new File(handler.tmpDir, PluginSignalHandler.DISABLED_FILE_NAME), System.currentTimeMillis());
+        awaitChecks(handler, 2);
+
+        // Other files are ignored
+        touch(new File(handler.tmpDir, "other.txt"), System.currentTimeMillis());
+        touch(new File(handler.tmpDir, PluginSignalHandler.RESTART_FILE_NAME), System.currentTimeMillis());
+        awaitChecks(handler, 3);
+    }
+
+    @Test(groups = "fast")
+    public void testBurstIsDebounced() throws Exception {
+        startWatcher("0s");
+        final CountingHandler handler = registerHandler("foo");
+        final CountingHandler otherHandler = registerHandler("bar");
+        awaitChecks(handler, 1);
+        awaitChecks(otherHandler, 1);
+
+        final long now = System.currentTimeMillis();
+        for (int i = 1; i <= 5; i++) {
+            touch(new File(handler.tmpDir, PluginSignalHandler.RESTART_FILE_NAME), now + i * 1000);
+        }
+        // Touched last: by the time it is checked, the burst has been handled
+        touch(new File(otherHandler.tmpDir, PluginSignalHandler.RESTART_FILE_NAME), now);
+        awaitChecks(otherHandler, 2);
+        Assert.assertEquals(handler.checks.get(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testPolling() throws Exception {
+        startWatcher("100ms");
+        final CountingHandler handler = registerHandler("foo");
+
+        // Checked on each polling, whether the files changed or not
+        await().atMost(5, TimeUnit.SECONDS).until(() -> handler.checks.get() >= 3);
+    }
+
+    @Test(groups = "fast")
+    public void testSingleThreadForAllPlugins() throws Exception {
+        startWatcher("0s");
+        final List<CountingHandler> handlers = new ArrayList<CountingHandler>();
+        for (int i = 0; i < 30; i++) {
+            handlers.add(registerHandler("plugin-" + i));
+        }
+
+        int nbThreads = 0;
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("plugin-signals")) {
+                nbThreads++;
+            }
+        }
+        Assert.assertEquals(nbThreads, 1);
+
+        for (final CountingHandler handler : handlers) {
+            awaitChecks(handler, 1);
+        }
+        final long now = System.currentTimeMillis();
+        for (final CountingHandler handler : handlers) {
+            touch(new File(handler.tmpDir, PluginSignalHandler.RESTART_FILE_NAME), now);
+        }
+        for (final CountingHandler handler : handlers) {
+            awaitChecks(handler, 2);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testUnregisteredHandler() throws Exception {
+        startWatcher("0s");
+        final CountingHandler handler = registerHandler("foo");
+        final CountingHandler otherHandler = registerHandler("bar");
+        awaitChecks(handler, 1);
+        awaitChecks(otherHandler, 1);
+        handler.registration.unregister();
+
+        final long now = System.currentTimeMillis();
+        touch(new File(handler.tmpDir, PluginSignalHandler.RESTART_FILE_NAME), now);
+        touch(new File(otherHandler.tmpDir, PluginSignalHandler.RESTART_FILE_NAME), now);
+        awaitChecks(otherHandler, 2);
+        Assert.assertEquals(handler.checks.get(), 1);
+    }
+
+    private void startWatcher(final String pollingInterval) {
+        final OSGIConfig osgiConfig = Mockito.mock(OSGIConfig.class);
+        Mockito.when(osgiConfig.isPluginSignalsWatchEnabled()).thenReturn(true);
+        Mockito.when(osgiConfig.getPluginSignalsPollingInterval()).thenReturn(new TimeSpan(pollingInterval));
+        Mockito.when(osgiConfig.getPluginSignalsDebounce()).thenReturn(new TimeSpan("200ms"));
+        watcher = new PluginSignalWatcher(osgiConfig);
+        watcher.start(framework.getBundleContext());
+    }
+
+    private CountingHandler registerHandler(final String pluginName) {
+        final File tmpDir = new File(rootDir, pluginName);
+        Assert.assertTrue(tmpDir.isDirectory() || tmpDir.mkdir());
+
+        final CountingHandler handler = new CountingHandler(tmpDir);
+        final Dictionary<String, Object> props = new Hashtable<String, Object>();
+        props.put(PluginSignalHandler.TMP_DIR_PROP, tmpDir.getAbsolutePath());
+        handler.registration = framework.getBundleContext().registerService(PluginSignalHandler.class, handler, props);
+        return handler;
+    }
+
+    // Explicit timestamps: file systems with a coarse mtime granularity would otherwise see the same value
+    private static void touch(final File file, final long lastModified) throws IOException {
+        if (!file.exists()) {
+            Files.createFile(file.toPath());
+        }
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(lastModified));
+    }
+
+    private static void awaitChecks(final CountingHandler handler, final int expected) {
+        await().atMost(5, TimeUnit.SECONDS).until(() -> handler.checks.get() >= expected);
+        Assert.assertEquals(handler.checks.get(), expected);
+    }
+
+    private static final class CountingHandler implements PluginSignalHandler {
+
+        private final File tmpDir;
+        private final AtomicInteger checks = new AtomicInteger();
+
+        private ServiceRegistration<PluginSignalHandler> registration;
+
+        private CountingHandler(final File tmpDir) {
+            this.tmpDir = tmpDir;
+        }
+
+        @Override
+        public void checkSignals() {
+            checks.incrementAndGet();
+        }
+    }
+}
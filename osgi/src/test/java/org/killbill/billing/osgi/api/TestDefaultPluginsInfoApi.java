@@ -0,0 +1,269 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.killbill.billing.osgi.BundleRegistry;
+import org.killbill.billing.osgi.BundleRegistry.BundleWithMetadata;
+import org.killbill.billing.osgi.BundleWithConfig;
+import org.killbill.billing.osgi.DefaultOSGIServiceDescriptor;
+import org.killbill.billing.osgi.FileInstall;
+import org.killbill.billing.osgi.api.DefaultPluginsInfoApi.DefaultPluginInfo;
+import org.killbill.billing.osgi.api.config.PluginConfig;
+import org.killbill.billing.osgi.config.OSGIConfig;
+import org.killbill.billing.osgi.pluginconf.PluginFinder;
+import org.killbill.commons.utils.io.Files;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.launch.Framework;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestDefaultPluginsInfoApi {
+
+    private final AtomicReference<BundleListener> bundleListener = new AtomicReference<BundleListener>();
+    private final Map<Bundle, AtomicInteger> bundleStates = new ConcurrentHashMap<Bundle, AtomicInteger>();
+
+    private File pluginsJava;
+    private PluginFinder pluginFinder;
+    private FileInstall fileInstall;
+    private BundleRegistry bundleRegistry;
+    private DefaultPluginsInfoApi pluginsInfoApi;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        final File rootInstallationDir = Files.createTempDirectory();
+        pluginsJava = new File(rootInstallationDir, "plugins/java");
+        createPluginVersion("foo", "1.0");
+        createPluginVersion("foo", "2.0");
+        createPluginVersion("bar", "0.1");
+
+        final OSGIConfig osgiConfig = Mockito.mock(OSGIConfig.class);
+        Mockito.when(osgiConfig.getRootInstallationDir()).thenReturn(rootInstallationDir.getAbsolutePath());
+        Mockito.when(osgiConfig.getOSGIKillbillPropertyName()).thenReturn("killbill.properties");
+        pluginFinder = new PluginFinder(osgiConfig);
+
+        final List<BundleWithConfig> installedBundles = List.of(new BundleWithConfig(stubBundle("org.acme.foo"), pluginFinder.getVersionsForPlugin("foo", "2.0").get(0)),
+                                                                new BundleWithConfig(stubBundle("org.acme.osgi"), null));
+        fileInstall = Mockito.mock(FileInstall.class);
+        Mockito.when(fileInstall.installBundles(Mockito.any())).thenReturn(installedBundles);
+        Mockito.when(fileInstall.startBundle(Mockito.any())).thenAnswer(invocation -> {
+            setState(invocation.getArgument(0), Bundle.ACTIVE, BundleEvent.STARTED);
+            return true;
+        });
+
+        final BundleContext bundleContext = Mockito.mock(BundleContext.class);
+        Mockito.doAnswer(invocation -> {
+            bundleListener.set(invocation.getArgument(0));
+            return null;
+        }).when(bundleContext).addBundleListener(Mockito.any());
+        final Framework framework = Mockito.mock(Framework.class);
+        Mockito.when(framework.getBundleContext()).thenReturn(bundleContext);
+
+        bundleRegistry = new BundleRegistry(fileInstall);
+        bundleRegistry.installBundles(framework);
+        Assert.assertNotNull(bundleListener.get());
+
+        final KillbillNodesApiHolder nodesApiHolder = new KillbillNodesApiHolder();
+        pluginsInfoApi = new DefaultPluginsInfoApi(bundleRegistry, pluginFinder, nodesApiHolder);
+    }
+
+    @Test(groups = "fast")
+    public void testViewIsMemoized() throws Exception {
+        final Iterable<PluginInfo> pluginsInfo = pluginsInfoApi.getPluginsInfo();
+        checkSameAsLegacy();
+        Assert.assertSame(pluginsInfoApi.getPluginsInfo(), pluginsInfo);
+        Assert.assertEquals(describe(pluginsInfo), List.of("bar|0.1|null|STOPPED|true|[]",
+                                                           "foo|1.0|null|STOPPED|false|[]",
+                                                           "foo|2.0|org.acme.foo|STOPPED|true|[]",
+                                                           "org.acme.osgi|null|org.acme.osgi|STOPPED|true|[]"));
+
+        // Per-plugin query
+        Assert.assertEquals(describe(pluginsInfoApi.getPluginInfo("foo")), List.of("foo|1.0|null|STOPPED|false|[]",
+                                                                                   "foo|2.0|org.acme.foo|STOPPED|true|[]"));
+        Assert.assertTrue(pluginsInfoApi.getPluginInfo("unknown").isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testOrderingOfPluginNamesSharingAPrefix() throws Exception {
+        createPluginVersion("foo-bar", "1.0");
+        pluginFinder.reloadPlugin("foo-bar");
+
+        // Sorted on the concatenated plugin name and version, as historically: '-' comes before the version digits
+        checkSameAsLegacy();
+        Assert.assertEquals(describe(pluginsInfoApi.getPluginsInfo()), List.of("bar|0.1|null|STOPPED|true|[]",
+                                                                               "foo-bar|1.0|null|STOPPED|true|[]",
+                                                                               "foo|1.0|null|STOPPED|false|[]",
+                                                                               "foo|2.0|org.acme.foo|STOPPED|true|[]",
+                                                                               "org.acme.osgi|null|org.acme.osgi|STOPPED|true|[]"));
+    }
+
+    @Test(groups = "fast")
+    public void testViewIsInvalidatedOnStartStopAndRestart() throws Exception {
+        Iterable<PluginInfo> pluginsInfo = pluginsInfoApi.getPluginsInfo();
+        final Bundle foo = bundleRegistry.getBundle("foo").getBundle();
+
+        // Start (e.g. at startup, by the framework)
+        setState(foo, Bundle.ACTIVE, BundleEvent.STARTED);
+        pluginsInfo = checkInvalidated(pluginsInfo);
+        Assert.assertEquals(describe(pluginsInfoApi.getPluginInfo("foo")).get(1), "foo|2.0|org.acme.foo|RUNNING|true|[]");
+
+        // Services registered by the plugin
+        bundleRegistry.registerService(new DefaultOSGIServiceDescriptor("org.acme.foo", "foo", "foo-payment"), "PaymentPluginApi");
+        pluginsInfo = checkInvalidated(pluginsInfo);
+        Assert.assertEquals(describe(pluginsInfoApi.getPluginInfo("foo")).get(1), "foo|2.0|org.acme.foo|RUNNING|true|[PaymentPluginApi:foo-payment]");
+
+        // Stop
+        bundleRegistry.stopAndUninstallNewBundle("foo", "2.0");
+        pluginsInfo = checkInvalidated(pluginsInfo);
+        Assert.assertEquals(describe(pluginsInfoApi.getPluginInfo("foo")).get(1), "foo|2.0|null|STOPPED|true|[]");
+
+        // Restart
+        final BundleWithConfig newFoo = new BundleWithConfig(stubBundle("org.acme.foo"), pluginFinder.getVersionsForPlugin("foo", "2.0").get(0));
+        Mockito.when(fileInstall.installNewBundle(Mockito.eq("foo"), Mockito.eq("2.0"), Mockito.any())).thenReturn(newFoo);
+        bundleRegistry.installAndStartNewBundle("foo", "2.0");
+        pluginsInfo = checkInvalidated(pluginsInfo);
+        Assert.assertEquals(describe(pluginsInfoApi.getPluginInfo("foo")).get(1), "foo|2.0|org.acme.foo|RUNNING|true|[]");
+
+        // New version on disk
+        createPluginVersion("bar", "0.2");
+        pluginFinder.reloadPlugin("bar");
+        pluginsInfo = checkInvalidated(pluginsInfo);
+        Assert.assertEquals(describe(pluginsInfoApi.getPluginInfo("bar")), List.of("bar|0.1|null|STOPPED|false|[]",
+                                                                                   "bar|0.2|null|STOPPED|true|[]"));
+
+        // Pure OSGI bundle stopped behind our back
+        setState(bundleRegistry.getBundle("org.acme.osgi").getBundle(), Bundle.ACTIVE, BundleEvent.STARTED);
+        pluginsInfo = checkInvalidated(pluginsInfo);
+        setState(bundleRegistry.getBundle("org.acme.osgi").getBundle(), Bundle.RESOLVED, BundleEvent.STOPPED);
+        checkInvalidated(pluginsInfo);
+        Assert.assertEquals(describe(pluginsInfoApi.getPluginInfo("org.acme.osgi")), List.of("org.acme.osgi|null|org.acme.osgi|STOPPED|true|[]"));
+    }
+
+    private Iterable<PluginInfo> checkInvalidated(final Iterable<PluginInfo> previousPluginsInfo) {
+        final Iterable<PluginInfo> pluginsInfo = pluginsInfoApi.getPluginsInfo();
+        Assert.assertNotSame(pluginsInfo, previousPluginsInfo);
+        checkSameAsLegacy();
+        Assert.assertSame(pluginsInfoApi.getPluginsInfo(), pluginsInfo);
+        return pluginsInfo;
+    }
+
+    private void checkSameAsLegacy() {
+        Assert.assertEquals(describe(pluginsInfoApi.getPluginsInfo()), describe(legacyPluginsInfo()));
+    }
+
+    // Previous implementation of DefaultPluginsInfoApi#getPluginsInfo
+    private List<PluginInfo> legacyPluginsInfo() {
+        final List<PluginInfo> result = new ArrayList<>();
+        for (final String pluginName : pluginFinder.getAllPlugins().keySet()) {
+            final BundleWithMetadata installedBundleOrNull = bundleRegistry.getBundle(pluginName);
+            final LinkedList<PluginConfig> pluginVersions = pluginFinder.getAllPlugins().get(pluginName);
+            boolean isSelectedForStart = true;
+            for (final PluginConfig curVersion : pluginVersions) {
+                final PluginInfo pluginInfo;
+                if (installedBundleOrNull != null && curVersion.getVersion().equals(installedBundleOrNull.getVersion())) {
+                    pluginInfo = new DefaultPluginInfo(curVersion.getPluginKey(),
+                                                       installedBundleOrNull.getBundle().getSymbolicName(),
+                                                       installedBundleOrNull.getPluginName(),
+                                                       installedBundleOrNull.getVersion(),
+                                                       DefaultPluginsInfoApi.toPluginState(installedBundleOrNull),
+                                                       isSelectedForStart,
+                                                       installedBundleOrNull.getServiceNames());
+                } else {
+                    pluginInfo = new DefaultPluginInfo(curVersion.getPluginKey(), null, curVersion.getPluginName(), curVersion.getVersion(), DefaultPluginsInfoApi.toPluginState(null), isSelectedForStart, Collections.emptySet());
+                }
+                isSelectedForStart = false;
+                result.add(pluginInfo);
+            }
+        }
+        for (final BundleWithMetadata osgiBundle : bundleRegistry.getPureOSGIBundles()) {
+            if (osgiBundle.getBundle().getSymbolicName() != null) {
+                result.add(new DefaultPluginInfo(null, osgiBundle.getBundle().getSymbolicName(), osgiBundle.getPluginName(), osgiBundle.getVersion(), DefaultPluginsInfoApi.toPluginState(osgiBundle), true, Collections.emptySet()));
+            }
+        }
+
+        return result.stream().sorted(Comparator.comparing(input -> {
+            final StringBuilder tmp = new StringBuilder(input.getPluginName());
+            if (input.getVersion() != null) {
+                tmp.append(input.getVersion());
+            }
+            return tmp.toString();
+        })).collect(Collectors.toList());
+    }
+
+    private static List<String> describe(final Iterable<PluginInfo> pluginsInfo) {
+        final List<String> result = new ArrayList<String>();
+        for (final PluginInfo pluginInfo : pluginsInfo) {
+            final List<String> services = pluginInfo.getServices().stream()
+                                                    .map(service -> service.getServiceTypeName() + ":" + service.getRegistrationName())
+                                                    .sorted()
+                                                    .collect(Collectors.toList());
+            result.add(pluginInfo.getPluginName() + "|" + pluginInfo.getVersion() + "|" + pluginInfo.getBundleSymbolicName() + "|" +
+                       pluginInfo.getPluginState() + "|" + pluginInfo.isSelectedForStart() + "|" + services);
+        }
+        return result;
+    }
+
+    private void createPluginVersion(final String pluginName, final String version) throws IOException {
+        final File versionDir = new File(pluginsJava, pluginName + "/" + version);
+        Assert.assertTrue(versionDir.mkdirs());
+        Assert.assertTrue(new File(versionDir, pluginName + ".jar").createNewFile());
+    }
+
+    private Bundle stubBundle(final String symbolicName) throws Exception {
+        final AtomicInteger state = new AtomicInteger(Bundle.INSTALLED);
+        final Bundle bundle = Mockito.mock(Bundle.class);
+        Mockito.when(bundle.getSymbolicName()).thenReturn(symbolicName);
+        Mockito.when(bundle.getState()).thenAnswer(invocation -> state.get());
+        Mockito.doAnswer(invocation -> {
+            setState(bundle, Bundle.RESOLVED, BundleEvent.STOPPED);
+            return null;
+        }).when(bundle).stop();
+        Mockito.doAnswer(invocation -> {
+            setState(bundle, Bundle.UNINSTALLED, BundleEvent.UNINSTALLED);
+            return null;
+        }).when(bundle).uninstall();
+        bundleStates.put(bundle, state);
+        return bundle;
+    }
+
+    // Same sequence as the framework: state change, then synchronous listeners
+    private void setState(final Bundle bundle, final int state, final int eventType) {
+        bundleStates.get(bundle).set(state);
+        final BundleListener listener = bundleListener.get();
+        if (listener != null) {
+            listener.bundleChanged(new BundleEvent(eventType, bundle));
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServlet;
+
+import org.killbill.billing.osgi.DefaultOSGIServiceDescriptor;
+import org.killbill.billing.osgi.http.DefaultServletRouter.ServletRoute;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestDefaultServletRouter {
+
+    @Test(groups = "fast")
+    public void testOverlappingPrefixes() {
+        final DefaultServletRouter router = new DefaultServletRouter();
+        final Servlet foo = new HttpServlet() {};
+        final Servlet fooBar = new HttpServlet() {};
+        final Servlet fooBarBaz = new HttpServlet() {};
+        final Servlet other = new HttpServlet() {};
+        router.registerServiceFromPath("/foo", foo);
+        router.registerServiceFromPath("/foo/bar/baz", fooBarBaz);
+        router.registerServiceFromPath("foo/bar", fooBar);
+        router.registerServiceFromPath("/other", other);
+
+        assertRoute(router, "/foo", "/foo", foo);
+        assertRoute(router, "/foo/", "/foo", foo);
+        assertRoute(router, "/foo/ba", "/foo", foo);
+        assertRoute(router, "/foo/bar", "/foo/bar", fooBar);
+        assertRoute(router, "/foo/bar/ba", "/foo/bar", fooBar);
+        assertRoute(router, "/foo/bar/baz", "/foo/bar/baz", fooBarBaz);
+        assertRoute(router, "/foo/bar/baz/qux?a=b", "/foo/bar/baz", fooBarBaz);
+        assertRoute(router, "/other/1", "/other", other);
+        // Matching is done on characters, not path segments
+        assertRoute(router, "/foobar", "/foo", foo);
+
+        Assert.assertNull(router.resolve("/fo"));
+        Assert.assertNull(router.resolve("/unknown"));
+        Assert.assertNull(router.resolve(""));
+        Assert.assertNull(router.getServiceForPath("/fo"));
+        Assert.assertNull(router.getPluginPrefixForPath("/fo"));
+
+        // Removing an intermediate node keeps the deeper and shallower routes
+        router.unregisterServiceFromPath("/foo/bar");
+        assertRoute(router, "/foo/bar/ba", "/foo", foo);
+        assertRoute(router, "/foo/bar/baz/1", "/foo/bar/baz", fooBarBaz);
+
+        router.unregisterServiceFromPath("/foo");
+        Assert.assertNull(router.resolve("/foo/bar"));
+        assertRoute(router, "/foo/bar/baz/1", "/foo/bar/baz", fooBarBaz);
+    }
+
+    @Test(groups = "fast")
+    public void testRegistrationByDescriptor() {
+        final DefaultServletRouter router = new DefaultServletRouter();
+        final Servlet servlet = new HttpServlet() {};
+        router.registerService(new DefaultOSGIServiceDescriptor("org.killbill.billing.plugin.test", "test", "test-plugin"), servlet);
+
+        Assert.assertEquals(router.getAllServices().size(), 1);
+        Assert.assertTrue(router.getAllServices().contains("test-plugin"));
+        Assert.assertEquals(router.getServiceForName("test-plugin"), servlet);
+        assertRoute(router, "/test-plugin/healthcheck", "/test-plugin", servlet);
+
+        router.unregisterService("test-plugin");
+        Assert.assertTrue(router.getAllServices().isEmpty());
+        Assert.assertNull(router.getServiceForName("test-plugin"));
+        Assert.assertNull(router.resolve("/test-plugin/healthcheck"));
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentRegistrationsWithInFlightRequests() throws Exception {
+        final DefaultServletRouter router = new DefaultServletRouter();
+        final Servlet stable = new HttpServlet() {};
+        router.registerServiceFromPath("/stable", stable);
+
+        final int nbPlugins = 50;
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final CountDownLatch started = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            final List<Future<?>> readers = new ArrayList<Future<?>>();
+            for (int i = 0; i < 4; i++) {
+                readers.add(executor.submit(() -> {
+                    started.await();
+                    while (!stop.get()) {
+                        // Routes unrelated to the churn are always visible
+                        final ServletRoute stableRoute = router.resolve("/stable/path");
+                        Assert.assertNotNull(stableRoute);
+                        Assert.assertEquals(stableRoute.getPluginPrefix(), "/stable");
+                        Assert.assertSame(stableRoute.getServlet(), stable);
+
+                        // Churned routes are either absent or consistent (prefix and servlet come from the same registration)
+                        for (int j = 0; j < nbPlugins; j++) {
+                            final ServletRoute route = router.resolve(pluginPrefix(j) + "/nested/path");
+                            if (route != null) {
+                                Assert.assertTrue(route.getPluginPrefix().equals(pluginPrefix(j)) || route.getPluginPrefix().equals(pluginPrefix(j) + "/nested"));
+                                Assert.assertEquals(((NamedServlet) route.getServlet()).prefix, route.getPluginPrefix());
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            final List<Future<?>> writers = new ArrayList<Future<?>>();
+            for (int w = 0; w < 2; w++) {
+                final String suffix = w == 0 ? "" : "/nested";
+                writers.add(executor.submit(() -> {
+                    started.await();
+                    for (int round = 0; round < 50; round++) {
+                        for (int j = 0; j < nbPlugins; j++) {
+                            final String prefix = pluginPrefix(j) + suffix;
+                            router.registerServiceFromPath(prefix, new NamedServlet(prefix));
+                        }
+                        for (int j = 0; j < nbPlugins; j++) {
+                            router.unregisterServiceFromPath(pluginPrefix(j) + suffix);
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            started.countDown();
+            for (final Future<?> writer : writers) {
+                writer.get(60, TimeUnit.SECONDS);
+            }
+            stop.set(true);
+            for (final Future<?> reader : readers) {
+                reader.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            stop.set(true);
+            executor.shutdownNow();
+        }
+
+        for (int j = 0; j < nbPlugins; j++) {
+            Assert.assertNull(router.resolve(pluginPrefix(j) + "/nested/path"));
+        }
+        assertRoute(router, "/stable/path", "/stable", stable);
+    }
+
+    // Zero-padded so that no plugin prefix is a prefix of another one
+    private static String pluginPrefix(final int i) {
+        return String.format("/plugin-%02d", i);
+    }
+
+    private static void assertRoute(final DefaultServletRouter router, final String path, final String expectedPrefix, final Servlet expectedServlet) {
+        final ServletRoute route = router.resolve(path);
+        Assert.assertNotNull(route, path);
+        Assert.assertEquals(route.getPluginPrefix(), expectedPrefix, path);
+        Assert.assertSame(route.getServlet(), expectedServlet, path);
+        Assert.assertEquals(router.getPluginPrefixForPath(path), expectedPrefix, path);
+        Assert.assertSame(router.getServiceForPath(path), expectedServlet, path);
+    }
+
+    private static final class NamedServlet extends HttpServlet {
+
+        private final String prefix;
+
+        private NamedServlet(final String prefix) {
+            this.prefix = prefix;
+        }
+    }
+}
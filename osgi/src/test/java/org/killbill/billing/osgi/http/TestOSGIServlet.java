@@ -20,6 +20,15 @@
 package org.killbill.billing.osgi.http;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.Servlet;
@@ -79,7 +88,7 @@ public class TestOSGIServlet {
             osgiServlet.servletRouter.registerServiceFromPath("/payment-retries-plugin", paymentRetriesPluginServlet);
             osgiServlet.servletRouter.registerServiceFromPath("/another-plugin", anotherPluginServlet);
         }
-        Assert.assertEquals(osgiServlet.initializedServlets.size(), 0);
+        Assert.assertEquals(osgiServlet.servletRouter.getNbInitializedServlets(), 0);
 
         final HttpServletRequest paymentRetriesReq = Mockito.mock(HttpServletRequest.class);
         Mockito.when(paymentRetriesReq.getAttribute("killbill.osgi.servletConfig")).thenReturn(Mockito.mock(ServletConfig.class));
@@ -96,21 +105,168 @@ public class TestOSGIServlet {
         osgiServlet.doGet(paymentRetriesReq, resp);
         Assert.assertEquals(paymentRetriesPluginInvocationCount.get(), 1);
         Assert.assertEquals(anotherPluginInvocationCount.get(), 0);
-        Assert.assertEquals(osgiServlet.initializedServlets.size(), 1);
+        Assert.assertEquals(osgiServlet.servletRouter.getNbInitializedServlets(), 1);
 
         osgiServlet.doGet(paymentRetriesReq, resp);
         Assert.assertEquals(paymentRetriesPluginInvocationCount.get(), 2);
         Assert.assertEquals(anotherPluginInvocationCount.get(), 0);
-        Assert.assertEquals(osgiServlet.initializedServlets.size(), 1);
+        Assert.assertEquals(osgiServlet.servletRouter.getNbInitializedServlets(), 1);
 
         osgiServlet.doGet(anotherPluginReq, resp);
         Assert.assertEquals(paymentRetriesPluginInvocationCount.get(), 2);
         Assert.assertEquals(anotherPluginInvocationCount.get(), 1);
-        Assert.assertEquals(osgiServlet.initializedServlets.size(), 2);
+        Assert.assertEquals(osgiServlet.servletRouter.getNbInitializedServlets(), 2);
 
         osgiServlet.doGet(anotherPluginReq, resp);
         Assert.assertEquals(paymentRetriesPluginInvocationCount.get(), 2);
         Assert.assertEquals(anotherPluginInvocationCount.get(), 2);
-        Assert.assertEquals(osgiServlet.initializedServlets.size(), 2);
+        Assert.assertEquals(osgiServlet.servletRouter.getNbInitializedServlets(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentFirstRequests() throws Exception {
+        final CountDownLatch initStarted = new CountDownLatch(1);
+        final CountDownLatch releaseInit = new CountDownLatch(1);
+        final LifecycleServlet pluginServlet = new LifecycleServlet() {
+            @Override
+            public void init(final ServletConfig config) throws ServletException {
+                initStarted.countDown();
+                try {
+                    releaseInit.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.init(config);
+            }
+        };
+
+        final OSGIServlet osgiServlet = new OSGIServlet();
+        osgiServlet.servletRouter = new DefaultServletRouter();
+        osgiServlet.servletRouter.registerServiceFromPath("/slow-plugin", pluginServlet);
+
+        final int nbRequests = 16;
+        final ExecutorService executor = Executors.newFixedThreadPool(nbRequests);
+        try {
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < nbRequests; i++) {
+                futures.add(executor.submit(() -> {
+                    osgiServlet.doGet(createRequest("/slow-plugin/resource"), Mockito.mock(HttpServletResponse.class));
+                    return null;
+                }));
+            }
+            Assert.assertTrue(initStarted.await(10, TimeUnit.SECONDS));
+            // Nobody is served before the initialization completes
+            Thread.sleep(100);
+            Assert.assertEquals(pluginServlet.nbRequests.get(), 0);
+            releaseInit.countDown();
+
+            for (final Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals(pluginServlet.nbInits.get(), 1);
+        Assert.assertEquals(pluginServlet.nbRequests.get(), nbRequests);
+        Assert.assertEquals(osgiServlet.servletRouter.getNbInitializedServlets(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testReRegistrationAfterRestart() throws Exception {
+        final OSGIServlet osgiServlet = new OSGIServlet();
+        osgiServlet.servletRouter = new DefaultServletRouter();
+
+        final LifecycleServlet firstServlet = new LifecycleServlet();
+        osgiServlet.servletRouter.registerServiceFromPath("/restarted-plugin", firstServlet);
+        osgiServlet.doGet(createRequest("/restarted-plugin/foo"), Mockito.mock(HttpServletResponse.class));
+        Assert.assertEquals(firstServlet.nbInits.get(), 1);
+        Assert.assertEquals(firstServlet.lastPathInfo, "/foo");
+        Assert.assertEquals(firstServlet.lastContextPath, "/plugins/restarted-plugin");
+
+        // Plugin restart (see DefaultHttpService#unregister)
+        osgiServlet.servletRouter.unregisterServiceFromPath("/restarted-plugin");
+        Assert.assertEquals(firstServlet.nbDestroys.get(), 1);
+        Assert.assertEquals(osgiServlet.servletRouter.getNbInitializedServlets(), 0);
+
+        final LifecycleServlet secondServlet = new LifecycleServlet();
+        osgiServlet.servletRouter.registerServiceFromPath("/restarted-plugin", secondServlet);
+        osgiServlet.doGet(createRequest("/restarted-plugin/foo"), Mockito.mock(HttpServletResponse.class));
+        osgiServlet.doGet(createRequest("/restarted-plugin/foo"), Mockito.mock(HttpServletResponse.class));
+        Assert.assertEquals(secondServlet.nbInits.get(), 1);
+        Assert.assertEquals(secondServlet.nbRequests.get(), 2);
+        Assert.assertEquals(firstServlet.nbRequests.get(), 1);
+
+        // Registration on top of an existing one (no unregistration): the replaced servlet is destroyed too
+        final LifecycleServlet thirdServlet = new LifecycleServlet();
+        osgiServlet.servletRouter.registerServiceFromPath("/restarted-plugin", thirdServlet);
+        Assert.assertEquals(secondServlet.nbDestroys.get(), 1);
+        Assert.assertEquals(firstServlet.nbDestroys.get(), 1);
+        Assert.assertEquals(thirdServlet.nbDestroys.get(), 0);
+
+        // Never initialized, never destroyed
+        osgiServlet.servletRouter.unregisterServiceFromPath("/restarted-plugin");
+        Assert.assertEquals(thirdServlet.nbDestroys.get(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testNoLeakAcrossRestarts() throws Exception {
+        final OSGIServlet osgiServlet = new OSGIServlet();
+        osgiServlet.servletRouter = new DefaultServletRouter();
+
+        final List<WeakReference<Servlet>> previousServlets = new ArrayList<WeakReference<Servlet>>();
+        for (int i = 0; i < 10; i++) {
+            // Wrapped like the plugin servlets
+            final Servlet servlet = ContextClassLoaderHelper.getWrappedServiceWithCorrectContextClassLoader(new LifecycleServlet(), Servlet.class, "/leaky-plugin", new NoOpMetricRegistry());
+            osgiServlet.servletRouter.registerServiceFromPath("/leaky-plugin", servlet);
+            osgiServlet.doGet(createRequest("/leaky-plugin/foo"), Mockito.mock(HttpServletResponse.class));
+            osgiServlet.servletRouter.unregisterServiceFromPath("/leaky-plugin");
+            previousServlets.add(new WeakReference<Servlet>(servlet));
+        }
+        Assert.assertEquals(osgiServlet.servletRouter.getNbTrackedServlets(), 0);
+
+        for (int i = 0; i < 50 && previousServlets.stream().anyMatch(reference -> reference.get() != null); i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        for (final WeakReference<Servlet> reference : previousServlets) {
+            Assert.assertNull(reference.get());
+        }
+    }
+
+    private static HttpServletRequest createRequest(final String pathInfo) {
+        final HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getAttribute("killbill.osgi.servletConfig")).thenReturn(Mockito.mock(ServletConfig.class));
+        Mockito.when(request.getServletPath()).thenReturn("");
+        Mockito.when(request.getContextPath()).thenReturn("/plugins");
+        Mockito.when(request.getPathInfo()).thenReturn(pathInfo);
+        return request;
+    }
+
+    private static class LifecycleServlet extends HttpServlet {
+
+        private final AtomicInteger nbInits = new AtomicInteger();
+        private final AtomicInteger nbDestroys = new AtomicInteger();
+        private final AtomicInteger nbRequests = new AtomicInteger();
+        private volatile String lastPathInfo;
+        private volatile String lastContextPath;
+
+        @Override
+        public void init(final ServletConfig config) throws ServletException {
+            nbInits.incrementAndGet();
+        }
+
+        @Override
+        public void destroy() {
+            nbDestroys.incrementAndGet();
+        }
+
+        @Override
+        public void service(final ServletRequest req, final ServletResponse res) {
+            Assert.assertEquals(nbInits.get(), 1);
+            lastPathInfo = ((HttpServletRequest) req).getPathInfo();
+            lastContextPath = ((HttpServletRequest) req).getContextPath();
+            nbRequests.incrementAndGet();
+        }
     }
 }
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mockito.Mockito;
+import org.osgi.service.http.HttpContext;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestStaticServlet {
+
+    private static final String APP_JS = "console.log('Hello from the plugin');";
+
+    private File bundleDir;
+    private URLClassLoader bundleClassLoader;
+    private BundleHttpContext httpContext;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        // Mimics the content of a plugin jar
+        bundleDir = org.killbill.commons.utils.io.Files.createTempDirectory();
+        Assert.assertTrue(new File(bundleDir, "assets/javascripts").mkdirs());
+        Files.write(new File(bundleDir, "assets/javascripts/app.js").toPath(), APP_JS.getBytes(StandardCharsets.UTF_8));
+        final byte[] large = new byte[100 * 1024];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i % 251);
+        }
+        Files.write(new File(bundleDir, "assets/javascripts/vendor.js").toPath(), large);
+
+        bundleClassLoader = new URLClassLoader(new URL[]{bundleDir.toURI().toURL()}, null);
+        httpContext = new BundleHttpContext(bundleClassLoader);
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception {
+        bundleClassLoader.close();
+        try (final Stream<Path> paths = Files.walk(bundleDir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testResolutionIsRemembered() throws Exception {
+        final StaticServlet servlet = new StaticServlet(httpContext, 1024 * 1024, 64 * 1024);
+
+        final Response first = get(servlet, "/plugins/foo/assets/javascripts/app.js", Map.of());
+        Assert.assertEquals(first.status, 200);
+        Assert.assertEquals(first.body(), APP_JS);
+        Assert.assertEquals(first.headers.get("Content-Length"), String.valueOf(APP_JS.length()));
+        Assert.assertEquals(first.headers.get("Content-Type"), "text/javascript");
+        final int lookups = httpContext.lookups.get();
+        // Probes for /plugins/foo/assets/..., /foo/assets/... and /assets/..., then the load of /assets/...
+        Assert.assertEquals(lookups, 4);
+        Assert.assertEquals(httpContext.opens.get(), 1);
+
+        final Response second = get(servlet, "/plugins/foo/assets/javascripts/app.js", Map.of());
+        Assert.assertEquals(second.status, 200);
+        Assert.assertEquals(second.body(), APP_JS);
+        Assert.assertEquals(second.headers.get("ETag"), first.headers.get("ETag"));
+        // No probing and no read from the bundle
+        Assert.assertEquals(httpContext.lookups.get(), lookups);
+        Assert.assertEquals(httpContext.opens.get(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testConditionalRequests() throws Exception {
+        final StaticServlet servlet = new StaticServlet(httpContext, 1024 * 1024, 64 * 1024);
+        final String uri = "/plugins/foo/assets/javascripts/app.js";
+
+        final Response response = get(servlet, uri, Map.of());
+        final String etag = response.headers.get("ETag");
+        Assert.assertTrue(etag.matches("\"[0-9a-f]{32}\""), etag);
+        final String lastModified = response.headers.get("Last-Modified");
+        Assert.assertNotNull(lastModified);
+
+        Assert.assertEquals(get(servlet, uri, Map.of("If-None-Match", etag)).status, 304);
+        Assert.assertEquals(get(servlet, uri, Map.of("If-None-Match", "\"other\", W/" + etag)).status, 304);
+        Assert.assertEquals(get(servlet, uri, Map.of("If-None-Match", "*")).status, 304);
+        Assert.assertEquals(get(servlet, uri, Map.of("If-Modified-Since", lastModified)).status, 304);
+
+        final Response stale = get(servlet, uri, Map.of("If-None-Match", "\"other\""));
+        Assert.assertEquals(stale.status, 200);
+        Assert.assertEquals(stale.body(), APP_JS);
+        // If-None-Match takes precedence
+        Assert.assertEquals(get(servlet, uri, Map.of("If-None-Match", "\"other\"", "If-Modified-Since", lastModified)).status, 200);
+        Assert.assertEquals(get(servlet, uri, Map.of("If-Modified-Since", httpDate(0))).status, 200);
+        // Invalid dates are ignored
+        Assert.assertEquals(get(servlet, uri, Map.of("If-Modified-Since", "yesterday")).status, 200);
+    }
+
+    @Test(groups = "fast")
+    public void testRanges() throws Exception {
+        final StaticServlet servlet = new StaticServlet(httpContext, 1024 * 1024, 64 * 1024);
+        final String uri = "/plugins/foo/assets/javascripts/app.js";
+        final int length = APP_JS.length();
+
+        final Response range = get(servlet, uri, Map.of("Range", "bytes=0-6"));
+        Assert.assertEquals(range.status, 206);
+        Assert.assertEquals(range.body(), "console");
+        Assert.assertEquals(range.headers.get("Content-Range"), "bytes 0-6/" + length);
+        Assert.assertEquals(range.headers.get("Content-Length"), "7");
+
+        final Response suffix = get(servlet, uri, Map.of("Range", "bytes=-2"));
+        Assert.assertEquals(suffix.status, 206);
+        Assert.assertEquals(suffix.body(), ");");
+
+        final Response open = get(servlet, uri, Map.of("Range", "bytes=8-"));
+        Assert.assertEquals(open.status, 206);
+        Assert.assertEquals(open.body(), APP_JS.substring(8));
+
+        final Response unsatisfiable = get(servlet, uri, Map.of("Range", "bytes=" + length + "-"));
+        Assert.assertEquals(unsatisfiable.status, 416);
+        Assert.assertEquals(unsatisfiable.headers.get("Content-Range"), "bytes */" + length);
+
+        // Multiple ranges aren't supported: the whole resource is returned
+        final Response multiple = get(servlet, uri, Map.of("Range", "bytes=0-1,4-5"));
+        Assert.assertEquals(multiple.status, 200);
+        Assert.assertEquals(multiple.body(), APP_JS);
+
+        // Stale If-Range
+        final Response stale = get(servlet, uri, Map.of("Range", "bytes=0-6", "If-Range", "\"other\""));
+        Assert.assertEquals(stale.status, 200);
+        Assert.assertEquals(stale.body(), APP_JS);
+        final Response fresh = get(servlet, uri, Map.of("Range", "bytes=0-6", "If-Range", range.headers.get("ETag")));
+        Assert.assertEquals(fresh.status, 206);
+    }
+
+    @Test(groups = "fast")
+    public void testLargeResourcesAreStreamed() throws Exception {
+        final StaticServlet servlet = new StaticServlet(httpContext, 1024 * 1024, 64 * 1024);
+        final String uri = "/plugins/foo/assets/javascripts/vendor.js";
+        final byte[] expected = Files.readAllBytes(new File(bundleDir, "assets/javascripts/vendor.js").toPath());
+
+        final Response first = get(servlet, uri, Map.of());
+        Assert.assertEquals(first.status, 200);
+        Assert.assertEquals(first.output.toByteArray(), expected);
+        // Hashed, then streamed
+        Assert.assertEquals(httpContext.opens.get(), 2);
+
+        final Response second = get(servlet, uri, Map.of("Range", "bytes=70000-70009"));
+        Assert.assertEquals(second.status, 206);
+        Assert.assertEquals(second.output.toByteArray(), Arrays.copyOfRange(expected, 70000, 70010));
+        Assert.assertEquals(second.headers.get("ETag"), first.headers.get("ETag"));
+        // Metadata is cached: one more read to serve the content
+        Assert.assertEquals(httpContext.opens.get(), 3);
+
+        Assert.assertEquals(get(servlet, uri, Map.of("If-None-Match", first.headers.get("ETag"))).status, 304);
+        Assert.assertEquals(httpContext.opens.get(), 3);
+    }
+
+    @Test(groups = "fast")
+    public void testCacheIsBounded() throws Exception {
+        // Room for app.js only
+        final StaticServlet servlet = new StaticServlet(httpContext, APP_JS.length() + 300, 64 * 1024);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(get(servlet, "/plugins/foo/assets/javascripts/app.js", Map.of()).body(), APP_JS);
+        }
+        Assert.assertEquals(httpContext.opens.get(), 1);
+
+        // vendor.js metadata evicts app.js
+        get(servlet, "/plugins/foo/assets/javascripts/vendor.js", Map.of());
+        final int opens = httpContext.opens.get();
+        Assert.assertEquals(get(servlet, "/plugins/foo/assets/javascripts/app.js", Map.of()).body(), APP_JS);
+        Assert.assertEquals(httpContext.opens.get(), opens + 1);
+    }
+
+    @Test(groups = "fast")
+    public void testCacheDisabled() throws Exception {
+        final StaticServlet servlet = new StaticServlet(httpContext);
+        for (int i = 1; i <= 2; i++) {
+            final Response response = get(servlet, "/plugins/foo/assets/javascripts/app.js", Map.of());
+            Assert.assertEquals(response.status, 200);
+            Assert.assertEquals(response.body(), APP_JS);
+            Assert.assertEquals(response.headers.get("Content-Type"), "text/javascript");
+            // Nothing to validate it against later: no hashing, a single read per request
+            Assert.assertNull(response.headers.get("ETag"));
+            Assert.assertEquals(httpContext.opens.get(), i);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testUnknownContentLength() throws Exception {
+        httpContext.unknownContentLength = true;
+        final StaticServlet servlet = new StaticServlet(httpContext, 1024 * 1024, 64 * 1024);
+
+        // Small enough to be kept in memory
+        for (int i = 0; i < 2; i++) {
+            final Response response = get(servlet, "/plugins/foo/assets/javascripts/app.js", Map.of());
+            Assert.assertEquals(response.body(), APP_JS);
+            Assert.assertEquals(response.headers.get("Content-Length"), String.valueOf(APP_JS.length()));
+        }
+        Assert.assertEquals(httpContext.opens.get(), 1);
+
+        // Too large: hashed, then streamed
+        final Response response = get(servlet, "/plugins/foo/assets/javascripts/vendor.js", Map.of());
+        Assert.assertEquals(response.output.toByteArray(), Files.readAllBytes(new File(bundleDir, "assets/javascripts/vendor.js").toPath()));
+        Assert.assertEquals(httpContext.opens.get(), 3);
+    }
+
+    @Test(groups = "fast")
+    public void testParseRange() {
+        Assert.assertEquals(StaticServlet.parseRange("bytes=0-9", 100), new long[]{0, 9});
+        Assert.assertEquals(StaticServlet.parseRange("bytes=90-200", 100), new long[]{90, 99});
+        Assert.assertEquals(StaticServlet.parseRange("bytes=-200", 100), new long[]{0, 99});
+        Assert.assertEquals(StaticServlet.parseRange("bytes=100-", 100).length, 0);
+        Assert.assertEquals(StaticServlet.parseRange("bytes=-0", 100).length, 0);
+        Assert.assertNull(StaticServlet.parseRange("bytes=9-0", 100));
+        Assert.assertNull(StaticServlet.parseRange("bytes=a-b", 100));
+        Assert.assertNull(StaticServlet.parseRange("bytes=5", 100));
+        Assert.assertNull(StaticServlet.parseRange("items=0-9", 100));
+    }
+
+    private static Response get(final StaticServlet servlet, final String uri, final Map<String, String> headers) throws Exception {
+        final HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getRequestURI()).thenReturn(uri);
+        Mockito.when(request.getHeader(Mockito.anyString())).thenAnswer(invocation -> headers.get(invocation.<String>getArgument(0)));
+        Mockito.when(request.getDateHeader(Mockito.anyString())).thenAnswer(invocation -> {
+            final String value = headers.get(invocation.<String>getArgument(0));
+            try {
+                return value == null ? -1L : DateTimeFormatter.RFC_1123_DATE_TIME.parse(value, Instant::from).toEpochMilli();
+            } catch (final DateTimeParseException e) {
+                // Like the containers
+                throw new IllegalArgumentException(e);
+            }
+        });
+
+        final Response response = new Response();
+        final HttpServletResponse servletResponse = Mockito.mock(HttpServletResponse.class);
+        Mockito.doAnswer(invocation -> response.status = invocation.getArgument(0)).when(servletResponse).setStatus(Mockito.anyInt());
+        Mockito.doAnswer(invocation -> response.headers.put(invocation.getArgument(0), invocation.getArgument(1))).when(servletResponse).setHeader(Mockito.anyString(), Mockito.anyString());
+        Mockito.doAnswer(invocation -> response.headers.put(invocation.getArgument(0), httpDate(invocation.<Long>getArgument(1)))).when(servletResponse).setDateHeader(Mockito.anyString(), Mockito.anyLong());
+        Mockito.doAnswer(invocation -> response.headers.put("Content-Length", String.valueOf(invocation.<Long>getArgument(0)))).when(servletResponse).setContentLengthLong(Mockito.anyLong());
+        Mockito.doAnswer(invocation -> response.headers.put("Content-Type", invocation.getArgument(0))).when(servletResponse).setContentType(Mockito.anyString());
+        Mockito.when(servletResponse.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(final WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(final int b) {
+                response.output.write(b);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+                response.output.write(b, off, len);
+            }
+        });
+
+        servlet.doGet(request, servletResponse);
+        return response;
+    }
+
+    private static String httpDate(final long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+
+    private static final class Response {
+
+        private final Map<String, String> headers = new HashMap<String, String>();
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private int status;
+
+        private String body() {
+            return output.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    // Resources are looked up in the plugin class loader, like the bundle HttpContext would do
+    private static final class BundleHttpContext implements HttpContext {
+
+        private final ClassLoader classLoader;
+        private final AtomicInteger lookups = new AtomicInteger();
+        private final AtomicInteger opens = new AtomicInteger();
+
+        // Like some URL handlers, which can't tell the length before the resource is read
+        private boolean unknownContentLength = false;
+
+        private BundleHttpContext(final ClassLoader classLoader) {
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        public boolean handleSecurity(final HttpServletRequest request, final HttpServletResponse response) {
+            return true;
+        }
+
+        @Override
+        public URL getResource(final String name) {
+            lookups.incrementAndGet();
+            final URL url = classLoader.getResource(name.startsWith("/") ? name.substring(1) : name);
+            if (url == null) {
+                return null;
+            }
+
+            try {
+                return new URL(null, url.toString(), new URLStreamHandler() {
+                    @Override
+                    protected URLConnection openConnection(final URL u) throws IOException {
+                        opens.incrementAndGet();
+                        final URLConnection connection = url.openConnection();
+                        if (!unknownContentLength) {
+                            return connection;
+                        }
+                        return new URLConnection(u) {
+                            @Override
+                            public void connect() {
+                            }
+
+                            @Override
+                            public InputStream getInputStream() throws IOException {
+                                return connection.getInputStream();
+                            }
+
+                            @Override
+                            public long getContentLengthLong() {
+                                return -1;
+                            }
+                        };
+                    }
+                });
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public String getMimeType(final String name) {
+            return name.endsWith(".js") ? "text/javascript" : null;
+        }
+    }
+}
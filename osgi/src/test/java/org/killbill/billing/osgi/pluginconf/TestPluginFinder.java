@@ -21,18 +21,37 @@ package org.killbill.billing.osgi.pluginconf;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
 
+import org.killbill.billing.osgi.api.config.PluginConfig;
 import org.killbill.billing.osgi.api.config.PluginJavaConfig;
+import org.killbill.billing.osgi.api.config.PluginType;
 import org.killbill.billing.osgi.config.OSGIConfig;
+import org.killbill.commons.concurrent.Executors;
 import org.killbill.commons.utils.io.Files;
+import org.skife.config.TimeSpan;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import static org.awaitility.Awaitility.await;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 
 public class TestPluginFinder {
 
@@ -66,6 +85,11 @@ public class TestPluginFinder {
         pluginsRuby.mkdir();
     }
 
+    @AfterMethod(groups = "fast")
+    public void afterMethod() {
+        pluginFinder.stopWatching();
+    }
+
 
     private void createSymlinkPriorJava7(final File currentDirectory, final String currentFileName, final String linkFileName) throws IOException, InterruptedException {
         final Process process = Runtime.getRuntime().exec( new String[] { "ln", "-s", currentFileName, linkFileName }, new String[] {}, currentDirectory );
@@ -153,6 +177,175 @@ public class TestPluginFinder {
 
     }
 
+    @Test(groups = "fast")
+    public void testReloadSinglePlugin() throws IOException, InterruptedException, PluginConfigException {
+        final File foo = createNewJavaPlugin("FOO", new String[]{"1.0"}, null);
+        createNewJavaPlugin("BAR", new String[]{"1.0"}, null);
+        java.nio.file.Files.write(new File(foo, "1.0/" + DEFAULT_PROPERTY_NAME).toPath(),
+                                  "# Generated\npluginType = PAYMENT\nmisc\n".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(pluginFinder.getLatestJavaPlugins().size(), 2);
+        assertEquals(pluginFinder.getVersionsForPlugin("FOO", "1.0").get(0).getPluginType(), PluginType.PAYMENT);
+        final LinkedList<PluginConfig> barVersions = pluginFinder.getAllPlugins().get("BAR");
+
+        createNewJavaPlugin("FOO", new String[]{"2.0"}, null);
+        assertEquals(pluginFinder.getPluginVersionSelectedForStart("FOO"), "1.0");
+        pluginFinder.reloadPlugin("FOO");
+        assertEquals(pluginFinder.getPluginVersionSelectedForStart("FOO"), "2.0");
+        assertEquals(pluginFinder.getVersionsForPlugin("FOO", null).size(), 2);
+        // Other plugins are left alone
+        assertSame(pluginFinder.getAllPlugins().get("BAR"), barVersions);
+
+        deleteRecursively(foo);
+        pluginFinder.reloadPlugin("FOO");
+        assertNull(pluginFinder.getPluginVersionSelectedForStart("FOO"));
+        assertEquals(pluginFinder.getAllPlugins().keySet(), Set.of("BAR"));
+    }
+
+    @Test(groups = "fast")
+    public void testWatchUpdates() throws Exception {
+        pluginFinder.startWatching();
+        checkUpdatesAreDetected();
+    }
+
+    @Test(groups = "fast")
+    public void testPollingUpdates() throws Exception {
+        pluginFinder.startPolling(50);
+        checkUpdatesAreDetected();
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentMutations() throws Exception {
+        final int nbPlugins = 4;
+        final int nbVersions = 20;
+        for (int i = 0; i < nbPlugins; i++) {
+            createNewJavaPlugin("PLUGIN" + i, new String[]{"1.00"}, null);
+        }
+        pluginFinder.getLatestJavaPlugins();
+        pluginFinder.startWatching();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(nbPlugins + 2, "TestPluginFinder");
+        final AtomicBoolean writersDone = new AtomicBoolean(false);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        try {
+            final List<Future<?>> writers = new ArrayList<Future<?>>();
+            for (int i = 0; i < nbPlugins; i++) {
+                final String pluginName = "PLUGIN" + i;
+                writers.add(executor.submit(() -> {
+                    startLatch.await();
+                    for (int v = 1; v < nbVersions; v++) {
+                        final String version = String.format("1.%02d", v);
+                        createNewJavaPlugin(pluginName, new String[]{version}, null);
+                        // Disable then re-enable the previous version
+                        final String previousVersion = String.format("1.%02d", v - 1);
+                        addDisabledFile(new File(pluginsJava, pluginName), previousVersion);
+                        assertTrue(new File(pluginsJava, pluginName + "/" + previousVersion + "/" + PluginFinder.TMP_DIR_NAME + "/" + PluginFinder.DISABLED_FILE_NAME).delete());
+                    }
+                    return null;
+                }));
+            }
+
+            // Readers only ever see consistent snapshots
+            final List<Future<?>> readers = new ArrayList<Future<?>>();
+            for (int i = 0; i < 2; i++) {
+                readers.add(executor.submit(() -> {
+                    startLatch.await();
+                    while (!writersDone.get()) {
+                        final Map<String, LinkedList<PluginConfig>> allPlugins = pluginFinder.getAllPlugins();
+                        assertEquals(allPlugins.size(), nbPlugins);
+                        for (final LinkedList<PluginConfig> versions : allPlugins.values()) {
+                            assertTrue(versions.getFirst().isSelectedForStart());
+                            assertTrue(pluginFinder.getPluginVersionSelectedForStart(versions.getFirst().getPluginName()) != null);
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            startLatch.countDown();
+            for (final Future<?> writer : writers) {
+                writer.get(30, TimeUnit.SECONDS);
+            }
+            writersDone.set(true);
+            for (final Future<?> reader : readers) {
+                reader.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            writersDone.set(true);
+            executor.shutdownNow();
+        }
+
+        final String lastVersion = String.format("1.%02d", nbVersions - 1);
+        await().atMost(10, TimeUnit.SECONDS).until(() -> {
+            for (int i = 0; i < nbPlugins; i++) {
+                if (!lastVersion.equals(pluginFinder.getPluginVersionSelectedForStart("PLUGIN" + i)) ||
+                    pluginFinder.getVersionsForPlugin("PLUGIN" + i, null).size() != nbVersions) {
+                    return false;
+                }
+            }
+            return true;
+        });
+
+        // Same view as a full rescan
+        final PluginFinder otherPluginFinder = new PluginFinder(createOSGIConfig());
+        for (int i = 0; i < nbPlugins; i++) {
+            assertEquals(versions(pluginFinder.getVersionsForPlugin("PLUGIN" + i, null)), versions(otherPluginFinder.getVersionsForPlugin("PLUGIN" + i, null)));
+        }
+    }
+
+    private void checkUpdatesAreDetected() throws Exception {
+        final File plugin = createNewJavaPlugin("FOO", new String[]{"1.0"}, null);
+        assertEquals(pluginFinder.getLatestJavaPlugins().size(), 1);
+
+        // New version
+        createNewJavaPlugin("FOO", new String[]{"2.0"}, null);
+        awaitSelectedVersion("FOO", "2.0");
+
+        // SET_DEFAULT symlink
+        createSymlinkPriorJava7(plugin, "1.0", PluginFinder.SELECTED_VERSION_LINK_NAME);
+        awaitSelectedVersion("FOO", "1.0");
+        assertTrue(new File(plugin, PluginFinder.SELECTED_VERSION_LINK_NAME).delete());
+        awaitSelectedVersion("FOO", "2.0");
+
+        // tmp/disabled.txt
+        addDisabledFile(plugin, "2.0");
+        awaitSelectedVersion("FOO", "1.0");
+
+        // New and removed plugins
+        createNewJavaPlugin("BAR", new String[]{"0.1"}, null);
+        awaitSelectedVersion("BAR", "0.1");
+        deleteRecursively(plugin);
+        awaitSelectedVersion("FOO", null);
+        assertEquals(pluginFinder.getAllPlugins().keySet(), Set.of("BAR"));
+    }
+
+    private void awaitSelectedVersion(final String pluginName, @Nullable final String version) {
+        await().atMost(10, TimeUnit.SECONDS).until(() -> version == null ? pluginFinder.getPluginVersionSelectedForStart(pluginName) == null : version.equals(pluginFinder.getPluginVersionSelectedForStart(pluginName)));
+    }
+
+    private static List<String> versions(final List<PluginConfig> pluginConfigs) {
+        final List<String> versions = new ArrayList<String>();
+        for (final PluginConfig pluginConfig : pluginConfigs) {
+            versions.add(pluginConfig.getVersion());
+        }
+        Collections.sort(versions);
+        return versions;
+    }
+
+    private static void deleteRecursively(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                if (java.nio.file.Files.isSymbolicLink(child.toPath())) {
+                    assertTrue(child.delete());
+                } else {
+                    deleteRecursively(child);
+                }
+            }
+        }
+        assertTrue(file.delete());
+    }
+
     private void addDisabledFile(final File plugin, final String version) throws IOException {
         final File versionFile = new File(plugin, version);
 
@@ -196,6 +389,10 @@ public class TestPluginFinder {
                 return null;
             }
             @Override
+            public boolean isOSGIBundleCachePersistent() {
+                return false;
+            }
+            @Override
             public String getRootInstallationDir() {
                 return rootInstallationDir.getAbsolutePath();
             }
@@ -215,6 +412,70 @@ public class TestPluginFinder {
             public Set<String> getMandatoryPlugins() {
                 return null;
             }
+            @Override
+            public boolean isAsyncEventDispatchEnabled() {
+                return false;
+            }
+            @Override
+            public int getEventDispatchQueueCapacity() {
+                return 1000;
+            }
+            @Override
+            public int getEventDispatchNbPartitions() {
+                return 1;
+            }
+            @Override
+            public int getBundleStartupNbThreads() {
+                return 8;
+            }
+            @Override
+            public TimeSpan getBundleStartupTimeout() {
+                return new TimeSpan("5m");
+            }
+            @Override
+            public boolean isPluginsWatchEnabled() {
+                return true;
+            }
+            @Override
+            public TimeSpan getPluginsWatchPollingInterval() {
+                return new TimeSpan("30s");
+            }
+            @Override
+            public boolean isPluginSignalsWatchEnabled() {
+                return true;
+            }
+            @Override
+            public TimeSpan getPluginSignalsPollingInterval() {
+                return new TimeSpan("0s");
+            }
+            @Override
+            public TimeSpan getPluginSignalsDebounce() {
+                return new TimeSpan("500ms");
+            }
+            @Override
+            public long getStaticResourcesCacheMaxSize() {
+                return 16777216;
+            }
+            @Override
+            public long getStaticResourcesCacheMaxResourceSize() {
+                return 2097152;
+            }
+            @Override
+            public boolean isAsyncLogForwardingEnabled() {
+                return false;
+            }
+            @Override
+            public int getLogForwardingQueueCapacity() {
+                return 8192;
+            }
+            @Override
+            public String getLogForwardingOverflowPolicy() {
+                return "DROP_OLDEST";
+            }
+            @Override
+            public String getLogForwardingOverflowLevel() {
+                return "WARN";
+            }
 
         };
     }
@@ -76,4 +76,29 @@ public interface KillbillServerConfig extends KillbillPlatformConfig {
     @Default("true")
     @Description("Whether queue healthcheck is enabled")
     public boolean isQueueHealthCheckEnabled();
+
+    @Config(KILL_BILL_NAMESPACE + "server.queue.healthcheck.samplingPeriod")
+    @Default("1m")
+    @Description("How often the queues are sampled for the queue healthcheck, while it is active (must be positive)")
+    public TimeSpan getQueueHealthCheckSamplingPeriod();
+
+    @Config(KILL_BILL_NAMESPACE + "server.queue.healthcheck.staleThreshold")
+    @Default("5m")
+    @Description("Maximum age of the latest queue sample before the queue healthcheck reports unhealthy")
+    public TimeSpan getQueueHealthCheckStaleThreshold();
+
+    @Config(KILL_BILL_NAMESPACE + "server.plugins.healthcheck.nbThreads")
+    @Default("4")
+    @Description("Number of threads kept to run the plugins healthchecks in parallel (more are started if some checks are stuck)")
+    public int getPluginsHealthCheckNbThreads();
+
+    @Config(KILL_BILL_NAMESPACE + "server.plugins.healthcheck.timeout")
+    @Default("5s")
+    @Description("Maximum time to wait for a plugin healthcheck before reporting it as timed out")
+    public TimeSpan getPluginsHealthCheckTimeout();
+
+    @Config(KILL_BILL_NAMESPACE + "server.plugins.healthcheck.cacheTtl")
+    @Default("0s")
+    @Description("How long a plugin healthcheck result is cached (0 to disable caching)")
+    public TimeSpan getPluginsHealthCheckCacheTtl();
 }
@@ -20,7 +20,20 @@
 package org.killbill.billing.server.healthchecks;
 
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
@@ -29,38 +42,135 @@ import javax.inject.Singleton;
 import org.killbill.billing.osgi.api.Healthcheck;
 import org.killbill.billing.osgi.api.Healthcheck.HealthStatus;
 import org.killbill.billing.osgi.api.OSGIServiceRegistration;
+import org.killbill.billing.server.config.KillbillServerConfig;
+import org.killbill.commons.concurrent.LoggingExecutor;
 import org.killbill.commons.health.api.HealthCheck;
 import org.killbill.commons.health.api.Result;
 import org.killbill.commons.health.impl.HealthyResultBuilder;
 import org.killbill.commons.health.impl.UnhealthyResultBuilder;
+import org.killbill.commons.utils.annotation.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+// The plugins healthchecks run in parallel, so that a single slow (or stuck) plugin cannot hold the whole healthcheck
+// (and take the node out of rotation because the load balancer gave up waiting). A plugin which doesn't answer before
+// the deadline is reported with a TIMEOUT status, and no new check is started for it until the previous one returns:
+// the pool grows as needed (a stuck check doesn't delay the other plugins), up to the number of core threads plus one
+// per plugin. Checks of unregistered plugins which ignore the interruption can still hold threads: once the pool is
+// saturated, new checks are rejected and reported as TIMEOUT instead of spawning threads without bound.
 @Singleton
 public class KillbillPluginsHealthcheck implements HealthCheck {
 
+    static final String STATUS_KEY = "status";
+    static final String TIMEOUT_STATUS = "TIMEOUT";
+    static final String ERROR_STATUS = "ERROR";
+
     private static final Logger logger = LoggerFactory.getLogger(KillbillPluginsHealthcheck.class);
 
+    // Checks still running, per plugin
+    private final Map<String, Future<HealthStatus>> inFlightChecks = new ConcurrentHashMap<String, Future<HealthStatus>>();
+    // Latest completed check, per plugin (only used when caching is enabled)
+    private final Map<String, CachedStatus> cachedStatuses = new ConcurrentHashMap<String, CachedStatus>();
+
+    private final KillbillServerConfig config;
+    // Monotonic time source for the cache expiration
+    private final LongSupplier nanoTicker;
+
     private OSGIServiceRegistration<Healthcheck> pluginHealthchecks = null;
+    private ThreadPoolExecutor executor;
+
+    @Inject
+    public KillbillPluginsHealthcheck(final KillbillServerConfig config) {
+        this(config, System::nanoTime);
+    }
+
+    @VisibleForTesting
+    KillbillPluginsHealthcheck(final KillbillServerConfig config, final LongSupplier nanoTicker) {
+        this.config = config;
+        this.nanoTicker = nanoTicker;
+    }
 
     @Inject
     public void setPluginHealthchecks(@Nullable final OSGIServiceRegistration<Healthcheck> pluginHealthchecks) {
         this.pluginHealthchecks = pluginHealthchecks;
     }
 
+    public synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("Plugins healthcheck executor didn't terminate in time");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+        inFlightChecks.clear();
+    }
+
     @Override
     public Result check() {
         final Map<String, Object> details = new HashMap<>();
         boolean isHealthy = true;
         if (pluginHealthchecks != null) {
-            for (final String pluginHealthcheckService : pluginHealthchecks.getAllServices()) {
+            final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getPluginsHealthCheckTimeout().getMillis());
+            final long cacheTtlNanos = TimeUnit.MILLISECONDS.toNanos(config.getPluginsHealthCheckCacheTtl().getMillis());
+            final long deadlineNanos = System.nanoTime() + timeoutNanos;
+
+            final Set<String> pluginHealthcheckServices = pluginHealthchecks.getAllServices();
+            forgetUnregisteredPlugins(pluginHealthcheckServices);
+
+            final ThreadPoolExecutor executorService = getExecutor(pluginHealthcheckServices.size());
+            final Map<String, Future<HealthStatus>> pendingChecks = new LinkedHashMap<String, Future<HealthStatus>>();
+            for (final String pluginHealthcheckService : pluginHealthcheckServices) {
+                final HealthStatus cachedStatus = getCachedStatus(pluginHealthcheckService, cacheTtlNanos);
+                if (cachedStatus != null) {
+                    details.put(pluginHealthcheckService, cachedStatus.getDetails());
+                    isHealthy = isHealthy && cachedStatus.isHealthy();
+                    continue;
+                }
+
                 final Healthcheck pluginHealthcheck = pluginHealthchecks.getServiceForName(pluginHealthcheckService);
                 if (pluginHealthcheck == null) {
                     continue;
                 }
-                final HealthStatus pluginStatus = pluginHealthcheck.getHealthStatus(null, null);
-                details.put(pluginHealthcheckService, pluginStatus.getDetails());
-                isHealthy = isHealthy && pluginStatus.isHealthy();
+                final Future<HealthStatus> pendingCheck = submitCheck(executorService, pluginHealthcheckService, pluginHealthcheck);
+                if (pendingCheck == null) {
+                    logger.warn("Healthcheck for plugin {} couldn't be started, all {} threads are busy", pluginHealthcheckService, executorService.getMaximumPoolSize());
+                    details.put(pluginHealthcheckService, Map.of(STATUS_KEY, TIMEOUT_STATUS));
+                    isHealthy = false;
+                    continue;
+                }
+                pendingChecks.put(pluginHealthcheckService, pendingCheck);
+            }
+
+            // All checks share the same deadline, as they run in parallel
+            for (final Entry<String, Future<HealthStatus>> entry : pendingChecks.entrySet()) {
+                final String pluginHealthcheckService = entry.getKey();
+                try {
+                    final HealthStatus pluginStatus = entry.getValue().get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (cacheTtlNanos > 0) {
+                        cachedStatuses.put(pluginHealthcheckService, new CachedStatus(pluginStatus, nanoTicker.getAsLong()));
+                    }
+                    details.put(pluginHealthcheckService, pluginStatus.getDetails());
+                    isHealthy = isHealthy && pluginStatus.isHealthy();
+                } catch (final TimeoutException e) {
+                    logger.warn("Healthcheck for plugin {} didn't complete within {}ms", pluginHealthcheckService, TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+                    details.put(pluginHealthcheckService, Map.of(STATUS_KEY, TIMEOUT_STATUS));
+                    isHealthy = false;
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    details.put(pluginHealthcheckService, Map.of(STATUS_KEY, TIMEOUT_STATUS));
+                    isHealthy = false;
+                } catch (final ExecutionException e) {
+                    logger.warn("Healthcheck for plugin {} failed", pluginHealthcheckService, e.getCause());
+                    details.put(pluginHealthcheckService, Map.of(STATUS_KEY, ERROR_STATUS, "message", String.valueOf(e.getCause())));
+                    isHealthy = false;
+                }
             }
         }
 
@@ -70,4 +180,67 @@ public class KillbillPluginsHealthcheck implements HealthCheck {
             return new UnhealthyResultBuilder().setDetails(details).createUnhealthyResult();
         }
     }
+
+    // A plugin registered again under the same name starts afresh
+    private void forgetUnregisteredPlugins(final Set<String> pluginHealthcheckServices) {
+        cachedStatuses.keySet().retainAll(pluginHealthcheckServices);
+        final Iterator<Entry<String, Future<HealthStatus>>> inFlightChecksIterator = inFlightChecks.entrySet().iterator();
+        while (inFlightChecksIterator.hasNext()) {
+            final Entry<String, Future<HealthStatus>> inFlightCheck = inFlightChecksIterator.next();
+            if (!pluginHealthcheckServices.contains(inFlightCheck.getKey())) {
+                inFlightCheck.getValue().cancel(true);
+                inFlightChecksIterator.remove();
+            }
+        }
+    }
+
+    @Nullable
+    private HealthStatus getCachedStatus(final String pluginHealthcheckService, final long cacheTtlNanos) {
+        if (cacheTtlNanos <= 0) {
+            return null;
+        }
+
+        final CachedStatus cachedStatus = cachedStatuses.get(pluginHealthcheckService);
+        if (cachedStatus == null || nanoTicker.getAsLong() - cachedStatus.checkedAtNanos >= cacheTtlNanos) {
+            return null;
+        }
+        return cachedStatus.status;
+    }
+
+    // Join the previous check if it is still running: a stuck plugin occupies at most one thread
+    @Nullable
+    private Future<HealthStatus> submitCheck(final ThreadPoolExecutor executorService, final String pluginHealthcheckService, final Healthcheck pluginHealthcheck) {
+        try {
+            return inFlightChecks.compute(pluginHealthcheckService,
+                                          (name, inFlightCheck) -> inFlightCheck != null && !inFlightCheck.isDone() ?
+                                                                   inFlightCheck :
+                                                                   executorService.submit(() -> pluginHealthcheck.getHealthStatus(null, null)));
+        } catch (final RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor(final int nbPlugins) {
+        final int corePoolSize = Math.max(1, config.getPluginsHealthCheckNbThreads());
+        final int maximumPoolSize = corePoolSize + nbPlugins;
+        if (executor == null) {
+            // Core threads are kept around, additional ones (e.g. for stuck checks) are reclaimed once idle
+            executor = new LoggingExecutor(corePoolSize, maximumPoolSize, "killbill-plugins-healthcheck", 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+        } else if (executor.getMaximumPoolSize() != maximumPoolSize) {
+            // Follow the plugins being (un)registered, surplus threads are reclaimed once idle
+            executor.setMaximumPoolSize(maximumPoolSize);
+        }
+        return executor;
+    }
+
+    private static final class CachedStatus {
+
+        private final HealthStatus status;
+        private final long checkedAtNanos;
+
+        private CachedStatus(final HealthStatus status, final long checkedAtNanos) {
+            this.status = status;
+            this.checkedAtNanos = checkedAtNanos;
+        }
+    }
 }
@@ -20,11 +20,15 @@
 package org.killbill.billing.server.healthchecks;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Queue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -35,38 +39,38 @@ import org.joda.time.DateTime;
 import org.killbill.billing.server.config.KillbillServerConfig;
 import org.killbill.bus.api.PersistentBus;
 import org.killbill.clock.Clock;
+import org.killbill.commons.concurrent.Executors;
 import org.killbill.commons.health.api.HealthCheck;
 import org.killbill.commons.health.api.Result;
 import org.killbill.commons.health.impl.HealthyResultBuilder;
 import org.killbill.commons.health.impl.UnhealthyResultBuilder;
 import org.killbill.commons.utils.annotation.VisibleForTesting;
-import org.killbill.commons.utils.collect.EvictingQueue;
 import org.killbill.notificationq.api.NotificationQueue;
 import org.killbill.notificationq.api.NotificationQueueService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weakref.jmx.Managed;
 
-// Run this check asynchronously as it executes database queries: when the healthcheck is integrated with a load balancer,
-// we don't want to DDOS the database as the polling interval is most likely in the order of a few seconds (or less).
+// The queues are sampled in the background as it executes database queries: when the healthcheck is integrated with a load balancer,
+// we don't want to DDOS the database as the polling interval is most likely in the order of a few seconds (or less). The check itself
+// only looks at the latest sample (and reports unhealthy if the sampler is stuck).
 // Note: when the queues are configured in a sticky mode (e.g. on premise deployment), if this check fails, it means that
 // particular node is overloaded (cannot keep up processing bus or notification entries). Taking it out of rotation for a bit
 // makes sense, so it catches up before processing new requests. When the queues are configured in a polling mode however
 // (e.g. cloud deployment), all nodes behave the same (the healthcheck will fail on all nodes at the same time): in that case,
 // instead of taking the nodes out of rotation, new nodes should be deployed instead (i.e. Auto Scaling should be enabled), provided
 // the database is able to sustain the additional load.
-//@Async(initialState = InitialState.HEALTHY, initialDelay = 0, period = 1, unit = TimeUnit.MINUTES, scheduleType = ScheduleType.FIXED_DELAY)
 @Singleton
-// TODO
 public class KillbillQueuesHealthcheck implements HealthCheck {
 
     private static final Logger logger = LoggerFactory.getLogger(KillbillQueuesHealthcheck.class);
 
-    // Only consider the last 60 data points (60 minutes) to compute whether the queues are growing
+    // Only consider the last 60 data points (60 minutes, with the default sampling period) to compute whether the queues are growing
     private static final int SLIDING_WINDOW_SIZE = 60;
     // Simple exponential smoothing factor
     private static final double ALPHA = 0.3;
 
+    // Only accessed by the sampler
     private final Map<String, QueueStats> statsPerQueue = new HashMap<String, QueueStats>();
 
     private final AtomicBoolean healthcheckActive = new AtomicBoolean(false);
@@ -75,6 +79,14 @@ public class KillbillQueuesHealthcheck implements HealthCheck {
     private final PersistentBus bus;
     private final PersistentBus externalBus;
     private final NotificationQueueService notificationQueueService;
+    private final KillbillServerConfig config;
+    // Monotonic time source for the staleness guard (the Kill Bill clock can be moved in test mode)
+    private final LongSupplier nanoTicker;
+
+    private volatile Snapshot latestSnapshot;
+    // Guarded by this: the sampler only runs between start and stop, while the healthcheck is active
+    private boolean started = false;
+    private ScheduledExecutorService sampler;
 
     @Inject
     public KillbillQueuesHealthcheck(final Clock clock,
@@ -82,10 +94,26 @@ public class KillbillQueuesHealthcheck implements HealthCheck {
                                      final PersistentBus bus,
                                      final KillbillServerConfig config,
                                      @Named("externalBus") final PersistentBus externalBus) {
+        this(clock, notificationQueueService, bus, config, externalBus, System::nanoTime);
+    }
+
+    @VisibleForTesting
+    KillbillQueuesHealthcheck(final Clock clock,
+                              final NotificationQueueService notificationQueueService,
+                              final PersistentBus bus,
+                              final KillbillServerConfig config,
+                              final PersistentBus externalBus,
+                              final LongSupplier nanoTicker) {
+        if (config.getQueueHealthCheckSamplingPeriod().getMillis() <= 0) {
+            throw new IllegalArgumentException("Invalid queues healthcheck sampling period " + config.getQueueHealthCheckSamplingPeriod());
+        }
+
         this.clock = clock;
         this.notificationQueueService = notificationQueueService;
         this.bus = bus;
         this.externalBus = externalBus;
+        this.config = config;
+        this.nanoTicker = nanoTicker;
         if (config.isQueueHealthCheckEnabled()) {
             activateHealthcheck();
         } else {
@@ -93,6 +121,46 @@ public class KillbillQueuesHealthcheck implements HealthCheck {
         }
     }
 
+    public synchronized void start() {
+        started = true;
+        if (healthcheckActive.get()) {
+            startSampler();
+        }
+    }
+
+    public synchronized void stop() {
+        started = false;
+        stopSampler();
+    }
+
+    private synchronized void startSampler() {
+        if (sampler != null) {
+            return;
+        }
+
+        // A sampler which never completes its first run must eventually be reported as stale
+        latestSnapshot = new Snapshot(new HealthyResultBuilder().setMessage("Queues not sampled yet").createHealthyResult(), nanoTicker.getAsLong());
+
+        sampler = Executors.newSingleThreadScheduledExecutor("killbill-queues-healthcheck");
+        sampler.scheduleWithFixedDelay(this::sample, 0, config.getQueueHealthCheckSamplingPeriod().getMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopSampler() {
+        if (sampler == null) {
+            return;
+        }
+
+        sampler.shutdownNow();
+        try {
+            if (!sampler.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("Queues healthcheck sampler didn't terminate in time");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sampler = null;
+    }
+
     @Managed(description = "Kill Bill queues healthcheck")
     public boolean isHealthy() {
         final Result result = check();
@@ -100,30 +168,62 @@ public class KillbillQueuesHealthcheck implements HealthCheck {
         return result.isHealthy();
     }
 
+    // Don't hit the queues for nothing
     @Managed(description = "Deactivate healthcheck")
-    public void deactivateHealthcheck() {
+    public synchronized void deactivateHealthcheck() {
         logger.warn("Deactivating healthcheck: queues results will be ignored");
         healthcheckActive.set(false);
+        stopSampler();
     }
 
     @Managed(description = "Activate healthcheck")
-    public void activateHealthcheck() {
+    public synchronized void activateHealthcheck() {
         logger.warn("Activating healthcheck: queues results will be NOT be ignored");
         healthcheckActive.set(true);
+        if (started) {
+            startSampler();
+        }
     }
 
     @Override
     public Result check() {
-        if (healthcheckActive.get()) {
-            return check(SLIDING_WINDOW_SIZE, ALPHA);
-        } else {
+        if (!healthcheckActive.get()) {
             return new HealthyResultBuilder().createHealthyResult();
         }
 
+        final Snapshot snapshot = latestSnapshot;
+        if (snapshot == null) {
+            // Not started yet
+            return new HealthyResultBuilder().setMessage("Queues not sampled yet").createHealthyResult();
+        }
+
+        final long ageMs = TimeUnit.NANOSECONDS.toMillis(nanoTicker.getAsLong() - snapshot.sampledAtNanos);
+        if (ageMs > config.getQueueHealthCheckStaleThreshold().getMillis()) {
+            return new UnhealthyResultBuilder().setDetails(snapshot.result.getDetails())
+                                               .setMessage("Stale queues sample (" + ageMs + "ms old)")
+                                               .createUnhealthyResult();
+        }
+
+        return snapshot.result;
+    }
+
+    @VisibleForTesting
+    void sample() {
+        try {
+            sample(SLIDING_WINDOW_SIZE, ALPHA);
+        } catch (final RuntimeException e) {
+            // Don't kill the sampler: the staleness guard will eventually take the node out of rotation if this keeps failing
+            logger.warn("Unable to sample the queues", e);
+        }
     }
 
     @VisibleForTesting
     Result check(final int slidingWindowSize, final double alpha) {
+        sample(slidingWindowSize, alpha);
+        return check();
+    }
+
+    private void sample(final int slidingWindowSize, final double alpha) {
         final DateTime now = clock.getUTCNow();
 
         if (bus != null) {
@@ -156,10 +256,9 @@ public class KillbillQueuesHealthcheck implements HealthCheck {
         }
 
         final Result healthcheckResponse = buildHealthcheckResponse();
+        latestSnapshot = new Snapshot(healthcheckResponse, nanoTicker.getAsLong());
 
-        for (final Object queueStatsObject : healthcheckResponse.getDetails().values()) {
-            final QueueStats queueStats = (QueueStats) queueStatsObject;
-
+        for (final QueueStats queueStats : statsPerQueue.values()) {
             logger.debug("healthy='{}', message='{}', error='{}', queue='{}', rawSize='{}', smoothedSize='{}', smoothedSizeSlope='{}'",
                          healthcheckResponse.isHealthy(),
                          healthcheckResponse.getMessage(),
@@ -169,7 +268,6 @@ public class KillbillQueuesHealthcheck implements HealthCheck {
                          queueStats.lastSmoothedSize,
                          queueStats.currentSmoothedSizesSlope);
         }
-        return healthcheckResponse;
     }
 
     private void updateRegression(final String queueId, final long now, final long nbReadyEntries, final int slidingWindowSize, final double alpha) {
@@ -202,42 +300,54 @@ public class KillbillQueuesHealthcheck implements HealthCheck {
                                        .append(")");
             }
 
-            // Display the stats, regardless of the health status
-            details.put(entry.getKey(), queueStats);
+            // Display the stats, regardless of the health status (rendered now, as the stats keep changing after the snapshot)
+            details.put(entry.getKey(), queueStats.toString());
         }
-        if (healthy || !healthcheckActive.get()) {
+        if (healthy) {
             return new HealthyResultBuilder().setDetails(details).createHealthyResult();
         } else {
             return new UnhealthyResultBuilder().setDetails(details).setMessage(stringBuilderForMessage.toString()).createUnhealthyResult();
         }
     }
 
+    private static final class Snapshot {
+
+        private final Result result;
+        private final long sampledAtNanos;
+
+        private Snapshot(final Result result, final long sampledAtNanos) {
+            this.result = result;
+            this.sampledAtNanos = sampledAtNanos;
+        }
+    }
+
     @VisibleForTesting
     static final class QueueStats {
 
         private final String queueId;
         // Number of samples to consider for our sliding window
-        private final double slidingWindowSize;
-        // X axis: timestamps
-        private final Queue<Long> timestamps;
-        // Y axis: sizes measured
-        private final Queue<Long> rawSizes;
-        // Y axis: exponential moving average of the sizes measured
-        private final Queue<Double> smoothedSizes;
+        private final int slidingWindowSize;
+        // Ring buffers over the sliding window: X axis (timestamps), Y axis (sizes measured and their exponential moving average)
+        private final long[] timestamps;
+        private final long[] rawSizes;
+        private final double[] smoothedSizes;
         private final SimpleRegression smoothedSizesRegression;
         private final HoltWintersComputer holtWintersComputer;
+        // Index of the oldest data point in the ring buffers
+        private int head = 0;
+        private int count = 0;
         // Linear regression to check for current trend over the slidingWindowSize
-        private Double currentSmoothedSizesSlope = 0.0;
+        private double currentSmoothedSizesSlope = 0.0;
 
-        private Long lastRawSize;
+        private long lastRawSize;
         private double lastSmoothedSize;
 
         public QueueStats(final String queueId, final int slidingWindowSize, final double alpha) {
             this.queueId = queueId;
             this.slidingWindowSize = slidingWindowSize;
-            this.timestamps = new EvictingQueue<>(slidingWindowSize);
-            this.rawSizes = new EvictingQueue<>(slidingWindowSize);
-            this.smoothedSizes = new EvictingQueue<>(slidingWindowSize);
+            this.timestamps = new long[slidingWindowSize];
+            this.rawSizes = new long[slidingWindowSize];
+            this.smoothedSizes = new double[slidingWindowSize];
 
             this.smoothedSizesRegression = new SimpleRegression(true);
             this.holtWintersComputer = new HoltWintersComputer(alpha);
@@ -245,12 +355,8 @@ public class KillbillQueuesHealthcheck implements HealthCheck {
 
         public void record(final long newestTimestamp, final long newestRawSize) {
             // Remove the oldest data point from the regression (the regression is only applied to the sliding window of observations)
-            if (smoothedSizesRegression.getN() >= slidingWindowSize) {
-                final Long oldestTimestamp = timestamps.peek();
-                final Double oldestSmoothedSize = smoothedSizes.peek();
-                if (oldestTimestamp != null && oldestSmoothedSize != null) {
-                    smoothedSizesRegression.removeData(oldestTimestamp, oldestSmoothedSize);
-                }
+            if (count == slidingWindowSize) {
+                smoothedSizesRegression.removeData(timestamps[head], smoothedSizes[head]);
             }
 
             // Compute the next smoothed value to filter out noise
@@ -266,10 +372,16 @@ public class KillbillQueuesHealthcheck implements HealthCheck {
                 currentSmoothedSizesSlope = Double.isNaN(rawSmoothedSlope) ? 0 : new BigDecimal(rawSmoothedSlope * 100).setScale(2, BigDecimal.ROUND_HALF_UP).doubleValue();
             }
 
-            // Store the new values
-            timestamps.add(newestTimestamp);
-            rawSizes.add(newestRawSize);
-            smoothedSizes.add(newestSmoothedSize);
+            // Store the new values, overwriting the oldest ones once the window is full
+            final int tail = (head + count) % slidingWindowSize;
+            timestamps[tail] = newestTimestamp;
+            rawSizes[tail] = newestRawSize;
+            smoothedSizes[tail] = newestSmoothedSize;
+            if (count == slidingWindowSize) {
+                head = (head + 1) % slidingWindowSize;
+            } else {
+                count++;
+            }
 
             lastRawSize = newestRawSize;
             lastSmoothedSize = newestSmoothedSize;
@@ -280,19 +392,32 @@ public class KillbillQueuesHealthcheck implements HealthCheck {
             return currentSmoothedSizesSlope > 0.1;
         }
 
+        // Oldest first
         @VisibleForTesting
-        Queue<Long> getTimestamps() {
-            return timestamps;
+        List<Long> getTimestamps() {
+            final List<Long> result = new ArrayList<Long>(count);
+            for (int i = 0; i < count; i++) {
+                result.add(timestamps[(head + i) % slidingWindowSize]);
+            }
+            return result;
         }
 
         @VisibleForTesting
-        Queue<Long> getRawSizes() {
-            return rawSizes;
+        List<Long> getRawSizes() {
+            final List<Long> result = new ArrayList<Long>(count);
+            for (int i = 0; i < count; i++) {
+                result.add(rawSizes[(head + i) % slidingWindowSize]);
+            }
+            return result;
         }
 
         @VisibleForTesting
-        Queue<Double> getSmoothedSizes() {
-            return smoothedSizes;
+        List<Double> getSmoothedSizes() {
+            final List<Double> result = new ArrayList<Double>(count);
+            for (int i = 0; i < count; i++) {
+                result.add(smoothedSizes[(head + i) % slidingWindowSize]);
+            }
+            return result;
         }
 
         @Override
@@ -300,9 +425,9 @@ public class KillbillQueuesHealthcheck implements HealthCheck {
             final StringBuilder sb = new StringBuilder("QueueStats{");
             sb.append("queueId='").append(queueId).append('\'');
             sb.append(", slidingWindowSize=").append(slidingWindowSize);
-            sb.append(", timestamps=").append(timestamps);
-            sb.append(", rawSizes=").append(rawSizes);
-            sb.append(", smoothedSizes=").append(smoothedSizes);
+            sb.append(", timestamps=").append(getTimestamps());
+            sb.append(", rawSizes=").append(getRawSizes());
+            sb.append(", smoothedSizes=").append(getSmoothedSizes());
             sb.append(", currentSmoothedSizesSlope=").append(currentSmoothedSizesSlope).append("%");
             sb.append('}');
             return sb.toString();
@@ -79,6 +79,8 @@ public class KillbillPlatformGuiceListener extends GuiceServletContextListener {
     public static final List<String> METRICS_SERVLETS_PATHS = List.of("/1.0/healthcheck", "/1.0/metrics", "/1.0/threads");
 
     protected KillbillHealthcheck killbillHealthcheck;
+    protected KillbillQueuesHealthcheck killbillQueuesHealthcheck;
+    protected KillbillPluginsHealthcheck killbillPluginsHealthcheck;
     protected KillbillServerConfig config;
     protected KillbillConfigSource configSource;
     protected Injector injector;
@@ -105,6 +107,9 @@ public class KillbillPlatformGuiceListener extends GuiceServletContextListener {
 
         startLifecycle();
 
+        // Queues are available at this point
+        killbillQueuesHealthcheck.start();
+
         // The host will be put in rotation in KillbillGuiceFilter, once Jersey is fully initialized
     }
 
@@ -119,6 +124,13 @@ public class KillbillPlatformGuiceListener extends GuiceServletContextListener {
             return;
         }
 
+        if (killbillQueuesHealthcheck != null) {
+            killbillQueuesHealthcheck.stop();
+        }
+        if (killbillPluginsHealthcheck != null) {
+            killbillPluginsHealthcheck.stop();
+        }
+
         stopLifecycle();
 
         stopEmbeddedDBs();
@@ -168,6 +180,8 @@ public class KillbillPlatformGuiceListener extends GuiceServletContextListener {
         killbillBusService = injector.getInstance(BusService.class);
 
         killbillHealthcheck = injector.getInstance(KillbillHealthcheck.class);
+        killbillQueuesHealthcheck = injector.getInstance(KillbillQueuesHealthcheck.class);
+        killbillPluginsHealthcheck = injector.getInstance(KillbillPluginsHealthcheck.class);
     }
 
     protected ServletModule getServletModule() {
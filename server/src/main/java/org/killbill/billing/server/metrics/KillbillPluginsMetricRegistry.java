@@ -19,7 +19,11 @@ package org.killbill.billing.server.metrics;
 
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import org.killbill.billing.osgi.api.OSGISingleServiceRegistration;
 import org.killbill.commons.metrics.api.Counter;
@@ -29,180 +33,87 @@ import org.killbill.commons.metrics.api.Meter;
 import org.killbill.commons.metrics.api.MetricRegistry;
 import org.killbill.commons.metrics.api.Snapshot;
 import org.killbill.commons.metrics.api.Timer;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
+/**
+ * MetricRegistry delegating to the registry exported by the metrics plugin (if any).
+ * <p>
+ * Metrics are interned per name: each handle caches the plugin metric it delegates to, and only looks it up again
+ * when the plugin registry changes (e.g. the metrics bundle is restarted) or a metric is removed, so that the hot path is a
+ * couple of volatile reads.
+ */
 public class KillbillPluginsMetricRegistry implements MetricRegistry {
 
-    private static final Logger logger = LoggerFactory.getLogger(KillbillPluginsMetricRegistry.class);
-
     private final OSGISingleServiceRegistration<MetricRegistry> pluginMetricRegistry;
+    // Bumped every time the plugin registry is registered or unregistered
+    private final AtomicLong generation = new AtomicLong(1);
+
+    private final ConcurrentMap<String, CachedCounter> counters = new ConcurrentHashMap<String, CachedCounter>();
+    private final ConcurrentMap<String, CachedGauge<?>> gauges = new ConcurrentHashMap<String, CachedGauge<?>>();
+    // Serializes gauges registrations (reads don't lock)
+    private final Object gaugesLock = new Object();
+    private final ConcurrentMap<String, CachedHistogram> histograms = new ConcurrentHashMap<String, CachedHistogram>();
+    private final ConcurrentMap<String, CachedMeter> meters = new ConcurrentHashMap<String, CachedMeter>();
+    private final ConcurrentMap<String, CachedTimer> timers = new ConcurrentHashMap<String, CachedTimer>();
 
     public KillbillPluginsMetricRegistry(final OSGISingleServiceRegistration<MetricRegistry> pluginMetricRegistry) {
         this.pluginMetricRegistry = pluginMetricRegistry;
+        this.pluginMetricRegistry.addRegistrationListener(this::onRegistrationChange);
     }
 
     @Override
     public Counter counter(final String name) {
-        return new Counter() {
-            @Override
-            public void inc(final long n) {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                if (service != null) {
-                    service.counter(name).inc(n);
-                }
-            }
-
-            @Override
-            public long getCount() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.counter(name).getCount() : 0;
-            }
-        };
+        return intern(counters, name, CachedCounter::new);
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public <T> Gauge<T> gauge(final String name, final Gauge<T> gauge) {
-        // Unlike other metrics, Gauges are usually created once and callers don't keep a reference to it
-        pluginMetricRegistry.addRegistrationListener(new Runnable() {
-            @Override
-            public void run() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                if (service != null) {
-                    service.gauge(name, gauge);
-                } // else: race condition? We should be picked up again
+        synchronized (gaugesLock) {
+            final CachedGauge<?> existingGauge = gauges.get(name);
+            if (existingGauge != null && existingGauge.gauge == gauge) {
+                return (Gauge<T>) existingGauge;
             }
-        });
-        return new Gauge<T>() {
-            @Override
-            public T getValue() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.gauge(name, gauge).getValue() : null;
-            }
-        };
-    }
 
-    @Override
-    public Histogram histogram(final String name) {
-        return new Histogram() {
-            @Override
-            public void update(final long value) {
+            final CachedGauge<T> cachedGauge = new CachedGauge<T>(name, gauge);
+            if (gauges.put(name, cachedGauge) != null) {
+                // The plugin registry would keep returning the previous Gauge otherwise
                 final MetricRegistry service = pluginMetricRegistry.getService();
                 if (service != null) {
-                    service.histogram(name).update(value);
+                    service.remove(name);
                 }
             }
+            // Unlike other metrics, Gauges are usually created once and callers don't keep a reference to it: register it right away
+            cachedGauge.delegate();
+            return cachedGauge;
+        }
+    }
 
-            @Override
-            public long getCount() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.histogram(name).getCount() : 0;
-            }
-
-            @Override
-            public Snapshot getSnapshot() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.histogram(name).getSnapshot() : null;
-            }
-        };
+    @Override
+    public Histogram histogram(final String name) {
+        return intern(histograms, name, CachedHistogram::new);
     }
 
     @Override
     public Meter meter(final String name) {
-        return new Meter() {
-            @Override
-            public void mark(final long n) {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                if (service != null) {
-                    service.meter(name).mark(n);
-                }
-            }
-
-            @Override
-            public double getFifteenMinuteRate() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.meter(name).getFifteenMinuteRate() : 0;
-            }
-
-            @Override
-            public double getFiveMinuteRate() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.meter(name).getFiveMinuteRate() : 0;
-            }
-
-            @Override
-            public double getMeanRate() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.meter(name).getMeanRate() : 0;
-            }
-
-            @Override
-            public double getOneMinuteRate() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.meter(name).getOneMinuteRate() : 0;
-            }
-
-            @Override
-            public long getCount() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.meter(name).getCount() : 0;
-            }
-        };
+        return intern(meters, name, CachedMeter::new);
     }
 
     @Override
     public Timer timer(final String name) {
-        return new Timer() {
-            @Override
-            public long getCount() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.timer(name).getCount() : 0;
-            }
-
-            @Override
-            public void update(final long duration, final TimeUnit unit) {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                if (service != null) {
-                    service.timer(name).update(duration, unit);
-                }
-            }
-
-            @Override
-            public double getFifteenMinuteRate() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.timer(name).getFifteenMinuteRate() : 0;
-            }
-
-            @Override
-            public double getFiveMinuteRate() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.timer(name).getFiveMinuteRate() : 0;
-            }
-
-            @Override
-            public double getMeanRate() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.timer(name).getMeanRate() : 0;
-            }
-
-            @Override
-            public double getOneMinuteRate() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.timer(name).getOneMinuteRate() : 0;
-            }
-
-            @Override
-            public Snapshot getSnapshot() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.timer(name).getSnapshot() : null;
-            }
-        };
+        return intern(timers, name, CachedTimer::new);
     }
 
     @Override
     public boolean remove(final String name) {
+        // Gauges aren't re-registered with the plugin registry anymore
+        gauges.remove(name);
+
         final MetricRegistry service = pluginMetricRegistry.getService();
-        return service != null && service.remove(name);
+        final boolean removed = service != null && service.remove(name);
+        // Bumped after the removal, so that a handle bound concurrently to the removed metric doesn't stay bound to it:
+        // outstanding handles will re-create the metric on next use
+        generation.incrementAndGet();
+        return removed;
     }
 
     @Override
@@ -240,4 +151,250 @@ public class KillbillPluginsMetricRegistry implements MetricRegistry {
         final MetricRegistry service = pluginMetricRegistry.getService();
         return service != null ? service.getTimers() : Collections.emptyMap();
     }
+
+    // computeIfAbsent may lock the bin even when the handle already exists
+    private static <H> H intern(final ConcurrentMap<String, H> handles, final String name, final Function<String, H> factory) {
+        final H handle = handles.get(name);
+        return handle != null ? handle : handles.computeIfAbsent(name, factory);
+    }
+
+    private void onRegistrationChange() {
+        // Re-binds all handles, before re-registering the gauges with the new plugin registry
+        generation.incrementAndGet();
+        for (final CachedGauge<?> cachedGauge : gauges.values()) {
+            cachedGauge.delegate();
+        }
+    }
+
+    private static final class Binding<M> {
+
+        private static final Binding<?> UNBOUND = new Binding<Object>(0, null);
+
+        private final long generation;
+        // Null if there is no plugin registry
+        private final M metric;
+
+        private Binding(final long generation, final M metric) {
+            this.generation = generation;
+            this.metric = metric;
+        }
+    }
+
+    private abstract class MetricHandle<M> {
+
+        protected final String name;
+
+        private volatile Binding<M> binding = unbound();
+
+        private MetricHandle(final String name) {
+            this.name = name;
+        }
+
+        // Null if there is no plugin registry
+        protected M delegate() {
+            final Binding<M> currentBinding = binding;
+            final long currentGeneration = generation.get();
+            if (currentBinding.generation == currentGeneration) {
+                return currentBinding.metric;
+            }
+
+            // Read the generation before the service: if the service changes in between, we'll look it up again next time
+            final MetricRegistry service = pluginMetricRegistry.getService();
+            final M metric = service != null ? lookup(service) : null;
+            binding = new Binding<M>(currentGeneration, metric);
+            return metric;
+        }
+
+        protected abstract M lookup(MetricRegistry service);
+
+        @SuppressWarnings("unchecked")
+        private Binding<M> unbound() {
+            return (Binding<M>) Binding.UNBOUND;
+        }
+    }
+
+    private final class CachedCounter extends MetricHandle<Counter> implements Counter {
+
+        private CachedCounter(final String name) {
+            super(name);
+        }
+
+        @Override
+        protected Counter lookup(final MetricRegistry service) {
+            return service.counter(name);
+        }
+
+        @Override
+        public void inc(final long n) {
+            final Counter counter = delegate();
+            if (counter != null) {
+                counter.inc(n);
+            }
+        }
+
+        @Override
+        public long getCount() {
+            final Counter counter = delegate();
+            return counter != null ? counter.getCount() : 0;
+        }
+    }
+
+    private final class CachedGauge<T> extends MetricHandle<Gauge<T>> implements Gauge<T> {
+
+        private final Gauge<T> gauge;
+
+        private CachedGauge(final String name, final Gauge<T> gauge) {
+            super(name);
+            this.gauge = gauge;
+        }
+
+        @Override
+        protected Gauge<T> lookup(final MetricRegistry service) {
+            return service.gauge(name, gauge);
+        }
+
+        @Override
+        public T getValue() {
+            final Gauge<T> registeredGauge = delegate();
+            return registeredGauge != null ? registeredGauge.getValue() : null;
+        }
+    }
+
+    private final class CachedHistogram extends MetricHandle<Histogram> implements Histogram {
+
+        private CachedHistogram(final String name) {
+            super(name);
+        }
+
+        @Override
+        protected Histogram lookup(final MetricRegistry service) {
+            return service.histogram(name);
+        }
+
+        @Override
+        public void update(final long value) {
+            final Histogram histogram = delegate();
+            if (histogram != null) {
+                histogram.update(value);
+            }
+        }
+
+        @Override
+        public long getCount() {
+            final Histogram histogram = delegate();
+            return histogram != null ? histogram.getCount() : 0;
+        }
+
+        @Override
+        public Snapshot getSnapshot() {
+            final Histogram histogram = delegate();
+            return histogram != null ? histogram.getSnapshot() : null;
+        }
+    }
+
+    private final class CachedMeter extends MetricHandle<Meter> implements Meter {
+
+        private CachedMeter(final String name) {
+            super(name);
+        }
+
+        @Override
+        protected Meter lookup(final MetricRegistry service) {
+            return service.meter(name);
+        }
+
+        @Override
+        public void mark(final long n) {
+            final Meter meter = delegate();
+            if (meter != null) {
+                meter.mark(n);
+            }
+        }
+
+        @Override
+        public double getFifteenMinuteRate() {
+            final Meter meter = delegate();
+            return meter != null ? meter.getFifteenMinuteRate() : 0;
+        }
+
+        @Override
+        public double getFiveMinuteRate() {
+            final Meter meter = delegate();
+            return meter != null ? meter.getFiveMinuteRate() : 0;
+        }
+
+        @Override
+        public double getMeanRate() {
+            final Meter meter = delegate();
+            return meter != null ? meter.getMeanRate() : 0;
+        }
+
+        @Override
+        public double getOneMinuteRate() {
+            final Meter meter = delegate();
+            return meter != null ? meter.getOneMinuteRate() : 0;
+        }
+
+        @Override
+        public long getCount() {
+            final Meter meter = delegate();
+            return meter != null ? meter.getCount() : 0;
+        }
+    }
+
+    private final class CachedTimer extends MetricHandle<Timer> implements Timer {
+
+        private CachedTimer(final String name) {
+            super(name);
+        }
+
+        @Override
+        protected Timer lookup(final MetricRegistry service) {
+            return service.timer(name);
+        }
+
+        @Override
+        public long getCount() {
+            final Timer timer = delegate();
+            return timer != null ? timer.getCount() : 0;
+        }
+
+        @Override
+        public void update(final long duration, final TimeUnit unit) {
+            final Timer timer = delegate();
+            if (timer != null) {
+                timer.update(duration, unit);
+            }
+        }
+
+        @Override
+        public double getFifteenMinuteRate() {
+            final Timer timer = delegate();
+            return timer != null ? timer.getFifteenMinuteRate() : 0;
+        }
+
+        @Override
+        public double getFiveMinuteRate() {
+            final Timer timer = delegate();
+            return timer != null ? timer.getFiveMinuteRate() : 0;
+        }
+
+        @Override
+        public double getMeanRate() {
+            final Timer timer = delegate();
+            return timer != null ? timer.getMeanRate() : 0;
+        }
+
+        @Override
+        public double getOneMinuteRate() {
+            final Timer timer = delegate();
+            return timer != null ? timer.getOneMinuteRate() : 0;
+        }
+
+        @Override
+        public Snapshot getSnapshot() {
+            final Timer timer = delegate();
+            return timer != null ? timer.getSnapshot() : null;
+        }
+    }
 }
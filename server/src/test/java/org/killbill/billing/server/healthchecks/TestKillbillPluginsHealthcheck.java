@@ -0,0 +1,250 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.server.healthchecks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.osgi.api.Healthcheck;
+import org.killbill.billing.osgi.api.Healthcheck.HealthStatus;
+import org.killbill.billing.osgi.api.OSGIServiceRegistration;
+import org.killbill.billing.server.config.KillbillServerConfig;
+import org.killbill.commons.health.api.Result;
+import org.mockito.Mockito;
+import org.skife.config.TimeSpan;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestKillbillPluginsHealthcheck {
+
+    private static final long TIMEOUT_MS = 500;
+    private static final Wait NO_WAIT = () -> {};
+
+    private final Map<String, Healthcheck> plugins = new LinkedHashMap<String, Healthcheck>();
+    private final Map<String, AtomicInteger> nbCalls = new LinkedHashMap<String, AtomicInteger>();
+
+    private CountDownLatch hangingPluginLatch;
+    private AtomicLong nanoTime;
+    private KillbillServerConfig config;
+    private KillbillPluginsHealthcheck healthcheck;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        plugins.clear();
+        nbCalls.clear();
+        hangingPluginLatch = new CountDownLatch(1);
+        nanoTime = new AtomicLong(0);
+
+        config = Mockito.mock(KillbillServerConfig.class);
+        Mockito.when(config.getPluginsHealthCheckNbThreads()).thenReturn(4);
+        Mockito.when(config.getPluginsHealthCheckTimeout()).thenReturn(new TimeSpan(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        Mockito.when(config.getPluginsHealthCheckCacheTtl()).thenReturn(new TimeSpan("0s"));
+
+        @SuppressWarnings("unchecked")
+        final OSGIServiceRegistration<Healthcheck> registration = Mockito.mock(OSGIServiceRegistration.class);
+        Mockito.when(registration.getAllServices()).thenAnswer(invocation -> plugins.keySet());
+        Mockito.when(registration.getServiceForName(Mockito.anyString())).thenAnswer(invocation -> plugins.get(invocation.<String>getArgument(0)));
+
+        healthcheck = new KillbillPluginsHealthcheck(config, nanoTime::get);
+        healthcheck.setPluginHealthchecks(registration);
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() {
+        hangingPluginLatch.countDown();
+        healthcheck.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testHealthyPlugins() {
+        addPlugin("plugin-a", NO_WAIT, HealthStatus.healthy("a"), null);
+        addPlugin("plugin-b", NO_WAIT, HealthStatus.healthy("b"), null);
+
+        final Result result = healthcheck.check();
+        Assert.assertTrue(result.isHealthy());
+        Assert.assertEquals(result.getDetails().size(), 2);
+        Assert.assertEquals(result.getDetails().get("plugin-a"), HealthStatus.healthy("a").getDetails());
+
+        addPlugin("plugin-c", NO_WAIT, HealthStatus.unHealthy("c"), null);
+        final Result otherResult = healthcheck.check();
+        Assert.assertFalse(otherResult.isHealthy());
+        Assert.assertEquals(otherResult.getDetails().get("plugin-c"), HealthStatus.unHealthy("c").getDetails());
+    }
+
+    @Test(groups = "fast")
+    public void testSlowHangingAndFailingPlugins() {
+        // Each slow plugin waits for the other ones to be running: they only complete if they are checked in parallel
+        final CountDownLatch allSlowPluginsRunning = new CountDownLatch(3);
+        final Wait slowPluginWait = () -> {
+            allSlowPluginsRunning.countDown();
+            allSlowPluginsRunning.await();
+        };
+        addPlugin("plugin-slow-1", slowPluginWait, HealthStatus.healthy(), null);
+        addPlugin("plugin-slow-2", slowPluginWait, HealthStatus.healthy(), null);
+        addPlugin("plugin-slow-3", slowPluginWait, HealthStatus.healthy(), null);
+        addPlugin("plugin-hanging", hangingPluginLatch::await, HealthStatus.healthy(), null);
+        addPlugin("plugin-failing", NO_WAIT, null, new IllegalStateException("Boom"));
+
+        // The hanging plugin doesn't hold the check for longer than the deadline
+        final Result result = healthcheck.check();
+        Assert.assertFalse(result.isHealthy());
+        Assert.assertEquals(result.getDetails().get("plugin-slow-1"), HealthStatus.healthy().getDetails());
+        Assert.assertEquals(result.getDetails().get("plugin-slow-2"), HealthStatus.healthy().getDetails());
+        Assert.assertEquals(result.getDetails().get("plugin-slow-3"), HealthStatus.healthy().getDetails());
+        Assert.assertEquals(result.getDetails().get("plugin-hanging"), Map.of(KillbillPluginsHealthcheck.STATUS_KEY, KillbillPluginsHealthcheck.TIMEOUT_STATUS));
+        final Map<?, ?> failingDetails = (Map<?, ?>) result.getDetails().get("plugin-failing");
+        Assert.assertEquals(failingDetails.get(KillbillPluginsHealthcheck.STATUS_KEY), KillbillPluginsHealthcheck.ERROR_STATUS);
+        Assert.assertEquals(failingDetails.get("message"), new IllegalStateException("Boom").toString());
+
+        // The hanging plugin isn't checked again until its previous check returns
+        Assert.assertFalse(healthcheck.check().isHealthy());
+        Assert.assertEquals(nbCalls.get("plugin-hanging").get(), 1);
+        Assert.assertEquals(nbCalls.get("plugin-slow-1").get(), 2);
+
+        hangingPluginLatch.countDown();
+        plugins.remove("plugin-failing");
+        Assert.assertTrue(healthcheck.check().isHealthy());
+    }
+
+    @Test(groups = "fast")
+    public void testHangingPluginsCannotStarveTheExecutor() {
+        Mockito.when(config.getPluginsHealthCheckNbThreads()).thenReturn(1);
+        addPlugin("plugin-hanging", hangingPluginLatch::await, HealthStatus.healthy(), null);
+        addPlugin("plugin-ok", NO_WAIT, HealthStatus.healthy(), null);
+
+        final Result result = healthcheck.check();
+        Assert.assertEquals(result.getDetails().get("plugin-hanging"), Map.of(KillbillPluginsHealthcheck.STATUS_KEY, KillbillPluginsHealthcheck.TIMEOUT_STATUS));
+        // Not queued behind the hanging one, even with a single core thread
+        Assert.assertEquals(result.getDetails().get("plugin-ok"), HealthStatus.healthy().getDetails());
+
+        // Repeated checks don't pile up tasks
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals(healthcheck.check().getDetails().get("plugin-ok"), HealthStatus.healthy().getDetails());
+        }
+        Assert.assertEquals(nbCalls.get("plugin-hanging").get(), 1);
+        Assert.assertEquals(nbCalls.get("plugin-ok").get(), 3);
+
+        hangingPluginLatch.countDown();
+        Assert.assertTrue(healthcheck.check().isHealthy());
+    }
+
+    @Test(groups = "fast")
+    public void testSaturatedExecutor() throws InterruptedException {
+        Mockito.when(config.getPluginsHealthCheckNbThreads()).thenReturn(1);
+        // Checks which ignore the interruption keep their thread after the plugin is unregistered
+        final Wait stuckWait = () -> {
+            while (true) {
+                try {
+                    hangingPluginLatch.await();
+                    return;
+                } catch (final InterruptedException ignored) {
+                }
+            }
+        };
+        addPlugin("plugin-stuck-1", stuckWait, HealthStatus.healthy(), null);
+        Assert.assertEquals(healthcheck.check().getDetails().get("plugin-stuck-1"), Map.of(KillbillPluginsHealthcheck.STATUS_KEY, KillbillPluginsHealthcheck.TIMEOUT_STATUS));
+        plugins.clear();
+        addPlugin("plugin-stuck-2", stuckWait, HealthStatus.healthy(), null);
+        Assert.assertEquals(healthcheck.check().getDetails().get("plugin-stuck-2"), Map.of(KillbillPluginsHealthcheck.STATUS_KEY, KillbillPluginsHealthcheck.TIMEOUT_STATUS));
+
+        // Both threads (one core thread, plus one for the single plugin) are held: the check is rejected, not queued
+        plugins.clear();
+        addPlugin("plugin-ok", NO_WAIT, HealthStatus.healthy(), null);
+        final Result result = healthcheck.check();
+        Assert.assertFalse(result.isHealthy());
+        Assert.assertEquals(result.getDetails().get("plugin-ok"), Map.of(KillbillPluginsHealthcheck.STATUS_KEY, KillbillPluginsHealthcheck.TIMEOUT_STATUS));
+        Assert.assertEquals(nbCalls.get("plugin-ok").get(), 0);
+
+        // Threads are given back as the stuck checks return
+        hangingPluginLatch.countDown();
+        boolean isHealthy = healthcheck.check().isHealthy();
+        for (int i = 0; i < 50 && !isHealthy; i++) {
+            Thread.sleep(100);
+            isHealthy = healthcheck.check().isHealthy();
+        }
+        Assert.assertTrue(isHealthy);
+        Assert.assertEquals(nbCalls.get("plugin-ok").get(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testUnregisteredPlugins() {
+        Mockito.when(config.getPluginsHealthCheckCacheTtl()).thenReturn(new TimeSpan("10s"));
+        addPlugin("plugin-hanging", hangingPluginLatch::await, HealthStatus.healthy(), null);
+        addPlugin("plugin-cached", NO_WAIT, HealthStatus.unHealthy("cached"), null);
+        Assert.assertFalse(healthcheck.check().isHealthy());
+
+        // Unregistered, then registered again (e.g. plugin restart): neither the stuck check nor the cached status are reused
+        plugins.clear();
+        Assert.assertTrue(healthcheck.check().isHealthy());
+        addPlugin("plugin-hanging", NO_WAIT, HealthStatus.healthy("restarted"), null);
+        addPlugin("plugin-cached", NO_WAIT, HealthStatus.healthy("restarted"), null);
+        final Result result = healthcheck.check();
+        Assert.assertTrue(result.isHealthy());
+        Assert.assertEquals(result.getDetails().get("plugin-hanging"), HealthStatus.healthy("restarted").getDetails());
+        Assert.assertEquals(result.getDetails().get("plugin-cached"), HealthStatus.healthy("restarted").getDetails());
+    }
+
+    @Test(groups = "fast")
+    public void testCaching() {
+        Mockito.when(config.getPluginsHealthCheckCacheTtl()).thenReturn(new TimeSpan("10s"));
+        addPlugin("plugin-a", NO_WAIT, HealthStatus.unHealthy("a"), null);
+        addPlugin("plugin-failing", NO_WAIT, null, new IllegalStateException("Boom"));
+
+        Assert.assertFalse(healthcheck.check().isHealthy());
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        final Result result = healthcheck.check();
+        Assert.assertFalse(result.isHealthy());
+        Assert.assertEquals(result.getDetails().get("plugin-a"), HealthStatus.unHealthy("a").getDetails());
+        // Served from the cache, failures are never cached
+        Assert.assertEquals(nbCalls.get("plugin-a").get(), 1);
+        Assert.assertEquals(nbCalls.get("plugin-failing").get(), 2);
+
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        healthcheck.check();
+        Assert.assertEquals(nbCalls.get("plugin-a").get(), 2);
+    }
+
+    private void addPlugin(final String name, final Wait wait, final HealthStatus status, final RuntimeException failure) {
+        final AtomicInteger calls = new AtomicInteger();
+        nbCalls.put(name, calls);
+        plugins.put(name, (tenant, properties) -> {
+            calls.incrementAndGet();
+            try {
+                wait.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return status;
+        });
+    }
+
+    // What the plugin waits for before answering
+    private interface Wait {
+
+        void await() throws InterruptedException;
+    }
+}
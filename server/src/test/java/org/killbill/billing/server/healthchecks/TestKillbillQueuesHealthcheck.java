@@ -21,6 +21,7 @@ package org.killbill.billing.server.healthchecks;
 
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.joda.time.DateTime;
@@ -34,6 +35,7 @@ import org.killbill.notificationq.api.NotificationQueueService;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.skife.config.TimeSpan;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -45,17 +47,22 @@ public class TestKillbillQueuesHealthcheck {
     private KillbillQueuesHealthcheck healthcheck;
     private ClockMock clock;
     private AtomicLong currentBusEntries;
+    private AtomicLong nanoTime;
+    private PersistentBus bus;
+    private PersistentBus externalBus;
+    private NotificationQueueService notificationQueueService;
+    private KillbillServerConfig config;
 
     @BeforeMethod(groups = "fast")
     public void setUp() throws Exception {
-        final NotificationQueueService notificationQueueService = Mockito.mock(NotificationQueueService.class);
+        notificationQueueService = Mockito.mock(NotificationQueueService.class);
         Mockito.when(notificationQueueService.getNotificationQueues()).thenReturn(Collections.emptyList());
 
-        final PersistentBus externalBus = Mockito.mock(PersistentBus.class);
+        externalBus = Mockito.mock(PersistentBus.class);
         Mockito.when(externalBus.getNbReadyEntries(Mockito.any(DateTime.class))).thenThrow(UnsupportedOperationException.class);
 
         currentBusEntries = new AtomicLong(0);
-        final PersistentBus bus = Mockito.mock(PersistentBus.class);
+        bus = Mockito.mock(PersistentBus.class);
         Mockito.when(bus.toString()).thenReturn("internalBus");
         Mockito.when(bus.getNbReadyEntries(Mockito.any(DateTime.class))).thenAnswer(new Answer<Long>() {
             @Override
@@ -66,17 +73,25 @@ public class TestKillbillQueuesHealthcheck {
 
         clock = new ClockMock();
 
-        final KillbillServerConfig config = Mockito.mock(KillbillServerConfig.class);
+        config = Mockito.mock(KillbillServerConfig.class);
+        Mockito.when(config.getQueueHealthCheckSamplingPeriod()).thenReturn(new TimeSpan("1m"));
+        Mockito.when(config.getQueueHealthCheckStaleThreshold()).thenReturn(new TimeSpan("5m"));
+        nanoTime = new AtomicLong(0);
 
-
-        healthcheck = new KillbillQueuesHealthcheck(clock,
-                                                    notificationQueueService,
-                                                    bus,
-                                                    config,
-                                                    externalBus);
+        healthcheck = createHealthcheck(false);
         healthcheck.activateHealthcheck();
     }
 
+    private KillbillQueuesHealthcheck createHealthcheck(final boolean enabled) {
+        Mockito.when(config.isQueueHealthCheckEnabled()).thenReturn(enabled);
+        return new KillbillQueuesHealthcheck(clock,
+                                             notificationQueueService,
+                                             bus,
+                                             config,
+                                             externalBus,
+                                             nanoTime::get);
+    }
+
     @Test(groups = "fast")
     public void testUpdateRegression() throws Exception {
         final QueueStats queueStats = new QueueStats("myQ", 3, 0.3);
@@ -221,6 +236,92 @@ public class TestKillbillQueuesHealthcheck {
         checkResult(16300, false);
     }
 
+    @Test(groups = "fast")
+    public void testCheckUsesLatestSample() throws Exception {
+        // Nothing sampled yet
+        Assert.assertTrue(healthcheck.check().isHealthy());
+        Mockito.verify(bus, Mockito.never()).getNbReadyEntries(Mockito.any(DateTime.class));
+
+        currentBusEntries.set(10);
+        healthcheck.sample();
+        Mockito.verify(bus, Mockito.times(1)).getNbReadyEntries(Mockito.any(DateTime.class));
+
+        // Probes don't hit the queues
+        for (int i = 0; i < 10; i++) {
+            final Result result = healthcheck.check();
+            Assert.assertTrue(result.isHealthy(), result.toString());
+            Assert.assertTrue(((String) result.getDetails().get("bus")).contains("rawSizes=[10]"), result.toString());
+        }
+        Mockito.verify(bus, Mockito.times(1)).getNbReadyEntries(Mockito.any(DateTime.class));
+    }
+
+    @Test(groups = "fast")
+    public void testSamplerFollowsActivation() throws Exception {
+        healthcheck.deactivateHealthcheck();
+        healthcheck.start();
+        try {
+            // Don't hit the queues for nothing
+            Mockito.verify(bus, Mockito.after(500).never()).getNbReadyEntries(Mockito.any(DateTime.class));
+
+            // Activated at runtime (e.g. through JMX)
+            healthcheck.activateHealthcheck();
+            Mockito.verify(bus, Mockito.timeout(5000)).getNbReadyEntries(Mockito.any(DateTime.class));
+            Assert.assertTrue(healthcheck.check().isHealthy());
+
+            healthcheck.deactivateHealthcheck();
+            Mockito.reset(bus);
+            Mockito.verify(bus, Mockito.after(500).never()).getNbReadyEntries(Mockito.any(DateTime.class));
+        } finally {
+            healthcheck.stop();
+        }
+
+        // Not sampled before the lifecycle starts it
+        final KillbillQueuesHealthcheck enabledHealthcheck = createHealthcheck(true);
+        Mockito.verify(bus, Mockito.after(500).never()).getNbReadyEntries(Mockito.any(DateTime.class));
+        enabledHealthcheck.start();
+        try {
+            Mockito.verify(bus, Mockito.timeout(5000)).getNbReadyEntries(Mockito.any(DateTime.class));
+        } finally {
+            enabledHealthcheck.stop();
+        }
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidSamplingPeriod() throws Exception {
+        Mockito.when(config.getQueueHealthCheckSamplingPeriod()).thenReturn(new TimeSpan("0s"));
+        createHealthcheck(true);
+    }
+
+    @Test(groups = "fast")
+    public void testStaleSample() throws Exception {
+        healthcheck.sample();
+        Assert.assertTrue(healthcheck.check().isHealthy());
+
+        nanoTime.addAndGet(TimeUnit.MINUTES.toNanos(5));
+        Assert.assertTrue(healthcheck.check().isHealthy());
+
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        final Result staleResult = healthcheck.check();
+        Assert.assertFalse(staleResult.isHealthy());
+        Assert.assertEquals(staleResult.getMessage(), "Stale queues sample (301000ms old)");
+
+        // Ignored when the healthcheck is deactivated
+        healthcheck.deactivateHealthcheck();
+        Assert.assertTrue(healthcheck.check().isHealthy());
+        healthcheck.activateHealthcheck();
+
+        // The sampler fails: the last good sample isn't refreshed
+        Mockito.when(bus.getNbReadyEntries(Mockito.any(DateTime.class))).thenThrow(new IllegalStateException("Database is down"));
+        healthcheck.sample();
+        Assert.assertFalse(healthcheck.check().isHealthy());
+
+        // The sampler recovers
+        Mockito.reset(bus);
+        Mockito.when(bus.getNbReadyEntries(Mockito.any(DateTime.class))).thenReturn(0L);
+        healthcheck.sample();
+        Assert.assertTrue(healthcheck.check().isHealthy());
+    }
+
     private void checkResult(final int newBusEntries, final boolean healthy) {
         clock.addDeltaFromReality(Period.minutes(5).toStandardDuration().getMillis());
         currentBusEntries.set(newBusEntries);
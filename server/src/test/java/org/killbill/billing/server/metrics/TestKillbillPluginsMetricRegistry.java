@@ -0,0 +1,238 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.server.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.killbill.billing.osgi.MetricRegistryServiceRegistration;
+import org.killbill.billing.osgi.api.OSGIServiceDescriptor;
+import org.killbill.commons.concurrent.Executors;
+import org.killbill.commons.metrics.api.Counter;
+import org.killbill.commons.metrics.api.Gauge;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.metrics.dropwizard.KillBillCodahaleMetricRegistry;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestKillbillPluginsMetricRegistry {
+
+    private static final String METRICS_PLUGIN = "killbill-metrics";
+
+    private MetricRegistryServiceRegistration metricRegistryServiceRegistration;
+    private KillbillPluginsMetricRegistry metricRegistry;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        metricRegistryServiceRegistration = new MetricRegistryServiceRegistration();
+        metricRegistry = new KillbillPluginsMetricRegistry(metricRegistryServiceRegistration);
+    }
+
+    @Test(groups = "fast")
+    public void testHandlesAreInterned() {
+        Assert.assertSame(metricRegistry.counter("requests"), metricRegistry.counter("requests"));
+        Assert.assertSame(metricRegistry.timer("requests"), metricRegistry.timer("requests"));
+        Assert.assertSame(metricRegistry.meter("requests"), metricRegistry.meter("requests"));
+        Assert.assertSame(metricRegistry.histogram("requests"), metricRegistry.histogram("requests"));
+        Assert.assertNotSame(metricRegistry.counter("requests"), metricRegistry.counter("other-requests"));
+    }
+
+    @Test(groups = "fast")
+    public void testMetricsBundleRestart() {
+        final Counter counter = metricRegistry.counter("requests");
+        final Gauge<Integer> gauge = metricRegistry.gauge("answer", () -> 42);
+
+        // No metrics plugin yet: dropped
+        counter.inc(1);
+        Assert.assertEquals(counter.getCount(), 0);
+        Assert.assertNull(gauge.getValue());
+
+        final MetricRegistry firstRegistry = new KillBillCodahaleMetricRegistry();
+        register(firstRegistry);
+        counter.inc(2);
+        Assert.assertEquals(counter.getCount(), 2);
+        Assert.assertEquals(firstRegistry.getCounters().get("requests").getCount(), 2);
+        Assert.assertEquals(firstRegistry.getGauges().get("answer").getValue(), 42);
+
+        metricRegistryServiceRegistration.unregisterService(METRICS_PLUGIN);
+        counter.inc(3);
+        Assert.assertEquals(counter.getCount(), 0);
+
+        // Restarted bundle: the same handles are re-bound to the new registry
+        final MetricRegistry secondRegistry = new KillBillCodahaleMetricRegistry();
+        register(secondRegistry);
+        counter.inc(4);
+        Assert.assertEquals(counter.getCount(), 4);
+        Assert.assertEquals(secondRegistry.getCounters().get("requests").getCount(), 4);
+        Assert.assertEquals(firstRegistry.getCounters().get("requests").getCount(), 2);
+        Assert.assertEquals(secondRegistry.getGauges().get("answer").getValue(), 42);
+        Assert.assertEquals(gauge.getValue(), (Integer) 42);
+    }
+
+    @Test(groups = "fast")
+    public void testLookupsAreCached() {
+        final MetricRegistry pluginRegistry = Mockito.mock(MetricRegistry.class);
+        final Counter pluginCounter = Mockito.mock(Counter.class);
+        Mockito.when(pluginRegistry.counter("requests")).thenReturn(pluginCounter);
+        register(pluginRegistry);
+
+        for (int i = 0; i < 10; i++) {
+            metricRegistry.counter("requests").inc(1);
+        }
+        Mockito.verify(pluginCounter, Mockito.times(10)).inc(1);
+        Mockito.verify(pluginRegistry, Mockito.times(1)).counter("requests");
+
+        // Removed metrics are looked up (i.e. re-created) again on next use
+        metricRegistry.remove("requests");
+        metricRegistry.counter("requests").inc(1);
+        Mockito.verify(pluginRegistry).remove("requests");
+        Mockito.verify(pluginRegistry, Mockito.times(2)).counter("requests");
+    }
+
+    @Test(groups = "fast")
+    public void testRemoveDuringLookup() {
+        final MetricRegistry pluginRegistry = Mockito.mock(MetricRegistry.class);
+        final Counter removedCounter = Mockito.mock(Counter.class);
+        final Counter newCounter = Mockito.mock(Counter.class);
+        final AtomicBoolean firstLookup = new AtomicBoolean(true);
+        Mockito.when(pluginRegistry.counter("requests")).thenAnswer(invocation -> {
+            if (firstLookup.getAndSet(false)) {
+                // Removed by another thread, right after the handle looked it up
+                metricRegistry.remove("requests");
+                return removedCounter;
+            }
+            return newCounter;
+        });
+        register(pluginRegistry);
+
+        final Counter counter = metricRegistry.counter("requests");
+        counter.inc(1);
+        Mockito.verify(removedCounter).inc(1);
+
+        // The handle doesn't stay bound to the removed (orphan) counter
+        counter.inc(1);
+        counter.inc(1);
+        Mockito.verify(newCounter, Mockito.times(2)).inc(1);
+        Mockito.verify(removedCounter, Mockito.times(1)).inc(1);
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentIncrementsAndRestarts() throws Exception {
+        final int nbThreads = 8;
+        final int nbIncrements = 100000;
+
+        final MetricRegistry firstRegistry = new KillBillCodahaleMetricRegistry();
+        final MetricRegistry secondRegistry = new KillBillCodahaleMetricRegistry();
+        register(firstRegistry);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(nbThreads + 1, "TestKillbillPluginsMetricRegistry");
+        try {
+            // Stable registry: no increment is lost
+            runIncrements(executor, nbThreads, nbIncrements);
+            Assert.assertEquals(firstRegistry.getCounters().get("requests").getCount(), (long) nbThreads * nbIncrements);
+
+            // The metrics bundle keeps being restarted: increments land in one registry or the other, or are dropped
+            final AtomicBoolean restarting = new AtomicBoolean(true);
+            final Future<?> restarter = executor.submit(() -> {
+                boolean first = false;
+                while (restarting.get()) {
+                    metricRegistryServiceRegistration.unregisterService(METRICS_PLUGIN);
+                    register(first ? firstRegistry : secondRegistry);
+                    first = !first;
+                }
+            });
+            runIncrements(executor, nbThreads, nbIncrements);
+            restarting.set(false);
+            restarter.get(10, TimeUnit.SECONDS);
+
+            final long total = getCount(firstRegistry, "requests") + getCount(secondRegistry, "requests");
+            Assert.assertTrue(total <= 2L * nbThreads * nbIncrements, String.valueOf(total));
+
+            // Once stable again, every increment lands in the current registry
+            final MetricRegistry currentRegistry = metricRegistryServiceRegistration.getService();
+            final long before = getCount(currentRegistry, "requests");
+            runIncrements(executor, nbThreads, nbIncrements);
+            Assert.assertEquals(getCount(currentRegistry, "requests") - before, (long) nbThreads * nbIncrements);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testGaugeReplacementAndRemoval() {
+        final MetricRegistry pluginRegistry = Mockito.mock(MetricRegistry.class);
+        Mockito.when(pluginRegistry.remove("answer")).thenReturn(true);
+        register(pluginRegistry);
+
+        final Gauge<Integer> answer = () -> 42;
+        final Gauge<Integer> gauge = metricRegistry.gauge("answer", answer);
+        Assert.assertSame(metricRegistry.gauge("answer", answer), gauge);
+        Mockito.verify(pluginRegistry, Mockito.times(1)).gauge("answer", answer);
+
+        // A different Gauge replaces the previous one (e.g. re-created by a restarted component)
+        final Gauge<Integer> newAnswer = () -> 43;
+        Assert.assertNotSame(metricRegistry.gauge("answer", newAnswer), gauge);
+        Mockito.verify(pluginRegistry, Mockito.times(1)).remove("answer");
+        Mockito.verify(pluginRegistry, Mockito.times(1)).gauge("answer", newAnswer);
+
+        // Removed gauges aren't re-registered when the metrics bundle restarts
+        Assert.assertTrue(metricRegistry.remove("answer"));
+        Mockito.verify(pluginRegistry, Mockito.times(2)).remove("answer");
+        metricRegistryServiceRegistration.unregisterService(METRICS_PLUGIN);
+        register(pluginRegistry);
+        Mockito.verify(pluginRegistry, Mockito.times(1)).gauge("answer", newAnswer);
+        Mockito.verify(pluginRegistry, Mockito.times(1)).gauge("answer", answer);
+    }
+
+    private void runIncrements(final ExecutorService executor, final int nbThreads, final int nbIncrements) throws Exception {
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < nbThreads; i++) {
+            futures.add(executor.submit(() -> {
+                startLatch.await();
+                for (int j = 0; j < nbIncrements; j++) {
+                    // Handle looked up on every call, as most callers do
+                    metricRegistry.counter("requests").inc(1);
+                }
+                return null;
+            }));
+        }
+        startLatch.countDown();
+        for (final Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+    }
+
+    private static long getCount(final MetricRegistry registry, final String name) {
+        final Counter counter = registry.getCounters().get(name);
+        return counter != null ? counter.getCount() : 0;
+    }
+
+    private void register(final MetricRegistry registry) {
+        final OSGIServiceDescriptor desc = Mockito.mock(OSGIServiceDescriptor.class);
+        Mockito.when(desc.getRegistrationName()).thenReturn(METRICS_PLUGIN);
+        metricRegistryServiceRegistration.registerService(desc, registry);
+    }
+}